@@ -0,0 +1,249 @@
+package org.jrfoster.datagen;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides which lab results are abnormal so that the configured
+ * share of abnormal results is met exactly for every strategy and test type,
+ * and so for the load as a whole, however many threads are generating data.<br>
+ * <br>
+ * Each strategy and test type pair is a stream of results numbered 0, 1, 2 and
+ * so on, and result k of a stream is abnormal exactly when floor((k + 1) * p)
+ * is greater than floor(k * p), p being the abnormal rate. Any run of n
+ * consecutive results then holds floor(n * p) or ceil(n * p) abnormal ones,
+ * spread evenly rather than in clumps.<br>
+ * <br>
+ * A strategy gets a Selector for each of its test types. A selector belongs to
+ * a single thread, like the strategy itself, and claims a block of result
+ * numbers from its stream at a time, so the only shared state touched is a few
+ * atomic adds per block. A selector adds its counts to its stream's totals as
+ * it claims each block, and for the last time when it is closed, after which
+ * the controller no longer knows about it. The unused tail of a closed
+ * selector's block is handed to the next selector of the stream to need a
+ * block, so selectors that only live for a few patients don't leave gaps in
+ * the stream. Only the selectors still open can hold unused result numbers,
+ * so the achieved rate of a stream is off by at most one result per selector
+ * left open.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class AbnormalRatioController {
+    private final double rate;
+    private final int blockSize;
+    private final Map<String, Stream> streams = new TreeMap<String, Stream>();
+
+    /**
+     * Creates a new controller
+     *
+     * @param rate
+     *            share of results that should be abnormal, between 0 and 1
+     * @param blockSize
+     *            number of results a selector claims from its stream at a time
+     */
+    public AbnormalRatioController(double rate, int blockSize) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be between 0 and 1");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.rate = rate;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Creates a selector drawing from the stream for the given strategy and
+     * test type. Every selector for the same pair shares a stream.
+     *
+     * @param strategy
+     *            name of the strategy
+     * @param test
+     *            name of the test, e.g. HBA1C
+     * @return selector for use by a single thread
+     */
+    public Selector newSelector(String strategy, String test) {
+        String name = strategy + "/" + test;
+        synchronized (streams) {
+            Stream stream = streams.get(name);
+            if (stream == null) {
+                stream = new Stream();
+                streams.put(name, stream);
+            }
+            return new Selector(stream);
+        }
+    }
+
+    /**
+     * @return the configured share of abnormal results
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the share of all results so far that were abnormal. While the
+     * load is running the figure lags behind, since open selectors only add
+     * their counts to the totals a block at a time.
+     *
+     * @return achieved abnormal rate, or 0 if there are no results yet
+     */
+    public double getAchievedRate() {
+        long results = 0;
+        long abnormal = 0;
+        synchronized (streams) {
+            for (Stream stream : streams.values()) {
+                results += stream.results.get();
+                abnormal += stream.abnormal.get();
+            }
+        }
+        return results == 0 ? 0.0 : (double) abnormal / results;
+    }
+
+    /**
+     * Returns the achieved abnormal rate for each stream that produced any
+     * results, and for the load as a whole. It should be called once the
+     * selectors have been closed.
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        Map<String, long[]> totals = new TreeMap<String, long[]>();
+        long results = 0;
+        long abnormal = 0;
+        synchronized (streams) {
+            for (Map.Entry<String, Stream> entry : streams.entrySet()) {
+                Stream stream = entry.getValue();
+                long[] total = { stream.results.get(), stream.abnormal.get() };
+                totals.put(entry.getKey(), total);
+                results += total[0];
+                abnormal += total[1];
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Abnormal results, target ")
+                .append(String.format("%.2f%%", rate * 100));
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            if (total[0] > 0) {
+                appendRate(sb.append("\n  ").append(entry.getKey()).append(": "),
+                        total[0], total[1]);
+            }
+        }
+        appendRate(sb.append("\n  All: "), results, abnormal);
+        return sb.toString();
+    }
+
+    private static void appendRate(StringBuilder sb, long results,
+            long abnormal) {
+        sb.append(abnormal).append(" of ").append(results).append(" (")
+                .append(String.format("%.2f%%", results == 0 ? 0.0
+                        : 100.0 * abnormal / results)).append(")");
+    }
+
+    /**
+     * The result numbers and totals of one strategy and test type
+     */
+    private static final class Stream {
+        // First result number no selector has claimed yet
+        private final AtomicLong next = new AtomicLong();
+        // Unused tails of the blocks of closed selectors, as {first, end}
+        private final Queue<long[]> spare = new ConcurrentLinkedQueue<long[]>();
+        private final AtomicLong results = new AtomicLong();
+        private final AtomicLong abnormal = new AtomicLong();
+    }
+
+    /**
+     * Decides whether each successive result of one strategy and test type is
+     * abnormal. Not thread-safe; each thread uses selectors of its own and
+     * closes them when it is done with them.
+     */
+    public final class Selector {
+        private final Stream stream;
+        private long index;
+        private long end;
+
+        // Counts not yet added to the stream's totals, which are the only
+        // counts other threads read
+        private long results;
+        private long abnormal;
+
+        private Selector(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * @return true if the next result should be abnormal
+         */
+        public boolean next() {
+            if (index == end) {
+                claim();
+            }
+            long k = index++;
+            boolean isAbnormal = (long) Math.floor((k + 1) * rate) > (long) Math
+                    .floor(k * rate);
+            results++;
+            if (isAbnormal) {
+                abnormal++;
+            }
+            return isAbnormal;
+        }
+
+        /**
+         * Fills an array with the decisions for the next count results, the
+         * same as calling next() count times
+         *
+         * @param abnormal
+         *            array the decisions are written to
+         * @param offset
+         *            index of the first decision in the array
+         * @param count
+         *            number of decisions to make
+         */
+        public void next(boolean[] abnormal, int offset, int count) {
+            for (int i = offset, end = offset + count; i < end; i++) {
+                abnormal[i] = next();
+            }
+        }
+
+        private void claim() {
+            publish();
+            long[] range = stream.spare.poll();
+            if (range != null) {
+                index = range[0];
+                end = range[1];
+            } else {
+                index = stream.next.getAndAdd(blockSize);
+                end = index + blockSize;
+            }
+        }
+
+        private void publish() {
+            if (results > 0) {
+                stream.results.addAndGet(results);
+                stream.abnormal.addAndGet(abnormal);
+                results = 0;
+                abnormal = 0;
+            }
+        }
+
+        /**
+         * Adds this selector's counts to the totals and gives back the rest of
+         * its block for other selectors of the stream to use. A closed
+         * selector can still be used, in which case it claims a new block and
+         * should be closed again.
+         */
+        public void close() {
+            publish();
+            if (index < end) {
+                stream.spare.add(new long[] { index, end });
+                index = end;
+            }
+        }
+    }
+}
@@ -1,37 +1,71 @@
 package org.jrfoster.datagen;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.joda.time.Interval;
 
-import com.datastax.driver.core.Session;
-
 public abstract class AbstractDataStrategy implements EncounterDataStrategy {
-    protected final Session session;
+    protected final DataSink sink;
     protected final DataGenerator generator;
 
-    private final String keyspaceName;
-    private final double percentAbnormal;
     private final Date loadDate;
+    private final Set<Table> tables;
 
-    protected boolean abnormalResult = false;
-    private int throttle = 0;
-    private int denominator = 0;
-    private int numerator = 0;
+    // Each test type has its own stream of abnormal decisions so that the
+    // abnormal rate is met for every test, not just overall. The tests of a
+    // lipid panel share the LIPID stream.
+    private final Map<LabTest, AbnormalRatioController.Selector> abnormalSelectors = new EnumMap<LabTest, AbnormalRatioController.Selector>(
+            LabTest.class);
 
-    protected AbstractDataStrategy(String keyspace, Session sess,
-            DataGenerator gen, Double pctAbnormal, Date loadDate) {
-        this.session = sess;
+    protected AbstractDataStrategy(DataSink sink, DataGenerator gen,
+            AbnormalRatioController abnormal, Date loadDate, Set<Table> tables) {
+        this.sink = sink;
         this.generator = gen;
-        this.keyspaceName = keyspace;
-        this.percentAbnormal = pctAbnormal;
         this.loadDate = loadDate;
+        this.tables = tables;
+
+        String name = getClass().getSimpleName();
+        Map<String, AbnormalRatioController.Selector> streams = new HashMap<String, AbnormalRatioController.Selector>();
+        for (LabTest test : LabTest.values()) {
+            AbnormalRatioController.Selector selector = streams.get(test
+                    .getAbnormalStream());
+            if (selector == null) {
+                selector = abnormal.newSelector(name, test.getAbnormalStream());
+                streams.put(test.getAbnormalStream(), selector);
+            }
+            abnormalSelectors.put(test, selector);
+        }
     }
 
     @Override
-    public abstract void generateEncounterData(int patientId,
-            int measurementPeriodYear, boolean isMale);
+    public abstract void generateEncounterData(PatientRecord patient,
+            int measurementPeriodYear);
+
+    /**
+     * Closes the strategy's abnormal selectors, adding their counts to the
+     * controller's totals
+     */
+    @Override
+    public void finish() {
+        // Closing a selector shared by several tests again does nothing
+        for (AbnormalRatioController.Selector selector : abnormalSelectors
+                .values()) {
+            selector.close();
+        }
+    }
+
+    /**
+     * Returns whether rows are being loaded into the given table. Strategies
+     * skip generating the children of an encounter that go to a table that
+     * isn't being loaded.
+     */
+    protected final boolean isLoaded(Table table) {
+        return tables.contains(table);
+    }
 
     protected abstract void generateLabs(int patientId, Interval interval);
 
@@ -41,94 +75,53 @@ public abstract class AbstractDataStrategy implements EncounterDataStrategy {
 
     protected abstract void generateScreening(int patientId);
 
-    protected abstract void generatePrefills(int patientId, String hicn, boolean isMale, Interval interval, String fullName, Date dob);
+    protected abstract void generatePrefills(PatientRecord patient, Interval interval);
 
-    protected final String generateEncounterDML(int patientId, Interval interval, int encId) {
+    protected final void writeEncounter(int patientId, Interval interval, int encId) {
         // One note here is that because we only generate patients who are alive
         // the random discharge disposition generated here only includes the
         // codes indicating that a patient was discharged alive
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-                .append(keyspaceName)
-                .append(".patient_encounters (encounter_uid, patient_id,patient_id_src,admit_date,encounter_type,discharge_date,discharge_method,load_date) values (")
-                .append(String.format("%s,'%s','%s','%s','%s','%s','%s','%s'",
-                        encId, patientId, "OHCP",
-                        sdf.format(interval.getStart().toDate()),
-                        generator.generateRandomAdmitType(),
-                        sdf.format(interval.getEnd().toDate()),
-                        generator.generateRandomDischargeDisposition(),
-                        sdf.format(loadDate)))
-                .append(");");
-
-        return sb.toString();
-    }
-
-    protected String generatePatientDiagnosesDML(int patientId,
+        sink.write(Table.PATIENT_ENCOUNTERS, encId, patientId, "OHCP",
+                interval.getStart().toDate(),
+                generator.generateRandomAdmitType(),
+                interval.getEnd().toDate(),
+                generator.generateRandomDischargeDisposition(), loadDate);
+    }
+
+    protected void writePatientDiagnosis(int patientId,
             Interval interval, CodedValue dxCode, int encId) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-                .append(keyspaceName)
-                .append(".patient_diagnoses (diagnosis_uid,encounter_uid,patient_id,patient_id_src,code,codingsystem,diagnosis_date,load_date) values (")
-                .append(String.format("%s,%s,'%s','%s','%s','%s','%s','%s'", 
-                    generator.generateNextDiagnosisSequence(), encId, patientId, "OHCP", 
-                    dxCode.getIdentifier(), dxCode.getCodingSystem(), sdf.format(
-                        generator.generateRandomTimestamp(interval.getStart().toDate(), 
-                            interval.getEnd().toDate())),
-                    sdf.format(loadDate)))
-                .append(");");
-
-        return sb.toString();
-    }
-
-    protected String generatePatientProcedureDML(int patientId,
+        sink.write(Table.PATIENT_DIAGNOSES,
+                generator.generateNextDiagnosisSequence(), encId, patientId,
+                "OHCP", dxCode.getIdentifier(), dxCode.getCodingSystem(),
+                generator.generateRandomTimestamp(interval.getStart().toDate(),
+                        interval.getEnd().toDate()), loadDate);
+    }
+
+    protected void writePatientProcedure(int patientId,
             Interval interval, CodedValue procCode) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-                .append(keyspaceName)
-                .append(".patient_procedures (procedure_uid,patient_id,patient_id_src,code,codingsystem,procedure_date,load_date) values (")
-                .append(String.format("%s,'%s','%s','%s','%s','%s','%s'", 
-                    generator.generateNextProcedureSequence(), patientId, "OHCP", 
-                    procCode.getIdentifier(), procCode.getCodingSystem(), 
-                    sdf.format(generator.generateRandomTimestamp(interval.getStart().toDate(), 
-                        interval.getEnd().toDate())),
-                    sdf.format(loadDate)))
-                .append(");");
-
-        return sb.toString();
-    }
-
-    protected String generatePrefillElementDML(String hicn, boolean isMale, 
-            Interval interval, String fullName, Date dob) {
-        StringBuffer sb = new StringBuffer(256);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        String[] nameParts = fullName.split(",");
-        
-        sb.append("insert into ")
-            .append(keyspaceName)
-            .append(".cms_prefilled_elements (hicno, pat_first_name, pat_last_name, gender, dob, dm_hba1c_date, dm_ldlc_date, pcflushot, pcpneumoshot) values (")
-            .append(String.format("'%s','%s','%s','%s','%s','%s','%s',%s,%s", 
-                hicn, nameParts[1].trim(), nameParts[0].trim(), isMale ? "M" : "F", 
-                sdf.format(dob), 
-                sdf.format(generator.generateRandomTimestamp(
-                    interval.getStart().toDate(),interval.getEnd().toDate())),
-                sdf.format(generator.generateRandomTimestamp(
-                    interval.getStart().toDate(),interval.getEnd().toDate())),
-                generator.generateRandomBoolean() ? 1 : 0, 
-                generator.generateRandomBoolean() ? 1 : 0))
-            .append(");");
+        sink.write(Table.PATIENT_PROCEDURES,
+                generator.generateNextProcedureSequence(), patientId, "OHCP",
+                procCode.getIdentifier(), procCode.getCodingSystem(),
+                generator.generateRandomTimestamp(interval.getStart().toDate(),
+                        interval.getEnd().toDate()), loadDate);
+    }
 
-        return sb.toString();
+    protected void writePrefillElement(PatientRecord patient,
+            Interval interval) {
+        sink.write(Table.PREFILLED_ELEMENTS, patient.getHicn(),
+                patient.getName().getGivenName(),
+                patient.getName().getFamilyName(),
+                patient.isMale() ? "M" : "F", patient.getDateOfBirth(),
+                generator.generateRandomTimestamp(
+                        interval.getStart().toDate(), interval.getEnd().toDate()),
+                generator.generateRandomTimestamp(
+                        interval.getStart().toDate(), interval.getEnd().toDate()),
+                generator.generateRandomBoolean() ? 1 : 0,
+                generator.generateRandomBoolean() ? 1 : 0);
     }
     
-    protected String generateScreeningDML(int patientId) {
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-            .append(keyspaceName)
-            .append(".patient_screening(patient_id,patient_id_src,bmi_screening,bmi_followup_plan,tobacco_screening,tobacco_cessation,bp_screening,bp_followup_plan,clinical_depression,clinical_depression_followup_plan,breast_cancer_screening) values (")
-            .append(String.format("'%s','%s',%s,%s,%s,%s,%s,%s,%s,%s,%s", patientId, "OHCP",
+    protected void writeScreening(int patientId) {
+        sink.write(Table.PATIENT_SCREENING, patientId, "OHCP",
                 generator.generateRandomBoolean() ? 1 : 0, 
                 generator.generateRandomBoolean() ? 1 : 0, 
                 generator.generateRandomBoolean() ? 1 : 0, 
@@ -137,114 +130,116 @@ public abstract class AbstractDataStrategy implements EncounterDataStrategy {
                 generator.generateRandomBoolean() ? 1 : 0, 
                 generator.generateRandomBoolean() ? 1 : 0, 
                 generator.generateRandomBoolean() ? 1 : 0, 
-                generator.generateRandomBoolean() ? 1 : 0))
-            .append(");");
-
-        return sb.toString();
-    }
-
-    protected String generateHemoglobinResultDML(int patientId,
-            Interval interval) {
-        Date date = generator.generateRandomTimestamp(interval.getStart()
-                .toDate(), interval.getEnd().toDate());
-        return generateLabResultDML(patientId, date, "HBA1C",
-                generator.generateRandomHemoglobinResult(abnormalResult));
-    }
-
-    protected String generateDiastolicResultDML(int patientId, Date resultDate) {
-        return generateLabResultDML(patientId, resultDate, "BPD",
-                generator.generateRandomDiastolicBP(abnormalResult));
-    }
-
-    protected String generateSystolicResultDML(int patientId, Date resultDate) {
-        return generateLabResultDML(patientId, resultDate, "BPS",
-                generator.generateRandomSystolicBP(abnormalResult));
+                generator.generateRandomBoolean() ? 1 : 0);
     }
 
-    protected String generateTobaccoScreeningDML(int patientId,
+    protected void writeTobaccoScreening(int patientId,
             Interval interval) {
         Date date = generator.generateRandomTimestamp(interval.getStart()
                 .toDate(), interval.getEnd().toDate());
-        return generateLabResultDML(patientId, date, "TOBACCO_NONUSE",
+        writeLabResult(patientId, date, "TOBACCO_NONUSE",
                 generator.generateRandomBoolean() ? 1.0D : 0.0D);
     }
 
-    protected String generateHDLCResultDML(int patientId,
-            LipidPanelResult lipids) {
-        return generateLabResultDML(patientId, lipids.getLipdsDate(), "HDLC",
-                lipids.getHDLC());
-    }
-
-    protected String generateLDLCResultDML(int patientId,
-            LipidPanelResult lipids) {
-        return generateLabResultDML(patientId, lipids.getLipdsDate(), "LDLC",
-                lipids.getLDLC());
-    }
-
-    protected String generateTRIGResultDML(int patientId,
-            LipidPanelResult lipids) {
-        return generateLabResultDML(patientId, lipids.getLipdsDate(), "TRIG",
-                lipids.getTRIG());
-    }
-
-    protected String generateCHOLResultDML(int patientId,
-            LipidPanelResult lipids) {
-        return generateLabResultDML(patientId, lipids.getLipdsDate(), "CHOL",
-                lipids.getCHOL());
-    }
-    
-    protected String generateFallRiskDML(int patientId,
+    protected void writeFallRisk(int patientId,
             Interval interval) {
         Date date = generator.generateRandomTimestamp(interval.getStart()
                 .toDate(), interval.getEnd().toDate());
-        return generateLabResultDML(patientId, date, "FALL_RISK_SCREENED",
+        writeLabResult(patientId, date, "FALL_RISK_SCREENED",
                 generator.generateRandomBoolean() ? 1.0D : 0.0D);
         
     }
 
-    protected void maintainAbnormalPercentage() {
-        // Increment our counters
-        ++denominator;
-        if (abnormalResult)
-            ++numerator;
-
-        // We only change every 1000 results
-        if (++throttle > 1000)
-            throttle = 0;
-
-        // Calculate the current percentage and adjust abnormal flag if
-        // necessary
-        abnormalResult = ((double) numerator / (double) denominator) < percentAbnormal;
-    }
-
-    private String generateLabResultDML(int patientId, Date resultDate,
+    /**
+     * Fills a block with results for a lab test taken at random times during
+     * the interval, deciding which are abnormal from the test's stream
+     * 
+     * @param block
+     *            block to fill
+     * @param test
+     *            test to generate results for
+     * @param count
+     *            number of results
+     * @param interval
+     *            interval the results are taken in
+     */
+    protected void generateResultBlock(ResultBlock block, LabTest test,
+            int count, Interval interval) {
+        block.reset(test, count);
+        abnormalSelectors.get(test).next(block.getAbnormal(), 0, count);
+        generator.generateResultBlock(block, interval.getStart().toDate(),
+                interval.getEnd().toDate());
+    }
+
+    /**
+     * Fills a block with results for a lab test taken at the same times as
+     * the results in another block, like the tests of a panel or the two
+     * readings of a blood pressure. Tests that share a stream of abnormal
+     * decisions, like those of a lipid panel, are abnormal together.
+     * 
+     * @param block
+     *            block to fill
+     * @param test
+     *            test to generate results for
+     * @param takenWith
+     *            block of results taken at the same times
+     */
+    protected void generateResultBlock(ResultBlock block, LabTest test,
+            ResultBlock takenWith) {
+        int count = takenWith.size();
+        block.reset(test, count);
+        if (test.getAbnormalStream().equals(
+                takenWith.getTest().getAbnormalStream())) {
+            System.arraycopy(takenWith.getAbnormal(), 0, block.getAbnormal(),
+                    0, count);
+        } else {
+            abnormalSelectors.get(test).next(block.getAbnormal(), 0, count);
+        }
+        System.arraycopy(takenWith.getTimestamps(), 0, block.getTimestamps(),
+                0, count);
+        generator.generateResults(test, block.getAbnormal(),
+                block.getValues(), 0, count);
+    }
+
+    /**
+     * Writes a row for each of the results in a block
+     */
+    protected void writeResultBlock(int patientId, ResultBlock block) {
+        String name = block.getTest().name();
+        double[] values = block.getValues();
+        long[] timestamps = block.getTimestamps();
+        for (int i = 0; i < block.size(); i++) {
+            writeLabResult(patientId, new Date(timestamps[i]), name, values[i]);
+        }
+    }
+
+    /**
+     * Writes the total cholesterol for each of a block of lipid panels, which
+     * is derived from the HDLC and LDLC results rather than generated
+     */
+    protected void writeCHOLResults(int patientId, ResultBlock hdlc,
+            ResultBlock ldlc) {
+        double[] hdlcValues = hdlc.getValues();
+        double[] ldlcValues = ldlc.getValues();
+        long[] timestamps = hdlc.getTimestamps();
+        for (int i = 0; i < hdlc.size(); i++) {
+            double chol = ldlcValues[i] == 0 || hdlcValues[i] == 0 ? 0.0
+                    : ldlcValues[i] + hdlcValues[i];
+            writeLabResult(patientId, new Date(timestamps[i]), "CHOL", chol);
+        }
+    }
+
+    private void writeLabResult(int patientId, Date resultDate,
             String name, double value) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-            .append(keyspaceName)
-            .append(".patient_results (result_uid,patient_id,patient_id_src,result_name,result_date,result_value,result_source,load_date) values (")
-            .append(String.format("%s,'%s','%s','%s','%s',%s,'%s','%s'",
-                "uuid()", patientId, "OHCP", name, sdf.format(resultDate), value,
-                "ADSLOADER", sdf.format(loadDate)))
-            .append(");");
-
-        return sb.toString();
+        sink.write(Table.PATIENT_RESULTS, generator.generateRandomUid(),
+                patientId, "OHCP", name, resultDate, value, "ADSLOADER",
+                loadDate);
     }
 
     @SuppressWarnings("unused")
-    private String generateSodiumResultDDL(int patientId, Date admitDate,
+    private void writeSodiumResult(int patientId, Date admitDate,
             Date dischargeDate, boolean abnormal) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-            .append(keyspaceName)
-            .append(".pat_results (patient_id, test_name, test_date, test_value) values (")
-            .append(String.format("%s,'%s','%s',%s", patientId, "NA", sdf
-                .format(generator.generateRandomTimestamp(admitDate,
-                    dischargeDate)), generator
-                .generateRandomSodiumResult(abnormal))).append(");");
-
-        return sb.toString();
+        writeLabResult(patientId, generator.generateRandomTimestamp(admitDate,
+                dischargeDate), "NA", generator.generateRandomSodiumResult(abnormal));
     }
 }
@@ -0,0 +1,63 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A semaphore whose number of permits can be changed while threads are using
+ * it, for limits that can be tuned during a load such as the number of writes
+ * in flight. Raising the limit lets waiting threads in straight away.
+ * Lowering it takes effect as permits are released, so threads already past
+ * the limit finish what they are doing first. The limit is changed while
+ * holding the semaphore's monitor, so holding it keeps the limit fixed.
+ *
+ * @author Jason Foster
+ *
+ */
+public class AdjustableLimit extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    private volatile int limit;
+
+    /**
+     * @param limit
+     *            number of permits to start with
+     */
+    public AdjustableLimit(int limit) {
+        super(limit);
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return the current number of permits
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit
+     *            new number of permits
+     */
+    public synchronized void setLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        if (limit > this.limit) {
+            release(limit - this.limit);
+        } else if (limit < this.limit) {
+            reducePermits(this.limit - limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return number of permits currently held, which can briefly be over
+     *         the limit after it has been lowered
+     */
+    public int getInUse() {
+        return getLimit() - availablePermits();
+    }
+}
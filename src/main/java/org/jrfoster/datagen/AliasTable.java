@@ -0,0 +1,150 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+/**
+ * This class draws indexes from a discrete, weighted distribution in constant
+ * time using Vose's alias method. The table is built once from an array of
+ * weights and is immutable afterwards, so a single instance can be shared by
+ * any number of threads.<br>
+ * <br>
+ * Each draw takes one random long. The high 32 bits pick a column of the
+ * table and the low 31 bits are compared against that column's threshold to
+ * decide between the column itself and its alias, which the JIT turns into a
+ * conditional move rather than a branch.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class AliasTable {
+    private static final double THRESHOLD_SCALE = (double) (1L << 31);
+
+    private final int[] threshold;
+    private final int[] alias;
+
+    /**
+     * Builds a table from the given weights. Weights do not need to sum to
+     * one, but must not be negative. If every weight is zero the table falls
+     * back to a uniform distribution.
+     *
+     * @param weights
+     *            relative weight of each index
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("weights cannot be empty");
+        }
+
+        double total = 0;
+        for (double weight : weights) {
+            if (weight < 0 || Double.isNaN(weight)) {
+                throw new IllegalArgumentException(
+                        "weights cannot be negative");
+            }
+            total += weight;
+        }
+
+        // Scale the weights so the average column holds exactly 1.0, then
+        // split the columns into those below and above average
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = total > 0 ? weights[i] * n / total : 1.0;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        // Fill each under-full column with mass from an over-full one, which
+        // may in turn become under-full itself
+        this.threshold = new int[n];
+        this.alias = new int[n];
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            threshold[less] = toThreshold(scaled[less]);
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Whatever is left is full up to rounding error
+        while (largeCount > 0) {
+            int i = large[--largeCount];
+            threshold[i] = Integer.MAX_VALUE;
+            alias[i] = i;
+        }
+        while (smallCount > 0) {
+            int i = small[--smallCount];
+            threshold[i] = Integer.MAX_VALUE;
+            alias[i] = i;
+        }
+    }
+
+    /**
+     * Builds a table in which each index is weighted by its rank using a Zipf
+     * law, i.e. index i has weight 1/(i+1)^exponent. This is a good stand-in
+     * for frequency-ranked lists, like the census name lists, that do not
+     * carry their frequencies.
+     *
+     * @param size
+     *            number of ranked entries
+     * @param exponent
+     *            how quickly the weight falls off with rank; 0 is uniform
+     * @return table weighted by rank
+     */
+    public static AliasTable forRanks(int size, double exponent) {
+        double[] weights = new double[size];
+        for (int i = 0; i < size; i++) {
+            weights[i] = 1.0 / Math.pow(i + 1, exponent);
+        }
+        return new AliasTable(weights);
+    }
+
+    /**
+     * Builds a table in which every index is equally likely
+     *
+     * @param size
+     *            number of entries
+     * @return uniform table
+     */
+    public static AliasTable uniform(int size) {
+        return new AliasTable(new double[size]);
+    }
+
+    /**
+     * Draws an index from the distribution
+     *
+     * @param rng
+     *            random number generator to draw with
+     * @return index between 0 and size() - 1
+     */
+    public int sample(Random rng) {
+        long r = rng.nextLong();
+        int column = (int) (((r >>> 32) * threshold.length) >>> 32);
+        return ((int) r & Integer.MAX_VALUE) < threshold[column] ? column
+                : alias[column];
+    }
+
+    /**
+     * @return number of entries in the table
+     */
+    public int size() {
+        return threshold.length;
+    }
+
+    private static int toThreshold(double probability) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(probability
+                * THRESHOLD_SCALE));
+    }
+}
@@ -0,0 +1,148 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * This sink executes its CQL inserts asynchronously, so the generating thread
+ * moves straight on to the next row instead of waiting for each insert to
+ * complete. A semaphore bounds the number of inserts in flight, and a thread
+ * that would go over the limit blocks until one completes.<br>
+ * <br>
+ * A failed insert is reported and counted but, like a failed synchronous
+ * insert, doesn't stop the load. flush() waits for every insert in flight to
+ * complete.
+ *
+ * @author Jason Foster
+ *
+ */
+public class AsyncCqlDataSink extends CqlDataSink {
+    private final AdjustableLimit permits;
+    private final AtomicLong errors = new AtomicLong();
+
+    private final FutureCallback<ResultSet> callback = new FutureCallback<ResultSet>() {
+        @Override
+        public void onSuccess(ResultSet result) {
+            permits.release();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            permits.release();
+            // Only the first few failures are worth a stack trace, after that
+            // it is the same problem over and over
+            if (errors.incrementAndGet() <= 10) {
+                t.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Creates a new sink writing to the given keyspace
+     *
+     * @param session
+     *            Cassandra session to use when executing DML
+     * @param keyspaceName
+     *            keyspace holding the tables
+     * @param maxInFlight
+     *            maximum number of inserts in flight at once
+     */
+    public AsyncCqlDataSink(Session session, String keyspaceName,
+            int maxInFlight) {
+        super(session, keyspaceName);
+        this.permits = new AdjustableLimit(maxInFlight);
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        // The statement is rendered before the permit is taken so the values
+        // array is never used once this call returns
+        String dml = toInsertDML(table, values);
+        if (!permits.tryAcquire()) {
+            Object backoff = LoadEvents.beginBackoff();
+            permits.acquireUninterruptibly();
+            LoadEvents.endBackoff(backoff, "AsyncCqlDataSink",
+                    "In-flight limit");
+        }
+        try {
+            // The write event, when it is being recorded, runs until the
+            // insert completes and so needs a callback of its own
+            Object event = LoadEvents.beginWrite();
+            ResultSetFuture future = session.executeAsync(dml);
+            Futures.addCallback(future, event == null ? callback
+                    : new TimedCallback(event, table, dml.length()));
+        } catch (RuntimeException rex) {
+            permits.release();
+            throw rex;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Once every permit can be taken there is nothing left in flight.
+        // The limit can't change while we hold the semaphore's monitor.
+        Object event = LoadEvents.beginFlush();
+        int pending;
+        synchronized (permits) {
+            int limit = permits.getLimit();
+            pending = permits.getInUse();
+            permits.acquireUninterruptibly(limit);
+            permits.release(limit);
+        }
+        LoadEvents.endFlush(event, "AsyncCqlDataSink", pending);
+    }
+
+    /**
+     * @return number of inserts currently in flight
+     */
+    public int getInFlight() {
+        return permits.getInUse();
+    }
+
+    /**
+     * @return the limit on inserts in flight, which can be changed during the
+     *         load
+     */
+    public AdjustableLimit getInFlightLimit() {
+        return permits;
+    }
+
+    /**
+     * @return number of inserts that have failed so far
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Completes the write event for an insert along with the insert itself
+     */
+    private class TimedCallback implements FutureCallback<ResultSet> {
+        private final Object event;
+        private final Table table;
+        private final int bytes;
+
+        TimedCallback(Object event, Table table, int bytes) {
+            this.event = event;
+            this.table = table;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void onSuccess(ResultSet result) {
+            LoadEvents.endWrite(event, table, bytes);
+            callback.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            LoadEvents.endWrite(event, table, bytes);
+            callback.onFailure(t);
+        }
+    }
+}
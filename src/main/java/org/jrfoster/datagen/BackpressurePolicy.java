@@ -0,0 +1,22 @@
+package org.jrfoster.datagen;
+
+/**
+ * This enumeration describes what a PipelinedSink does when generation gets
+ * ahead of writing and its buffer is full.
+ * <ul>
+ * <li>BLOCK makes the generating thread wait until a writer frees up a slot.
+ * Generation is throttled to the speed of the writers.</li>
+ * <li>CALLER_RUNS makes the generating thread write the row to the sink itself,
+ * so the generator lends a hand to the writers instead of sitting idle.</li>
+ * <li>FAIL throws an IllegalStateException, for runs where falling behind
+ * means the write path is misconfigured and the run should stop.</li>
+ * </ul>
+ *
+ * @author Jason Foster
+ *
+ */
+public enum BackpressurePolicy {
+    BLOCK,
+    CALLER_RUNS,
+    FAIL
+}
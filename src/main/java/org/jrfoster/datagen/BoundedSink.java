@@ -0,0 +1,57 @@
+package org.jrfoster.datagen;
+
+/**
+ * This sink bounds the number of writes that can be in progress on the wrapped
+ * sink at once. A thread that would go over the limit blocks until another
+ * write completes, which keeps thousands of virtual threads from swamping the
+ * cluster with requests. The limit can be changed while the load runs.
+ *
+ * @author Jason Foster
+ *
+ */
+public class BoundedSink extends ForwardingDataSink {
+    private final AdjustableLimit permits;
+
+    /**
+     * Creates a new sink allowing at most the given number of concurrent
+     * writes
+     *
+     * @param delegate
+     *            thread-safe sink that actually writes the rows
+     * @param maxInFlight
+     *            maximum number of writes in progress at once
+     */
+    public BoundedSink(DataSink delegate, int maxInFlight) {
+        super(delegate);
+        this.permits = new AdjustableLimit(maxInFlight);
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        if (!permits.tryAcquire()) {
+            Object backoff = LoadEvents.beginBackoff();
+            permits.acquireUninterruptibly();
+            LoadEvents.endBackoff(backoff, "BoundedSink", "In-flight limit");
+        }
+        try {
+            delegate.write(table, values);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return number of writes currently in progress
+     */
+    public int getInFlight() {
+        return permits.getInUse();
+    }
+
+    /**
+     * @return the limit on writes in progress, which can be changed during
+     *         the load
+     */
+    public AdjustableLimit getInFlightLimit() {
+        return permits;
+    }
+}
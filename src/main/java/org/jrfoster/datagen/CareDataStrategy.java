@@ -1,35 +1,39 @@
 package org.jrfoster.datagen;
 
 import java.util.Date;
+import java.util.Set;
 
 import org.joda.time.Interval;
 
-import com.datastax.driver.core.Session;
-
 public class CareDataStrategy extends AbstractDataStrategy {
 
     /**
      * Generate a new instance with the given Session, DataGenerator and
      * percent abnormal results
      * 
-     * @param sess
-     *            Cassandra session to use when executing DML
+     * @param sink
+     *            DataSink the generated rows are written to
      * @param gen
      *            DataGenerator instance to use to generate data
-     * @param pctAbnormal
-     *            Desired percentage of abnormal results to create
+     * @param abnormal
+     *            controller deciding which results are abnormal
+     * @param loadDate
+     *            load date stamped on every row
+     * @param tables
+     *            tables rows are generated for
      */
-    public CareDataStrategy(String keyspace, Session sess, 
-            DataGenerator gen, Double pctAbnormal, Date loadDate) {
-        super(keyspace, sess, gen, pctAbnormal, loadDate);
+    public CareDataStrategy(DataSink sink, DataGenerator gen,
+            AbnormalRatioController abnormal, Date loadDate, Set<Table> tables) {
+        super(sink, gen, abnormal, loadDate, tables);
     }
 
     @Override
-    public void generateEncounterData(int patientId, int measurementPeriodYear, boolean isMale) {
+    public void generateEncounterData(PatientRecord patient, int measurementPeriodYear) {
         // For this measure we need to create encounters in the current 
         // measurement period. Once we have an encounter, we simply generate 
         // data in the patient_results (labs) table.
-        int numEncounters = generator.generateRandomCount(7);
+        int patientId = patient.getPatientId();
+        int numEncounters = generator.generateEncounterCount(patientId);
         Interval currMP = generator.generateMeasurementPeriod(measurementPeriodYear);
         
         for (int j = 0; j < numEncounters; j++) {
@@ -40,17 +44,21 @@ public class CareDataStrategy extends AbstractDataStrategy {
             Interval encIntv = new Interval(admitDate.getTime(), dschgDate.getTime());
             
             // Encounters
-            session.execute(this.generateEncounterDML(patientId, encIntv, 
-                    generator.generateNextEncounterSequence()));
+            int encId = generator.generateNextEncounterSequence();
+            if (isLoaded(Table.PATIENT_ENCOUNTERS)) {
+                this.writeEncounter(patientId, encIntv, encId);
+            }
             
             // Labs
-            generateLabs(patientId, encIntv);
+            if (isLoaded(Table.PATIENT_RESULTS)) {
+                generateLabs(patientId, encIntv);
+            }
         }
     }
 
     @Override
     protected void generateLabs(int patientId, Interval interval) {
-        generateFallRiskDML(patientId, interval);
+        writeFallRisk(patientId, interval);
     }
 
     @Override
@@ -69,7 +77,7 @@ public class CareDataStrategy extends AbstractDataStrategy {
     }
 
     @Override
-    protected void generatePrefills(int patientId, String hicn, boolean isMale, Interval interval, String fullName, Date dob) {
+    protected void generatePrefills(PatientRecord patient, Interval interval) {
         // no-op        
     }
 }
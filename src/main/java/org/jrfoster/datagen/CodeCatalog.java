@@ -0,0 +1,210 @@
+package org.jrfoster.datagen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds every diagnosis and procedure code the generator knows
+ * about, loaded once from the code catalog resource on the classpath. Each
+ * line of the resource is "set|codingSystem|code|weight", the weight being
+ * optional, and lines starting with # are comments.<br>
+ * <br>
+ * The catalog creates a single CodedValue for each distinct coding system and
+ * code, however many sets list it, and gives it the next ordinal, so the
+ * ordinals run densely from 0 to size() - 1. The catalog and its sets are
+ * immutable after loading and can be shared by any number of threads.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class CodeCatalog {
+    private static final String CATALOG_RESOURCE = "/code-catalog.txt";
+
+    private final CodedValue[] codes;
+    private final Map<String, CodedValue> codesByKey;
+    private final Map<String, CodeSet> sets;
+
+    private CodeCatalog(CodedValue[] codes, Map<String, CodedValue> codesByKey,
+            Map<String, CodeSet> sets) {
+        this.codes = codes;
+        this.codesByKey = codesByKey;
+        this.sets = sets;
+    }
+
+    /**
+     * Holds the catalog loaded from the classpath, which is only read the
+     * first time it is asked for
+     */
+    private static class Holder {
+        private static final CodeCatalog INSTANCE = load(CATALOG_RESOURCE);
+    }
+
+    /**
+     * @return the catalog loaded from the code catalog resource
+     */
+    public static CodeCatalog getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Loads a catalog from a classpath resource
+     *
+     * @param resource
+     *            name of the resource
+     * @return the catalog
+     * @throws IllegalArgumentException
+     *             if the resource is missing or has an invalid line
+     */
+    public static CodeCatalog load(String resource) {
+        InputStream in = CodeCatalog.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalArgumentException("Code catalog " + resource
+                    + " not found");
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            return parse(reader);
+        } catch (IOException ioex) {
+            throw new IllegalArgumentException("Unable to read code catalog "
+                    + resource, ioex);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    in.close();
+                }
+            } catch (IOException ioex) {
+                System.out.println("Unable to close " + resource + ": "
+                        + ioex);
+            }
+        }
+    }
+
+    private static CodeCatalog parse(BufferedReader reader) throws IOException {
+        List<CodedValue> codes = new ArrayList<CodedValue>();
+        Map<String, CodedValue> codesByKey = new HashMap<String, CodedValue>();
+        Map<String, List<CodedValue>> setCodes = new LinkedHashMap<String, List<CodedValue>>();
+        Map<String, List<Double>> setWeights = new HashMap<String, List<Double>>();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\|");
+            if (tokens.length < 3 || tokens.length > 4) {
+                throw new IllegalArgumentException("Invalid catalog entry: "
+                        + line);
+            }
+            String setName = tokens[0].trim();
+            String codingSystem = tokens[1].trim();
+            String identifier = tokens[2].trim();
+            double weight = tokens.length == 4 ? Double.parseDouble(tokens[3]
+                    .trim()) : 1.0;
+
+            String key = key(codingSystem, identifier);
+            CodedValue code = codesByKey.get(key);
+            if (code == null) {
+                code = new CodedValue(codes.size(), codingSystem, identifier,
+                        null);
+                codes.add(code);
+                codesByKey.put(key, code);
+            }
+
+            List<CodedValue> members = setCodes.get(setName);
+            if (members == null) {
+                members = new ArrayList<CodedValue>();
+                setCodes.put(setName, members);
+                setWeights.put(setName, new ArrayList<Double>());
+            }
+            if (members.contains(code)) {
+                throw new IllegalArgumentException("Duplicate catalog entry: "
+                        + line);
+            }
+            members.add(code);
+            setWeights.get(setName).add(Double.valueOf(weight));
+        }
+
+        Map<String, CodeSet> sets = new LinkedHashMap<String, CodeSet>();
+        for (Map.Entry<String, List<CodedValue>> entry : setCodes.entrySet()) {
+            List<Double> weightList = setWeights.get(entry.getKey());
+            double[] weights = new double[weightList.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = weightList.get(i).doubleValue();
+            }
+            List<CodedValue> members = entry.getValue();
+            sets.put(entry.getKey(), new CodeSet(entry.getKey(),
+                    members.toArray(new CodedValue[members.size()]), weights));
+        }
+
+        return new CodeCatalog(codes.toArray(new CodedValue[codes.size()]),
+                codesByKey, Collections.unmodifiableMap(sets));
+    }
+
+    private static String key(String codingSystem, String identifier) {
+        return codingSystem + "|" + identifier;
+    }
+
+    /**
+     * @param name
+     *            name of the set, e.g. IVD_DX
+     * @return the set with every coding system in it
+     * @throws IllegalArgumentException
+     *             if there is no such set
+     */
+    public CodeSet getSet(String name) {
+        CodeSet set = sets.get(name);
+        if (set == null) {
+            throw new IllegalArgumentException("No code set named " + name);
+        }
+        return set;
+    }
+
+    /**
+     * @return every set in the catalog by name, in the order they first
+     *         appear in the resource
+     */
+    public Map<String, CodeSet> getSets() {
+        return sets;
+    }
+
+    /**
+     * @param ordinal
+     *            ordinal of the code
+     * @return the code with that ordinal
+     */
+    public CodedValue get(int ordinal) {
+        return codes[ordinal];
+    }
+
+    /**
+     * @param codingSystem
+     *            coding system of the code, e.g. I10
+     * @param identifier
+     *            the code itself
+     * @return the shared instance for the code, or null if it isn't in the
+     *         catalog
+     */
+    public CodedValue lookup(String codingSystem, String identifier) {
+        return codesByKey.get(key(codingSystem, identifier));
+    }
+
+    /**
+     * @return number of distinct codes in the catalog
+     */
+    public int size() {
+        return codes.length;
+    }
+}
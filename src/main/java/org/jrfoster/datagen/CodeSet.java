@@ -0,0 +1,131 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class is a named, weighted set of codes from the CodeCatalog, such as
+ * the diagnosis codes that qualify a patient for one of the measures. Drawing
+ * a code hands back one of the catalog's shared CodedValue instances, so it
+ * allocates nothing.<br>
+ * <br>
+ * Sets are immutable. select() narrows a set down to the coding systems a
+ * load should use, and optionally throws away the weights, returning a new
+ * set. selectFirst() narrows it down to the first of a list of coding systems
+ * the set has codes in.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class CodeSet {
+    private final String name;
+    private final CodedValue[] codes;
+    private final double[] weights;
+    private final AliasTable table;
+
+    CodeSet(String name, CodedValue[] codes, double[] weights) {
+        if (codes.length == 0) {
+            throw new IllegalArgumentException("Code set " + name
+                    + " has no codes");
+        }
+        this.name = name;
+        this.codes = codes;
+        this.weights = weights;
+        this.table = new AliasTable(weights);
+    }
+
+    /**
+     * Returns the codes of this set that belong to one of the given coding
+     * systems
+     *
+     * @param codingSystems
+     *            coding systems to keep, e.g. I9 and SNM
+     * @param weighted
+     *            whether to keep the weights, or make every code equally likely
+     * @return the narrowed set
+     * @throws IllegalArgumentException
+     *             if none of the codes belong to the given coding systems
+     */
+    public CodeSet select(Collection<String> codingSystems, boolean weighted) {
+        List<CodedValue> keptCodes = new ArrayList<CodedValue>(codes.length);
+        List<Double> keptWeights = new ArrayList<Double>(codes.length);
+        for (int i = 0; i < codes.length; i++) {
+            if (codingSystems.contains(codes[i].getCodingSystem())) {
+                keptCodes.add(codes[i]);
+                keptWeights.add(weighted ? weights[i] : 1.0);
+            }
+        }
+
+        double[] selectedWeights = new double[keptWeights.size()];
+        for (int i = 0; i < selectedWeights.length; i++) {
+            selectedWeights[i] = keptWeights.get(i).doubleValue();
+        }
+        return new CodeSet(name, keptCodes.toArray(new CodedValue[keptCodes
+                .size()]), selectedWeights);
+    }
+
+    /**
+     * Returns the codes of this set that belong to the first of the given
+     * coding systems the set has any codes in
+     *
+     * @param codingSystems
+     *            coding systems in order of preference, e.g. I9 and SNM
+     * @param weighted
+     *            whether to keep the weights, or make every code equally likely
+     * @return the narrowed set
+     * @throws IllegalArgumentException
+     *             if none of the codes belong to the given coding systems
+     */
+    public CodeSet selectFirst(List<String> codingSystems, boolean weighted) {
+        for (String codingSystem : codingSystems) {
+            for (CodedValue code : codes) {
+                if (code.getCodingSystem().equals(codingSystem)) {
+                    return select(Collections.singleton(codingSystem),
+                            weighted);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Code set " + name
+                + " has no codes in " + codingSystems);
+    }
+
+    /**
+     * @param random
+     *            source of randomness
+     * @return a code drawn according to the weights of the set
+     */
+    public CodedValue sample(Random random) {
+        return codes[table.sample(random)];
+    }
+
+    /**
+     * @return the name of the set, e.g. DM_DX
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of codes in the set
+     */
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * @param index
+     *            position of the code within the set
+     * @return the code at that position
+     */
+    public CodedValue get(int index) {
+        return codes[index];
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + codes.length + " codes)";
+    }
+}
@@ -3,56 +3,53 @@ package org.jrfoster.datagen;
 /**
  * This class represents a coded value, like a diagnosis code, or other code
  * and is modeled after the HL7 CX datatype, but missing the 'alternate'
- * related fields.
+ * related fields.<br>
+ * <br>
+ * Coded values are immutable and owned by the CodeCatalog, which creates
+ * exactly one instance for each code of each coding system and numbers them
+ * densely from zero. Callers share those instances rather than building their
+ * own, so the same code is always the same object and can be compared with ==
+ * or looked up by its ordinal in an array.
  * 
  * @author jasonf
  *
  */
-public class CodedValue {
-    private String identifier;
-    private String text;
-    private String codingSystem;
-    private String codingSystemVersion;
-    private String original;
+public final class CodedValue {
+    private final int ordinal;
+    private final String identifier;
+    private final String text;
+    private final String codingSystem;
+
+    CodedValue(int ordinal, String codingSystem, String identifier,
+            String text) {
+        this.ordinal = ordinal;
+        this.codingSystem = codingSystem;
+        this.identifier = identifier;
+        this.text = text;
+    }
 
-    public String getIdentifier() {
-        return identifier;
+    /**
+     * @return position of this code in the catalog it belongs to
+     */
+    public int getOrdinal() {
+        return ordinal;
     }
 
-    public void setIdentifier(String identifier) {
-        this.identifier = identifier;
+    public String getIdentifier() {
+        return identifier;
     }
 
     public String getText() {
         return text;
     }
 
-    public void setText(String text) {
-        this.text = text;
-    }
-
     public String getCodingSystem() {
         return codingSystem;
     }
 
-    public void setCodingSystem(String codingSystem) {
-        this.codingSystem = codingSystem;
-    }
-
-    public String getCodingSystemVersion() {
-        return codingSystemVersion;
-    }
-
-    public void setCodingSystemVersion(String codingSystemVersion) {
-        this.codingSystemVersion = codingSystemVersion;
-    }
-
-    public String getOriginal() {
-        return original;
-    }
-
-    public void setOriginal(String original) {
-        this.original = original;
+    @Override
+    public String toString() {
+        return codingSystem + ":" + identifier;
     }
 
 }
@@ -0,0 +1,49 @@
+package org.jrfoster.datagen;
+
+/**
+ * This class describes a single column of a table the loader writes to.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public final class Column {
+    private final String name;
+    private final ColumnType type;
+
+    public Column(String name, ColumnType type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    public static Column text(String name) {
+        return new Column(name, ColumnType.TEXT);
+    }
+
+    public static Column integer(String name) {
+        return new Column(name, ColumnType.INT);
+    }
+
+    public static Column bigint(String name) {
+        return new Column(name, ColumnType.BIGINT);
+    }
+
+    public static Column decimal(String name) {
+        return new Column(name, ColumnType.DOUBLE);
+    }
+
+    public static Column timestamp(String name) {
+        return new Column(name, ColumnType.TIMESTAMP);
+    }
+
+    public static Column uuid(String name) {
+        return new Column(name, ColumnType.UUID);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ColumnType getType() {
+        return type;
+    }
+}
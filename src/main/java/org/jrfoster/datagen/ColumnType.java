@@ -0,0 +1,28 @@
+package org.jrfoster.datagen;
+
+/**
+ * This enumeration lists the column types used by the tables the loader
+ * writes, along with the name of the equivalent CQL type.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public enum ColumnType {
+    TEXT("text"),
+    INT("int"),
+    BIGINT("bigint"),
+    DOUBLE("double"),
+    TIMESTAMP("timestamp"),
+    UUID("uuid"),
+    BOOLEAN("boolean");
+
+    private final String cqlType;
+
+    ColumnType(String cqlType) {
+        this.cqlType = cqlType;
+    }
+
+    public String getCqlType() {
+        return cqlType;
+    }
+}
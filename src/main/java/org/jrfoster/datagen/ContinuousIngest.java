@@ -0,0 +1,227 @@
+package org.jrfoster.datagen;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class feeds a steady stream of new encounter data for patients that
+ * are already loaded, at a rate set by a RampProfile, to exercise a real-time
+ * ingest path rather than to fill a keyspace. Each event picks a patient at
+ * random and runs the measure strategies for them through a PatientLoader, so
+ * an event is one patient's new encounters and the results that go with
+ * them.<br>
+ * <br>
+ * Events are laid out on a FixedRateSchedule and a worker waits until an
+ * event is due before running it. The latency of an event is measured from
+ * when it was due, not from when a worker got to it, so when the sink falls
+ * behind the events queuing up behind a slow write are charged for the
+ * wait.<br>
+ * <br>
+ * Each worker has a loader, and so strategies, of its own and records into a
+ * LatencyHistogram of its own. run() prints a progress line every report
+ * interval and returns at the end of the profile or once stop() is called.
+ *
+ * @author Jason Foster
+ *
+ */
+public class ContinuousIngest {
+    private final List<PatientLoader> loaders;
+    private final List<PatientRecord> patients;
+    private final RampProfile profile;
+    private final long reportIntervalNanos;
+    private final LatencyHistogram[] histograms;
+    private final AtomicLong rows = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile FixedRateSchedule schedule;
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * Creates a new ingest
+     *
+     * @param loaders
+     *            a loader for each worker thread
+     * @param patients
+     *            patients that are already loaded
+     * @param profile
+     *            rate of events over time
+     * @param reportIntervalMillis
+     *            time between progress lines, or 0 for none
+     */
+    public ContinuousIngest(List<PatientLoader> loaders,
+            List<PatientRecord> patients, RampProfile profile,
+            long reportIntervalMillis) {
+        if (loaders.isEmpty()) {
+            throw new IllegalArgumentException("At least one loader is needed");
+        }
+        if (patients.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one patient is needed");
+        }
+        this.loaders = loaders;
+        this.patients = patients;
+        this.profile = profile;
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS
+                .toNanos(reportIntervalMillis);
+        this.histograms = new LatencyHistogram[loaders.size()];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Runs the ingest until the end of the profile or until stop() is called
+     */
+    public void run() {
+        schedule = new FixedRateSchedule(profile);
+        synchronized (this) {
+            startNanos = schedule.getStartNanos();
+        }
+        running = true;
+        Thread[] threads = new Thread[loaders.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Worker(loaders.get(i), histograms[i]),
+                    "ingest-worker-" + (i + 1));
+            threads[i].start();
+        }
+
+        // Wait for the workers, stopping to print progress on the way
+        long nextReport = startNanos + reportIntervalNanos;
+        Thread alive;
+        boolean interrupted = false;
+        while ((alive = firstAlive(threads)) != null) {
+            long wait = reportIntervalNanos > 0 ? nextReport
+                    - System.nanoTime() : Long.MAX_VALUE;
+            if (wait <= 0) {
+                System.out.println(progress());
+                nextReport += reportIntervalNanos;
+                continue;
+            }
+            try {
+                alive.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            } catch (InterruptedException iex) {
+                interrupted = true;
+                stop();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            endNanos = System.nanoTime();
+        }
+        running = false;
+    }
+
+    private static Thread firstAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the ingest once the events in progress are done
+     */
+    public void stop() {
+        running = false;
+        FixedRateSchedule current = schedule;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * @return latencies of every event so far, measured from when each was
+     *         due
+     */
+    public LatencyHistogram getLatencies() {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms) {
+            all.add(histogram);
+        }
+        return all;
+    }
+
+    /**
+     * @return number of rows written so far
+     */
+    public long getRows() {
+        return rows.get();
+    }
+
+    private String progress() {
+        long now = System.nanoTime();
+        LatencyHistogram latencies = getLatencies();
+        return String.format("%.0f s: target %.1f events/s, %d events done, %s",
+                seconds(now - startNanos), profile.getRate(now - startNanos),
+                latencies.getCount(), latencies.summary());
+    }
+
+    /**
+     * Returns the sustained throughput and latency percentiles of the run,
+     * suitable for printing at the end of it
+     *
+     * @return multi-line report
+     */
+    public synchronized String report() {
+        LatencyHistogram latencies = getLatencies();
+        double elapsed = seconds((endNanos > 0 ? endNanos : System.nanoTime())
+                - startNanos);
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Ingest profile ").append(profile).append("\n");
+        sb.append(String.format(
+                "Sustained: %d events and %d rows in %.1f s, %.1f events/s, %.1f rows/s%n",
+                latencies.getCount(), rows.get(), elapsed,
+                elapsed == 0 ? 0.0 : latencies.getCount() / elapsed,
+                elapsed == 0 ? 0.0 : rows.get() / elapsed));
+        sb.append("Latency from intended start: ").append(latencies.summary());
+        return sb.toString();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Runs events as they come due until the profile ends or the ingest is
+     * stopped
+     */
+    private class Worker implements Runnable {
+        private final PatientLoader loader;
+        private final LatencyHistogram histogram;
+        private final Random random = new Random();
+
+        Worker(PatientLoader loader, LatencyHistogram histogram) {
+            this.loader = loader;
+            this.histogram = histogram;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long due = schedule.next();
+                if (due < 0) {
+                    break;
+                }
+                if (!schedule.await(due)) {
+                    break;
+                }
+
+                PatientRecord patient = patients.get(random.nextInt(patients
+                        .size()));
+                try {
+                    rows.addAndGet(loader.loadEncounters(patient));
+                } catch (RuntimeException rex) {
+                    rex.printStackTrace();
+                }
+                histogram.record(System.nanoTime() - due);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.jrfoster.datagen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class is the worker's end of the connection to a LoadCoordinator. A
+ * worker connects, announces its slice with ready() once it is set up, waits
+ * for the coordinator to start every worker at once, then reports its
+ * progress while it loads and finally reports done() or failed().<br>
+ * <br>
+ * The protocol is one line of text per message. Workers send READY slice,
+ * PROGRESS patients rows errors, DONE patients rows errors elapsedMs and
+ * FAILED message, and the coordinator sends START or ABORT. Ahead of DONE a
+ * worker can send the totals of its slice the coordinator combines for the
+ * whole load: READMISSION encounters count... with the number of patients
+ * with each readmission score, and MEASURES state|zip count... with the
+ * denominator and numerator of each measure, one line per zip code. If the
+ * coordinator aborts the run, or goes away before the worker is done, the
+ * abort handler given to connect() is run on the client's reader thread.
+ *
+ * @author Jason Foster
+ *
+ */
+public class CoordinatorClient {
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final Runnable onAbort;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile boolean finished;
+    private volatile boolean aborted;
+    private Thread reporter;
+
+    private CoordinatorClient(Socket socket, Runnable onAbort)
+            throws IOException {
+        this.socket = socket;
+        this.out = new PrintWriter(new OutputStreamWriter(
+                socket.getOutputStream(), "UTF-8"), true);
+        this.in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "UTF-8"));
+        this.onAbort = onAbort;
+    }
+
+    /**
+     * Connects to a coordinator
+     *
+     * @param address
+     *            host:port the coordinator listens on
+     * @param onAbort
+     *            run if the coordinator aborts the run or goes away
+     * @return connected client
+     * @throws IOException
+     *             if the coordinator cannot be reached
+     */
+    public static CoordinatorClient connect(String address, Runnable onAbort)
+            throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got "
+                    + address);
+        }
+        Socket socket = new Socket(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+        socket.setTcpNoDelay(true);
+        final CoordinatorClient client = new CoordinatorClient(socket, onAbort);
+        Thread listener = new Thread("coordinator-listener") {
+            @Override
+            public void run() {
+                client.listen();
+            }
+        };
+        listener.setDaemon(true);
+        listener.start();
+        return client;
+    }
+
+    private void listen() {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("START")) {
+                    started.countDown();
+                } else if (line.equals("ABORT")) {
+                    break;
+                }
+            }
+        } catch (IOException ioex) {
+            // Treated the same as the coordinator going away
+        }
+        if (!finished) {
+            aborted = true;
+            started.countDown();
+            onAbort.run();
+        }
+    }
+
+    /**
+     * Tells the coordinator this worker is set up to load its slice
+     *
+     * @param slice
+     *            index of the worker's slice
+     */
+    public void ready(int slice) {
+        send("READY " + slice);
+    }
+
+    /**
+     * Waits for the coordinator to start the run
+     *
+     * @return true if the run was started, false if it was aborted instead
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean awaitStart() throws InterruptedException {
+        started.await();
+        return !aborted;
+    }
+
+    /**
+     * Starts a daemon thread sending the load's progress at an interval
+     *
+     * @param control
+     *            control of the load being run
+     * @param intervalMs
+     *            milliseconds between reports
+     */
+    public synchronized void startReporting(final LoadControl control,
+            final long intervalMs) {
+        reporter = new Thread("coordinator-reporter") {
+            @Override
+            public void run() {
+                try {
+                    while (!finished) {
+                        progress(control.getPatientsLoaded(),
+                                control.getRowsWritten(), control.getErrors());
+                        Thread.sleep(intervalMs);
+                    }
+                } catch (InterruptedException iex) {
+                    // Stopped by done() or failed()
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Sends the progress of the load so far
+     *
+     * @param patients
+     *            patients loaded
+     * @param rows
+     *            rows written
+     * @param errors
+     *            rows that failed to write
+     */
+    public void progress(long patients, long rows, long errors) {
+        send("PROGRESS " + patients + " " + rows + " " + errors);
+    }
+
+    /**
+     * Sends the readmission scores counted in the worker's slice, for the
+     * coordinator to write the stratification of the whole load. It should
+     * be sent before done().
+     *
+     * @param histogram
+     *            number of patients with each score
+     * @param encounters
+     *            number of encounters the scores were computed from
+     */
+    public void readmission(long[] histogram, long encounters) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("READMISSION ").append(encounters);
+        for (long count : histogram) {
+            sb.append(' ').append(count);
+        }
+        send(sb.toString());
+    }
+
+    /**
+     * Sends the measure counts of the worker's slice, for the coordinator to
+     * write the rollups of the whole load. It should be sent before done().
+     *
+     * @param counts
+     *            counts by "state|zip", as MeasureRollup returns them
+     */
+    public void measures(Map<String, long[]> counts) {
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("MEASURES ").append(entry.getKey());
+            for (long count : entry.getValue()) {
+                sb.append(' ').append(count);
+            }
+            send(sb.toString());
+        }
+    }
+
+    /**
+     * Sends the final figures of a load that finished and closes the
+     * connection
+     *
+     * @param patients
+     *            patients loaded
+     * @param rows
+     *            rows written
+     * @param errors
+     *            rows that failed to write
+     * @param elapsedMs
+     *            milliseconds the load took
+     */
+    public void done(long patients, long rows, long errors, long elapsedMs) {
+        finish("DONE " + patients + " " + rows + " " + errors + " "
+                + elapsedMs);
+    }
+
+    /**
+     * Tells the coordinator the load failed and closes the connection
+     *
+     * @param message
+     *            what went wrong
+     */
+    public void failed(String message) {
+        finish("FAILED " + String.valueOf(message).replace('\n', ' '));
+    }
+
+    private void finish(String message) {
+        finished = true;
+        synchronized (this) {
+            if (reporter != null) {
+                reporter.interrupt();
+            }
+        }
+        send(message);
+        try {
+            socket.close();
+        } catch (IOException ioex) {
+            System.out.println("Unable to close the connection to the"
+                    + " coordinator: " + ioex);
+        }
+    }
+
+    private void send(String message) {
+        synchronized (out) {
+            out.println(message);
+        }
+    }
+}
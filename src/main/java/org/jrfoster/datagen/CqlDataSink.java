@@ -0,0 +1,184 @@
+package org.jrfoster.datagen;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.Session;
+
+/**
+ * This sink renders each row as a CQL insert statement and executes it on a
+ * Cassandra session, which is how the loader has always written its data.<br>
+ * <br>
+ * Values are rendered as CQL literals according to the type of their column,
+ * so text and timestamps are quoted and everything else is written as is. The
+ * session is owned by the caller and is not closed by this sink. Rows can be
+ * given a time to live, after which Cassandra expires them.
+ *
+ * @author Jason Foster
+ *
+ */
+public class CqlDataSink implements DataSink {
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+        }
+    };
+
+    protected final Session session;
+    private final Map<Table, String> insertPrefixes = new EnumMap<Table, String>(Table.class);
+    private final Map<Table, String> deletePrefixes = new EnumMap<Table, String>(Table.class);
+    private final String insertSuffix;
+
+    /**
+     * Creates a new sink writing to the given keyspace
+     *
+     * @param session
+     *            Cassandra session to use when executing DML
+     * @param keyspaceName
+     *            keyspace holding the tables
+     */
+    public CqlDataSink(Session session, String keyspaceName) {
+        this(session, keyspaceName, 0);
+    }
+
+    /**
+     * Creates a new sink writing rows that expire to the given keyspace
+     *
+     * @param session
+     *            Cassandra session to use when executing DML
+     * @param keyspaceName
+     *            keyspace holding the tables
+     * @param ttlSeconds
+     *            number of seconds the rows written live for, or 0 for ever
+     */
+    public CqlDataSink(Session session, String keyspaceName, int ttlSeconds) {
+        if (ttlSeconds < 0) {
+            throw new IllegalArgumentException("ttlSeconds cannot be negative");
+        }
+        this.session = session;
+        this.insertSuffix = ttlSeconds > 0 ? ") using ttl " + ttlSeconds + ";"
+                : ");";
+        for (Table table : Table.values()) {
+            deletePrefixes.put(table, "delete from " + keyspaceName + "."
+                    + table.getTableName() + " where ");
+            StringBuffer sb = new StringBuffer(256);
+            sb.append("insert into ").append(keyspaceName).append(".")
+                    .append(table.getTableName()).append(" (");
+            List<Column> columns = table.getColumns();
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(columns.get(i).getName());
+            }
+            sb.append(") values (");
+            insertPrefixes.put(table, sb.toString());
+        }
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        String dml = toInsertDML(table, values);
+        Object event = LoadEvents.beginWrite();
+        session.execute(dml);
+        LoadEvents.endWrite(event, table, dml.length());
+    }
+
+    @Override
+    public void flush() {
+        // Every statement is executed synchronously, so nothing is pending
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Renders a row as a CQL insert statement
+     *
+     * @param table
+     *            table the row belongs to
+     * @param values
+     *            column values in catalog order
+     * @return CQL insert statement for the row
+     */
+    public String toInsertDML(Table table, Object[] values) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(insertPrefixes.get(table));
+        List<Column> columns = table.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            appendLiteral(sb, columns.get(i).getType(), values[i]);
+        }
+        sb.append(insertSuffix);
+        return sb.toString();
+    }
+
+    /**
+     * Renders a CQL statement deleting the row with the same primary key as
+     * the given one
+     *
+     * @param table
+     *            table the row belongs to
+     * @param values
+     *            column values in catalog order, of which only the primary
+     *            key columns are used
+     * @return CQL delete statement for the row
+     */
+    public String toDeleteDML(Table table, Object[] values) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(deletePrefixes.get(table));
+        List<String> keys = table.getKeyColumns();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                sb.append(" and ");
+            }
+            int index = table.indexOf(keys.get(i));
+            sb.append(keys.get(i)).append(" = ");
+            appendLiteral(sb, table.getColumns().get(index).getType(),
+                    values[index]);
+        }
+        sb.append(";");
+        return sb.toString();
+    }
+
+    /**
+     * Appends a value to a statement as a CQL literal of the given type
+     *
+     * @param sb
+     *            statement being built
+     * @param type
+     *            type of the column the value belongs to
+     * @param value
+     *            value to render, may be null
+     */
+    static void appendLiteral(StringBuilder sb, ColumnType type, Object value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+
+        switch (type) {
+        case TEXT:
+            // Single quotes are escaped by doubling them, which matters for
+            // surnames such as O'Brien
+            sb.append('\'').append(String.valueOf(value).replace("'", "''"))
+                    .append('\'');
+            break;
+        case TIMESTAMP:
+            sb.append('\'').append(DATE_FORMAT.get().format((Date) value))
+                    .append('\'');
+            break;
+        default:
+            sb.append(value);
+            break;
+        }
+    }
+}
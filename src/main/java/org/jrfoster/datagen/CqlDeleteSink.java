@@ -0,0 +1,35 @@
+package org.jrfoster.datagen;
+
+import com.datastax.driver.core.Session;
+
+/**
+ * This sink deletes rows rather than inserting them. Each row handed to
+ * write() is deleted by its primary key, so the sinks that rewrite rows for
+ * the schema profile can be put in front of it to delete the bucketed or
+ * lookup copies of a row the same way they were written.
+ *
+ * @author Jason Foster
+ *
+ */
+public class CqlDeleteSink extends CqlDataSink {
+
+    /**
+     * Creates a new sink deleting from the given keyspace
+     *
+     * @param session
+     *            Cassandra session to use when executing DML
+     * @param keyspaceName
+     *            keyspace holding the tables
+     */
+    public CqlDeleteSink(Session session, String keyspaceName) {
+        super(session, keyspaceName);
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        String dml = toDeleteDML(table, values);
+        Object event = LoadEvents.beginWrite();
+        session.execute(dml);
+        LoadEvents.endWrite(event, table, dml.length());
+    }
+}
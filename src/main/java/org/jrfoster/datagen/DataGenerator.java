@@ -1,9 +1,14 @@
 package org.jrfoster.datagen;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -11,10 +16,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Days;
@@ -35,6 +42,16 @@ import org.joda.time.Seconds;
  * <li>It uses Joda to create a random timestamp between two dates</li>
  * <li>It uses a static list of healthcare payers to generate a random payer</li>
  * </ul>
+ * When weighted sampling is on, which is the default, names, payers, admit
+ * types, discharge dispositions, codes and zip codes are drawn from
+ * AliasTables rather than uniformly. Given names are weighted by their rank in
+ * the census lists, zip codes by their estimated population, diagnosis and
+ * procedure codes by the prevalences in the CodeCatalog, and everything else
+ * by the prevalences in the sampling weights file on the classpath.<br>
+ * <br>
+ * Given an EntityCatalog, every patient id, HICN, OHA id and encounter uid
+ * issued is also appended to the catalog's files, so the keys of a load
+ * outlive it.
  * 
  * @author Jason Foster
  * 
@@ -44,20 +61,61 @@ public class DataGenerator {
     private static final String MALE_FIRST_NAME_FILE = "./maleFirstNames.txt";
     private static final String SURNAME_FILE = "./CSV_Database_of_Last_Names.csv";
     private static final String ZIP_FILE = "./primary_zipcodes.csv";
+    private static final String WEIGHTS_RESOURCE = "/sampling-weights.txt";
+
+    // The census given name lists are ordered by frequency but don't carry
+    // the frequencies, so names are weighted by rank instead. An exponent of
+    // about 0.9 gives roughly the share the top names have in the census.
+    private static final double NAME_RANK_EXPONENT = 0.9;
+
+    // Constants for the SplitMix64 sequences the bulk methods use
+    private static final long SPLITMIX_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    // The uid sequences start after this value
+    private static final int SEQUENCE_START = 50000;
+
+    // HICNs are issued from a sequence scattered over every HICN there is: a
+    // hundred area numbers from 900, a hundred groups, ten thousand serials,
+    // a letter and a letter or digit. The multiplier is coprime with the size
+    // of the space, so no two sequence numbers give the same HICN.
+    private static final long HICN_SPACE = 100L * 100L * 10000L * 26L * 36L;
+    private static final long HICN_MULTIPLIER = 60000011L;
+    private static final String ALPHANUMERIC = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
     private final Random rng = new Random(System.currentTimeMillis());
-    private final AtomicInteger labSequencer = new AtomicInteger(50000);
-    private final AtomicInteger procedureSequencer = new AtomicInteger(50000);
-    private final AtomicInteger diagnosisSequencer = new AtomicInteger(50000);
-    private final AtomicInteger encounterSequencer = new AtomicInteger(50000);
-    private final List<Integer> patientIds = new ArrayList<Integer>();
-    private final List<String> patientHicns = new ArrayList<String>();
+    private final AtomicInteger labSequencer = new AtomicInteger(SEQUENCE_START);
+    private final AtomicInteger procedureSequencer = new AtomicInteger(SEQUENCE_START);
+    private final AtomicInteger diagnosisSequencer = new AtomicInteger(SEQUENCE_START);
+    private final AtomicInteger encounterSequencer = new AtomicInteger(SEQUENCE_START);
+    private final BitSet patientIds = new BitSet();
+    private final AtomicLong hicnSequencer = new AtomicLong();
+    private volatile EntityCatalog entityCatalog;
     private final List<String> maleNames = new ArrayList<String>();
     private final List<String> femaleNames = new ArrayList<String>();
     private final List<String> surnames = new ArrayList<String>();
     private final Map<String, ZipData> zipCodes = new HashMap<String, ZipData>();
     private final int populationSize;
     private final Map<Integer, List<Integer>> hoppers = new HashMap<Integer, List<Integer>>();
+    private volatile FanoutProfile fanoutProfile = FanoutProfile.defaults();
+    private final boolean weighted;
+
+    // The slice of the patient ids and uid sequences this generator issues
+    // from, when several processes generate parts of one load
+    private volatile int sliceIndex = 0;
+    private volatile int sliceCount = 1;
+
+    // Zip codes that are still in use, sorted by numeric zip code, along with
+    // a population-weighted table for each range asked for so far
+    private ZipData[] activeZips = new ZipData[0];
+    private int[] activeZipCodes = new int[0];
+    private final Map<Long, AliasTable> zipRangeTables = new ConcurrentHashMap<Long, AliasTable>();
+    private ZipGridIndex zipGrid;
+    private final Map<AreaKey, ServiceArea> serviceAreas = new ConcurrentHashMap<AreaKey, ServiceArea>();
+
+    // Grid cells of about 35 miles on a side suit service areas of a few tens
+    // of miles in radius
+    private static final double ZIP_GRID_CELL_DEGREES = 0.5;
     
     private final List<String> payers = Arrays.asList("AETNA", "AFLAC",
             "American Family Insurance", "American Medical Security",
@@ -90,56 +148,30 @@ public class DataGenerator {
     private final List<Integer> facilityTypes = Arrays.asList(1, 2, 3, 4, 5, 6,
             7, 8, 9);
     
-    // These are the ICD-9 DX codes for normal confirmed pregnancy
-    private final List<String> pregnancyDxCodes = Arrays.asList("V22","V22.0","V22.1","V22.2");
-    
-    // These are the ICD-9 DX codes for IVD as defined by the IVD measures.  These exclude
-    // the DX codes for AMI (410.x)
-    private final List<String> IVDDxCodes = Arrays.asList("411","411.1","411.81","411.89","413",
-            "413.1","413.9","414","414.01","414.02","414.03","414.04","414.05","414.06",
-            "414.07","414.2","414.8","414.9","429.2","433","433.01","433.1","433.11",
-            "433.2","433.21","433.3","433.31","433.8","433.81","433.9","433.91","434",
-            "434.01","434.1","434.11","434.9","434.91","440.1","440.2","440.21","440.22",
-            "440.23","440.24","440.29","444","440.4","444.1","444.21","444.22","444.81",
-            "444.89","444.9","445.01","445.02","445.81","445.89");
-    
-    // These are the ICD-9 DX codes for AMI as defined by the IVD measures.
-    private final List<String> IVDMIDxCodes = Arrays.asList("410.01","410.11","410.21",
-            "410.31","410.41","410.51","410.61","410.71","410.81","410.91");
-    
-    // These are the ICD-9 DX codes for diabetes as defined by the DM measures. These
-    // also include the fuller list of IVD DX codes that the DM measures use
-    private final List<String> DMDxCodes = Arrays.asList("250.11","250.31","250.9",
-            "250.23","250.72","250.43","250.81","250.73","250.63","648.02","250.91",
-            "250.53","250.92","250.12","250.03","250.62","250","250.3","250.33",
-            "250.71","250.4","250.41","250.21","250.61","250.2","250.8","250.83",
-            "648.04","250.13","250.51","648.01","250.32","250.5","250.6","250.01",
-            "250.93","250.7","250.02","648.03","250.52","250.42","250.82","250.1","250.22");
-    
-    // These are the ICD-9 DX codes for gestational diabetes as defined by the DM measures
-    private final List<String> gestationalDMDxCodes = Arrays.asList("648.00","648.01",
-            "648.02","648.03","648.80","648.80","648.81","648.82","648.83","648.84");
-    
-    // These are the Snomed proc codes for the IVD-related procedures 
-    private final List<String> ivdProcCodes = Arrays.asList("3546002","10326007",
-            "11101003","15256002","30670000","39202005","39724006","48431000",
-            "74371005","75761004","80762004","82247006","85053006","91338001",
-            "119564002","119565001","175007008","175008003","175009006","175011002",
-            "175021005","175022003","175024002","175025001","175026000","175029007",
-            "175030002","175031003","175032005","175033000","175045009","175047001",
-            "175048006","175050003","175066001","232717009","232719007","232720001",
-            "232721002","232722009","232723004","232724005","232727003","232728008",
-            "232729000","265481001","275215001","275216000","275252001","275253006",
-            "309814006","359597003","359601003","397193006","397431004","414088005",
-            "414089002","414509005","415070008","418551006","419132001","428488008",
-            "429499003","429639007","431759005");
-    
+    // Coding systems diagnoses and procedures are drawn from unless told
+    // otherwise, which are the ones the measures were originally written for
+    private static final List<String> DEFAULT_CODE_SYSTEMS = Arrays.asList(
+            "I9", "SNM");
+
     // These are HL7 discharge disposition codes as defined in CDA release 2
     // excluding those indicating patient death (20-29, 40, 41 and 42) since
     // the driver program only generates patients who are alive
     private final List<String> dischargeDispositions = Arrays.asList("01","02","03",
             "04","05","06","07","08","09","10","30");
 
+    private final AliasTable maleNameTable;
+    private final AliasTable femaleNameTable;
+    private final AliasTable surnameTable;
+    private final AliasTable payerTable;
+    private final AliasTable admitTypeTable;
+    private final AliasTable dischargeDispositionTable;
+    private volatile CodeSet pregnancyDxCodes;
+    private volatile CodeSet IVDDxCodes;
+    private volatile CodeSet IVDMIDxCodes;
+    private volatile CodeSet DMDxCodes;
+    private volatile CodeSet gestationalDMDxCodes;
+    private volatile CodeSet ivdProcCodes;
+
     /**
      * Creates a new DataGenerator instance for a given population size and with
      * the given number of hoppers.<br>
@@ -158,7 +190,26 @@ public class DataGenerator {
      *            the population
      */
     public DataGenerator(int populationSize, int numHoppers) {
+        this(populationSize, numHoppers, true);
+    }
+
+    /**
+     * Creates a new DataGenerator instance for a given population size and with
+     * the given number of hoppers, optionally turning off weighted sampling so
+     * that every name, code and zip code is equally likely as it originally
+     * was.
+     * 
+     * @param populationSize
+     *            the size of the initial patient population
+     * @param numHoppers
+     *            the number of hoppers to create for ranking the population
+     * @param weighted
+     *            whether to draw categorical values according to their
+     *            weights rather than uniformly
+     */
+    public DataGenerator(int populationSize, int numHoppers, boolean weighted) {
         this.populationSize = populationSize;
+        this.weighted = weighted;
 
         try {
             DataGenerator.loadNamesFromFile(surnames, SURNAME_FILE);
@@ -168,6 +219,22 @@ public class DataGenerator {
         } catch (FileNotFoundException fnfex) {
             fnfex.printStackTrace();
         }
+        indexZips();
+
+        // The surname file is in alphabetical order, so there is no rank to
+        // weight by and surnames are always drawn uniformly
+        Map<String, Map<String, Double>> weights = weighted ? loadWeights(WEIGHTS_RESOURCE)
+                : new HashMap<String, Map<String, Double>>();
+        maleNameTable = weighted ? AliasTable.forRanks(maleNames.size(),
+                NAME_RANK_EXPONENT) : AliasTable.uniform(maleNames.size());
+        femaleNameTable = weighted ? AliasTable.forRanks(femaleNames.size(),
+                NAME_RANK_EXPONENT) : AliasTable.uniform(femaleNames.size());
+        surnameTable = AliasTable.uniform(surnames.size());
+        payerTable = buildTable(payers, weights.get("payer"));
+        admitTypeTable = buildTable(admitTypes, weights.get("admitType"));
+        dischargeDispositionTable = buildTable(dischargeDispositions,
+                weights.get("dischargeDisposition"));
+        setCodeSystems(DEFAULT_CODE_SYSTEMS);
 
         // Based on the number of hoppers requested, we generate and shuffle an
         // integer
@@ -202,6 +269,184 @@ public class DataGenerator {
         }
     }
 
+    /**
+     * Reads the sampling weights resource into a map of list name to a map of
+     * value to weight. Lines are "list|value|weight" and lines starting with #
+     * are comments. A missing resource just means every value is equally
+     * likely.
+     */
+    private static Map<String, Map<String, Double>> loadWeights(
+            String resource) {
+        Map<String, Map<String, Double>> target = new HashMap<String, Map<String, Double>>();
+        InputStream in = DataGenerator.class.getResourceAsStream(resource);
+        if (in == null) {
+            return target;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\|");
+                if (tokens.length != 3) {
+                    throw new IllegalArgumentException(
+                            "Invalid sampling weight: " + line);
+                }
+                Map<String, Double> list = target.get(tokens[0].trim());
+                if (list == null) {
+                    list = new HashMap<String, Double>();
+                    target.put(tokens[0].trim(), list);
+                }
+                list.put(tokens[1].trim(), Double.valueOf(tokens[2].trim()));
+            }
+        } catch (IOException ioex) {
+            ioex.printStackTrace();
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    in.close();
+                }
+            } catch (IOException ioex) {
+                System.out.println("Unable to close " + resource + ": "
+                        + ioex);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Builds the table for a list of values, giving any value without an
+     * explicit weight a weight of 1
+     */
+    private AliasTable buildTable(List<String> values,
+            Map<String, Double> valueWeights) {
+        if (!weighted || valueWeights == null) {
+            return AliasTable.uniform(values.size());
+        }
+
+        double[] weights = new double[values.size()];
+        for (int i = 0; i < weights.length; i++) {
+            Double weight = valueWeights.get(values.get(i));
+            weights[i] = weight != null ? weight.doubleValue() : 1.0;
+        }
+        return new AliasTable(weights);
+    }
+
+    /**
+     * Sets the coding systems diagnosis and procedure codes are drawn from.
+     * Each code set draws from the first of the systems it has codes in, so
+     * I9 and SNM gives ICD-9 diagnoses and SNOMED procedures. The codes come
+     * from the shared CodeCatalog, so every diagnosis returned is one of its
+     * preallocated instances rather than a new object.
+     * 
+     * @param codingSystems
+     *            coding systems to use in order of preference, e.g. I9 and
+     *            SNM, or I10 and CPT
+     * @throws IllegalArgumentException
+     *             if one of the code sets has no codes in any of the systems
+     */
+    public void setCodeSystems(List<String> codingSystems) {
+        CodeCatalog catalog = CodeCatalog.getInstance();
+        pregnancyDxCodes = catalog.getSet("PREGNANCY_DX").selectFirst(
+                codingSystems, weighted);
+        IVDDxCodes = catalog.getSet("IVD_DX").selectFirst(codingSystems,
+                weighted);
+        IVDMIDxCodes = catalog.getSet("IVD_AMI_DX").selectFirst(codingSystems,
+                weighted);
+        DMDxCodes = catalog.getSet("DM_DX").selectFirst(codingSystems,
+                weighted);
+        gestationalDMDxCodes = catalog.getSet("GESTATIONAL_DM_DX")
+                .selectFirst(codingSystems, weighted);
+        ivdProcCodes = catalog.getSet("IVD_PROC").selectFirst(codingSystems,
+                weighted);
+    }
+
+    /**
+     * Sets the catalog issued keys are appended to. When the catalog already
+     * holds keys, from an earlier run, the patient ids in it are never issued
+     * again, HICNs carry on from the number already issued and encounter uids
+     * from the highest one. Loader threads append encounter uids in whatever
+     * order they get to the file, so the last one isn't necessarily the
+     * highest.
+     * 
+     * @param catalog
+     *            catalog to append keys to, or null to stop keeping them
+     */
+    public void setEntityCatalog(EntityCatalog catalog) {
+        if (catalog != null) {
+            KeyFile ids = catalog.get(EntityType.PATIENT_ID);
+            synchronized (patientIds) {
+                for (long i = 0; i < ids.size(); i++) {
+                    patientIds.set(((Integer) ids.get(i)).intValue());
+                }
+            }
+            long issued = catalog.get(EntityType.HICN).size();
+            long current;
+            while ((current = hicnSequencer.get()) < issued
+                    && !hicnSequencer.compareAndSet(current, issued)) {
+                // Lost a race with another thread, check again
+            }
+            KeyFile encounters = catalog.get(EntityType.ENCOUNTER_UID);
+            if (encounters.size() > 0) {
+                int highest = 0;
+                for (long i = 0; i < encounters.size(); i++) {
+                    highest = Math.max(highest,
+                            ((Integer) encounters.get(i)).intValue());
+                }
+                int last = toSequence(highest);
+                int sequence;
+                while ((sequence = encounterSequencer.get()) < last
+                        && !encounterSequencer.compareAndSet(sequence, last)) {
+                    // Lost a race with another thread, check again
+                }
+            }
+        }
+        entityCatalog = catalog;
+    }
+
+    /**
+     * @return catalog issued keys are appended to, or null
+     */
+    public EntityCatalog getEntityCatalog() {
+        return entityCatalog;
+    }
+
+    private void record(EntityType type, Object key) {
+        EntityCatalog catalog = entityCatalog;
+        if (catalog != null) {
+            catalog.append(type, key);
+        }
+    }
+
+    /**
+     * Sorts the zip codes that are still in use by their numeric value so a
+     * range of zip codes can be found with a binary search
+     */
+    private void indexZips() {
+        TreeMap<Integer, ZipData> sorted = new TreeMap<Integer, ZipData>();
+        for (ZipData zip : zipCodes.values()) {
+            if (!zip.isDecommisioned()) {
+                sorted.put(Integer.valueOf(zip.getZipCode()), zip);
+            }
+        }
+
+        activeZips = new ZipData[sorted.size()];
+        activeZipCodes = new int[sorted.size()];
+        int i = 0;
+        for (Map.Entry<Integer, ZipData> entry : sorted.entrySet()) {
+            activeZipCodes[i] = entry.getKey().intValue();
+            activeZips[i++] = entry.getValue();
+        }
+        zipGrid = new ZipGridIndex(activeZips, ZIP_GRID_CELL_DEGREES);
+    }
+
     private static void loadZipsFromFile(Map<String, ZipData> target,
             String fileLocation) throws FileNotFoundException {
         Scanner s = null;
@@ -279,8 +524,46 @@ public class DataGenerator {
                 new DateTime(endDate.getTime())).getDays();
     }
 
+    /**
+     * Restricts the patient ids and uid sequences issued to one of a number of
+     * disjoint slices, so that several processes can each generate part of a
+     * load without issuing the same keys. Patient ids in slice i are those
+     * equal to i modulo the number of slices, and the sequences issue every
+     * count-th number after the start, from the i-th on, HICNs included. It
+     * should be called before any keys are issued.
+     * 
+     * @param index
+     *            index of this generator's slice, from 0
+     * @param count
+     *            number of slices
+     */
+    public void setSlice(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid slice " + index
+                    + " of " + count);
+        }
+        sliceIndex = index;
+        sliceCount = count;
+    }
+
     private int generateNextSequence(AtomicInteger seq) {
-        return seq.incrementAndGet();
+        int next = seq.incrementAndGet();
+        if (sliceCount == 1) {
+            return next;
+        }
+        return SEQUENCE_START + (next - SEQUENCE_START - 1) * sliceCount
+                + sliceIndex + 1;
+    }
+
+    /**
+     * Maps a uid issued from this generator's slice back to the position in
+     * the sequence it was issued at
+     */
+    private int toSequence(int uid) {
+        if (sliceCount == 1 || uid <= SEQUENCE_START) {
+            return uid;
+        }
+        return SEQUENCE_START + (uid - SEQUENCE_START - 1) / sliceCount + 1;
     }
     
     /**
@@ -290,7 +573,9 @@ public class DataGenerator {
      * @return an int > 50000 guaranteed to be generated in sequence
      */
     public int generateNextEncounterSequence() {
-        return generateNextSequence(encounterSequencer);
+        int uid = generateNextSequence(encounterSequencer);
+        record(EntityType.ENCOUNTER_UID, Integer.valueOf(uid));
+        return uid;
     }
     
     /**
@@ -330,28 +615,46 @@ public class DataGenerator {
      * @return UUID
      */
     public String generateRandomUUID() {
-        return UUID.randomUUID().toString();
+        UUID uuid = UUID.randomUUID();
+        record(EntityType.OHA_ID, uuid);
+        return uuid.toString();
+    }
+
+    /**
+     * Generates a random (version 4) UUID suitable for use as a row key. The
+     * bits come from this generator's PRNG rather than the secure random
+     * source UUID.randomUUID uses, which is much cheaper when a UUID is needed
+     * for every row written.
+     * 
+     * @return random UUID
+     */
+    public UUID generateRandomUid() {
+        long msb = (rng.nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+        long lsb = (rng.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(msb, lsb);
     }
     
 
     /**
      * Generates a random integer that can be used to identify a patient. A side
-     * effect of calling this method is that the identifier is stored internally
-     * in a list so that it can be guaranteed to always return an unused value.
+     * effect of calling this method is that the identifier is marked as used
+     * internally so that it can be guaranteed to always return an unused
+     * value.
      * 
      * @return the newly generated identifier. It is up to the caller to manage
      *         the id returned by this method, as there is no way to retrieve it
      *         once its been generated.
      */
     public int generateRandomIdentifier() {
-        Integer proposedId = null;
+        int proposedId;
         synchronized (patientIds) {
             do {
-                proposedId = Integer.valueOf(rng
-                        .nextInt(((1100000 - 100000) + 1) + 100000));
-            } while (patientIds.contains(proposedId));
+                proposedId = rng.nextInt(((1100000 - 100000) + 1) + 100000);
+                proposedId += sliceIndex - proposedId % sliceCount;
+            } while (patientIds.get(proposedId));
 
-            patientIds.add(proposedId);
+            patientIds.set(proposedId);
+            record(EntityType.PATIENT_ID, Integer.valueOf(proposedId));
         }
 
         return proposedId;
@@ -368,6 +671,56 @@ public class DataGenerator {
         return proposed == 0 ? 1 : proposed;
     }
 
+    /**
+     * Replaces the fan-out profile used to decide how many encounters, labs
+     * and diagnoses get generated
+     * 
+     * @param profile
+     *            the new fan-out profile
+     */
+    public void setFanoutProfile(FanoutProfile profile) {
+        if (profile == null)
+            throw new IllegalArgumentException("profile required");
+
+        this.fanoutProfile = profile;
+    }
+
+    public FanoutProfile getFanoutProfile() {
+        return fanoutProfile;
+    }
+
+    /**
+     * Returns the number of encounters to generate for a patient according to
+     * the fan-out profile. Hot patients get many more than everyone else.
+     * 
+     * @param patientId
+     *            identifier of the patient
+     * @return number of encounters to generate
+     */
+    public int generateEncounterCount(int patientId) {
+        return fanoutProfile.sampleEncounters(rng, patientId);
+    }
+
+    /**
+     * Returns the number of rounds of labs to generate for an encounter
+     * according to the fan-out profile
+     * 
+     * @return number of lab rounds to generate
+     */
+    public int generateLabCount() {
+        return fanoutProfile.sampleLabs(rng);
+    }
+
+    /**
+     * Returns the number of diagnoses to record for an encounter according to
+     * the fan-out profile
+     * 
+     * @return number of diagnoses to generate
+     */
+    public int generateDiagnosisCount() {
+        return fanoutProfile.sampleDiagnoses(rng);
+    }
+
     /**
      * Returns a string containing a random lastname/firstname combination using
      * the census database.
@@ -375,12 +728,20 @@ public class DataGenerator {
      * @return a string formatted in "lastname, firstname" format
      */
     public String generateRandomName(boolean male) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(surnames.get(rng.nextInt(surnames.size())))
-                .append(", ")
-                .append(male ? maleNames.get(rng.nextInt(maleNames.size()))
-                        : femaleNames.get(rng.nextInt(femaleNames.size())));
-        return sb.toString();
+        return generateRandomPersonName(male).toString();
+    }
+
+    /**
+     * Returns a random lastname/firstname combination using the census
+     * database, with the parts kept separate.
+     * 
+     * @param male
+     *            flag indicating whether or not to generate a male name
+     * @return a random name
+     */
+    public PersonName generateRandomPersonName(boolean male) {
+        return new PersonName(generateRandomSurname(),
+                generateRandomGivenName(male));
     }
 
     /**
@@ -390,7 +751,7 @@ public class DataGenerator {
      * @return String with a random surname
      */
     public String generateRandomSurname() {
-        return surnames.get(rng.nextInt(surnames.size()));
+        return surnames.get(surnameTable.sample(rng));
     }
 
     /**
@@ -417,8 +778,8 @@ public class DataGenerator {
      * @return String containing a gender-specific given name
      */
     public String generateRandomGivenName(boolean male) {
-        return male ? maleNames.get(rng.nextInt(maleNames.size()))
-                : femaleNames.get(rng.nextInt(femaleNames.size()));
+        return male ? maleNames.get(maleNameTable.sample(rng)) : femaleNames
+                .get(femaleNameTable.sample(rng));
     }
 
     /**
@@ -481,20 +842,120 @@ public class DataGenerator {
     
     /**
      * Generates a random ZipData object within a range.  Can be useful when trying to cluster
-     * data around a given city or region.
+     * data around a given city or region.<br>
+     * <br>
+     * The zip codes in the range are weighted by their estimated population,
+     * so patients cluster where people actually live. Zip codes with no
+     * population figure, such as PO boxes, are only drawn if no zip code in
+     * the range has one.
      * 
      * @param min lower bound of zip code range
      * @param max upper bound of zip code range
      * @return random ZipData within the range specified
+     * @throws IllegalArgumentException if there are no zip codes in use in the range
      */
     public ZipData generateRandomZipData(int min, int max) {
-        ZipData zipData = null;
+        int from = lowerZipIndex(min);
+        int to = lowerZipIndex(max + 1);
+        if (from >= to) {
+            throw new IllegalArgumentException("No zip codes between " + min
+                    + " and " + max);
+        }
+
+        Long key = Long.valueOf(((long) from << 32) | to);
+        AliasTable table = zipRangeTables.get(key);
+        if (table == null) {
+            double[] weights = new double[to - from];
+            for (int i = 0; weighted && i < weights.length; i++) {
+                Integer population = activeZips[from + i]
+                        .getEstimatedPopulation();
+                weights[i] = population != null ? Math.max(0,
+                        population.intValue()) : 0;
+            }
+            table = new AliasTable(weights);
+            zipRangeTables.put(key, table);
+        }
+
+        return activeZips[from + table.sample(rng)];
+    }
 
-        do {
-            zipData = zipCodes.get(StringUtils.leftPad(String.valueOf(rng.nextInt((max - min) + 1) + min), 5, '0'));
-        } while (zipData == null || zipData.isDecommisioned());
+    /**
+     * Creates a service area made up of every zip code in use within a radius
+     * of any of the given facility locations. The result should be kept and
+     * reused, since drawing from it is cheap but creating it is not.
+     * 
+     * @param latitudes
+     *            latitudes of the facilities in degrees
+     * @param longitudes
+     *            longitudes of the facilities in degrees
+     * @param radiusMiles
+     *            distance from a facility a patient may live, in miles
+     * @param populationWeighted
+     *            whether zip codes are drawn in proportion to their estimated
+     *            population or uniformly
+     * @return the service area
+     * @throws IllegalArgumentException
+     *             if there are no zip codes in use within the service area
+     */
+    public ServiceArea createServiceArea(double[] latitudes,
+            double[] longitudes, double radiusMiles, boolean populationWeighted) {
+        int[] matches = zipGrid.withinAny(latitudes, longitudes, radiusMiles);
+        if (matches.length == 0) {
+            throw new IllegalArgumentException("No zip codes within "
+                    + radiusMiles + " miles of the given locations");
+        }
 
-        return zipData;
+        ZipData[] zips = new ZipData[matches.length];
+        double[] weights = new double[matches.length];
+        for (int i = 0; i < matches.length; i++) {
+            zips[i] = zipGrid.get(matches[i]);
+            Integer population = zips[i].getEstimatedPopulation();
+            weights[i] = populationWeighted && population != null ? Math.max(
+                    0, population.intValue()) : 0;
+        }
+        return new ServiceArea(zips, new AliasTable(weights), radiusMiles);
+    }
+
+    /**
+     * Generates a random ZipData object within a radius of a point, weighted
+     * by population when weighted sampling is on. The service area for each
+     * distinct point and radius is created on first use and cached.
+     * 
+     * @param latitude latitude of the center in degrees
+     * @param longitude longitude of the center in degrees
+     * @param radiusMiles search radius in miles
+     * @return random ZipData within the radius
+     * @throws IllegalArgumentException if there are no zip codes in use within the radius
+     */
+    public ZipData generateRandomZipData(double latitude, double longitude,
+            double radiusMiles) {
+        AreaKey key = new AreaKey(latitude, longitude, radiusMiles);
+        ServiceArea area = serviceAreas.get(key);
+        if (area == null) {
+            area = createServiceArea(new double[] { latitude },
+                    new double[] { longitude }, radiusMiles, weighted);
+            serviceAreas.put(key, area);
+        }
+        return area.sample(rng);
+    }
+
+    /**
+     * Generates a random ZipData object from a service area
+     * 
+     * @param area service area created by createServiceArea
+     * @return random ZipData within the service area
+     */
+    public ZipData generateRandomZipData(ServiceArea area) {
+        return area.sample(rng);
+    }
+
+    /**
+     * @return index of the first zip code in use that is not less than the
+     *         given value
+     */
+    private int lowerZipIndex(int zipCode) {
+        int index = Arrays.binarySearch(activeZipCodes, zipCode);
+        return index >= 0 ? index : -(index + 1);
     }
     
     /**
@@ -526,7 +987,7 @@ public class DataGenerator {
      * @return string payer name chosen at random
      */
     public String generateRandomPayer() {
-        return payers.get(rng.nextInt(payers.size()));
+        return payers.get(payerTable.sample(rng));
     }
 
     /**
@@ -559,29 +1020,41 @@ public class DataGenerator {
      * This code will not generate a valid second part, since for testign
      * purposes we don't really need a valid HICN, we just need one that is
      * formatted properly. <br>
-     * Changes to a person’s health insurance claim number occur when the
-     * enrollee’s relationship to the wage earner changes. For example, the
-     * claim number would change after a shift from “spouse” to “widow.”
+     * Changes to a person's health insurance claim number occur when the
+     * enrollee's relationship to the wage earner changes. For example, the
+     * claim number would change after a shift from "spouse" to "widow."<br>
+     * <br>
+     * HICNs are never issued twice, without keeping the ones issued: each
+     * comes from the next number of a sequence, scattered over the space of
+     * HICNs.
      * 
      * @return String containing the HICN
      */
     public String generateRandomHICN() {
-        String proposedId = null;
-        synchronized (patientHicns) {
-            do {
-                proposedId = new StringBuffer()
-                        .append(generateRandomSSN())
-                        .append("-")
-                        .append(RandomStringUtils.randomAlphabetic(1)
-                                .toUpperCase())
-                        .append(RandomStringUtils.randomAlphanumeric(1)
-                                .toUpperCase()).toString();
-            } while (patientIds.contains(proposedId));
-
-            patientHicns.add(proposedId);
+        // Slices take turns along the sequence, like the uid sequences
+        long sequence = hicnSequencer.getAndIncrement() * sliceCount
+                + sliceIndex;
+        if (sequence >= HICN_SPACE) {
+            throw new IllegalStateException("All " + HICN_SPACE
+                    + " HICNs have been issued");
         }
+        long ordinal = sequence * HICN_MULTIPLIER % HICN_SPACE;
+        char code = ALPHANUMERIC.charAt((int) (ordinal % 36));
+        ordinal /= 36;
+        char letter = ALPHANUMERIC.charAt(10 + (int) (ordinal % 26));
+        ordinal /= 26;
+        String serial = StringUtils.leftPad(String.valueOf(ordinal % 10000),
+                4, '0');
+        ordinal /= 10000;
+        String group = StringUtils.leftPad(String.valueOf(ordinal % 100), 2,
+                '0');
+        ordinal /= 100;
 
-        return proposedId;
+        String hicn = new StringBuilder(14).append(900 + ordinal).append('-')
+                .append(group).append('-').append(serial).append('-')
+                .append(letter).append(code).toString();
+        record(EntityType.HICN, hicn);
+        return hicn;
     }
 
     /**
@@ -613,16 +1086,13 @@ public class DataGenerator {
      * @return String disposition discharge code
      */
     public String generateRandomDischargeDisposition() {
-        return dischargeDispositions.get(rng.nextInt(dischargeDispositions.size()));
+        return dischargeDispositions.get(dischargeDispositionTable.sample(rng));
     }
     
     public CodedValue generateRandomPregnancyDiagnosis() {
         // We want to limit the incidence of pregnancy to about 25% of requests
         if (rng.nextFloat() <= 0.25f) {
-            CodedValue dxCode = new CodedValue();
-            dxCode.setCodingSystem("I9");
-            dxCode.setIdentifier(pregnancyDxCodes.get(rng.nextInt(pregnancyDxCodes.size())));
-            return dxCode;
+            return pregnancyDxCodes.sample(rng);
         } else {
             return null;
         }
@@ -630,20 +1100,14 @@ public class DataGenerator {
     
     public CodedValue generateRandomIVDDiagnosis(boolean isAMI) {
         if (isAMI) {
-            CodedValue dxCode = new CodedValue();
-            dxCode.setCodingSystem("I9");
-            dxCode.setIdentifier(IVDMIDxCodes.get(rng.nextInt(IVDMIDxCodes.size())));
-            return dxCode;
+            return IVDMIDxCodes.sample(rng);
         } else {
             return generateRandomIVDDiagnosis();
         }
     }
     
     public CodedValue generateRandomIVDDiagnosis() {
-        CodedValue dxCode = new CodedValue();
-        dxCode.setCodingSystem("I9");
-        dxCode.setIdentifier(IVDDxCodes.get(rng.nextInt(IVDDxCodes.size())));
-        return dxCode;
+        return IVDDxCodes.sample(rng);
     }
     
     public CodedValue generateRandomDMDiagnosis(boolean isMale) {
@@ -651,34 +1115,26 @@ public class DataGenerator {
         // further randomize on who will get it based on an approximate
         // incidence rate of less than 10%
         if (!isMale && rng.nextFloat() <= 0.10f) {
-            CodedValue dxCode = new CodedValue();
-            dxCode.setCodingSystem("I9");
-            dxCode.setIdentifier(gestationalDMDxCodes.get(rng.nextInt(gestationalDMDxCodes.size())));
-            return dxCode;
+            return gestationalDMDxCodes.sample(rng);
         } else {
             return generateRandomDMDiagnosis();
         }
     }
     
     public CodedValue generateRandomDMDiagnosis() {
-        CodedValue dxCode = new CodedValue();
-        dxCode.setCodingSystem("I9");
-        dxCode.setIdentifier(DMDxCodes.get(rng.nextInt(DMDxCodes.size())));
-        return dxCode;
+        return DMDxCodes.sample(rng);
     }
     
     /**
-     * Returns a random Snomed procedure code corresponding to one of the IVD
-     * procedure codes for coronoary artery bypass graft (CABG) or percutaneous 
-     * transluminal coronary angioplasty (PTCA) as a CodedValue
+     * Returns a random procedure code for coronoary artery bypass graft (CABG)
+     * or percutaneous transluminal coronary angioplasty (PTCA) as a
+     * CodedValue, from the first of the coding systems with procedure codes,
+     * Snomed by default
      * 
      * @return random Code code for a procedure
      */
     public CodedValue generateRandomIVDProcCode() {
-        CodedValue code = new CodedValue();
-        code.setIdentifier(ivdProcCodes.get(rng.nextInt(ivdProcCodes.size())));
-        code.setCodingSystem("SNM");
-        return code;
+        return ivdProcCodes.sample(rng);
     }
 
     /**
@@ -704,22 +1160,6 @@ public class DataGenerator {
         }
     }
     
-    /**
-     * Generates a random lipid panel
-     * 
-     * @param isAbnormal
-     *            whether the caller wishes to receive an abnormal results panel
-     *            
-     * @return LipidPanelResult with random test values 
-     */
-    public LipidPanelResult generateRandomLipidPanelResult(Date date, boolean isAbnormal) {
-        LipidPanelResult result = new LipidPanelResult(date, generateRandomHDLCResult(isAbnormal),
-                generateRandomLDLCResult(isAbnormal),
-                generateRandomTRIGResult(isAbnormal));
-        
-        return result;
-    }
-
     /**
      * Generates a random double suitable for use as an LDLC result.
      * 
@@ -845,6 +1285,115 @@ public class DataGenerator {
         }
     }
 
+    /**
+     * Fills an array with random results for a lab test, the bulk equivalent
+     * of generateRandomHemoglobinResult, generateRandomLDLCResult and the
+     * rest. Sodium results are whole numbers stored as doubles.<br>
+     * <br>
+     * Rather than going back to the shared Random for every value, this takes
+     * a single seed from it and runs a SplitMix64 sequence over the block in
+     * local variables. Picking the range for each value is done with
+     * conditional selects rather than branches, so the loop has no
+     * unpredictable branches and nothing shared in it.
+     * 
+     * @param test
+     *            test to generate results for
+     * @param abnormal
+     *            whether each result should be abnormal
+     * @param values
+     *            array the results are written to
+     * @param offset
+     *            index of the first result in both arrays
+     * @param count
+     *            number of results to generate
+     */
+    public void generateResults(LabTest test, boolean[] abnormal,
+            double[] values, int offset, int count) {
+        long state = rng.nextLong();
+        double scale = test.scale;
+        int normalLow = test.normalLow;
+        int normalSpan = test.normalSpan;
+        int lowAbnormalLow = test.lowAbnormalLow;
+        int lowAbnormalSpan = test.lowAbnormalSpan;
+        int highAbnormalLow = test.highAbnormalLow;
+        int highAbnormalSpan = test.highAbnormalSpan;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            long z = mix(state += SPLITMIX_GAMMA);
+
+            // The top bit picks between the two abnormal ranges and the low
+            // 32 bits pick the value within the range
+            boolean isAbnormal = abnormal[i];
+            boolean isHigh = z < 0;
+            int low = isAbnormal ? (isHigh ? highAbnormalLow : lowAbnormalLow)
+                    : normalLow;
+            int span = isAbnormal ? (isHigh ? highAbnormalSpan
+                    : lowAbnormalSpan) : normalSpan;
+            values[i] = (low + (int) (((z & 0xFFFFFFFFL) * span) >>> 32))
+                    / scale;
+        }
+    }
+
+    /**
+     * Fills an array with random timestamps, as epoch milliseconds, spread
+     * uniformly between minDate and maxDate. This is the bulk equivalent of
+     * generateRandomTimestamp for the short ranges of an encounter, and like
+     * generateResults draws a single seed from the shared Random.
+     * 
+     * @param minDate
+     *            lower bound of the date range
+     * @param maxDate
+     *            upper bound of the date range
+     * @param timestamps
+     *            array the timestamps are written to
+     * @param offset
+     *            index of the first timestamp in the array
+     * @param count
+     *            number of timestamps to generate
+     */
+    public void generateRandomTimestamps(Date minDate, Date maxDate,
+            long[] timestamps, int offset, int count) {
+        if (minDate == null || maxDate == null || maxDate.before(minDate))
+            throw new IllegalArgumentException("maxDate must be after minDate");
+
+        long state = rng.nextLong();
+        long min = minDate.getTime();
+        double span = maxDate.getTime() - min;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            long z = mix(state += SPLITMIX_GAMMA);
+            timestamps[i] = min + (long) ((z >>> 11) * DOUBLE_UNIT * span);
+        }
+    }
+
+    /**
+     * Fills a block with random results for a lab test, together with the
+     * times they were taken. The block must already hold the abnormal
+     * decisions for its results.
+     * 
+     * @param block
+     *            block to fill, already reset to the test and size wanted
+     * @param minDate
+     *            earliest time a result can be taken
+     * @param maxDate
+     *            latest time a result can be taken
+     */
+    public void generateResultBlock(ResultBlock block, Date minDate,
+            Date maxDate) {
+        generateResults(block.getTest(), block.getAbnormal(),
+                block.getValues(), 0, block.size());
+        generateRandomTimestamps(minDate, maxDate, block.getTimestamps(), 0,
+                block.size());
+    }
+
+    /**
+     * The SplitMix64 output function, which turns successive values of a
+     * Weyl sequence into well mixed random longs
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     /**
      * Returns a random Java date between the minDate and maxDate. Note that the
      * value cannot take into account time zone for the date when the caller
@@ -917,7 +1466,7 @@ public class DataGenerator {
      * @return random string admit type
      */
     public String generateRandomAdmitType() {
-        return admitTypes.get(rng.nextInt(admitTypes.size()));
+        return admitTypes.get(admitTypeTable.sample(rng));
     }
 
     /**
@@ -961,10 +1510,18 @@ public class DataGenerator {
      */
     public int generateRandomRanking(int index) throws IllegalStateException {
         try {
-            Integer value = hoppers.get(Integer.valueOf(index)).remove(0);
+            // The hoppers are shuffled, so drawing from the end is just as
+            // random as drawing from the front and doesn't shift the rest of
+            // the list. Each hopper is locked on its own since patients may be
+            // generated on several threads.
+            List<Integer> hopper = hoppers.get(Integer.valueOf(index));
+            Integer value;
+            synchronized (hopper) {
+                value = hopper.remove(hopper.size() - 1);
+            }
             if (value == null) {
                 throw new IllegalStateException(
-                        "No value at index 0 found in hopper at index " + index);
+                        "No value found in hopper at index " + index);
             }
             return value;
         } catch (UnsupportedOperationException uoe) {
@@ -977,6 +1534,38 @@ public class DataGenerator {
             throw new IllegalStateException("Hopper at given index is empty");
         }
     }
-    
 
+    /**
+     * Key for the cache of service areas around a single point
+     */
+    private static final class AreaKey {
+        private final double latitude;
+        private final double longitude;
+        private final double radiusMiles;
+
+        AreaKey(double latitude, double longitude, double radiusMiles) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusMiles = radiusMiles;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof AreaKey)) {
+                return false;
+            }
+            AreaKey other = (AreaKey) obj;
+            return Double.compare(latitude, other.latitude) == 0
+                    && Double.compare(longitude, other.longitude) == 0
+                    && Double.compare(radiusMiles, other.radiusMiles) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(latitude) * 31
+                    + Double.doubleToLongBits(longitude) * 17
+                    + Double.doubleToLongBits(radiusMiles);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
 }
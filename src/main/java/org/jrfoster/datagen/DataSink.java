@@ -0,0 +1,37 @@
+package org.jrfoster.datagen;
+
+/**
+ * A destination for the rows produced by the data generation strategies. The
+ * strategies describe each row as a table from the catalog and the column
+ * values in catalog order, and the sink decides how, and where, that row
+ * actually gets written.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public interface DataSink {
+
+    /**
+     * Writes a single row to the given table.
+     * 
+     * @param table
+     *            table the row belongs to
+     * @param values
+     *            column values, in the same order as table.getColumns().
+     *            The array may be longer than the table has columns, in which
+     *            case only the first table.getColumnCount() values belong to
+     *            the row. Implementations must not hold on to the array once
+     *            the call returns.
+     */
+    void write(Table table, Object... values);
+
+    /**
+     * Blocks until every row handed to the sink so far has been written.
+     */
+    void flush();
+
+    /**
+     * Flushes the sink and releases any resources it holds.
+     */
+    void close();
+}
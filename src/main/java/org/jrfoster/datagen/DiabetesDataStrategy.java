@@ -1,31 +1,40 @@
 package org.jrfoster.datagen;
 
 import java.util.Date;
+import java.util.Set;
 
 import org.joda.time.Interval;
 
-import com.datastax.driver.core.Session;
-
 public class DiabetesDataStrategy extends AbstractDataStrategy {
 
+    // Reused for every encounter, since a strategy belongs to one thread
+    private final ResultBlock hemoglobinResults = new ResultBlock(8);
+    private final ResultBlock ldlcResults = new ResultBlock(8);
+    private final ResultBlock systolicResults = new ResultBlock(8);
+    private final ResultBlock diastolicResults = new ResultBlock(8);
+
     /**
      * Generate a new instance with the given Session, DataGenerator and
      * percent abnormal results
      * 
-     * @param sess
-     *            Cassandra session to use when executing DML
+     * @param sink
+     *            DataSink the generated rows are written to
      * @param gen
      *            DataGenerator instance to use to generate data
-     * @param pctAbnormal
-     *            Desired percentage of abnormal results to create
+     * @param abnormal
+     *            controller deciding which results are abnormal
+     * @param loadDate
+     *            load date stamped on every row
+     * @param tables
+     *            tables rows are generated for
      */
-    public DiabetesDataStrategy(String keyspace, Session sess, 
-            DataGenerator gen, Double pctAbnormal, Date loadDate) {
-        super(keyspace, sess, gen, pctAbnormal, loadDate);
+    public DiabetesDataStrategy(DataSink sink, DataGenerator gen,
+            AbnormalRatioController abnormal, Date loadDate, Set<Table> tables) {
+        super(sink, gen, abnormal, loadDate, tables);
     }
 
     @Override
-    public void generateEncounterData(int patientId, int measurementPeriodYear, boolean isMale) {
+    public void generateEncounterData(PatientRecord patient, int measurementPeriodYear) {
         // For the diabetes measures, we need to see that they have had at least
         // one visit in the measurement period and in the year prior to the
         // measurement period. So, while we don't really care too much about the
@@ -35,7 +44,8 @@ public class DiabetesDataStrategy extends AbstractDataStrategy {
         // for some times in that two year period.
         Interval currMP = generator.generateMeasurementPeriod(measurementPeriodYear);
         Interval prevMP = new Interval(currMP.getStart().minusYears(1), currMP.getEnd());
-        int numEncounters = generator.generateRandomCount(7);
+        int patientId = patient.getPatientId();
+        int numEncounters = generator.generateEncounterCount(patientId);
         for (int j = 0; j < numEncounters; j++) {
             Date admitDate = generator.generateRandomTimestamp(
                     prevMP.getStart().toDate(), prevMP.getEnd().toDate());
@@ -48,16 +58,24 @@ public class DiabetesDataStrategy extends AbstractDataStrategy {
             int encId = generator.generateNextEncounterSequence();
         
             // Encounters
-            session.execute(this.generateEncounterDML(patientId, encIntv, encId));
+            if (isLoaded(Table.PATIENT_ENCOUNTERS)) {
+                this.writeEncounter(patientId, encIntv, encId);
+            }
             
             // Diagnoses
-            generateDiagnoses(patientId, encIntv, isMale, encId);
+            if (isLoaded(Table.PATIENT_DIAGNOSES)) {
+                generateDiagnoses(patientId, encIntv, patient.isMale(), encId);
+            }
             
             // Labs
-            generateLabs(patientId, encIntv);
+            if (isLoaded(Table.PATIENT_RESULTS)) {
+                generateLabs(patientId, encIntv);
+            }
             
             // Procedures
-            generateProcedures(patientId, encIntv);
+            if (isLoaded(Table.PATIENT_PROCEDURES)) {
+                generateProcedures(patientId, encIntv);
+            }
         }        
     }
 
@@ -68,30 +86,26 @@ public class DiabetesDataStrategy extends AbstractDataStrategy {
         // are Diastolic and Systolic blood pressure. We also fudge a little
         // and include tobacco nonuse and aspirin use for the composite
         // meausres.
-        for (int k = 0; k < generator.generateRandomCount(5); k++) {
-            // Determine if we should generate normal or abnormal ranges
-            maintainAbnormalPercentage();
+        int numLabs = generator.generateLabCount();
 
-            // Hemoglobin Result
-            session.execute(this.generateHemoglobinResultDML(patientId, interval));
-            
-            // LDL Cholesterol Result.  We go ahead and generate results for a
-            // full lipid panel, but we are really only using the LDLC value
-            // from it for diabetes work.
-            Date lipidDate = generator.generateRandomTimestamp(
-                    interval.getStart().toDate(), interval.getEnd().toDate());
-            LipidPanelResult lipids = generator.generateRandomLipidPanelResult(
-                    lipidDate, abnormalResult);
-            session.execute(this.generateLDLCResultDML(patientId, lipids));
-            
-            // Diastolic and Systolic blood pressure (vitals taken same time)
-            Date bpDate = generator.generateRandomTimestamp(
-                    interval.getStart().toDate(), interval.getEnd().toDate());
-            session.execute(this.generateSystolicResultDML(patientId, bpDate));
-            session.execute(this.generateDiastolicResultDML(patientId, bpDate));
-            
+        // Hemoglobin Results
+        generateResultBlock(hemoglobinResults, LabTest.HBA1C, numLabs, interval);
+        writeResultBlock(patientId, hemoglobinResults);
+
+        // LDL Cholesterol Results.  Only the LDLC value of a lipid panel is
+        // used for diabetes work, so that is all we generate.
+        generateResultBlock(ldlcResults, LabTest.LDLC, numLabs, interval);
+        writeResultBlock(patientId, ldlcResults);
+
+        // Diastolic and Systolic blood pressure (vitals taken same time)
+        generateResultBlock(systolicResults, LabTest.BPS, numLabs, interval);
+        generateResultBlock(diastolicResults, LabTest.BPD, systolicResults);
+        writeResultBlock(patientId, systolicResults);
+        writeResultBlock(patientId, diastolicResults);
+
+        for (int k = 0; k < numLabs; k++) {
             // Tobacco Screening Result
-            session.execute(this.generateTobaccoScreeningDML(patientId, interval));
+            this.writeTobaccoScreening(patientId, interval);
         }
     }
 
@@ -110,22 +124,20 @@ public class DiabetesDataStrategy extends AbstractDataStrategy {
         // will have to be diagnosed with gestational diabetes.  All the rest will
         // get a random diabetes diagnosis
         // The DM measures use a very large list of diagnoses codes, but still
-        // only contains the ICD-9 codes for simplicity's sake.  We only need
-        // a single row for a diagnoses for diabetes.
-        CodedValue dxCode = null;
-        if (isMale) {
-            dxCode = this.generator.generateRandomDMDiagnosis();
-            session.execute(this.generatePatientDiagnosesDML(patientId, interval, dxCode, encId));
-        } else {
-            dxCode = this.generator.generateRandomPregnancyDiagnosis();
-            if (dxCode != null) {
-                session.execute(this.generatePatientDiagnosesDML(patientId, interval, dxCode, encId));
-                dxCode = this.generator.generateRandomDMDiagnosis(false);
-                session.execute(this.generatePatientDiagnosesDML(patientId, interval, dxCode, encId));
-            } else {
-                dxCode = this.generator.generateRandomDMDiagnosis();
-                session.execute(this.generatePatientDiagnosesDML(patientId, interval, dxCode, encId));
-            }
+        // only contains the ICD-9 codes for simplicity's sake.
+        CodedValue dxCode = isMale ? null : this.generator.generateRandomPregnancyDiagnosis();
+        boolean isPregnant = dxCode != null;
+        if (isPregnant) {
+            this.writePatientDiagnosis(patientId, interval, dxCode, encId);
+        }
+
+        // The fan-out profile decides how many diabetes diagnoses get recorded
+        // for the encounter, which is a single one by default
+        int numDiagnoses = generator.generateDiagnosisCount();
+        for (int d = 0; d < numDiagnoses; d++) {
+            dxCode = isPregnant ? this.generator.generateRandomDMDiagnosis(false)
+                    : this.generator.generateRandomDMDiagnosis();
+            this.writePatientDiagnosis(patientId, interval, dxCode, encId);
         }
     }
 
@@ -135,7 +147,7 @@ public class DiabetesDataStrategy extends AbstractDataStrategy {
     }
 
     @Override
-    protected void generatePrefills(int patientId, String hicn, boolean isMale, Interval interval, String fullName, Date dob) {
+    protected void generatePrefills(PatientRecord patient, Interval interval) {
         // no-op
     }
 }
@@ -3,5 +3,10 @@ package org.jrfoster.datagen;
 
 public interface EncounterDataStrategy {
     
-    void generateEncounterData(int patientId, int measurementPeriodYear, boolean isMale);
+    void generateEncounterData(PatientRecord patient, int measurementPeriodYear);
+
+    /**
+     * Called once the strategy has generated data for its last patient
+     */
+    void finish();
 }
@@ -0,0 +1,111 @@
+package org.jrfoster.datagen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class keeps every key the DataGenerator issues, a KeyFile for each
+ * EntityType in one directory, so that later runs can read, update or verify
+ * exactly the entities a load created without holding them on the heap.
+ *
+ * @author Jason Foster
+ *
+ */
+public class EntityCatalog {
+    private final File directory;
+    private final Map<EntityType, KeyFile> files = new EnumMap<EntityType, KeyFile>(
+            EntityType.class);
+
+    /**
+     * Opens the catalog in a directory, creating the directory and files as
+     * needed
+     *
+     * @param directory
+     *            directory holding the key files
+     * @param append
+     *            whether to keep the keys already in the files and append to
+     *            them, rather than start the files afresh
+     * @throws IOException
+     *             if any of the files can't be opened
+     */
+    public EntityCatalog(File directory, boolean append) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        try {
+            for (EntityType type : EntityType.values()) {
+                files.put(type, new KeyFile(new File(directory,
+                        type.getFileName()), type, !append));
+            }
+        } catch (IOException ioex) {
+            close();
+            throw ioex;
+        }
+    }
+
+    /**
+     * @param type
+     *            type of key
+     * @return the file keys of the type are kept in
+     */
+    public KeyFile get(EntityType type) {
+        return files.get(type);
+    }
+
+    /**
+     * Appends a key to the file for its type
+     *
+     * @param type
+     *            type of key
+     * @param key
+     *            the key
+     * @return ordinal of the key
+     */
+    public long append(EntityType type, Object key) {
+        return files.get(type).append(key);
+    }
+
+    /**
+     * Writes the keys appended so far to disk
+     */
+    public void force() {
+        for (KeyFile file : files.values()) {
+            file.force();
+        }
+    }
+
+    /**
+     * Writes the keys to disk and closes every file
+     */
+    public void close() throws IOException {
+        IOException first = null;
+        for (KeyFile file : files.values()) {
+            try {
+                file.close();
+            } catch (IOException ioex) {
+                if (first == null) {
+                    first = ioex;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(directory.getPath()).append(" (");
+        for (Map.Entry<EntityType, KeyFile> entry : files.entrySet()) {
+            if (sb.charAt(sb.length() - 1) != '(') {
+                sb.append(", ");
+            }
+            sb.append(entry.getValue().size()).append(' ')
+                    .append(entry.getKey());
+        }
+        return sb.append(")").toString();
+    }
+}
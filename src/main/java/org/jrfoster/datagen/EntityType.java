@@ -0,0 +1,116 @@
+package org.jrfoster.datagen;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * This enumeration lists the kinds of generated key kept in an
+ * EntityCatalog, along with the fixed number of bytes each key takes in its
+ * KeyFile and how it is encoded there.
+ * <ul>
+ * <li>PATIENT_ID and ENCOUNTER_UID are ints.</li>
+ * <li>HICN is up to 16 ASCII characters, padded with zero bytes.</li>
+ * <li>OHA_ID is a UUID, kept as its 16 bytes rather than its 36 character
+ * string.</li>
+ * </ul>
+ *
+ * @author Jason Foster
+ *
+ */
+public enum EntityType {
+    PATIENT_ID("patient-ids.keys", 4) {
+        @Override
+        void write(ByteBuffer buffer, int offset, Object key) {
+            buffer.putInt(offset, ((Integer) key).intValue());
+        }
+
+        @Override
+        Object read(ByteBuffer buffer, int offset) {
+            return Integer.valueOf(buffer.getInt(offset));
+        }
+    },
+    HICN("hicns.keys", 16) {
+        @Override
+        void write(ByteBuffer buffer, int offset, Object key) {
+            byte[] bytes = ((String) key).getBytes(ASCII);
+            if (bytes.length > getWidth()) {
+                throw new IllegalArgumentException("HICN " + key
+                        + " is longer than " + getWidth() + " characters");
+            }
+            for (int i = 0; i < getWidth(); i++) {
+                buffer.put(offset + i, i < bytes.length ? bytes[i] : 0);
+            }
+        }
+
+        @Override
+        Object read(ByteBuffer buffer, int offset) {
+            byte[] bytes = new byte[getWidth()];
+            int length = 0;
+            while (length < bytes.length
+                    && (bytes[length] = buffer.get(offset + length)) != 0) {
+                length++;
+            }
+            return new String(bytes, 0, length, ASCII);
+        }
+    },
+    ENCOUNTER_UID("encounter-uids.keys", 4) {
+        @Override
+        void write(ByteBuffer buffer, int offset, Object key) {
+            PATIENT_ID.write(buffer, offset, key);
+        }
+
+        @Override
+        Object read(ByteBuffer buffer, int offset) {
+            return PATIENT_ID.read(buffer, offset);
+        }
+    },
+    OHA_ID("oha-ids.keys", 16) {
+        @Override
+        void write(ByteBuffer buffer, int offset, Object key) {
+            UUID uuid = key instanceof UUID ? (UUID) key : UUID
+                    .fromString((String) key);
+            buffer.putLong(offset, uuid.getMostSignificantBits());
+            buffer.putLong(offset + 8, uuid.getLeastSignificantBits());
+        }
+
+        @Override
+        Object read(ByteBuffer buffer, int offset) {
+            return new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+        }
+    };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String fileName;
+    private final int width;
+
+    EntityType(String fileName, int width) {
+        this.fileName = fileName;
+        this.width = width;
+    }
+
+    /**
+     * @return name of the file keys of this type are kept in
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return number of bytes each key takes
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Encodes a key into a buffer without moving its position
+     */
+    abstract void write(ByteBuffer buffer, int offset, Object key);
+
+    /**
+     * Decodes a key from a buffer without moving its position
+     */
+    abstract Object read(ByteBuffer buffer, int offset);
+}
@@ -0,0 +1,549 @@
+package org.jrfoster.datagen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This sink holds back the rows it is given and replays them to the wrapped
+ * sink in order of event time across the whole load, so the data can be fed
+ * to a system as the chronological stream it would see in production rather
+ * than patient by patient. The event time of a row is its admit, result,
+ * diagnosis or procedure date; rows of tables without one, such as the
+ * demographics, come first.<br>
+ * <br>
+ * Rows are collected in a fixed set of buffers, a couple for each processor,
+ * and each thread always writes to the same one, so threads seldom contend for
+ * a buffer and the rows of a thread stay in the order it wrote them. The set
+ * doesn't grow with the number of threads, so threads that write a few rows
+ * and end, as loader tasks do, leave nothing behind. When a buffer reaches
+ * the run size, the thread that filled it takes its rows, sorts them by
+ * event time and spills them to a run file, outside of the buffer's lock.
+ * When the rows in all the buffers reach the limit, the largest buffer is
+ * spilled, whichever thread fills it. replay() merges the runs with a k-way merge that holds one row per
+ * run in memory, first merging the run files in passes of at most fanIn runs
+ * at a time when there are more than that, so memory stays bounded however
+ * many rows are loaded. Rows with the same event time keep the order they
+ * were written in within a run.<br>
+ * <br>
+ * Rows are only written to the wrapped sink by replay(), which must not be
+ * called while rows are being written, and by close(). flush() flushes the
+ * wrapped sink only. Since the rows held back only reach the wrapped sink at
+ * replay, a change made there to a row in the meantime, such as one made by
+ * the mutation workload, is overwritten when the row is replayed, so the two
+ * can't be used together.
+ *
+ * @author Jason Foster
+ *
+ */
+public class EventStreamSink extends ForwardingDataSink {
+    // Columns holding the event time of a row, in order of preference
+    private static final String[] EVENT_COLUMNS = { "admit_date",
+            "result_date", "diagnosis_date", "procedure_date" };
+
+    // Tags written ahead of each value in a run file
+    private static final int NULL = 0;
+    private static final int INTEGER = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int STRING = 4;
+    private static final int DATE = 5;
+    private static final int UUID_VALUE = 6;
+    private static final int BOOLEAN = 7;
+
+    private static final Table[] TABLES = Table.values();
+
+    private static final Comparator<Event> BY_TIME = new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            return a.time < b.time ? -1 : a.time == b.time ? 0 : 1;
+        }
+    };
+
+    private final Map<Table, Integer> eventColumns = new EnumMap<Table, Integer>(
+            Table.class);
+    private final File spillDir;
+    private final int runRows;
+    private final long maxBufferedRows;
+    private final int fanIn;
+
+    private final Buffer[] buffers = new Buffer[2 * Runtime.getRuntime()
+            .availableProcessors()];
+    private final List<File> runs = new ArrayList<File>();
+    private final AtomicLong buffered = new AtomicLong();
+
+    private final AtomicLong spilledRuns = new AtomicLong();
+    private final AtomicLong spilledRows = new AtomicLong();
+    private long mergePasses;
+    private long replayedRows;
+
+    /**
+     * Creates a new sink
+     *
+     * @param delegate
+     *            sink the rows are replayed to
+     * @param spillDir
+     *            directory the run files are written to
+     * @param runRows
+     *            number of rows a buffer holds before they are spilled
+     * @param maxBufferedRows
+     *            number of rows all buffers together hold before the largest
+     *            is spilled
+     * @param fanIn
+     *            most runs merged at once
+     */
+    public EventStreamSink(DataSink delegate, File spillDir, int runRows,
+            long maxBufferedRows, int fanIn) {
+        super(delegate);
+        if (runRows < 1 || maxBufferedRows < 1) {
+            throw new IllegalArgumentException(
+                    "runRows and maxBufferedRows must be positive");
+        }
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fanIn must be at least 2");
+        }
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create " + spillDir);
+        }
+        this.spillDir = spillDir;
+        this.runRows = runRows;
+        this.maxBufferedRows = maxBufferedRows;
+        this.fanIn = fanIn;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Buffer();
+        }
+        for (Table table : TABLES) {
+            for (Column column : table.getColumns()) {
+                for (String name : EVENT_COLUMNS) {
+                    if (column.getName().equals(name)
+                            && !eventColumns.containsKey(table)) {
+                        eventColumns.put(table, table.indexOf(name));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the event time of a row
+     *
+     * @param table
+     *            table the row belongs to
+     * @param values
+     *            column values in catalog order
+     * @return event time in milliseconds, or Long.MIN_VALUE if the row has
+     *         none
+     */
+    long eventTime(Table table, Object[] values) {
+        Integer column = eventColumns.get(table);
+        if (column == null || values[column] == null) {
+            return Long.MIN_VALUE;
+        }
+        return ((Date) values[column]).getTime();
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        // The caller may reuse the array once the call returns, as a
+        // pipeline's ring buffer does, so the event keeps a copy of the row
+        Event event = new Event(eventTime(table, values), table,
+                Arrays.copyOf(values, table.getColumnCount()));
+        Buffer buffer = buffers[(int) (Thread.currentThread().getId()
+                % buffers.length)];
+        List<Event> full = null;
+        synchronized (buffer) {
+            buffer.events.add(event);
+            if (buffer.events.size() >= runRows) {
+                full = buffer.take();
+            }
+        }
+        long total = buffered.incrementAndGet();
+        if (full != null) {
+            spill(full);
+        } else if (total >= maxBufferedRows) {
+            spill(largest().take());
+        }
+    }
+
+    /**
+     * @return the buffer holding the most rows
+     */
+    private Buffer largest() {
+        Buffer largest = buffers[0];
+        int most = -1;
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                if (buffer.events.size() > most) {
+                    most = buffer.events.size();
+                    largest = buffer;
+                }
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return number of rows held in the buffers, not yet spilled
+     */
+    long getBufferedRows() {
+        return buffered.get();
+    }
+
+    /**
+     * Sorts rows taken from a buffer and writes them to a new run file
+     */
+    private void spill(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Collections.sort(events, BY_TIME);
+        File run;
+        try {
+            run = File.createTempFile("events", ".run", spillDir);
+            writeRun(run, events);
+        } catch (IOException ioex) {
+            throw new IllegalStateException("Unable to spill " + events.size()
+                    + " rows to " + spillDir, ioex);
+        }
+        synchronized (runs) {
+            runs.add(run);
+        }
+        buffered.addAndGet(-events.size());
+        spilledRuns.incrementAndGet();
+        spilledRows.addAndGet(events.size());
+    }
+
+    /**
+     * Merges every row written so far and writes them to the wrapped sink in
+     * order of event time. Must not be called while rows are being written.
+     */
+    public void replay() {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        try {
+            List<File> files;
+            synchronized (runs) {
+                files = new ArrayList<File>(runs);
+                runs.clear();
+            }
+            while (files.size() > fanIn) {
+                files.add(mergePass(files.subList(0, fanIn)));
+                files.subList(0, fanIn).clear();
+            }
+            for (File file : files) {
+                cursors.add(new FileCursor(file));
+            }
+            for (Buffer buffer : buffers) {
+                List<Event> events = buffer.take();
+                if (!events.isEmpty()) {
+                    Collections.sort(events, BY_TIME);
+                    cursors.add(new MemoryCursor(events));
+                }
+            }
+            buffered.set(0);
+
+            PriorityQueue<Cursor> queue = newQueue(cursors);
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                Event event = cursor.current;
+                delegate.write(event.table, event.values);
+                replayedRows++;
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        } catch (IOException ioex) {
+            throw new IllegalStateException("Unable to read back the runs in "
+                    + spillDir, ioex);
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Merges some of the run files into a new one and deletes them
+     */
+    private File mergePass(List<File> files) throws IOException {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        File merged = File.createTempFile("events", ".run", spillDir);
+        try {
+            long count = 0;
+            for (File file : files) {
+                FileCursor cursor = new FileCursor(file);
+                count += cursor.remaining + (cursor.current == null ? 0 : 1);
+                cursors.add(cursor);
+            }
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(merged),
+                            1 << 16));
+            try {
+                out.writeLong(count);
+                PriorityQueue<Cursor> queue = newQueue(cursors);
+                while (!queue.isEmpty()) {
+                    Cursor cursor = queue.poll();
+                    writeEvent(out, cursor.current);
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        mergePasses++;
+        return merged;
+    }
+
+    private static PriorityQueue<Cursor> newQueue(List<Cursor> cursors) {
+        // Ties go to the earlier run, so equal times keep a stable order
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1,
+                cursors.size()), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor a, Cursor b) {
+                int byTime = BY_TIME.compare(a.current, b.current);
+                return byTime != 0 ? byTime : a.index - b.index;
+            }
+        });
+        for (int i = 0; i < cursors.size(); i++) {
+            Cursor cursor = cursors.get(i);
+            cursor.index = i;
+            if (cursor.current != null) {
+                queue.add(cursor);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Replays every row still held, then closes the wrapped sink
+     */
+    @Override
+    public void close() {
+        replay();
+        delegate.close();
+    }
+
+    /**
+     * Returns the runs spilled and merge passes made, suitable for printing
+     * at the end of a load
+     *
+     * @return report
+     */
+    public String report() {
+        return "Event stream: " + replayedRows + " rows replayed, "
+                + spilledRows.get() + " rows spilled in " + spilledRuns.get()
+                + " runs to " + spillDir + ", " + mergePasses
+                + " intermediate merges of up to " + fanIn + " runs";
+    }
+
+    private static void writeRun(File file, List<Event> events)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeLong(events.size());
+            for (Event event : events) {
+                writeEvent(out, event);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static void writeEvent(DataOutputStream out, Event event)
+            throws IOException {
+        out.writeLong(event.time);
+        out.writeShort(event.table.ordinal());
+        out.writeShort(event.values.length);
+        for (Object value : event.values) {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Date) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            } else if (value instanceof UUID) {
+                out.writeByte(UUID_VALUE);
+                out.writeLong(((UUID) value).getMostSignificantBits());
+                out.writeLong(((UUID) value).getLeastSignificantBits());
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                throw new IllegalArgumentException("Unable to spill a "
+                        + value.getClass().getName() + " to a run");
+            }
+        }
+    }
+
+    static Event readEvent(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        Table table = TABLES[in.readShort()];
+        Object[] values = new Object[in.readShort()];
+        for (int i = 0; i < values.length; i++) {
+            switch (in.readByte()) {
+            case NULL:
+                break;
+            case INTEGER:
+                values[i] = in.readInt();
+                break;
+            case LONG:
+                values[i] = in.readLong();
+                break;
+            case DOUBLE:
+                values[i] = in.readDouble();
+                break;
+            case STRING:
+                values[i] = in.readUTF();
+                break;
+            case DATE:
+                values[i] = new Date(in.readLong());
+                break;
+            case UUID_VALUE:
+                values[i] = new UUID(in.readLong(), in.readLong());
+                break;
+            case BOOLEAN:
+                values[i] = in.readBoolean();
+                break;
+            default:
+                throw new IOException("Corrupt run file");
+            }
+        }
+        return new Event(time, table, values);
+    }
+
+    /**
+     * A row along with its event time
+     */
+    static final class Event {
+        final long time;
+        final Table table;
+        final Object[] values;
+
+        Event(long time, Table table, Object[] values) {
+            this.time = time;
+            this.table = table;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Rows buffered for the threads that write to it, guarded by the buffer.
+     * The list is swapped for a new one when it is taken to be spilled, so a
+     * large buffer doesn't stay allocated.
+     */
+    private static final class Buffer {
+        private List<Event> events = new ArrayList<Event>();
+
+        synchronized List<Event> take() {
+            List<Event> taken = events;
+            events = new ArrayList<Event>();
+            return taken;
+        }
+    }
+
+    /**
+     * Position in a sorted run during a merge
+     */
+    private abstract static class Cursor {
+        Event current;
+        int index;
+
+        /**
+         * Moves to the next row of the run
+         *
+         * @return false if the run is exhausted
+         */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private static final class MemoryCursor extends Cursor {
+        private final List<Event> events;
+        private int next;
+
+        MemoryCursor(List<Event> events) {
+            this.events = events;
+            this.current = events.get(next++);
+        }
+
+        @Override
+        boolean advance() {
+            if (next == events.size()) {
+                current = null;
+                return false;
+            }
+            current = events.get(next++);
+            return true;
+        }
+    }
+
+    private static final class FileCursor extends Cursor {
+        private final File file;
+        private final DataInputStream in;
+        private long remaining;
+
+        FileCursor(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16));
+            this.remaining = in.readLong();
+            advance();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            current = readEvent(in);
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ioex) {
+                System.out.println("Unable to close " + file + ": " + ioex);
+            }
+            file.delete();
+        }
+    }
+}
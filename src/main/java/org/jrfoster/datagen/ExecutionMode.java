@@ -0,0 +1,25 @@
+package org.jrfoster.datagen;
+
+/**
+ * This enumeration describes how the loader spreads the work of generating
+ * and writing patients across threads.
+ * <ul>
+ * <li>THREAD_POOL generates patients on a fixed pool of platform threads, each
+ * writing synchronously. With a single thread this is the original
+ * behavior.</li>
+ * <li>VIRTUAL_THREADS runs each batch of patients as its own virtual thread,
+ * writing synchronously, with a semaphore bounding the number of writes in
+ * flight across all of them. Needs a JDK with virtual threads, otherwise it
+ * falls back to a thread per batch.</li>
+ * <li>ASYNC generates patients on the thread pool but writes asynchronously,
+ * with the same bound on writes in flight.</li>
+ * </ul>
+ *
+ * @author Jason Foster
+ *
+ */
+public enum ExecutionMode {
+    THREAD_POOL,
+    VIRTUAL_THREADS,
+    ASYNC
+}
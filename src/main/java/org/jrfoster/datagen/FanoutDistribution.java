@@ -0,0 +1,217 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * This class describes how many children (encounters, labs, diagnoses) get
+ * generated for a parent record. The distribution is computed once when the
+ * instance is created and flattened into a lookup table, so drawing a count
+ * costs a single random int and an array read regardless of how skewed the
+ * distribution is.<br>
+ * <br>
+ * Distributions are described with a short spec string:
+ * <ul>
+ * <li>uniform:min:max - every count from min to max is equally likely</li>
+ * <li>zipf:max:exponent - count k in 1..max has weight 1/k^exponent</li>
+ * <li>lognormal:mu:sigma:max - counts follow a log-normal distribution with
+ * the given parameters of the underlying normal, capped at max</li>
+ * <li>fixed:n - always n</li>
+ * </ul>
+ * The table has 65536 entries, so any count with a probability below roughly
+ * 1 in 65536 is dropped from the table. That is far below anything that
+ * matters for sizing partitions.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class FanoutDistribution {
+    private static final int TABLE_BITS = 16;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+    private final String spec;
+    private final int[] table;
+    private final double mean;
+    private final int max;
+
+    private FanoutDistribution(String spec, int min, double[] weights) {
+        this.spec = spec;
+        this.table = new int[TABLE_SIZE];
+
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+
+        if (!(total > 0)) {
+            throw new IllegalArgumentException("Distribution " + spec
+                    + " has no probability mass");
+        }
+
+        // Apportion the table slots to each count in proportion to its
+        // weight, handing the slots lost to rounding down to the counts with
+        // the largest remainders so the table is always completely filled
+        int[] slots = new int[weights.length];
+        final double[] remainders = new double[weights.length];
+        Integer[] order = new Integer[weights.length];
+        int assigned = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double exact = weights[i] / total * TABLE_SIZE;
+            slots[i] = (int) exact;
+            remainders[i] = exact - slots[i];
+            order[i] = Integer.valueOf(i);
+            assigned += slots[i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(remainders[b], remainders[a]);
+            }
+        });
+        for (int i = 0; assigned < TABLE_SIZE; i++, assigned++) {
+            slots[order[i]]++;
+        }
+
+        int pos = 0;
+        double sum = 0;
+        int largest = min;
+        for (int i = 0; i < slots.length; i++) {
+            for (int j = 0; j < slots[i]; j++) {
+                table[pos++] = min + i;
+            }
+            sum += (double) slots[i] * (min + i);
+            if (slots[i] > 0) {
+                largest = min + i;
+            }
+        }
+        this.mean = sum / TABLE_SIZE;
+        this.max = largest;
+    }
+
+    /**
+     * Creates a distribution from a spec string such as "zipf:50:1.2"
+     *
+     * @param spec
+     *            distribution spec, see the class description
+     * @return the distribution
+     * @throws IllegalArgumentException
+     *             if the spec is not recognized
+     */
+    public static FanoutDistribution parse(String spec) {
+        String[] parts = spec.trim().toLowerCase().split(":");
+        try {
+            if ("uniform".equals(parts[0]) && parts.length == 3) {
+                return uniform(Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]));
+            } else if ("zipf".equals(parts[0]) && parts.length == 3) {
+                return zipf(Integer.parseInt(parts[1]),
+                        Double.parseDouble(parts[2]));
+            } else if ("lognormal".equals(parts[0]) && parts.length == 4) {
+                return logNormal(Double.parseDouble(parts[1]),
+                        Double.parseDouble(parts[2]),
+                        Integer.parseInt(parts[3]));
+            } else if ("fixed".equals(parts[0]) && parts.length == 2) {
+                return fixed(Integer.parseInt(parts[1]));
+            }
+        } catch (NumberFormatException nfex) {
+            throw new IllegalArgumentException("Invalid fan-out spec: " + spec,
+                    nfex);
+        }
+        throw new IllegalArgumentException("Invalid fan-out spec: " + spec);
+    }
+
+    public static FanoutDistribution uniform(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("max must exceed min");
+        }
+        double[] weights = new double[max - min + 1];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1.0;
+        }
+        return new FanoutDistribution("uniform:" + min + ":" + max, min,
+                weights);
+    }
+
+    public static FanoutDistribution zipf(int max, double exponent) {
+        if (max < 1 || exponent <= 0) {
+            throw new IllegalArgumentException(
+                    "max and exponent must be positive");
+        }
+        double[] weights = new double[max];
+        for (int k = 1; k <= max; k++) {
+            weights[k - 1] = 1.0 / Math.pow(k, exponent);
+        }
+        return new FanoutDistribution("zipf:" + max + ":" + exponent, 1,
+                weights);
+    }
+
+    public static FanoutDistribution logNormal(double mu, double sigma, int max) {
+        if (max < 1 || sigma <= 0) {
+            throw new IllegalArgumentException("max and sigma must be positive");
+        }
+        // The weight of each count k is the probability mass of the
+        // continuous distribution between k - 0.5 and k + 0.5
+        double[] weights = new double[max];
+        for (int k = 1; k <= max; k++) {
+            weights[k - 1] = logNormalCdf(k + 0.5, mu, sigma)
+                    - logNormalCdf(k - 0.5, mu, sigma);
+        }
+        return new FanoutDistribution("lognormal:" + mu + ":" + sigma + ":"
+                + max, 1, weights);
+    }
+
+    public static FanoutDistribution fixed(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count cannot be negative");
+        }
+        return new FanoutDistribution("fixed:" + count, count,
+                new double[] { 1.0 });
+    }
+
+    /**
+     * Draws a count from the distribution
+     *
+     * @param rng
+     *            random number generator to draw with
+     * @return count of children to generate
+     */
+    public int sample(Random rng) {
+        return table[rng.nextInt(TABLE_SIZE)];
+    }
+
+    /**
+     * @return expected value of a draw from the distribution
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return largest count the distribution can return
+     */
+    public int getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private static double logNormalCdf(double x, double mu, double sigma) {
+        if (x <= 0) {
+            return 0;
+        }
+        return 0.5 * (1 + erf((Math.log(x) - mu) / (sigma * Math.sqrt(2))));
+    }
+
+    private static double erf(double x) {
+        // Abramowitz and Stegun 7.1.26, accurate to about 1.5e-7 which is
+        // plenty for building a 65536 entry table
+        double t = 1 / (1 + 0.3275911 * Math.abs(x));
+        double y = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741)
+                * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+        return x >= 0 ? y : -y;
+    }
+}
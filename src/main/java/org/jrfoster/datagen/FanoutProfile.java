@@ -0,0 +1,139 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+/**
+ * This class holds the fan-out distributions for a load: how many encounters
+ * each patient has, how many rounds of labs are drawn per encounter and how
+ * many diagnoses are recorded per encounter.<br>
+ * <br>
+ * A fraction of patients can be made "hot", in which case their encounter
+ * count is multiplied to produce the kind of extreme partition that shows up
+ * in production. Whether a patient is hot is decided by hashing the patient
+ * id, so the decision is the same no matter which thread or process generates
+ * the patient and costs nothing to look up.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public final class FanoutProfile {
+    private final FanoutDistribution encounters;
+    private final FanoutDistribution labs;
+    private final FanoutDistribution diagnoses;
+    private final double hotFraction;
+    private final long hotThreshold;
+    private final int hotMultiplier;
+
+    /**
+     * Creates a new profile
+     * 
+     * @param encounters
+     *            distribution of encounters per patient
+     * @param labs
+     *            distribution of lab rounds per encounter
+     * @param diagnoses
+     *            distribution of diagnoses per encounter
+     * @param hotFraction
+     *            fraction of patients, between 0 and 1, that are hot
+     * @param hotMultiplier
+     *            factor applied to the encounter count of a hot patient
+     */
+    public FanoutProfile(FanoutDistribution encounters,
+            FanoutDistribution labs, FanoutDistribution diagnoses,
+            double hotFraction, int hotMultiplier) {
+        if (hotFraction < 0 || hotFraction > 1) {
+            throw new IllegalArgumentException(
+                    "hotFraction must be between 0 and 1");
+        }
+        if (hotMultiplier < 1) {
+            throw new IllegalArgumentException(
+                    "hotMultiplier must be at least 1");
+        }
+        this.encounters = encounters;
+        this.labs = labs;
+        this.diagnoses = diagnoses;
+        this.hotFraction = hotFraction;
+        this.hotThreshold = (long) (hotFraction * (1L << 32));
+        this.hotMultiplier = hotMultiplier;
+    }
+
+    /**
+     * Returns the profile matching the original behavior of the loader: up to
+     * six encounters per patient, up to four rounds of labs per encounter and a
+     * single diagnosis per encounter, with no hot patients.
+     * 
+     * @return default profile
+     */
+    public static FanoutProfile defaults() {
+        return new FanoutProfile(FanoutDistribution.uniform(1, 6),
+                FanoutDistribution.uniform(1, 4), FanoutDistribution.fixed(1),
+                0.0, 1);
+    }
+
+    /**
+     * Builds a profile from the fanout.* settings, falling back to the
+     * defaults for anything not set
+     * 
+     * @param settings
+     *            settings to read
+     * @return profile described by the settings
+     */
+    public static FanoutProfile fromSettings(Settings settings) {
+        FanoutProfile defaults = defaults();
+        return new FanoutProfile(
+                FanoutDistribution.parse(settings.getString(
+                        "fanout.encounters", defaults.encounters.toString())),
+                FanoutDistribution.parse(settings.getString("fanout.labs",
+                        defaults.labs.toString())),
+                FanoutDistribution.parse(settings.getString(
+                        "fanout.diagnoses", defaults.diagnoses.toString())),
+                settings.getDouble("fanout.hot.fraction", 0.0),
+                settings.getInt("fanout.hot.multiplier", 1));
+    }
+
+    /**
+     * Determines whether the given patient is one of the hot patients
+     * 
+     * @param patientId
+     *            identifier of the patient
+     * @return true if the patient gets extreme fan-out
+     */
+    public boolean isHot(int patientId) {
+        // A murmur3 finalizer spreads sequential or clustered ids uniformly
+        // over 32 bits, which we then compare against the hot fraction
+        int h = patientId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0xffffffffL) < hotThreshold;
+    }
+
+    public int sampleEncounters(Random rng, int patientId) {
+        int count = encounters.sample(rng);
+        return isHot(patientId) ? count * hotMultiplier : count;
+    }
+
+    public int sampleLabs(Random rng) {
+        return labs.sample(rng);
+    }
+
+    public int sampleDiagnoses(Random rng) {
+        return diagnoses.sample(rng);
+    }
+
+    /**
+     * @return expected number of encounters per patient, including the effect
+     *         of hot patients
+     */
+    public double getMeanEncounters() {
+        return encounters.getMean() * (1 + hotFraction * (hotMultiplier - 1));
+    }
+
+    @Override
+    public String toString() {
+        return "encounters=" + encounters + ", labs=" + labs + ", diagnoses="
+                + diagnoses + ", hot=" + hotFraction + "x" + hotMultiplier;
+    }
+}
@@ -0,0 +1,98 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timeline of events at the rate set by a RampProfile, shared by the
+ * threads running the events. Event k is due a fixed interval after event
+ * k - 1, the interval following the profile's rate at the time event k - 1
+ * was due, whenever the events actually run.<br>
+ * <br>
+ * Timing an event from when it was due, rather than from when a thread got
+ * to it, charges the events queued behind a slow one for the wait. Timing
+ * from the actual start quietly leaves that wait out, the error known as
+ * coordinated omission, and reports latencies far better than a real client
+ * arriving at the same rate would see.
+ *
+ * @author Jason Foster
+ *
+ */
+public class FixedRateSchedule {
+    // Waits are broken into slices this long so that stop() is noticed
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(100);
+
+    private final RampProfile profile;
+    private volatile boolean stopped;
+    private long startNanos;
+    private long dueNanos;
+
+    /**
+     * Creates a schedule starting now
+     *
+     * @param profile
+     *            rate of events over time
+     */
+    public FixedRateSchedule(RampProfile profile) {
+        this.profile = profile;
+        this.startNanos = System.nanoTime();
+        this.dueNanos = startNanos;
+    }
+
+    /**
+     * @return the profile the schedule follows
+     */
+    public RampProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return System.nanoTime() at the start of the schedule
+     */
+    public synchronized long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Claims the next event on the timeline
+     *
+     * @return the System.nanoTime() the event is due at, or -1 if the profile
+     *         has ended
+     */
+    public synchronized long next() {
+        long due = dueNanos;
+        long elapsed = due - startNanos;
+        if (stopped || elapsed >= profile.getDurationNanos()) {
+            return -1;
+        }
+        dueNanos = due
+                + (long) (TimeUnit.SECONDS.toNanos(1) / profile.getRate(elapsed));
+        return due;
+    }
+
+    /**
+     * Waits until an event is due
+     *
+     * @param due
+     *            time the event is due, from next()
+     * @return true if the event is due, false if the schedule was stopped
+     */
+    public boolean await(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            if (stopped) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+        }
+        return !stopped;
+    }
+
+    /**
+     * Ends the schedule early. Threads waiting for an event give up on it.
+     */
+    public void stop() {
+        stopped = true;
+    }
+}
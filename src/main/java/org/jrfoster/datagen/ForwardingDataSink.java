@@ -0,0 +1,35 @@
+package org.jrfoster.datagen;
+
+/**
+ * Base class for sinks that decorate another sink, for example by writing
+ * additional rows alongside the ones they are given. By default every call is
+ * passed straight through to the wrapped sink.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public abstract class ForwardingDataSink implements DataSink {
+    protected final DataSink delegate;
+
+    protected ForwardingDataSink(DataSink delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate cannot be null");
+        }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        delegate.write(table, values);
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -1,31 +1,39 @@
 package org.jrfoster.datagen;
 
 import java.util.Date;
+import java.util.Set;
 
 import org.joda.time.Interval;
 
-import com.datastax.driver.core.Session;
-
 public class IVDDataStrategy extends AbstractDataStrategy {
 
+    // Reused for every encounter, since a strategy belongs to one thread
+    private final ResultBlock hdlcResults = new ResultBlock(8);
+    private final ResultBlock ldlcResults = new ResultBlock(8);
+    private final ResultBlock trigResults = new ResultBlock(8);
+
     /**
      * Generate a new instance with the given Session, DataGenerator and
      * percent abnormal results
      * 
-     * @param sess
-     *            Cassandra session to use when executing DML
+     * @param sink
+     *            DataSink the generated rows are written to
      * @param gen
      *            DataGenerator instance to use to generate data
-     * @param pctAbnormal
-     *            Desired percentage of abnormal results to create
+     * @param abnormal
+     *            controller deciding which results are abnormal
+     * @param loadDate
+     *            load date stamped on every row
+     * @param tables
+     *            tables rows are generated for
      */
-    public IVDDataStrategy(String keyspace, Session sess, 
-            DataGenerator gen, Double pctAbnormal, Date loadDate) {
-        super(keyspace, sess, gen, pctAbnormal, loadDate);
+    public IVDDataStrategy(DataSink sink, DataGenerator gen,
+            AbnormalRatioController abnormal, Date loadDate, Set<Table> tables) {
+        super(sink, gen, abnormal, loadDate, tables);
     }
 
     @Override
-    public void generateEncounterData(int patientId, int measurementPeriodYear, boolean isMale) {
+    public void generateEncounterData(PatientRecord patient, int measurementPeriodYear) {
         // For the IVD measures, we need to have a couple of different types
         // of patients in the population.  The first, would be those that have
         // a diagnosis of IVD within the measurement period, and the second is
@@ -33,7 +41,8 @@ public class IVDDataStrategy extends AbstractDataStrategy {
         // procedures performed in the year prior to the measurement period.
         // Also note that we ignore the gender flag for IVD, it has no bearing.
         // We also don't generate any pregnant females for the IVD population.
-        int numEncounters = generator.generateRandomCount(7);
+        int patientId = patient.getPatientId();
+        int numEncounters = generator.generateEncounterCount(patientId);
         Interval currMP = generator.generateMeasurementPeriod(measurementPeriodYear);
         Interval prevMP = new Interval(currMP.getStart().minusYears(1), currMP.getEnd());
         for (int j = 0; j < numEncounters; j++) {
@@ -48,10 +57,14 @@ public class IVDDataStrategy extends AbstractDataStrategy {
             int encId = generator.generateNextEncounterSequence();
         
             // Encounters
-            session.execute(this.generateEncounterDML(patientId, encIntv, encId));
+            if (isLoaded(Table.PATIENT_ENCOUNTERS)) {
+                this.writeEncounter(patientId, encIntv, encId);
+            }
             
             // Labs
-            generateLabs(patientId, encIntv);
+            if (isLoaded(Table.PATIENT_RESULTS)) {
+                generateLabs(patientId, encIntv);
+            }
 
             // We use the discharge date as the determining factor as to which
             // population the patient will be in.  If the discharge date is before
@@ -59,13 +72,19 @@ public class IVDDataStrategy extends AbstractDataStrategy {
             // we go with just the plain IVD diagnosis route.
             if (dschgDate.before(currMP.getStart().toDate())) {
                 // Diagnoses
-                generateDiagnoses(patientId, encIntv, true, encId);
+                if (isLoaded(Table.PATIENT_DIAGNOSES)) {
+                    generateDiagnoses(patientId, encIntv, true, encId);
+                }
                 
                 // Procedures
-                generateProcedures(patientId, encIntv);
+                if (isLoaded(Table.PATIENT_PROCEDURES)) {
+                    generateProcedures(patientId, encIntv);
+                }
             } else {
                 // Diagnoses
-                generateDiagnoses(patientId, encIntv, false, encId);
+                if (isLoaded(Table.PATIENT_DIAGNOSES)) {
+                    generateDiagnoses(patientId, encIntv, false, encId);
+                }
             }
         }    
     }
@@ -74,26 +93,22 @@ public class IVDDataStrategy extends AbstractDataStrategy {
     protected void generateLabs(int patientId, Interval interval) {
         // Generating lab tests related to the IVD measures are limited
         // to a full lipid panel.
-        for (int k = 0; k < generator.generateRandomCount(5); k++) {
-            // Determine if we should generate normal or abnormal ranges
-            maintainAbnormalPercentage();
+        int numLabs = generator.generateLabCount();
 
-            // Full lipid panel results
-            Date lipidDate = generator.generateRandomTimestamp(
-                    interval.getStart().toDate(), interval.getEnd().toDate());
-            LipidPanelResult lipids = generator.generateRandomLipidPanelResult(
-                    lipidDate, abnormalResult);
-            session.execute(this.generateHDLCResultDML(patientId, lipids));
-            session.execute(this.generateLDLCResultDML(patientId, lipids));
-            session.execute(this.generateTRIGResultDML(patientId, lipids));
-            session.execute(this.generateCHOLResultDML(patientId, lipids));
-        }
+        // Full lipid panel results, each panel's tests taken together
+        generateResultBlock(hdlcResults, LabTest.HDLC, numLabs, interval);
+        generateResultBlock(ldlcResults, LabTest.LDLC, hdlcResults);
+        generateResultBlock(trigResults, LabTest.TRIG, hdlcResults);
+        writeResultBlock(patientId, hdlcResults);
+        writeResultBlock(patientId, ldlcResults);
+        writeResultBlock(patientId, trigResults);
+        writeCHOLResults(patientId, hdlcResults, ldlcResults);
     }
 
     @Override
     protected void generateProcedures(int patientId, Interval interval) {
         CodedValue procCode = generator.generateRandomIVDProcCode();
-        session.execute(this.generatePatientProcedureDML(patientId, interval, procCode));
+        this.writePatientProcedure(patientId, interval, procCode);
     }
 
     @Override
@@ -104,10 +119,13 @@ public class IVDDataStrategy extends AbstractDataStrategy {
     
     private void generateDiagnoses(int patientId, Interval interval, boolean isAMI, int encId) {
         // The IVD measures use a very large list of diagnoses codes, but still
-        // only contains the ICD-9 codes for simplicity's sake.  We only need
-        // a single row for a diagnoses for diabetes.
-        CodedValue dxCode = generator.generateRandomIVDDiagnosis(isAMI);
-        session.execute(this.generatePatientDiagnosesDML(patientId, interval, dxCode, encId));
+        // only contains the ICD-9 codes for simplicity's sake.  The fan-out
+        // profile decides how many rows we write, a single one by default.
+        int numDiagnoses = generator.generateDiagnosisCount();
+        for (int d = 0; d < numDiagnoses; d++) {
+            CodedValue dxCode = generator.generateRandomIVDDiagnosis(isAMI);
+            this.writePatientDiagnosis(patientId, interval, dxCode, encId);
+        }
     }
 
     @Override
@@ -116,7 +134,7 @@ public class IVDDataStrategy extends AbstractDataStrategy {
     }
 
     @Override
-    protected void generatePrefills(int patientId, String hicn, boolean isMale, Interval interval, String fullName, Date dob) {
+    protected void generatePrefills(PatientRecord patient, Interval interval) {
         // no-op
     }
 }
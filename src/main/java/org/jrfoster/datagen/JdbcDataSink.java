@@ -0,0 +1,624 @@
+package org.jrfoster.datagen;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This sink writes rows to a relational database over JDBC, to the same
+ * tables and columns the CQL sinks write to, so the same load can feed a
+ * relational mart alongside Cassandra.<br>
+ * <br>
+ * The writing threads share a fixed number of connections, with auto commit
+ * off, each thread always writing through the same one, so the connections
+ * don't grow with the number of threads when every batch of patients is a
+ * task of its own. A connection is opened the first time a row is written
+ * through it and has a prepared statement for each table. Rows are added to
+ * the statement's batch, and once batchSize rows of a table are pending the
+ * batch is executed and committed. When rowsPerStatement is more than one
+ * the statements insert that many rows at a time with a multi-row VALUES
+ * list, which many databases execute much faster than a batch of single
+ * rows; rows left over at a flush go in with the single-row statement.<br>
+ * <br>
+ * Values are bound according to the type of their column, so ids written to
+ * text columns are bound as strings and UUIDs are bound as their string form.
+ * Table and column names are quoted, since some, like value, are reserved
+ * words in some databases. flush() executes and commits the pending batches
+ * of every connection and close() closes them. Both should only be called
+ * while no rows are being written.<br>
+ * <br>
+ * When a batch fails, the connection's transaction is rolled back, and with
+ * it the rows other threads wrote through the same connection since its last
+ * commit, although their writes returned normally. Those rows are counted as
+ * discarded, and every later write or flush through the connection throws,
+ * so that each of those threads learns its rows were lost.
+ *
+ * @author Jason Foster
+ *
+ */
+public class JdbcDataSink implements DataSink {
+    private static final Table[] TABLES = Table.values();
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int batchSize;
+    private final int rowsPerStatement;
+    private final Map<Table, String> singleRowInserts = new EnumMap<Table, String>(
+            Table.class);
+    private final Map<Table, String> multiRowInserts = new EnumMap<Table, String>(
+            Table.class);
+
+    private final Worker[] workers;
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+
+    /**
+     * Creates a new sink
+     *
+     * @param url
+     *            JDBC URL of the database
+     * @param user
+     *            user to connect as, or null to connect without one
+     * @param password
+     *            the user's password
+     * @param batchSize
+     *            number of rows of a table each thread sends at once
+     * @param rowsPerStatement
+     *            number of rows each insert statement carries, 1 for a
+     *            statement per row
+     * @param connections
+     *            most connections the writing threads share
+     */
+    public JdbcDataSink(String url, String user, String password,
+            int batchSize, int rowsPerStatement, int connections) {
+        if (batchSize < 1 || rowsPerStatement < 1 || connections < 1) {
+            throw new IllegalArgumentException("batchSize, rowsPerStatement"
+                    + " and connections must be positive");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.batchSize = batchSize;
+        this.rowsPerStatement = rowsPerStatement;
+        this.workers = new Worker[connections];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker();
+        }
+        for (Table table : TABLES) {
+            singleRowInserts.put(table, toInsertSQL(table, 1));
+            multiRowInserts.put(table, toInsertSQL(table, rowsPerStatement));
+        }
+    }
+
+    /**
+     * Renders a parameterized statement inserting a number of rows
+     *
+     * @param table
+     *            table to insert into
+     * @param rowCount
+     *            number of rows in the VALUES list
+     * @return SQL insert statement
+     */
+    public static String toInsertSQL(Table table, int rowCount) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("insert into ").append(quote(table.getTableName()))
+                .append(" (");
+        List<Column> columns = table.getColumns();
+        StringBuilder row = new StringBuilder(columns.size() * 2 + 2);
+        row.append("(");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+                row.append(",");
+            }
+            sb.append(quote(columns.get(i).getName()));
+            row.append("?");
+        }
+        row.append(")");
+        sb.append(") values ");
+        for (int r = 0; r < rowCount; r++) {
+            if (r > 0) {
+                sb.append(", ");
+            }
+            sb.append(row);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Renders the statement creating a table with portable SQL types
+     *
+     * @param table
+     *            table to create
+     * @return SQL create table statement
+     */
+    public static String toCreateSQL(Table table) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("create table ").append(quote(table.getTableName()))
+                .append(" (");
+        for (Column column : table.getColumns()) {
+            sb.append(quote(column.getName())).append(" ")
+                    .append(sqlTypeName(column.getType())).append(", ");
+        }
+        sb.append("primary key (");
+        List<String> keys = table.getKeyColumns();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(quote(keys.get(i)));
+        }
+        sb.append("))");
+        return sb.toString();
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier + "\"";
+    }
+
+    private static String sqlTypeName(ColumnType type) {
+        switch (type) {
+        case INT:
+            return "integer";
+        case BIGINT:
+            return "bigint";
+        case DOUBLE:
+            return "double precision";
+        case TIMESTAMP:
+            return "timestamp";
+        case UUID:
+            return "char(36)";
+        case BOOLEAN:
+            return "boolean";
+        default:
+            return "varchar(255)";
+        }
+    }
+
+    private static int sqlType(ColumnType type) {
+        switch (type) {
+        case INT:
+            return Types.INTEGER;
+        case BIGINT:
+            return Types.BIGINT;
+        case DOUBLE:
+            return Types.DOUBLE;
+        case TIMESTAMP:
+            return Types.TIMESTAMP;
+        case BOOLEAN:
+            return Types.BOOLEAN;
+        default:
+            return Types.VARCHAR;
+        }
+    }
+
+    /**
+     * Creates any of the given tables that don't already exist in the
+     * database
+     *
+     * @param tables
+     *            tables to create
+     * @return number of tables created
+     */
+    public int createTables(Set<Table> tables) {
+        Connection connection = connect();
+        try {
+            DatabaseMetaData metadata = connection.getMetaData();
+            int created = 0;
+            for (Table table : tables) {
+                if (exists(metadata, table.getTableName())) {
+                    continue;
+                }
+                Statement statement = connection.createStatement();
+                try {
+                    statement.execute(toCreateSQL(table));
+                } finally {
+                    statement.close();
+                }
+                created++;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            return created;
+        } catch (SQLException sqlex) {
+            throw new IllegalStateException("Unable to create tables in "
+                    + url, sqlex);
+        } finally {
+            close(connection);
+        }
+    }
+
+    private static boolean exists(DatabaseMetaData metadata, String name)
+            throws SQLException {
+        // Tables created by earlier versions without quotes may have been
+        // kept in upper case
+        for (String candidate : new String[] { name, name.toUpperCase() }) {
+            ResultSet tables = metadata.getTables(null, null, candidate, null);
+            try {
+                if (tables.next()) {
+                    return true;
+                }
+            } finally {
+                tables.close();
+            }
+        }
+        return false;
+    }
+
+    private Connection connect() {
+        try {
+            Connection connection = user == null ? DriverManager
+                    .getConnection(url) : DriverManager.getConnection(url,
+                    user, password);
+            connection.setAutoCommit(false);
+            return connection;
+        } catch (SQLException sqlex) {
+            throw new IllegalStateException("Unable to connect to " + url,
+                    sqlex);
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException sqlex) {
+            System.out.println("Unable to close a connection: " + sqlex);
+        }
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        Worker worker = workers[(int) (Thread.currentThread().getId()
+                % workers.length)];
+        synchronized (worker) {
+            worker.checkFailure();
+            try {
+                worker.write(table, values);
+            } catch (SQLException sqlex) {
+                worker.fail(sqlex);
+                throw new IllegalStateException("Unable to write to "
+                        + table.getTableName(), sqlex);
+            }
+        }
+    }
+
+    /**
+     * Executes and commits the pending batches of every connection
+     *
+     * @throws IllegalStateException
+     *             if a batch fails, or rows were discarded by a failure on
+     *             any connection
+     */
+    @Override
+    public void flush() {
+        // Every connection is flushed before a failure is reported, so the
+        // rows that can be written are
+        IllegalStateException failure = null;
+        for (Worker worker : workers) {
+            synchronized (worker) {
+                try {
+                    worker.checkFailure();
+                    worker.flush();
+                } catch (SQLException sqlex) {
+                    worker.fail(sqlex);
+                    failure = new IllegalStateException("Unable to flush to "
+                            + url, sqlex);
+                } catch (IllegalStateException isex) {
+                    failure = isex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            for (Worker worker : workers) {
+                synchronized (worker) {
+                    worker.close();
+                }
+            }
+        }
+    }
+
+    private int openConnections() {
+        int open = 0;
+        for (Worker worker : workers) {
+            synchronized (worker) {
+                if (worker.connection != null) {
+                    open++;
+                }
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return number of rows written to the database and committed
+     */
+    public long getRowsWritten() {
+        return rows.get();
+    }
+
+    /**
+     * @return number of rows rolled back with a failed batch, including
+     *         rows other threads wrote through the same connection
+     */
+    public long getRowsDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Returns the rows and batches written and the time spent executing
+     * them, suitable for printing at the end of a load
+     *
+     * @return report
+     */
+    public String report() {
+        long count = batches.get();
+        return "JDBC: " + rows.get() + " rows in " + count + " batches on "
+                + openConnections() + " connections, "
+                + String.format("%.2f", count == 0 ? 0.0 : batchNanos.get()
+                        / 1e6 / count) + " ms per batch, " + discarded.get()
+                + " rows discarded";
+    }
+
+    /**
+     * A connection and its statements, shared by the threads that write
+     * through it and guarded by its own lock. The connection is opened by the
+     * first write, and once a batch on it fails it refuses any more.
+     */
+    private final class Worker {
+        private Connection connection;
+        private SQLException failure;
+        // Rows executed since the last commit, which a rollback takes back
+        private long uncommitted;
+        private final Map<Table, TableBatch> tableBatches = new EnumMap<Table, TableBatch>(
+                Table.class);
+
+        void write(Table table, Object[] values) throws SQLException {
+            if (connection == null) {
+                connection = connect();
+            }
+            TableBatch batch = tableBatches.get(table);
+            if (batch == null) {
+                batch = new TableBatch(table);
+                tableBatches.put(table, batch);
+            }
+            batch.add(values);
+            if (batch.pendingRows() >= batchSize) {
+                batch.execute();
+                commit();
+            }
+        }
+
+        void flush() throws SQLException {
+            for (TableBatch batch : tableBatches.values()) {
+                batch.drainStaged();
+                if (batch.pendingRows() > 0) {
+                    batch.execute();
+                }
+            }
+            if (uncommitted > 0) {
+                commit();
+            }
+        }
+
+        private void commit() throws SQLException {
+            connection.commit();
+            rows.addAndGet(uncommitted);
+            uncommitted = 0;
+        }
+
+        void checkFailure() {
+            if (failure != null) {
+                throw new IllegalStateException("Rows written through a"
+                        + " connection to " + url
+                        + " were discarded when a batch failed", failure);
+            }
+        }
+
+        /**
+         * Rolls back the transaction and drops the pending rows of every
+         * thread writing through the connection, counting them
+         */
+        void fail(SQLException cause) {
+            failure = cause;
+            if (connection == null) {
+                return;
+            }
+            discarded.addAndGet(uncommitted);
+            uncommitted = 0;
+            try {
+                connection.rollback();
+            } catch (SQLException sqlex) {
+                System.out.println("Unable to roll back a batch: " + sqlex);
+            }
+            for (TableBatch batch : tableBatches.values()) {
+                discarded.addAndGet(batch.pendingRows() + batch.stagedRows);
+                batch.clear();
+            }
+        }
+
+        void close() {
+            for (TableBatch batch : tableBatches.values()) {
+                batch.close();
+            }
+            tableBatches.clear();
+            if (connection != null) {
+                JdbcDataSink.close(connection);
+                connection = null;
+            }
+        }
+
+        /**
+         * The statements and pending rows of one table. Rows are copied into
+         * staging until there are enough for a multi-row statement, as the
+         * callers' arrays may be reused once write() returns.
+         */
+        private final class TableBatch {
+            private final List<Column> columns;
+            private final Object[][] staged;
+            private int stagedRows;
+            private PreparedStatement multiRow;
+            private PreparedStatement singleRow;
+            private int multiRowBatched;
+            private int singleRowBatched;
+
+            TableBatch(Table table) throws SQLException {
+                this.columns = table.getColumns();
+                this.staged = new Object[rowsPerStatement][columns.size()];
+                this.singleRow = connection.prepareStatement(singleRowInserts
+                        .get(table));
+                if (rowsPerStatement > 1) {
+                    this.multiRow = connection.prepareStatement(multiRowInserts
+                            .get(table));
+                }
+            }
+
+            void add(Object[] values) throws SQLException {
+                if (multiRow == null) {
+                    bind(singleRow, 0, values);
+                    singleRow.addBatch();
+                    singleRowBatched++;
+                    return;
+                }
+                System.arraycopy(values, 0, staged[stagedRows++], 0,
+                        Math.min(values.length, columns.size()));
+                if (stagedRows == rowsPerStatement) {
+                    for (int r = 0; r < rowsPerStatement; r++) {
+                        bind(multiRow, r * columns.size(), staged[r]);
+                        Arrays.fill(staged[r], null);
+                    }
+                    multiRow.addBatch();
+                    multiRowBatched++;
+                    stagedRows = 0;
+                }
+            }
+
+            /**
+             * Moves the rows too few for a multi-row statement into the batch
+             * of single rows
+             */
+            void drainStaged() throws SQLException {
+                for (int r = 0; r < stagedRows; r++) {
+                    bind(singleRow, 0, staged[r]);
+                    singleRow.addBatch();
+                    singleRowBatched++;
+                    Arrays.fill(staged[r], null);
+                }
+                stagedRows = 0;
+            }
+
+            int pendingRows() {
+                return multiRowBatched * rowsPerStatement + singleRowBatched;
+            }
+
+            /**
+             * Executes the pending rows, leaving them to be committed
+             */
+            void execute() throws SQLException {
+                long start = System.nanoTime();
+                if (multiRowBatched > 0) {
+                    multiRow.executeBatch();
+                    batches.incrementAndGet();
+                    uncommitted += multiRowBatched * rowsPerStatement;
+                    multiRowBatched = 0;
+                }
+                if (singleRowBatched > 0) {
+                    singleRow.executeBatch();
+                    batches.incrementAndGet();
+                    uncommitted += singleRowBatched;
+                    singleRowBatched = 0;
+                }
+                batchNanos.addAndGet(System.nanoTime() - start);
+            }
+
+            void clear() {
+                try {
+                    singleRow.clearBatch();
+                    if (multiRow != null) {
+                        multiRow.clearBatch();
+                    }
+                } catch (SQLException sqlex) {
+                    System.out.println("Unable to clear a batch: " + sqlex);
+                }
+                multiRowBatched = 0;
+                singleRowBatched = 0;
+                for (int r = 0; r < stagedRows; r++) {
+                    Arrays.fill(staged[r], null);
+                }
+                stagedRows = 0;
+            }
+
+            void close() {
+                try {
+                    singleRow.close();
+                    if (multiRow != null) {
+                        multiRow.close();
+                    }
+                } catch (SQLException sqlex) {
+                    System.out.println("Unable to close a statement: " + sqlex);
+                }
+            }
+
+            private void bind(PreparedStatement statement, int offset,
+                    Object[] values) throws SQLException {
+                for (int i = 0; i < columns.size(); i++) {
+                    int index = offset + i + 1;
+                    Object value = values[i];
+                    ColumnType type = columns.get(i).getType();
+                    if (value == null) {
+                        statement.setNull(index, sqlType(type));
+                        continue;
+                    }
+                    switch (type) {
+                    case INT:
+                        statement.setInt(index, ((Number) value).intValue());
+                        break;
+                    case BIGINT:
+                        statement.setLong(index, ((Number) value).longValue());
+                        break;
+                    case DOUBLE:
+                        statement.setDouble(index,
+                                ((Number) value).doubleValue());
+                        break;
+                    case TIMESTAMP:
+                        statement.setTimestamp(index, new Timestamp(
+                                ((Date) value).getTime()));
+                        break;
+                    case BOOLEAN:
+                        statement.setBoolean(index, (Boolean) value);
+                        break;
+                    default:
+                        statement.setString(index, String.valueOf(value));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
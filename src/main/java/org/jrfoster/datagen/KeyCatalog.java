@@ -0,0 +1,172 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This sink keeps a sample of the keys written for each of a number of
+ * KeySources, so that a read or mutation workload run during or after the
+ * load works on rows that actually exist. Keys are taken from the rows as the
+ * loaders hand them over, before any sink rewrites them for the schema
+ * profile.<br>
+ * <br>
+ * Each source keeps a reservoir of a fixed number of keys, filled by reservoir
+ * sampling, so every key written has the same chance of being in the sample
+ * however long the load runs, and the catalog's memory is bounded. Text key
+ * values are kept as strings, the form they are bound to a statement in.
+ *
+ * @author Jason Foster
+ *
+ */
+public class KeyCatalog extends ForwardingDataSink {
+    private final Map<Table, Reservoir[]> reservoirsByTable = new EnumMap<Table, Reservoir[]>(
+            Table.class);
+    private final Map<KeySource, Reservoir> reservoirs = new HashMap<KeySource, Reservoir>();
+
+    /**
+     * Creates a new catalog
+     *
+     * @param delegate
+     *            sink that actually writes the rows
+     * @param capacity
+     *            number of keys kept for each source
+     * @param sources
+     *            kinds of key to keep
+     */
+    public KeyCatalog(DataSink delegate, int capacity, KeySource... sources) {
+        super(delegate);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        Map<Table, List<Reservoir>> byTable = new EnumMap<Table, List<Reservoir>>(
+                Table.class);
+        for (KeySource source : sources) {
+            Reservoir reservoir = new Reservoir(source, capacity);
+            reservoirs.put(source, reservoir);
+            List<Reservoir> list = byTable.get(source.getSource());
+            if (list == null) {
+                list = new ArrayList<Reservoir>();
+                byTable.put(source.getSource(), list);
+            }
+            list.add(reservoir);
+        }
+        for (Map.Entry<Table, List<Reservoir>> entry : byTable.entrySet()) {
+            reservoirsByTable.put(entry.getKey(), entry.getValue().toArray(
+                    new Reservoir[entry.getValue().size()]));
+        }
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        delegate.write(table, values);
+        Reservoir[] tableReservoirs = reservoirsByTable.get(table);
+        if (tableReservoirs != null) {
+            for (Reservoir reservoir : tableReservoirs) {
+                reservoir.offer(values);
+            }
+        }
+    }
+
+    /**
+     * Picks one of the sampled keys of a source at random
+     *
+     * @param source
+     *            source to pick a key of
+     * @param rng
+     *            source of randomness, owned by the calling thread
+     * @return the key values in the order of the source's key columns, or
+     *         null if no rows supplying keys for the source were written
+     */
+    public Object[] sample(KeySource source, Random rng) {
+        return reservoir(source).sample(rng);
+    }
+
+    /**
+     * @param source
+     *            source to count keys of
+     * @return number of keys held for the source
+     */
+    public int size(KeySource source) {
+        return reservoir(source).size();
+    }
+
+    private Reservoir reservoir(KeySource source) {
+        Reservoir reservoir = reservoirs.get(source);
+        if (reservoir == null) {
+            throw new IllegalArgumentException("Keys of " + source
+                    + " aren't kept");
+        }
+        return reservoir;
+    }
+
+    /**
+     * Keys sampled for one source. Offers come from every loader thread and
+     * samples from the reader threads, so nothing is locked: each offer takes
+     * its place in the stream with an atomic increment, and only an offer
+     * that makes it into the sample builds a key and stores it. A slot taken
+     * while the reservoir is filling can be read before its key is stored,
+     * in which case sample() picks another.
+     */
+    private static class Reservoir {
+        private final int[] positions;
+        private final boolean[] text;
+        private final AtomicReferenceArray<Object[]> keys;
+        private final AtomicLong seen = new AtomicLong();
+
+        Reservoir(KeySource keySource, int capacity) {
+            List<String> columns = keySource.getKeyColumns();
+            Table source = keySource.getSource();
+            this.positions = new int[columns.size()];
+            this.text = new boolean[columns.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = source.indexOf(columns.get(i));
+                text[i] = source.getColumns().get(positions[i]).getType() == ColumnType.TEXT;
+            }
+            this.keys = new AtomicReferenceArray<Object[]>(capacity);
+        }
+
+        void offer(Object[] values) {
+            long n = seen.getAndIncrement();
+            int slot;
+            if (n < keys.length()) {
+                slot = (int) n;
+            } else {
+                long pick = (long) (ThreadLocalRandom.current().nextDouble() * (n + 1));
+                if (pick >= keys.length()) {
+                    return;
+                }
+                slot = (int) pick;
+            }
+            Object[] key = new Object[positions.length];
+            for (int i = 0; i < key.length; i++) {
+                Object value = values[positions[i]];
+                key[i] = text[i] && value != null ? String.valueOf(value)
+                        : value;
+            }
+            keys.set(slot, key);
+        }
+
+        Object[] sample(Random rng) {
+            int size = size();
+            if (size == 0) {
+                return null;
+            }
+            Object[] key;
+            do {
+                key = keys.get(rng.nextInt(size));
+            } while (key == null);
+            return key;
+        }
+
+        int size() {
+            return (int) Math.min(seen.get(), keys.length());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.jrfoster.datagen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * This class is an append-only file of fixed-width keys of one EntityType,
+ * memory-mapped so that the keys stay off the heap however many there are.
+ * Key n lives at a fixed offset, so reading it back by its ordinal is a
+ * single lookup, and sampling is just picking ordinals.<br>
+ * <br>
+ * The file starts with a small header holding a magic number, the key width
+ * and the number of keys, followed by the keys. It is mapped a segment of
+ * keys at a time and grows a whole segment at once, so the count in the
+ * header, which is updated with every append, is what says how many keys the
+ * file holds. Since the header is mapped too, the count survives the process
+ * dying as long as the operating system doesn't.<br>
+ * <br>
+ * Appends are synchronized. Reads aren't, and see every key appended before
+ * the count they read.
+ *
+ * @author Jason Foster
+ *
+ */
+public class KeyFile {
+    private static final int MAGIC = 0x4B455953;
+    private static final int HEADER_SIZE = 64;
+    private static final int WIDTH_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int DEFAULT_KEYS_PER_SEGMENT = 1 << 20;
+
+    private final File path;
+    private final EntityType type;
+    private final int keysPerSegment;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long count;
+
+    /**
+     * Opens a key file, creating it if it doesn't exist
+     *
+     * @param path
+     *            the file
+     * @param type
+     *            type of the keys in the file
+     * @param truncate
+     *            whether to throw away any keys already in the file
+     * @throws IOException
+     *             if the file can't be opened or holds keys of another width
+     */
+    public KeyFile(File path, EntityType type, boolean truncate)
+            throws IOException {
+        this(path, type, truncate, DEFAULT_KEYS_PER_SEGMENT);
+    }
+
+    KeyFile(File path, EntityType type, boolean truncate, int keysPerSegment)
+            throws IOException {
+        this.path = path;
+        this.type = type;
+        this.keysPerSegment = keysPerSegment;
+        this.file = new RandomAccessFile(path, "rw");
+        boolean opened = false;
+        try {
+            if (truncate) {
+                file.setLength(0);
+            }
+            boolean empty = file.length() < HEADER_SIZE;
+            this.channel = file.getChannel();
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE);
+            if (empty) {
+                header.putInt(0, MAGIC);
+                header.putInt(WIDTH_OFFSET, type.getWidth());
+                header.putLong(COUNT_OFFSET, 0);
+            } else if (header.getInt(0) != MAGIC
+                    || header.getInt(WIDTH_OFFSET) != type.getWidth()) {
+                throw new IOException(path + " is not a file of "
+                        + type.getWidth() + " byte keys");
+            }
+            this.count = header.getLong(COUNT_OFFSET);
+            if (count > 0) {
+                // Map the segments holding the keys already in the file
+                segment(count - 1);
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Appends a key
+     *
+     * @param key
+     *            key of the file's type
+     * @return ordinal of the key
+     */
+    public synchronized long append(Object key) {
+        long ordinal = count;
+        type.write(segment(ordinal), offset(ordinal), key);
+        count = ordinal + 1;
+        header.putLong(COUNT_OFFSET, ordinal + 1);
+        return ordinal;
+    }
+
+    /**
+     * Returns a key by its ordinal
+     *
+     * @param ordinal
+     *            ordinal of the key, from 0 to size() - 1
+     * @return the key
+     */
+    public Object get(long ordinal) {
+        if (ordinal < 0 || ordinal >= count) {
+            throw new IndexOutOfBoundsException("No key " + ordinal + " of "
+                    + count + " in " + path);
+        }
+        return type.read(segments[(int) (ordinal / keysPerSegment)],
+                offset(ordinal));
+    }
+
+    /**
+     * @return number of keys in the file
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Picks a key with every key equally likely
+     *
+     * @param rng
+     *            source of randomness, owned by the calling thread
+     * @return the key
+     */
+    public Object sample(Random rng) {
+        return sample(rng, 1.0);
+    }
+
+    /**
+     * Picks a key, favouring the earliest keys. With a skew of s, the first
+     * fraction f of the keys is picked a fraction f^(1/s) of the time, so a
+     * skew of 1 picks uniformly and with a skew of 3 the first 1% of the keys
+     * get over a fifth of the picks.
+     *
+     * @param rng
+     *            source of randomness, owned by the calling thread
+     * @param skew
+     *            how strongly to favour the earliest keys, at least 1
+     * @return the key
+     * @throws IllegalStateException
+     *             if the file holds no keys
+     */
+    public Object sample(Random rng, double skew) {
+        if (skew < 1) {
+            throw new IllegalArgumentException("skew must be at least 1");
+        }
+        long size = count;
+        if (size == 0) {
+            throw new IllegalStateException(path + " holds no keys");
+        }
+        double u = rng.nextDouble();
+        long ordinal = (long) (size * (skew == 1.0 ? u : Math.pow(u, skew)));
+        return get(Math.min(ordinal, size - 1));
+    }
+
+    /**
+     * Writes the keys appended so far to disk
+     */
+    public synchronized void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Writes the keys to disk and closes the file. The mapped segments are
+     * released once they are garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    private int offset(long ordinal) {
+        return (int) (ordinal % keysPerSegment) * type.getWidth();
+    }
+
+    /**
+     * Returns the segment holding the given ordinal, mapping the segment
+     * first if it is new. Only called while holding the lock.
+     */
+    private MappedByteBuffer segment(long ordinal) {
+        int index = (int) (ordinal / keysPerSegment);
+        MappedByteBuffer[] current = segments;
+        if (index < current.length) {
+            return current[index];
+        }
+        MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        long segmentBytes = (long) keysPerSegment * type.getWidth();
+        try {
+            for (int i = current.length; i <= index; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + i * segmentBytes, segmentBytes);
+            }
+        } catch (IOException ioex) {
+            throw new IllegalStateException("Unable to grow " + path, ioex);
+        }
+        segments = grown;
+        return grown[index];
+    }
+}
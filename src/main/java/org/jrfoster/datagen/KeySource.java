@@ -0,0 +1,23 @@
+package org.jrfoster.datagen;
+
+import java.util.List;
+
+/**
+ * A kind of key a KeyCatalog samples from the rows written to a table, such
+ * as the keys a ReadQuery looks up or the rows a MutationType changes.
+ *
+ * @author Jason Foster
+ *
+ */
+public interface KeySource {
+
+    /**
+     * @return table whose rows supply the keys
+     */
+    Table getSource();
+
+    /**
+     * @return columns of the source rows that make up a key, in order
+     */
+    List<String> getKeyColumns();
+}
@@ -0,0 +1,75 @@
+package org.jrfoster.datagen;
+
+/**
+ * This enumeration lists the lab tests and vitals that DataGenerator can
+ * produce results for in bulk, along with the ranges of normal and abnormal
+ * values for each. The ranges are the same as those of the single-value
+ * methods, e.g. generateRandomHemoglobinResult.<br>
+ * <br>
+ * Each range is a run of integers [low, high) that is divided by the test's
+ * scale to give the result. Tests with two abnormal ranges, like blood
+ * pressure being either too low or too high, pick one of them at random with
+ * equal probability; tests with a single abnormal range list it twice.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public enum LabTest {
+    HBA1C(10, 120, 176, 0, 120, 0, 120),
+    LDLC(1, 0, 100, 99, 200, 99, 200),
+    HDLC(1, 40, 75, 0, 40, 0, 40),
+    TRIG(1, 0, 200, 199, 500, 199, 500),
+    BPD(1, 60, 90, 0, 60, 90, 200),
+    BPS(1, 90, 139, 0, 90, 140, 250),
+    NA(1, 135, 145, 0, 135, 0, 135);
+
+    // Read directly by the bulk generation loops
+    final double scale;
+    final int normalLow;
+    final int normalSpan;
+    final int lowAbnormalLow;
+    final int lowAbnormalSpan;
+    final int highAbnormalLow;
+    final int highAbnormalSpan;
+
+    LabTest(int scale, int normalLow, int normalHigh, int lowAbnormalLow,
+            int lowAbnormalHigh, int highAbnormalLow, int highAbnormalHigh) {
+        this.scale = scale;
+        this.normalLow = normalLow;
+        this.normalSpan = normalHigh - normalLow;
+        this.lowAbnormalLow = lowAbnormalLow;
+        this.lowAbnormalSpan = lowAbnormalHigh - lowAbnormalLow;
+        this.highAbnormalLow = highAbnormalLow;
+        this.highAbnormalSpan = highAbnormalHigh - highAbnormalLow;
+    }
+
+    /**
+     * Returns whether a result of this test falls within its normal range
+     * 
+     * @param value
+     *            the result
+     * @return true if the result is normal
+     */
+    public boolean isNormal(double value) {
+        long scaled = Math.round(value * scale);
+        return scaled >= normalLow && scaled < normalLow + normalSpan;
+    }
+
+    /**
+     * Returns the name of the stream of abnormal decisions the test draws
+     * from. The tests of a lipid panel share one, since a panel is abnormal
+     * as a whole.
+     * 
+     * @return stream name, e.g. HBA1C or LIPID
+     */
+    public String getAbnormalStream() {
+        switch (this) {
+        case LDLC:
+        case HDLC:
+        case TRIG:
+            return "LIPID";
+        default:
+            return name();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This sink gives every destination table a writer lane of its own: its own
+ * buffer, its own writer threads, which limit how many of its writes are in
+ * flight, and its own backpressure. Tables cost very different amounts to
+ * write, patient_results with its index on a double far more than
+ * patient_screening, and behind one shared buffer the slow table's rows hold
+ * up everything queued after them. With a lane per table the fast tables
+ * keep draining while the slow ones are saturated, so the load finishes at
+ * about the time of its slowest table instead of the sum of all of them.<br>
+ * <br>
+ * Each lane is a PipelinedSink over the wrapped sink and is created the
+ * first time a row for its table is written. The number of writers can be
+ * set per table, so the expensive tables can be given more concurrency. The
+ * lanes keep their own figures, including the average time a write takes
+ * and when the lane last wrote, so report() shows which tables bound the
+ * load.<br>
+ * <br>
+ * flush() waits for every lane to drain and then flushes the wrapped sink,
+ * and close() closes the lanes and then the wrapped sink, once. Like a
+ * PipelinedSink, both throw once a lane has failed to write any row.
+ *
+ * @author Jason Foster
+ *
+ */
+public class LanedSink extends ForwardingDataSink {
+    private static final Table[] TABLES = Table.values();
+
+    private final int capacity;
+    private final int[] writerThreads;
+    private final BackpressurePolicy policy;
+    private final AtomicReferenceArray<Lane> lanes = new AtomicReferenceArray<Lane>(
+            TABLES.length);
+    private final long startNanos = System.nanoTime();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new sink. Lanes and their writer threads are started as rows
+     * for their tables arrive.
+     *
+     * @param delegate
+     *            thread-safe sink the lanes write to
+     * @param capacity
+     *            number of rows each lane's buffer can hold, rounded up to a
+     *            power of two
+     * @param writerThreads
+     *            number of writers for each table, by ordinal
+     * @param policy
+     *            what to do when a lane's buffer is full
+     */
+    public LanedSink(DataSink delegate, int capacity, int[] writerThreads,
+            BackpressurePolicy policy) {
+        super(delegate);
+        if (writerThreads.length != TABLES.length) {
+            throw new IllegalArgumentException(
+                    "writerThreads must have a count for every table");
+        }
+        for (int writers : writerThreads) {
+            if (writers < 1) {
+                throw new IllegalArgumentException(
+                        "writerThreads must be positive");
+            }
+        }
+        this.capacity = capacity;
+        this.writerThreads = writerThreads.clone();
+        this.policy = policy;
+    }
+
+    /**
+     * Works out the writers for each table from a default and a list of
+     * overrides
+     *
+     * @param defaultWriters
+     *            writers for tables that aren't named
+     * @param overrides
+     *            "TABLE:writers,TABLE:writers,...", or null
+     * @return number of writers for each table, by ordinal
+     */
+    public static int[] parseWriters(int defaultWriters, String overrides) {
+        double[] named = overrides == null ? new double[TABLES.length]
+                : Settings.parseWeights(overrides, Table.class);
+        int[] writers = new int[TABLES.length];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = named[i] > 0 ? (int) named[i] : defaultWriters;
+        }
+        return writers;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        lane(table).pipeline.write(table, values);
+    }
+
+    private Lane lane(Table table) {
+        int ordinal = table.ordinal();
+        Lane lane = lanes.get(ordinal);
+        if (lane != null) {
+            return lane;
+        }
+        // Lanes are only created under the lock, so no writer threads are
+        // started for a lane that loses a race
+        synchronized (lanes) {
+            lane = lanes.get(ordinal);
+            if (lane == null) {
+                if (!running) {
+                    throw new IllegalStateException("Sink has been closed");
+                }
+                lane = new Lane(table);
+                lanes.set(ordinal, lane);
+            }
+        }
+        return lane;
+    }
+
+    private Lane[] snapshot() {
+        Lane[] copy = new Lane[TABLES.length];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = lanes.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Waits for every lane to write the rows published to it so far, then
+     * flushes the wrapped sink
+     */
+    @Override
+    public void flush() {
+        // Every lane is drained before a failed one is reported, so the
+        // rows that can be written are
+        RuntimeException failure = null;
+        for (Lane lane : snapshot()) {
+            if (lane != null) {
+                try {
+                    lane.pipeline.flush();
+                } catch (RuntimeException rex) {
+                    failure = rex;
+                }
+            }
+        }
+        delegate.flush();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lanes) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        RuntimeException failure = null;
+        for (Lane lane : snapshot()) {
+            if (lane != null) {
+                try {
+                    lane.pipeline.close();
+                } catch (RuntimeException rex) {
+                    failure = rex;
+                }
+            }
+        }
+        delegate.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param table
+     *            the table
+     * @return number of rows of the table its lane has written
+     */
+    public long getRowsWritten(Table table) {
+        Lane lane = lanes.get(table.ordinal());
+        return lane == null ? 0 : lane.pipeline.getRowsWritten();
+    }
+
+    /**
+     * @return number of rows the lanes failed to write
+     */
+    public long getWriteErrors() {
+        long errors = 0;
+        for (Lane lane : snapshot()) {
+            if (lane != null) {
+                errors += lane.pipeline.getWriteErrors();
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @param table
+     *            the table
+     * @return number of writer threads the table's lane has
+     */
+    public int getWriters(Table table) {
+        return writerThreads[table.ordinal()];
+    }
+
+    /**
+     * Returns the figures of each lane, suitable for printing at the end of
+     * a load
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("Lanes:");
+        for (Lane lane : snapshot()) {
+            if (lane == null) {
+                continue;
+            }
+            long written = lane.target.writes.get();
+            long lastWrite = lane.target.lastWriteNanos;
+            sb.append(String.format(
+                    "%n  %s: %d writers, %d rows, %d errors, %.1f us a write,"
+                            + " last write at %d ms",
+                    lane.table.getTableName(),
+                    writerThreads[lane.table.ordinal()],
+                    lane.pipeline.getRowsWritten(),
+                    lane.pipeline.getWriteErrors(),
+                    written == 0 ? 0.0 : lane.target.writeNanos.get() / 1e3
+                            / written,
+                    lastWrite == 0 ? 0 : TimeUnit.NANOSECONDS
+                            .toMillis(lastWrite - startNanos)));
+            for (String line : lane.pipeline.report().split("\n")) {
+                sb.append("\n    ").append(line);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The buffer and writers of one table
+     */
+    private final class Lane {
+        private final Table table;
+        private final LaneTarget target;
+        private final PipelinedSink pipeline;
+
+        Lane(Table table) {
+            this.table = table;
+            this.target = new LaneTarget(delegate);
+            this.pipeline = new PipelinedSink(target, capacity,
+                    writerThreads[table.ordinal()], policy);
+        }
+    }
+
+    /**
+     * The lane's view of the wrapped sink, which times the writes and leaves
+     * flushing and closing the wrapped sink to the LanedSink
+     */
+    private static final class LaneTarget extends ForwardingDataSink {
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong writeNanos = new AtomicLong();
+        private volatile long lastWriteNanos;
+
+        LaneTarget(DataSink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Table table, Object... values) {
+            long start = System.nanoTime();
+            try {
+                delegate.write(table, values);
+            } finally {
+                long end = System.nanoTime();
+                writes.incrementAndGet();
+                writeNanos.addAndGet(end - start);
+                lastWriteNanos = end;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets that grow with the
+ * value so that every value from a nanosecond to hundreds of years is held to
+ * within about 3% in a fixed 15 KB. Values below 32 get a bucket each, and
+ * each power of two above that is split into 32 buckets of equal width.<br>
+ * <br>
+ * Percentiles are reported as the highest value of the bucket they fall in,
+ * never lower than the true value, in the manner of HdrHistogram. A histogram
+ * is synchronized so a progress report can read it while a thread records
+ * into it, and several can be added together for a report over threads.
+ *
+ * @author Jason Foster
+ *
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Records a latency
+     *
+     * @param nanos
+     *            the latency in nanoseconds, negative values count as 0
+     */
+    public synchronized void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds every latency recorded by another histogram to this one
+     *
+     * @param other
+     *            histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts;
+        long otherCount, otherTotal, otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherTotal = other.total;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            total += otherTotal;
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS
+                + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the highest latency recorded, in nanoseconds
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if none were recorded
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0.0 : (double) total / count;
+    }
+
+    /**
+     * Returns the latency the given share of recorded latencies are at or
+     * below
+     *
+     * @param percentile
+     *            percentile between 0 and 100, e.g. 99.9
+     * @return the latency in nanoseconds, or 0 if none were recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return one-line summary of the usual percentiles, in milliseconds
+     */
+    public synchronized String summary() {
+        return String.format(
+                "p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                millis(getValueAtPercentile(50)),
+                millis(getValueAtPercentile(90)),
+                millis(getValueAtPercentile(99)),
+                millis(getValueAtPercentile(99.9)), millis(max));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
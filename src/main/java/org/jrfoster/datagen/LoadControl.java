@@ -0,0 +1,287 @@
+package org.jrfoster.datagen;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class lets a long running load be watched and tuned over JMX without
+ * restarting it. It is registered as org.jrfoster.datagen:type=LoadControl
+ * and shows the patients and rows loaded so far, the write rate, the writes
+ * in flight, errors and the achieved abnormal rate. Through it the load can
+ * be paused and resumed, a run with no set end stopped, and the number of
+ * worker threads, the limit on writes in flight and a target row rate
+ * changed while it runs.<br>
+ * <br>
+ * The loader threads call beginPatient() before each patient and endPatient()
+ * after it. beginPatient() blocks while the load is paused and while the
+ * number of workers allowed is already busy, so lowering the worker count
+ * parks the extra threads between patients. The worker count can't be raised
+ * above the number of threads the load started with.
+ *
+ * @author Jason Foster
+ *
+ */
+public class LoadControl implements LoadControlMBean {
+    public static final String OBJECT_NAME = "org.jrfoster.datagen:type=LoadControl";
+
+    private final MeteredSink sink;
+    private final AbnormalRatioController abnormal;
+    private final AdjustableLimit inFlight;
+    private final PipelinedSink pipeline;
+    private final LanedSink lanes;
+    private final AsyncCqlDataSink asyncSink;
+    private final AdjustableLimit workers;
+    private final int maxWorkers;
+
+    private final AtomicLong patients = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private long sampleNanos = startNanos;
+    private long sampleRows;
+
+    private final Object pauseLock = new Object();
+    private volatile boolean paused;
+    private volatile Runnable stopAction;
+
+    /**
+     * Creates a new control for a load
+     *
+     * @param sink
+     *            sink the loaders write to, which counts the rows and holds
+     *            them to the target rate
+     * @param abnormal
+     *            controller deciding which lab results are abnormal
+     * @param maxWorkers
+     *            number of threads generating patients
+     * @param inFlight
+     *            limit on the writes in flight, or null if there is none
+     * @param pipeline
+     *            pipeline between the loaders and the writers, or null
+     * @param lanes
+     *            writer lanes of the tables, or null
+     * @param asyncSink
+     *            sink writing asynchronously, or null
+     */
+    public LoadControl(MeteredSink sink, AbnormalRatioController abnormal,
+            int maxWorkers, AdjustableLimit inFlight, PipelinedSink pipeline,
+            LanedSink lanes, AsyncCqlDataSink asyncSink) {
+        this.sink = sink;
+        this.abnormal = abnormal;
+        this.maxWorkers = maxWorkers;
+        this.workers = new AdjustableLimit(maxWorkers);
+        this.inFlight = inFlight;
+        this.pipeline = pipeline;
+        this.lanes = lanes;
+        this.asyncSink = asyncSink;
+    }
+
+    /**
+     * Registers the control with the platform MBean server
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException jmex) {
+            throw new IllegalStateException("Unable to register "
+                    + OBJECT_NAME, jmex);
+        }
+    }
+
+    /**
+     * Removes the control from the platform MBean server
+     */
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException infex) {
+            // Never registered, or already gone
+        } catch (JMException jmex) {
+            jmex.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits until the load isn't paused and a worker is free, then takes the
+     * worker. Called by a loader thread before each patient.
+     */
+    public void beginPatient() {
+        if (paused) {
+            synchronized (pauseLock) {
+                while (paused) {
+                    try {
+                        pauseLock.wait();
+                    } catch (InterruptedException iex) {
+                        // Stop waiting, but still take the worker so that
+                        // endPatient() has one to free
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        workers.acquireUninterruptibly();
+    }
+
+    /**
+     * Frees the worker taken by beginPatient() and counts the patient
+     */
+    public void endPatient() {
+        workers.release();
+        patients.incrementAndGet();
+    }
+
+    @Override
+    public long getPatientsLoaded() {
+        return patients.get();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return sink.getRows();
+    }
+
+    @Override
+    public String[] getRowsByTable() {
+        Table[] tables = Table.values();
+        String[] rows = new String[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            rows[i] = tables[i].getTableName() + "=" + sink.getRows(tables[i]);
+        }
+        return rows;
+    }
+
+    @Override
+    public double getAverageRowsPerSecond() {
+        return rate(sink.getRows(), System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public synchronized double getCurrentRowsPerSecond() {
+        long now = System.nanoTime();
+        long rows = sink.getRows();
+        double rate = rate(rows - sampleRows, now - sampleNanos);
+        sampleNanos = now;
+        sampleRows = rows;
+        return rate;
+    }
+
+    private static double rate(long rows, long nanos) {
+        return nanos <= 0 ? 0.0 : rows * (double) TimeUnit.SECONDS.toNanos(1)
+                / nanos;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight == null ? -1 : inFlight.getInUse();
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return inFlight == null ? -1 : inFlight.getLimit();
+    }
+
+    @Override
+    public void setMaxInFlight(int maxInFlight) {
+        if (inFlight == null) {
+            throw new UnsupportedOperationException(
+                    "Writes in flight are only limited by the VIRTUAL_THREADS and ASYNC execution modes");
+        }
+        inFlight.setLimit(maxInFlight);
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = sink.getErrors();
+        if (pipeline != null) {
+            errors += pipeline.getWriteErrors();
+        }
+        if (lanes != null) {
+            errors += lanes.getWriteErrors();
+        }
+        if (asyncSink != null) {
+            errors += asyncSink.getErrors();
+        }
+        return errors;
+    }
+
+    @Override
+    public double getAbnormalRate() {
+        return abnormal.getAchievedRate();
+    }
+
+    @Override
+    public double getTargetAbnormalRate() {
+        return abnormal.getRate();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers.getLimit();
+    }
+
+    @Override
+    public void setWorkers(int count) {
+        if (count > maxWorkers) {
+            throw new IllegalArgumentException("The load only has "
+                    + maxWorkers + " worker threads");
+        }
+        workers.setLimit(count);
+    }
+
+    @Override
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    @Override
+    public double getTargetRowsPerSecond() {
+        return sink.getRowsPerSecond();
+    }
+
+    @Override
+    public void setTargetRowsPerSecond(double rowsPerSecond) {
+        sink.setRowsPerSecond(rowsPerSecond);
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets what stop() does while a run that only ends when told to is going
+     *
+     * @param stopAction
+     *            action ending the run, or null once it has ended
+     */
+    public void setStopAction(Runnable stopAction) {
+        this.stopAction = stopAction;
+    }
+
+    @Override
+    public void stop() {
+        Runnable action = stopAction;
+        if (action != null) {
+            action.run();
+        }
+    }
+}
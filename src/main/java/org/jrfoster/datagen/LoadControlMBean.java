@@ -0,0 +1,106 @@
+package org.jrfoster.datagen;
+
+/**
+ * The JMX view of a running load. See LoadControl.
+ *
+ * @author Jason Foster
+ *
+ */
+public interface LoadControlMBean {
+
+    /**
+     * @return number of patients loaded so far
+     */
+    long getPatientsLoaded();
+
+    /**
+     * @return number of rows written so far
+     */
+    long getRowsWritten();
+
+    /**
+     * @return rows written so far for each table, as "table=rows"
+     */
+    String[] getRowsByTable();
+
+    /**
+     * @return rows written per second since the load started
+     */
+    double getAverageRowsPerSecond();
+
+    /**
+     * @return rows written per second since this attribute was last read
+     */
+    double getCurrentRowsPerSecond();
+
+    /**
+     * @return number of writes in flight, or -1 if they aren't limited
+     */
+    int getInFlight();
+
+    /**
+     * @return limit on writes in flight, or -1 if they aren't limited
+     */
+    int getMaxInFlight();
+
+    void setMaxInFlight(int maxInFlight);
+
+    /**
+     * @return number of writes that have failed
+     */
+    long getErrors();
+
+    /**
+     * @return share of lab results so far that were abnormal
+     */
+    double getAbnormalRate();
+
+    /**
+     * @return share of lab results that should be abnormal
+     */
+    double getTargetAbnormalRate();
+
+    boolean isPaused();
+
+    /**
+     * @return number of threads allowed to generate patients at once
+     */
+    int getWorkers();
+
+    void setWorkers(int workers);
+
+    /**
+     * @return number of threads generating patients, the most workers can be
+     *         set to
+     */
+    int getMaxWorkers();
+
+    /**
+     * @return rate rows are held to, or 0 if they aren't limited
+     */
+    double getTargetRowsPerSecond();
+
+    /**
+     * @param rowsPerSecond
+     *            rate to hold rows to, or 0 to stop limiting them
+     */
+    void setTargetRowsPerSecond(double rowsPerSecond);
+
+    /**
+     * Stops generating patients once those in progress are done. Rows
+     * already handed to the sinks are still written.
+     */
+    void pause();
+
+    /**
+     * Carries on generating patients after a pause
+     */
+    void resume();
+
+    /**
+     * Ends a run that goes on until it is told to stop, such as a continuous
+     * ingest holding a steady rate, once the events in progress are done.
+     * Does nothing to a load of a set number of patients.
+     */
+    void stop();
+}
@@ -0,0 +1,618 @@
+package org.jrfoster.datagen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class runs one load across several worker JVMs, since a single JVM
+ * tops out on garbage collection and its one pool of driver connections long
+ * before the cluster does. Each worker is a PatientDataGenerator given a
+ * disjoint slice of the patients, patient ids and uid sequences, and reports
+ * to the coordinator over a socket with a CoordinatorClient.<br>
+ * <br>
+ * The coordinator either forks the workers on this host, each logging to a
+ * file of its own, or waits for workers started elsewhere to connect. Once
+ * every worker is set up they are all started at once, and the coordinator
+ * prints the combined progress at an interval and a combined report at the
+ * end. If any worker fails, exits or goes away before it is done, the other
+ * workers are aborted and the run fails.<br>
+ * <br>
+ * Totals that would come out wrong if each worker wrote those of its own
+ * slice, the readmission stratification and metrics and the measure
+ * rollups, are sent to the coordinator instead, which combines them and
+ * writes them once the run has succeeded. Deferred indexes are built by the
+ * coordinator at that point too, rather than by the first worker as soon as
+ * its own slice is loaded.<br>
+ * <br>
+ * The settings are read like the generator's, coordinator.workers,
+ * coordinator.port, coordinator.fork and so on, and any other setting given
+ * to the coordinator as a system property is passed on to forked workers.
+ *
+ * @author Jason Foster
+ *
+ */
+public class LoadCoordinator {
+    // System properties that belong to the JVM rather than the load, so are
+    // not passed on to forked workers
+    private static final String[] JVM_PROPERTY_PREFIXES = { "java.", "javax.",
+            "sun.", "jdk.", "os.", "user.", "file.", "line.", "path.", "awt.",
+            "native.", "stdout.", "stderr.", "coordinator.", "worker.",
+            "maven.", "surefire.", "basedir", "localRepository" };
+
+    private final int workerCount;
+    private final long reportIntervalMs;
+    private final long connectTimeoutMs;
+    private final PrintStream console;
+    private final ServerSocket server;
+    private final WorkerStatus[] workers;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<Process> processes = new ArrayList<Process>();
+    private long[] readmissionHistogram;
+    private long readmissionEncounters;
+    private final Map<String, long[]> measureCounts = new TreeMap<String, long[]>();
+    private String failure;
+    private long startMillis;
+    private long endMillis;
+
+    /**
+     * Creates a new coordinator listening for workers
+     *
+     * @param workerCount
+     *            number of workers in the run
+     * @param port
+     *            port to listen on, 0 for any free port
+     * @param reportIntervalMs
+     *            milliseconds between progress reports
+     * @param connectTimeoutMs
+     *            milliseconds to wait for every worker to connect and get
+     *            ready
+     * @param console
+     *            stream progress and reports are printed to
+     * @throws IOException
+     *             if the port cannot be listened on
+     */
+    public LoadCoordinator(int workerCount, int port, long reportIntervalMs,
+            long connectTimeoutMs, PrintStream console) throws IOException {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        this.workerCount = workerCount;
+        this.reportIntervalMs = reportIntervalMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.console = console;
+        this.workers = new WorkerStatus[workerCount];
+        this.server = new ServerSocket(port);
+    }
+
+    /**
+     * @return port the coordinator listens on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Forks a worker JVM for every slice on this host, running the generator
+     * on the same classpath
+     *
+     * @param jvmOptions
+     *            options for the worker JVMs, such as heap size
+     * @param args
+     *            arguments for the generator
+     * @param logDir
+     *            directory each worker's output is written to
+     * @throws IOException
+     *             if a worker cannot be started
+     */
+    public void fork(List<String> jvmOptions, List<String> args, File logDir)
+            throws IOException {
+        if (!logDir.isDirectory() && !logDir.mkdirs()) {
+            throw new IOException("Unable to create " + logDir);
+        }
+        for (int slice = 0; slice < workerCount; slice++) {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty("java.home"),
+                    "bin"), "java").getPath());
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for (Map.Entry<Object, Object> property : System.getProperties()
+                    .entrySet()) {
+                String key = property.getKey().toString();
+                if (isLoadSetting(key)) {
+                    command.add("-D" + key + "=" + property.getValue());
+                }
+            }
+            command.add("-Dworker.slice.index=" + slice);
+            command.add("-Dworker.slice.count=" + workerCount);
+            command.add("-Dcoordinator.address=localhost:" + getPort());
+            command.add(PatientDataGenerator.class.getName());
+            command.addAll(args);
+
+            File log = new File(logDir, "worker-" + slice + ".log");
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(log);
+            final Process process = builder.start();
+            synchronized (this) {
+                processes.add(process);
+            }
+            final int watched = slice;
+            final String logName = log.getPath();
+            Thread watcher = new Thread("worker-" + slice + "-watcher") {
+                @Override
+                public void run() {
+                    try {
+                        int exitCode = process.waitFor();
+                        if (exitCode != 0 || !awaitDone(watched, 5000L)) {
+                            fail("Worker " + watched + " exited with code "
+                                    + exitCode + ", see " + logName);
+                        }
+                    } catch (InterruptedException iex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    static boolean isLoadSetting(String key) {
+        for (String prefix : JVM_PROPERTY_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the workers to connect, starts them and follows them until
+     * they are all done or one of them fails. The workers are aborted on
+     * failure, and the listening socket is closed either way.
+     *
+     * @return true if every worker finished its slice
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public boolean run() throws InterruptedException {
+        try {
+            if (acceptWorkers() && awaitReady()) {
+                startWorkers();
+                follow();
+            }
+        } finally {
+            finish();
+        }
+        return getFailure() == null;
+    }
+
+    private boolean acceptWorkers() {
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        int connected = 0;
+        try {
+            server.setSoTimeout(250);
+            while (connected < workerCount && getFailure() == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Only " + connected + " of " + workerCount
+                            + " workers connected");
+                    break;
+                }
+                try {
+                    final Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    synchronized (this) {
+                        sockets.add(socket);
+                    }
+                    Thread reader = new Thread("worker-reader-" + connected) {
+                        @Override
+                        public void run() {
+                            read(socket);
+                        }
+                    };
+                    reader.setDaemon(true);
+                    reader.start();
+                    connected++;
+                } catch (SocketTimeoutException stex) {
+                    // Check for failures and the deadline again
+                }
+            }
+        } catch (IOException ioex) {
+            fail("Unable to accept workers: " + ioex);
+        }
+        return getFailure() == null;
+    }
+
+    private synchronized boolean awaitReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        while (failure == null && countReady() < workerCount) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                fail("Only " + countReady() + " of " + workerCount
+                        + " workers got ready");
+                break;
+            }
+            wait(wait);
+        }
+        return failure == null;
+    }
+
+    private synchronized void startWorkers() {
+        startMillis = System.currentTimeMillis();
+        for (WorkerStatus worker : workers) {
+            worker.send("START");
+        }
+        console.println("Started " + workerCount + " workers");
+    }
+
+    private synchronized void follow() throws InterruptedException {
+        long lastRows = 0;
+        long lastMillis = startMillis;
+        long nextReport = startMillis + reportIntervalMs;
+        while (failure == null && countDone() < workerCount) {
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                long rows = totalRows();
+                console.println(progress(rows, (rows - lastRows) * 1000.0
+                        / Math.max(1, now - lastMillis)));
+                lastRows = rows;
+                lastMillis = now;
+                nextReport = now + reportIntervalMs;
+            }
+            wait(Math.max(1, nextReport - now));
+        }
+        endMillis = System.currentTimeMillis();
+    }
+
+    private void finish() {
+        List<Socket> open;
+        List<Process> forked;
+        String failed;
+        synchronized (this) {
+            failed = failure;
+            open = new ArrayList<Socket>(sockets);
+            forked = new ArrayList<Process>(processes);
+            if (failed != null) {
+                for (WorkerStatus worker : workers) {
+                    if (worker != null && !worker.done) {
+                        worker.send("ABORT");
+                    }
+                }
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException ioex) {
+            System.out.println("Unable to close the coordinator's socket: "
+                    + ioex);
+        }
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException ioex) {
+                System.out.println("Unable to close the connection from "
+                        + socket.getRemoteSocketAddress() + ": " + ioex);
+            }
+        }
+        if (failed != null) {
+            for (Process process : forked) {
+                process.destroy();
+            }
+            console.println("Load failed: " + failed);
+        } else {
+            console.println(report());
+        }
+    }
+
+    private void read(Socket socket) {
+        WorkerStatus worker = null;
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8"), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (worker == null) {
+                    worker = register(line, out);
+                    if (worker == null) {
+                        return;
+                    }
+                } else if (!update(worker, line)) {
+                    return;
+                }
+            }
+        } catch (IOException ioex) {
+            // Treated the same as the worker going away
+        }
+        synchronized (this) {
+            if (worker == null || !worker.done) {
+                fail((worker == null ? "A worker" : "Worker " + worker.slice)
+                        + " disconnected before it was done");
+            }
+        }
+    }
+
+    private synchronized WorkerStatus register(String line, PrintWriter out) {
+        String[] fields = line.split(" ");
+        if (fields.length != 2 || !fields[0].equals("READY")) {
+            fail("Expected READY from a worker but got " + line);
+            return null;
+        }
+        int slice = Integer.parseInt(fields[1]);
+        if (slice < 0 || slice >= workerCount || workers[slice] != null) {
+            fail("Worker for slice " + slice + " is unexpected");
+            return null;
+        }
+        WorkerStatus worker = new WorkerStatus(slice, out);
+        workers[slice] = worker;
+        notifyAll();
+        return worker;
+    }
+
+    private synchronized boolean update(WorkerStatus worker, String line) {
+        String[] fields = line.split(" ", 2);
+        if (worker.done) {
+            // Anything after DONE is a stray progress report
+            return true;
+        }
+        if (fields[0].equals("FAILED")) {
+            fail("Worker " + worker.slice + " failed: "
+                    + (fields.length > 1 ? fields[1] : ""));
+            return false;
+        }
+        String[] values = fields.length > 1 ? fields[1].split(" ")
+                : new String[0];
+        if (fields[0].equals("PROGRESS") && values.length == 3) {
+            worker.update(values);
+        } else if (fields[0].equals("READMISSION")
+                && values.length == ReadmissionRiskAggregator.MAX_SCORE + 2) {
+            if (readmissionHistogram == null) {
+                readmissionHistogram = new long[values.length - 1];
+            }
+            readmissionEncounters += Long.parseLong(values[0]);
+            for (int i = 1; i < values.length; i++) {
+                readmissionHistogram[i - 1] += Long.parseLong(values[i]);
+            }
+        } else if (fields[0].equals("MEASURES")
+                && values.length == Measure.values().length * 2 + 1) {
+            long[] counts = measureCounts.get(values[0]);
+            if (counts == null) {
+                counts = new long[values.length - 1];
+                measureCounts.put(values[0], counts);
+            }
+            for (int i = 1; i < values.length; i++) {
+                counts[i - 1] += Long.parseLong(values[i]);
+            }
+        } else if (fields[0].equals("DONE") && values.length == 4) {
+            worker.update(values);
+            worker.elapsedMs = Long.parseLong(values[3]);
+            worker.done = true;
+            notifyAll();
+        } else {
+            fail("Unexpected message from worker " + worker.slice + ": "
+                    + line);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void fail(String message) {
+        if (failure == null) {
+            failure = message;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits a little for a worker that has exited to be done, as its last
+     * message can still be on its way
+     */
+    private synchronized boolean awaitDone(int slice, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (workers[slice] == null || !workers[slice].done) {
+            long wait = deadline - System.currentTimeMillis();
+            if (failure != null || wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    private int countReady() {
+        int ready = 0;
+        for (WorkerStatus worker : workers) {
+            if (worker != null) {
+                ready++;
+            }
+        }
+        return ready;
+    }
+
+    private int countDone() {
+        int done = 0;
+        for (WorkerStatus worker : workers) {
+            if (worker != null && worker.done) {
+                done++;
+            }
+        }
+        return done;
+    }
+
+    private long totalRows() {
+        long rows = 0;
+        for (WorkerStatus worker : workers) {
+            rows += worker.rows;
+        }
+        return rows;
+    }
+
+    private String progress(long rows, double rowsPerSecond) {
+        long patients = 0;
+        long errors = 0;
+        for (WorkerStatus worker : workers) {
+            patients += worker.patients;
+            errors += worker.errors;
+        }
+        return String.format("%d of %d workers done: %d patients, %d rows"
+                + " (%.0f rows/s), %d errors", countDone(), workerCount,
+                patients, rows, rowsPerSecond, errors);
+    }
+
+    /**
+     * @return number of patients with each readmission score, over every
+     *         worker that sent its scores, or null if none did
+     */
+    public synchronized long[] getReadmissionHistogram() {
+        return readmissionHistogram == null ? null : readmissionHistogram
+                .clone();
+    }
+
+    /**
+     * @return number of encounters the workers' readmission scores were
+     *         computed from
+     */
+    public synchronized long getReadmissionEncounters() {
+        return readmissionEncounters;
+    }
+
+    /**
+     * @return measure counts by "state|zip", over every worker that sent its
+     *         counts
+     */
+    public synchronized Map<String, long[]> getMeasureCounts() {
+        Map<String, long[]> copy = new TreeMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : measureCounts.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * @return why the run failed, or null if it has not
+     */
+    public synchronized String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return rows written by all the workers so far
+     */
+    public synchronized long getRowsWritten() {
+        long rows = 0;
+        for (WorkerStatus worker : workers) {
+            if (worker != null) {
+                rows += worker.rows;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Returns each worker's figures and the totals for the run, the rate
+     * being the rows of all workers over the time from the start to the
+     * last worker finishing
+     *
+     * @return multi-line report
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder(256);
+        long patients = 0;
+        long rows = 0;
+        long errors = 0;
+        for (WorkerStatus worker : workers) {
+            if (worker == null) {
+                continue;
+            }
+            sb.append(String.format("Worker %d: %d patients, %d rows, %d"
+                    + " errors in %d ms%n", worker.slice, worker.patients,
+                    worker.rows, worker.errors, worker.elapsedMs));
+            patients += worker.patients;
+            rows += worker.rows;
+            errors += worker.errors;
+        }
+        long elapsed = Math.max(1, endMillis - startMillis);
+        sb.append(String.format("All %d workers: %d patients, %d rows, %d"
+                + " errors in %d ms (%.0f rows/s)", workerCount, patients,
+                rows, errors, elapsed, rows * 1000.0 / elapsed));
+        return sb.toString();
+    }
+
+    /**
+     * Figures last reported by one worker, guarded by the coordinator's lock
+     */
+    private static final class WorkerStatus {
+        private final int slice;
+        private final PrintWriter out;
+        private long patients;
+        private long rows;
+        private long errors;
+        private long elapsedMs;
+        private boolean done;
+
+        WorkerStatus(int slice, PrintWriter out) {
+            this.slice = slice;
+            this.out = out;
+        }
+
+        void update(String[] values) {
+            patients = Long.parseLong(values[0]);
+            rows = Long.parseLong(values[1]);
+            errors = Long.parseLong(values[2]);
+        }
+
+        void send(String message) {
+            out.println(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.load();
+        int workers = settings.getInt("coordinator.workers", 2);
+        LoadCoordinator coordinator = new LoadCoordinator(workers,
+                settings.getInt("coordinator.port", 0), settings.getLong(
+                        "coordinator.report.interval.ms", 10000L),
+                settings.getLong("coordinator.connect.timeout.ms", 300000L),
+                System.out);
+        if (settings.getBoolean("coordinator.fork", true)) {
+            String options = settings.getString("coordinator.jvm.options",
+                    null);
+            coordinator.fork(
+                    options == null ? new ArrayList<String>() : Arrays
+                            .asList(options.split("\\s+")),
+                    Arrays.asList(args),
+                    new File(settings.getString("coordinator.log.dir",
+                            "workers")));
+            System.out.println("Forked " + workers + " workers reporting to"
+                    + " port " + coordinator.getPort());
+        } else {
+            System.out.println("Waiting for " + workers + " workers on port "
+                    + coordinator.getPort());
+        }
+        boolean succeeded = coordinator.run();
+        if (succeeded) {
+            String cassandraHost = args != null && args.length == 1
+                    && !args[0].isEmpty() ? args[0] : "localhost";
+            PatientDataGenerator.buildIndexesAfterWorkers(cassandraHost);
+            PatientDataGenerator.writeCombinedTotals(cassandraHost,
+                    coordinator);
+        }
+        System.exit(succeeded ? 0 : 1);
+    }
+}
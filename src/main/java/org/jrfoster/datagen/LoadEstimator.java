@@ -0,0 +1,356 @@
+package org.jrfoster.datagen;
+
+import java.util.Iterator;
+
+/**
+ * This class estimates the size and duration of a load before it is run.
+ * A sample of patients is generated through the real loader and strategies
+ * into a SizingSink, writing nothing, and the rows and bytes each table got
+ * per patient are extrapolated to the full population, with a 95% confidence
+ * interval from the spread between the sampled patients.<br>
+ * <br>
+ * Partitions keyed by patient, or by something finer, are as large in the
+ * full load as in the sample, and their number grows with the population.
+ * Partitions that got rows from more than one sampled patient, such as
+ * lookup partitions keyed by zip code, are taken to have a fixed set of keys
+ * instead, so their number stays the same and their size grows with the
+ * population. The sizes of the partitions at a percentile come with a 95%
+ * confidence interval from the ranks of the sampled partitions around it,
+ * which holds whatever the distribution of the sizes.<br>
+ * <br>
+ * The load time is the longer of the time to generate the patients, at the
+ * rate measured while sampling on each generating thread, and the time to
+ * write the rows at a sink throughput measured by an earlier run. The time
+ * the SizingSink spends measuring the rows is taken out of the generation
+ * rate, as a real load doesn't spend it.
+ *
+ * @author Jason Foster
+ *
+ */
+public class LoadEstimator {
+    // Two-sided 95% quantile of the normal distribution
+    private static final double Z_95 = 1.96;
+
+    private final SizingSink sizing;
+    private final long population;
+    private long sampleNanos;
+
+    /**
+     * Creates a new estimator
+     *
+     * @param sizing
+     *            sink the sampled patients' rows reach
+     * @param population
+     *            number of patients in the full load
+     */
+    public LoadEstimator(SizingSink sizing, long population) {
+        this.sizing = sizing;
+        this.population = population;
+    }
+
+    /**
+     * Generates the sample of patients, timing the generation without the
+     * time spent measuring the rows
+     *
+     * @param loader
+     *            loader writing to the sizing sink, directly or through
+     *            sinks that rewrite rows for the schema profile
+     * @param patients
+     *            patients of the sample
+     */
+    public void sample(PatientLoader loader, Iterator<PatientRecord> patients) {
+        while (patients.hasNext()) {
+            PatientRecord patient = patients.next();
+            long sized = sizing.getSizingNanos();
+            long start = System.nanoTime();
+            sizing.beginPatient();
+            loader.load(patient);
+            sizing.endPatient();
+            long elapsed = System.nanoTime() - start;
+            sampleNanos += Math.max(0,
+                    elapsed - (sizing.getSizingNanos() - sized));
+        }
+    }
+
+    /**
+     * @return number of patients sampled
+     */
+    public int getSampleSize() {
+        return sizing.getPatients();
+    }
+
+    /**
+     * Estimates the rows a table gets in the full load
+     *
+     * @param table
+     *            the table
+     * @return estimate and margin of the 95% confidence interval
+     */
+    public Estimate estimateRows(Table table) {
+        SizingSink.TableSize size = sizing.getSize(table);
+        return size == null ? new Estimate(0, 0) : extrapolate(size.getRows(),
+                size.getRowsSquared());
+    }
+
+    /**
+     * Estimates the bytes a table gets in the full load
+     *
+     * @param table
+     *            the table
+     * @return estimate and margin of the 95% confidence interval
+     */
+    public Estimate estimateBytes(Table table) {
+        SizingSink.TableSize size = sizing.getSize(table);
+        return size == null ? new Estimate(0, 0) : extrapolate(
+                size.getBytes(), size.getBytesSquared());
+    }
+
+    /**
+     * @return estimate of the rows of all tables in the full load
+     */
+    public Estimate estimateTotalRows() {
+        double[] totals = sizing.getPatientTotals();
+        return extrapolate(totals[0], totals[1]);
+    }
+
+    /**
+     * @return estimate of the bytes of all tables in the full load
+     */
+    public Estimate estimateTotalBytes() {
+        double[] totals = sizing.getPatientTotals();
+        return extrapolate(totals[2], totals[3]);
+    }
+
+    /**
+     * Scales a sum over the sampled patients up to the population, with the
+     * margin from the sample variance of the values per patient
+     */
+    private Estimate extrapolate(double sum, double sumOfSquares) {
+        int n = sizing.getPatients();
+        if (n == 0) {
+            return new Estimate(0, 0);
+        }
+        double mean = sum / n;
+        double variance = n < 2 ? 0.0 : Math.max(0.0, (sumOfSquares - n
+                * mean * mean)
+                / (n - 1));
+        return new Estimate(population * mean, Z_95 * population
+                * Math.sqrt(variance / n));
+    }
+
+    /**
+     * Estimates the number of partitions a table has in the full load
+     *
+     * @param table
+     *            the table
+     * @return number of partitions
+     */
+    public double estimatePartitions(Table table) {
+        SizingSink.TableSize size = sizing.getSize(table);
+        if (size == null) {
+            return 0;
+        }
+        return size.isShared() ? size.getPartitionCount() : (double) size
+                .getPartitionCount() * population / sizing.getPatients();
+    }
+
+    /**
+     * Estimates the bytes of a table's partition at a percentile of the
+     * partition sizes in the full load
+     *
+     * @param table
+     *            the table
+     * @param percentile
+     *            percentile from 0 to 100
+     * @return partition size in bytes
+     */
+    public double estimatePartitionBytes(Table table, double percentile) {
+        SizingSink.TableSize size = sizing.getSize(table);
+        if (size == null) {
+            return 0;
+        }
+        long[] sizes = size.getPartitionBytes();
+        return partitionBytes(size, sizes,
+                (int) Math.ceil(percentile / 100 * sizes.length));
+    }
+
+    /**
+     * Estimates a 95% confidence interval for the bytes of a table's
+     * partition at a percentile of the partition sizes in the full load. The
+     * interval runs between the sampled partitions whose ranks bracket the
+     * percentile's, by the normal approximation of the binomial distribution
+     * of the number of partitions below it.
+     *
+     * @param table
+     *            the table
+     * @param percentile
+     *            percentile from 0 to 100
+     * @return lower and upper partition size in bytes
+     */
+    public double[] estimatePartitionBytesInterval(Table table,
+            double percentile) {
+        SizingSink.TableSize size = sizing.getSize(table);
+        if (size == null) {
+            return new double[2];
+        }
+        long[] sizes = size.getPartitionBytes();
+        double p = percentile / 100;
+        double rank = p * sizes.length;
+        double spread = Z_95 * Math.sqrt(rank * (1 - p));
+        return new double[] {
+                partitionBytes(size, sizes, (int) Math.floor(rank - spread)),
+                partitionBytes(size, sizes, (int) Math.ceil(rank + spread)) };
+    }
+
+    /**
+     * Returns the bytes of the sampled partition of a rank, from 1, as they
+     * are in the full load
+     */
+    private double partitionBytes(SizingSink.TableSize size, long[] sizes,
+            int rank) {
+        double bytes = sizes[Math.max(0, Math.min(sizes.length, rank) - 1)];
+        return size.isShared() ? bytes * population / sizing.getPatients()
+                : bytes;
+    }
+
+    /**
+     * @return patients generated per second on one thread while sampling
+     */
+    public double getPatientsPerSecond() {
+        return sampleNanos == 0 ? 0.0 : sizing.getPatients() * 1e9
+                / sampleNanos;
+    }
+
+    /**
+     * Estimates the wall-clock time of the full load
+     *
+     * @param generatorThreads
+     *            threads generating patients
+     * @param sinkRowsPerSecond
+     *            rows per second the sink sustains, or 0 if not known
+     * @return seconds
+     */
+    public double estimateSeconds(int generatorThreads, double sinkRowsPerSecond) {
+        double generating = population
+                / (getPatientsPerSecond() * Math.max(1, generatorThreads));
+        double writing = sinkRowsPerSecond > 0 ? estimateTotalRows()
+                .getValue() / sinkRowsPerSecond : 0.0;
+        return Math.max(generating, writing);
+    }
+
+    /**
+     * Returns the estimates for each table and the load as a whole
+     *
+     * @param generatorThreads
+     *            threads generating patients
+     * @param sinkRowsPerSecond
+     *            rows per second the sink sustains, or 0 if not known
+     * @return multi-line report
+     */
+    public String report(int generatorThreads, double sinkRowsPerSecond) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("Estimate for ").append(population)
+                .append(" patients from a sample of ")
+                .append(sizing.getPatients())
+                .append(", 95% confidence intervals");
+        for (Table table : Table.values()) {
+            SizingSink.TableSize size = sizing.getSize(table);
+            if (size == null) {
+                continue;
+            }
+            Estimate rows = estimateRows(table);
+            Estimate bytes = estimateBytes(table);
+            sb.append(String.format(
+                    "%n  %s: %s rows, %s, %.0f bytes/row, %.0f partitions%s"
+                            + " of p50 %s, p99 %s, max %s",
+                    table.getTableName(), rows.format(false),
+                    bytes.format(true), (double) size.getBytes()
+                            / size.getRows(), estimatePartitions(table),
+                    size.isShared() ? " (shared)" : "",
+                    formatPercentile(table, 50), formatPercentile(table, 99),
+                    formatBytes(estimatePartitionBytes(table, 100))));
+        }
+        sb.append(String.format("%n  All tables: %s rows, %s",
+                estimateTotalRows().format(false), estimateTotalBytes()
+                        .format(true)));
+
+        double generating = population
+                / (getPatientsPerSecond() * Math.max(1, generatorThreads));
+        sb.append(String.format(
+                "%nGenerating: %.1f patients/s per thread, %s on %d threads",
+                getPatientsPerSecond(), formatSeconds(generating),
+                Math.max(1, generatorThreads)));
+        if (sinkRowsPerSecond > 0) {
+            double writing = estimateTotalRows().getValue()
+                    / sinkRowsPerSecond;
+            sb.append(String.format("%nWriting: %s at %.0f rows/s",
+                    formatSeconds(writing), sinkRowsPerSecond));
+            sb.append(String.format("%nEstimated load time: %s, bound by %s",
+                    formatSeconds(Math.max(generating, writing)),
+                    writing > generating ? "writing" : "generating"));
+        } else {
+            sb.append(String.format("%nEstimated load time: at least %s,"
+                    + " no sink throughput given", formatSeconds(generating)));
+        }
+        return sb.toString();
+    }
+
+    private String formatPercentile(Table table, double percentile) {
+        double[] interval = estimatePartitionBytesInterval(table, percentile);
+        return String.format("%s [%s, %s]",
+                formatBytes(estimatePartitionBytes(table, percentile)),
+                formatBytes(interval[0]), formatBytes(interval[1]));
+    }
+
+    static String formatBytes(double bytes) {
+        String[] units = { "B", "KB", "MB", "GB", "TB", "PB" };
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return String.format(unit == 0 ? "%.0f %s" : "%.1f %s", bytes,
+                units[unit]);
+    }
+
+    static String formatSeconds(double seconds) {
+        if (seconds < 120) {
+            return String.format("%.1f s", seconds);
+        } else if (seconds < 7200) {
+            return String.format("%.1f min", seconds / 60);
+        }
+        return String.format("%.1f h", seconds / 3600);
+    }
+
+    /**
+     * An estimate and the margin of its confidence interval
+     */
+    public static final class Estimate {
+        private final double value;
+        private final double margin;
+
+        Estimate(double value, double margin) {
+            this.value = value;
+            this.margin = margin;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public double getMargin() {
+            return margin;
+        }
+
+        String format(boolean bytes) {
+            return (bytes ? formatBytes(value) : String.format("%.0f", value))
+                    + String.format(" (+/-%.1f%%)", value == 0 ? 0.0 : 100
+                            * margin / value);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f +/- %.0f", value, margin);
+        }
+    }
+}
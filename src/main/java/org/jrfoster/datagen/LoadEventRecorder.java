@@ -0,0 +1,29 @@
+package org.jrfoster.datagen;
+
+/**
+ * Receives the events LoadEvents reports. Each kind of event is timed by a
+ * begin method, which returns an opaque event object, or null when the event
+ * isn't being recorded, and an end method that completes it. Implementations
+ * must be thread-safe, and end methods must accept null.
+ *
+ * @author Jason Foster
+ *
+ */
+interface LoadEventRecorder {
+
+    Object beginPatient();
+
+    void endPatient(Object event, String strategies, int rows);
+
+    Object beginWrite();
+
+    void endWrite(Object event, Table table, int bytes);
+
+    Object beginFlush();
+
+    void endFlush(Object event, String sink, long pending);
+
+    Object beginBackoff();
+
+    void endBackoff(Object event, String sink, String reason);
+}
@@ -0,0 +1,191 @@
+package org.jrfoster.datagen;
+
+/**
+ * This class reports what the load path is doing as Java Flight Recorder
+ * events: one for each patient generated, one for each row written, one for
+ * each flush and one each time a thread has to back off from a full buffer
+ * or in-flight limit. A recording of a slow load then shows whether
+ * generation, writes, flushes or backpressure are to blame, next to the GC
+ * and I/O events the JVM records anyway.<br>
+ * <br>
+ * The events themselves are in src/main/jfr, which is only built on JDK 11
+ * and later since the code has to run on Java 7. They are looked up
+ * reflectively and when they are missing every call here does nothing. With
+ * them present an event that the recording has turned off costs a check of a
+ * flag, so they can be left in place for production runs. The
+ * data-generator.jfc settings file turns them all on along with the usual
+ * profiling events, e.g.<br>
+ * <br>
+ * java -XX:StartFlightRecording=settings=data-generator.jfc,filename=load.jfr
+ * ...
+ *
+ * @author Jason Foster
+ *
+ */
+public final class LoadEvents {
+    private static final String JFR_RECORDER = "org.jrfoster.datagen.JfrLoadEventRecorder";
+
+    // Why the events aren't reported, set while RECORDER is initialized
+    private static String unavailableReason;
+
+    private static final LoadEventRecorder RECORDER = findRecorder();
+
+    private LoadEvents() {
+    }
+
+    private static LoadEventRecorder findRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (LoadEventRecorder) Class.forName(JFR_RECORDER)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException cnfex) {
+            // Either the JDK or the build doesn't have Flight Recorder events
+            unavailableReason = "not built for this JDK";
+        } catch (LinkageError lerr) {
+            // Flight Recorder is there but unusable, e.g. disabled in the JVM
+            unavailableReason = "unusable, " + lerr;
+        } catch (ReflectiveOperationException roex) {
+            unavailableReason = "unable to create the recorder, " + roex;
+        }
+        return new NoOpRecorder();
+    }
+
+    /**
+     * @return true if the events are being reported to Flight Recorder
+     */
+    public static boolean isAvailable() {
+        return !(RECORDER instanceof NoOpRecorder);
+    }
+
+    /**
+     * @return a line saying whether the events are reported, and if not why
+     *         not, suitable for printing at the start of a load
+     */
+    public static String getStatus() {
+        return isAvailable() ? "Reporting load events to Flight Recorder"
+                : "Not reporting load events to Flight Recorder: "
+                        + unavailableReason;
+    }
+
+    /**
+     * Starts timing the generation of a patient
+     *
+     * @return the event to pass to endPatient
+     */
+    public static Object beginPatient() {
+        return RECORDER.beginPatient();
+    }
+
+    /**
+     * @param event
+     *            event returned by beginPatient
+     * @param strategies
+     *            names of the strategies that generated the patient's data
+     * @param rows
+     *            number of rows written for the patient
+     */
+    public static void endPatient(Object event, String strategies, int rows) {
+        RECORDER.endPatient(event, strategies, rows);
+    }
+
+    /**
+     * Starts timing the write of a row
+     *
+     * @return the event to pass to endWrite
+     */
+    public static Object beginWrite() {
+        return RECORDER.beginWrite();
+    }
+
+    /**
+     * @param event
+     *            event returned by beginWrite
+     * @param table
+     *            table the row was written to
+     * @param bytes
+     *            size of the statement written
+     */
+    public static void endWrite(Object event, Table table, int bytes) {
+        RECORDER.endWrite(event, table, bytes);
+    }
+
+    /**
+     * Starts timing a flush
+     *
+     * @return the event to pass to endFlush
+     */
+    public static Object beginFlush() {
+        return RECORDER.beginFlush();
+    }
+
+    /**
+     * @param event
+     *            event returned by beginFlush
+     * @param sink
+     *            name of the sink that was flushed
+     * @param pending
+     *            number of rows that were waiting to be written
+     */
+    public static void endFlush(Object event, String sink, long pending) {
+        RECORDER.endFlush(event, sink, pending);
+    }
+
+    /**
+     * Starts timing a wait for a full buffer or in-flight limit
+     *
+     * @return the event to pass to endBackoff
+     */
+    public static Object beginBackoff() {
+        return RECORDER.beginBackoff();
+    }
+
+    /**
+     * @param event
+     *            event returned by beginBackoff
+     * @param sink
+     *            name of the sink the thread waited on
+     * @param reason
+     *            what the thread waited for
+     */
+    public static void endBackoff(Object event, String sink, String reason) {
+        RECORDER.endBackoff(event, sink, reason);
+    }
+
+    private static final class NoOpRecorder implements LoadEventRecorder {
+        @Override
+        public Object beginPatient() {
+            return null;
+        }
+
+        @Override
+        public void endPatient(Object event, String strategies, int rows) {
+        }
+
+        @Override
+        public Object beginWrite() {
+            return null;
+        }
+
+        @Override
+        public void endWrite(Object event, Table table, int bytes) {
+        }
+
+        @Override
+        public Object beginFlush() {
+            return null;
+        }
+
+        @Override
+        public void endFlush(Object event, String sink, long pending) {
+        }
+
+        @Override
+        public Object beginBackoff() {
+            return null;
+        }
+
+        @Override
+        public void endBackoff(Object event, String sink, String reason) {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.jrfoster.datagen;
+
+/**
+ * This enumeration lists the quality measures the MeasureRollup keeps ground
+ * truth for, each with the population making up its denominator.
+ * <ul>
+ * <li>DIABETES: a visit in the measurement period and a diabetes diagnosis in
+ * it or the year before</li>
+ * <li>IVD: a visit in the measurement period and an IVD diagnosis in it, or
+ * an AMI diagnosis in the year before</li>
+ * <li>FALL_RISK: a visit in the measurement period by a patient 65 or older
+ * at its end</li>
+ * <li>PREVENTIVE: a visit in the measurement period</li>
+ * </ul>
+ * The numerators are met by the latest result of the measurement period, or
+ * the latest screening or prefilled elements written for the patient:
+ * a normal HBA1C, LDLC or blood pressure, tobacco nonuse, a fall risk
+ * screening, or the screening flag or flu shot being set.
+ *
+ * @author Jason Foster
+ *
+ */
+public enum Measure {
+    DM_HBA1C_CONTROL(Population.DIABETES),
+    DM_LDLC_CONTROL(Population.DIABETES),
+    DM_BP_CONTROL(Population.DIABETES),
+    DM_TOBACCO_NONUSE(Population.DIABETES),
+    IVD_LDLC_CONTROL(Population.IVD),
+    CARE_FALL_SCREENING(Population.FALL_RISK),
+    PREV_BMI_SCREENING(Population.PREVENTIVE),
+    PREV_TOBACCO_SCREENING(Population.PREVENTIVE),
+    PREV_BP_SCREENING(Population.PREVENTIVE),
+    PREV_DEPRESSION_SCREENING(Population.PREVENTIVE),
+    PREV_FLU_SHOT(Population.PREVENTIVE);
+
+    /**
+     * The populations the measures' denominators are drawn from
+     */
+    public enum Population {
+        DIABETES, IVD, FALL_RISK, PREVENTIVE
+    }
+
+    private final Population population;
+
+    Measure(Population population) {
+        this.population = population;
+    }
+
+    public Population getPopulation() {
+        return population;
+    }
+}
@@ -0,0 +1,474 @@
+package org.jrfoster.datagen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+
+/**
+ * This class keeps the ground truth for the quality measures while the data
+ * is generated: how many patients are in each measure's denominator and how
+ * many of those meet its numerator, for the load as a whole and for each
+ * state and zip code. A measure engine run over the loaded data can then be
+ * checked against the rollup files straight away, rather than against a
+ * second pass over every row.<br>
+ * <br>
+ * A PatientLoader gets a Tally of its own, which watches the encounter,
+ * diagnosis, result, screening and prefilled element rows on their way to
+ * the sink, and decides every measure for the patient once the patient is
+ * loaded. Each tally keeps its own counts while its loader runs and adds
+ * them to the rollup's totals when the loader finishes, so the rollup only
+ * ever holds the totals, however many loaders come and go. See
+ * Measure for how each denominator and numerator is decided. Diagnoses are
+ * matched against the sets of the CodeCatalog, so the denominators need the
+ * diagnoses to be loaded, and the numerators the results, screenings and
+ * prefilled elements.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class MeasureRollup {
+    private static final Measure[] MEASURES = Measure.values();
+
+    // Results the numerators look at, by their slot in a tally
+    private static final int HBA1C = 0;
+    private static final int LDLC = 1;
+    private static final int BPS = 2;
+    private static final int BPD = 3;
+    private static final int TOBACCO_NONUSE = 4;
+    private static final int FALL_RISK_SCREENED = 5;
+    private static final int RESULT_SLOTS = 6;
+
+    // Columns of the rows a tally looks at
+    private final int encAdmit = Table.PATIENT_ENCOUNTERS.indexOf("admit_date");
+    private final int dxCode = Table.PATIENT_DIAGNOSES.indexOf("code");
+    private final int dxSystem = Table.PATIENT_DIAGNOSES.indexOf("codingsystem");
+    private final int dxDate = Table.PATIENT_DIAGNOSES.indexOf("diagnosis_date");
+    private final int resultName = Table.PATIENT_RESULTS.indexOf("result_name");
+    private final int resultDate = Table.PATIENT_RESULTS.indexOf("result_date");
+    private final int resultValue = Table.PATIENT_RESULTS.indexOf("result_value");
+    private final int bmiScreening = Table.PATIENT_SCREENING.indexOf("bmi_screening");
+    private final int tobaccoScreening = Table.PATIENT_SCREENING.indexOf("tobacco_screening");
+    private final int bpScreening = Table.PATIENT_SCREENING.indexOf("bp_screening");
+    private final int depressionScreening = Table.PATIENT_SCREENING.indexOf("clinical_depression");
+    private final int fluShot = Table.PREFILLED_ELEMENTS.indexOf("pcflushot");
+
+    private final CodeCatalog catalog;
+    private final BitSet diabetesCodes;
+    private final BitSet ivdCodes;
+    private final BitSet amiCodes;
+    private final long periodStart;
+    private final long periodEnd;
+    private final long priorYearStart;
+    private final Date seniorBornBy;
+    // Counts by "state|zip" of the tallies that have finished
+    private final Map<String, long[]> totals = new TreeMap<String, long[]>();
+
+    /**
+     * Creates a new rollup for the given measurement period
+     *
+     * @param catalog
+     *            catalog the diagnosis codes are looked up in
+     * @param measurementPeriodYear
+     *            year the encounter data is generated for
+     */
+    public MeasureRollup(CodeCatalog catalog, int measurementPeriodYear) {
+        this.catalog = catalog;
+        this.diabetesCodes = ordinals(catalog.getSet("DM_DX"));
+        this.ivdCodes = ordinals(catalog.getSet("IVD_DX"));
+        this.amiCodes = ordinals(catalog.getSet("IVD_AMI_DX"));
+        DateTime start = new DateTime(measurementPeriodYear, 1, 1, 0, 0, 0, 0);
+        this.periodStart = start.getMillis();
+        this.periodEnd = start.plusYears(1).getMillis() - 1;
+        this.priorYearStart = start.minusYears(1).getMillis();
+        this.seniorBornBy = start.plusYears(1).minusYears(65).toDate();
+    }
+
+    private static BitSet ordinals(CodeSet set) {
+        BitSet ordinals = new BitSet();
+        for (int i = 0; i < set.size(); i++) {
+            ordinals.set(set.get(i).getOrdinal());
+        }
+        return ordinals;
+    }
+
+    /**
+     * Creates a tally watching the rows written to the given sink
+     *
+     * @param delegate
+     *            sink the rows are written to
+     * @return tally for use by a single thread, which should be finished
+     *         when the thread is done with it
+     */
+    public Tally newTally(DataSink delegate) {
+        return new Tally(delegate);
+    }
+
+    /**
+     * Returns the denominator and numerator of every measure for each zip
+     * code, from every tally that has finished. It should be called once the
+     * loaders have finished their tallies.
+     *
+     * @return counts by state and zip code, as "state|zip", holding the
+     *         denominator and then the numerator of each measure in turn
+     */
+    public Map<String, long[]> getCounts() {
+        Map<String, long[]> copy = new TreeMap<String, long[]>();
+        synchronized (totals) {
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds the counts of patients loaded elsewhere, such as by another worker
+     * of a load split across several
+     *
+     * @param counts
+     *            counts by "state|zip" as returned by getCounts()
+     */
+    public void add(Map<String, long[]> counts) {
+        synchronized (totals) {
+            for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+                long[] total = totals.get(entry.getKey());
+                if (total == null) {
+                    total = new long[MEASURES.length * 2];
+                    totals.put(entry.getKey(), total);
+                }
+                long[] zip = entry.getValue();
+                for (int i = 0; i < zip.length; i++) {
+                    total[i] += zip[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a rollup file for each measure to a directory, named for the
+     * measure, e.g. dm_hba1c_control.csv. Each file has a line for the load
+     * as a whole, then one for each state and one for each zip code, giving
+     * the denominator, numerator and rate.
+     *
+     * @param dir
+     *            directory to write the files to, created if need be
+     * @throws IOException
+     *             if a file cannot be written
+     */
+    public void write(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        Map<String, long[]> byZip = getCounts();
+        Map<String, long[]> byState = new TreeMap<String, long[]>();
+        long[] all = new long[MEASURES.length * 2];
+        for (Map.Entry<String, long[]> entry : byZip.entrySet()) {
+            String state = entry.getKey().substring(0,
+                    entry.getKey().indexOf('|'));
+            long[] total = byState.get(state);
+            if (total == null) {
+                total = new long[all.length];
+                byState.put(state, total);
+            }
+            for (int i = 0; i < all.length; i++) {
+                total[i] += entry.getValue()[i];
+                all[i] += entry.getValue()[i];
+            }
+        }
+
+        for (Measure measure : MEASURES) {
+            int m = measure.ordinal();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, measure.name()
+                            .toLowerCase() + ".csv")), "UTF-8"));
+            try {
+                out.println("level,state,zip,denominator,numerator,rate");
+                printLine(out, "ALL", "", "", all, m);
+                for (Map.Entry<String, long[]> entry : byState.entrySet()) {
+                    printLine(out, "STATE", entry.getKey(), "",
+                            entry.getValue(), m);
+                }
+                for (Map.Entry<String, long[]> entry : byZip.entrySet()) {
+                    String[] key = entry.getKey().split("\\|", 2);
+                    printLine(out, "ZIP", key[0], key[1], entry.getValue(), m);
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                throw new IOException("Unable to write the rollup for "
+                        + measure);
+            }
+        }
+    }
+
+    private static void printLine(PrintWriter out, String level, String state,
+            String zip, long[] counts, int measure) {
+        long denominator = counts[measure * 2];
+        long numerator = counts[measure * 2 + 1];
+        out.println(level + "," + state + "," + zip + "," + denominator + ","
+                + numerator + ","
+                + String.format("%.4f", denominator == 0 ? 0.0
+                        : (double) numerator / denominator));
+    }
+
+    /**
+     * Returns the denominator, numerator and rate of each measure for the
+     * load as a whole, suitable for printing at the end of a load
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        long[] all = new long[MEASURES.length * 2];
+        for (long[] counts : getCounts().values()) {
+            for (int i = 0; i < all.length; i++) {
+                all[i] += counts[i];
+            }
+        }
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("Measures");
+        for (Measure measure : MEASURES) {
+            long denominator = all[measure.ordinal() * 2];
+            long numerator = all[measure.ordinal() * 2 + 1];
+            sb.append(String.format("%n  %s: %d of %d (%.2f%%)", measure,
+                    numerator, denominator, denominator == 0 ? 0.0
+                            : 100.0 * numerator / denominator));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decides the measures for one patient at a time from the rows written
+     * through it. Not thread-safe; each loader has a tally of its own.
+     */
+    public final class Tally extends ForwardingDataSink {
+        // Counts by zip code since the tally last added them to the totals
+        private final Map<String, long[]> counts = new HashMap<String, long[]>();
+
+        private boolean visit;
+        private boolean diabetes;
+        private boolean ivd;
+        private final long[] resultTimes = new long[RESULT_SLOTS];
+        private final double[] resultValues = new double[RESULT_SLOTS];
+        private boolean bmiScreened;
+        private boolean tobaccoScreened;
+        private boolean bpScreened;
+        private boolean depressionScreened;
+        private Object flu;
+
+        private Tally(DataSink delegate) {
+            super(delegate);
+        }
+
+        /**
+         * Starts deciding the measures for a new patient
+         */
+        public void beginPatient() {
+            visit = false;
+            diabetes = false;
+            ivd = false;
+            for (int i = 0; i < RESULT_SLOTS; i++) {
+                resultTimes[i] = Long.MIN_VALUE;
+            }
+            bmiScreened = false;
+            tobaccoScreened = false;
+            bpScreened = false;
+            depressionScreened = false;
+            flu = null;
+        }
+
+        @Override
+        public void write(Table table, Object... values) {
+            delegate.write(table, values);
+            switch (table) {
+            case PATIENT_ENCOUNTERS:
+                visit |= inPeriod(((Date) values[encAdmit]).getTime());
+                break;
+            case PATIENT_DIAGNOSES:
+                observeDiagnosis(values);
+                break;
+            case PATIENT_RESULTS:
+                observeResult(values);
+                break;
+            case PATIENT_SCREENING:
+                observeScreening(values);
+                break;
+            case PREFILLED_ELEMENTS:
+                flu = values[fluShot];
+                break;
+            default:
+                break;
+            }
+        }
+
+        private boolean inPeriod(long time) {
+            return time >= periodStart && time <= periodEnd;
+        }
+
+        private void observeDiagnosis(Object[] values) {
+            CodedValue code = catalog.lookup((String) values[dxSystem],
+                    (String) values[dxCode]);
+            if (code == null) {
+                return;
+            }
+            long time = ((Date) values[dxDate]).getTime();
+            int ordinal = code.getOrdinal();
+            if (diabetesCodes.get(ordinal) && time >= priorYearStart
+                    && time <= periodEnd) {
+                diabetes = true;
+            }
+            if (ivdCodes.get(ordinal) && inPeriod(time)) {
+                ivd = true;
+            }
+            if (amiCodes.get(ordinal) && time >= priorYearStart
+                    && time < periodStart) {
+                ivd = true;
+            }
+        }
+
+        private void observeScreening(Object[] values) {
+            bmiScreened = isScreened(values[bmiScreening]);
+            tobaccoScreened = isScreened(values[tobaccoScreening]);
+            bpScreened = isScreened(values[bpScreening]);
+            depressionScreened = isScreened(values[depressionScreening]);
+        }
+
+        private void observeResult(Object[] values) {
+            int slot;
+            String name = (String) values[resultName];
+            switch (name) {
+            case "HBA1C":
+                slot = HBA1C;
+                break;
+            case "LDLC":
+                slot = LDLC;
+                break;
+            case "BPS":
+                slot = BPS;
+                break;
+            case "BPD":
+                slot = BPD;
+                break;
+            case "TOBACCO_NONUSE":
+                slot = TOBACCO_NONUSE;
+                break;
+            case "FALL_RISK_SCREENED":
+                slot = FALL_RISK_SCREENED;
+                break;
+            default:
+                return;
+            }
+            long time = ((Date) values[resultDate]).getTime();
+            if (inPeriod(time) && time >= resultTimes[slot]) {
+                resultTimes[slot] = time;
+                resultValues[slot] = ((Number) values[resultValue])
+                        .doubleValue();
+            }
+        }
+
+        private boolean hasResult(int slot) {
+            return resultTimes[slot] != Long.MIN_VALUE;
+        }
+
+        private boolean isNormal(int slot, LabTest test) {
+            return hasResult(slot) && test.isNormal(resultValues[slot]);
+        }
+
+        private boolean isSet(int slot) {
+            return hasResult(slot) && resultValues[slot] == 1.0;
+        }
+
+        private boolean isScreened(Object flag) {
+            return Integer.valueOf(1).equals(flag);
+        }
+
+        /**
+         * Decides every measure for the patient from the rows written since
+         * beginPatient() and counts them for the patient's zip code
+         *
+         * @param patient
+         *            the patient
+         */
+        public void endPatient(PatientRecord patient) {
+            if (!visit) {
+                return;
+            }
+            ZipData address = patient.getAddress();
+            String key = address.getState() + "|" + address.getZipCode();
+            long[] zip = counts.get(key);
+            if (zip == null) {
+                zip = new long[MEASURES.length * 2];
+                counts.put(key, zip);
+            }
+            boolean senior = !patient.getDateOfBirth().after(seniorBornBy);
+            for (Measure measure : MEASURES) {
+                boolean denominator;
+                switch (measure.getPopulation()) {
+                case DIABETES:
+                    denominator = diabetes;
+                    break;
+                case IVD:
+                    denominator = ivd;
+                    break;
+                case FALL_RISK:
+                    denominator = senior;
+                    break;
+                default:
+                    denominator = true;
+                    break;
+                }
+                if (!denominator) {
+                    continue;
+                }
+                zip[measure.ordinal() * 2]++;
+                if (isNumerator(measure)) {
+                    zip[measure.ordinal() * 2 + 1]++;
+                }
+            }
+        }
+
+        /**
+         * Adds the tally's counts to the rollup's totals and starts it afresh,
+         * once its loader is done with it
+         */
+        public void finish() {
+            add(counts);
+            counts.clear();
+        }
+
+        private boolean isNumerator(Measure measure) {
+            switch (measure) {
+            case DM_HBA1C_CONTROL:
+                return isNormal(HBA1C, LabTest.HBA1C);
+            case DM_LDLC_CONTROL:
+            case IVD_LDLC_CONTROL:
+                return isNormal(LDLC, LabTest.LDLC);
+            case DM_BP_CONTROL:
+                return isNormal(BPS, LabTest.BPS) && isNormal(BPD, LabTest.BPD);
+            case DM_TOBACCO_NONUSE:
+                return isSet(TOBACCO_NONUSE);
+            case CARE_FALL_SCREENING:
+                return isSet(FALL_RISK_SCREENED);
+            case PREV_BMI_SCREENING:
+                return bmiScreened;
+            case PREV_TOBACCO_SCREENING:
+                return tobaccoScreened;
+            case PREV_BP_SCREENING:
+                return bpScreened;
+            case PREV_DEPRESSION_SCREENING:
+                return depressionScreened;
+            default:
+                return Integer.valueOf(1).equals(flu);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * This sink counts the rows written to each table, and the writes that fail,
+ * and can hold writes to a target rate so the load can be throttled when it
+ * competes with other traffic on a shared cluster. The rate limit is off
+ * until setRowsPerSecond() is given a positive rate, and can be changed at
+ * any time.<br>
+ * <br>
+ * A write that fails on the calling thread is counted and the exception
+ * passed on. Failures on other threads, such as pipeline writers or
+ * asynchronous inserts, are counted by the sinks that see them.
+ *
+ * @author Jason Foster
+ *
+ */
+public class MeteredSink extends ForwardingDataSink {
+    private final AtomicLongArray rows = new AtomicLongArray(
+            Table.values().length);
+    private final AtomicLong errors = new AtomicLong();
+    private volatile RateLimiter limiter;
+
+    public MeteredSink(DataSink delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        RateLimiter current = limiter;
+        if (current != null) {
+            current.acquire();
+        }
+        try {
+            delegate.write(table, values);
+        } catch (RuntimeException rex) {
+            errors.incrementAndGet();
+            throw rex;
+        }
+        rows.incrementAndGet(table.ordinal());
+    }
+
+    /**
+     * @param table
+     *            table to count rows for
+     * @return number of rows written to the table
+     */
+    public long getRows(Table table) {
+        return rows.get(table.ordinal());
+    }
+
+    /**
+     * @return number of rows written to every table
+     */
+    public long getRows() {
+        long total = 0;
+        for (int i = 0; i < rows.length(); i++) {
+            total += rows.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return number of writes that failed on the calling thread
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the target rate, or 0 if writes aren't limited
+     */
+    public double getRowsPerSecond() {
+        RateLimiter current = limiter;
+        return current == null ? 0 : current.getRate();
+    }
+
+    /**
+     * @param rowsPerSecond
+     *            rate to hold writes to, or 0 to stop limiting them
+     */
+    public synchronized void setRowsPerSecond(double rowsPerSecond) {
+        if (rowsPerSecond <= 0) {
+            limiter = null;
+        } else if (limiter == null) {
+            limiter = RateLimiter.create(rowsPerSecond);
+        } else {
+            limiter.setRate(rowsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This enumeration lists the changes the mutation workload makes to rows
+ * that have already been loaded.
+ * <ul>
+ * <li>OVERWRITE_DEMOGRAPHICS rewrites a patient's demographics with a new
+ * address, as when a patient moves.</li>
+ * <li>OVERWRITE_SCREENING rewrites a patient's screening flags.</li>
+ * <li>CORRECT_RESULT rewrites a lab result with a corrected value and a
+ * result source of CORRECTED.</li>
+ * <li>DELETE_ENCOUNTER and DELETE_RESULT delete an encounter or a lab
+ * result.</li>
+ * </ul>
+ * Each keeps whole rows of its source table in the KeyCatalog, so changed
+ * rows can be written, and deleted rows deleted, through the same sinks as
+ * the load and land in the same tables for the schema profile.
+ *
+ * @author Jason Foster
+ *
+ */
+public enum MutationType implements KeySource {
+    OVERWRITE_DEMOGRAPHICS(Table.PATIENT_DEMOGRAPHICS, false),
+    OVERWRITE_SCREENING(Table.PATIENT_SCREENING, false),
+    CORRECT_RESULT(Table.PATIENT_RESULTS, false),
+    DELETE_ENCOUNTER(Table.PATIENT_ENCOUNTERS, true),
+    DELETE_RESULT(Table.PATIENT_RESULTS, true);
+
+    private final Table source;
+    private final boolean delete;
+    private final List<String> columns;
+
+    MutationType(Table source, boolean delete) {
+        this.source = source;
+        this.delete = delete;
+        List<String> names = new ArrayList<String>();
+        for (Column column : source.getColumns()) {
+            names.add(column.getName());
+        }
+        this.columns = Collections.unmodifiableList(names);
+    }
+
+    @Override
+    public Table getSource() {
+        return source;
+    }
+
+    /**
+     * @return every column of the source table, so the whole row is kept
+     */
+    @Override
+    public List<String> getKeyColumns() {
+        return columns;
+    }
+
+    /**
+     * @return true if the mutation deletes rows rather than writing them
+     */
+    public boolean isDelete() {
+        return delete;
+    }
+}
@@ -0,0 +1,229 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class churns data that has already been loaded, so that overwrites,
+ * tombstones and the compactions they cause can be tested alongside inserts
+ * and reads. Mutations are drawn from a weighted mix of the MutationTypes and
+ * applied to rows sampled into a KeyCatalog during the load, at a rate set by
+ * a RampProfile.<br>
+ * <br>
+ * Changed rows are written through a sink and deleted rows through a sink
+ * that deletes, both normally wrapped in the sinks for the schema profile so
+ * that bucketed and lookup copies are changed too. Giving the writing sink a
+ * time to live makes every rewritten row expire.<br>
+ * <br>
+ * Like the continuous ingest, mutations are laid out on a FixedRateSchedule
+ * and their latency is measured from when they were due. It is meant to run
+ * on a thread of its own while a load is going on, and stop() ends it. A
+ * sampled row can be mutated more than once, so later mutations can land on
+ * rows that have already been deleted, as they would in production.
+ *
+ * @author Jason Foster
+ *
+ */
+public class MutationWorkload {
+    private static final MutationType[] TYPES = MutationType.values();
+
+    private final DataSink writeSink;
+    private final DataSink deleteSink;
+    private final KeyCatalog keys;
+    private final DataGenerator generator;
+    private final double[] weights;
+    private final AliasTable mix;
+    private final RampProfile profile;
+    private final int threads;
+
+    private final LatencyHistogram[][] histograms;
+    private final AtomicLongArray errors = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray skipped = new AtomicLongArray(TYPES.length);
+    private volatile FixedRateSchedule schedule;
+    private long elapsedNanos;
+
+    // Positions of the columns the mutations change
+    private final int demoCity = Table.PATIENT_DEMOGRAPHICS.indexOf("city");
+    private final int demoState = Table.PATIENT_DEMOGRAPHICS.indexOf("state_or_province");
+    private final int demoZip = Table.PATIENT_DEMOGRAPHICS.indexOf("zip_code");
+    private final int demoLoadDate = Table.PATIENT_DEMOGRAPHICS.indexOf("load_date");
+    private final int screeningFirstFlag = Table.PATIENT_SCREENING.indexOf("bmi_screening");
+    private final int resultValue = Table.PATIENT_RESULTS.indexOf("result_value");
+    private final int resultSource = Table.PATIENT_RESULTS.indexOf("result_source");
+    private final int resultLoadDate = Table.PATIENT_RESULTS.indexOf("load_date");
+
+    /**
+     * Creates a new workload
+     *
+     * @param writeSink
+     *            sink changed rows are written to
+     * @param deleteSink
+     *            sink deleting the rows written to it
+     * @param keys
+     *            catalog keeping rows of every MutationType
+     * @param generator
+     *            generator for the changed values
+     * @param weights
+     *            weight of each mutation in the mix, by MutationType ordinal
+     * @param profile
+     *            rate of mutations over time
+     * @param threads
+     *            number of threads applying mutations
+     */
+    public MutationWorkload(DataSink writeSink, DataSink deleteSink,
+            KeyCatalog keys, DataGenerator generator, double[] weights,
+            RampProfile profile, int threads) {
+        if (weights.length != TYPES.length) {
+            throw new IllegalArgumentException("A weight is needed for each of "
+                    + TYPES.length + " mutations");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.writeSink = writeSink;
+        this.deleteSink = deleteSink;
+        this.keys = keys;
+        this.generator = generator;
+        this.weights = weights.clone();
+        this.mix = new AliasTable(weights);
+        this.profile = profile;
+        this.threads = threads;
+        this.histograms = new LatencyHistogram[threads][TYPES.length];
+        for (int t = 0; t < threads; t++) {
+            for (int m = 0; m < TYPES.length; m++) {
+                histograms[t][m] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Applies mutations until the end of the profile or until stop() is
+     * called. A mutation that comes due before any row of its type has been
+     * loaded is skipped.
+     */
+    public void run() {
+        final FixedRateSchedule current = new FixedRateSchedule(profile);
+        schedule = current;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final LatencyHistogram[] mine = histograms[t];
+            workers[t] = new Thread("mutation-worker-" + (t + 1)) {
+                @Override
+                public void run() {
+                    Random rng = new Random();
+                    long due;
+                    while ((due = current.next()) >= 0 && current.await(due)) {
+                        MutationType type = TYPES[mix.sample(rng)];
+                        Object[] row = keys.sample(type, rng);
+                        if (row == null) {
+                            skipped.incrementAndGet(type.ordinal());
+                            continue;
+                        }
+                        try {
+                            apply(type, row, rng);
+                            mine[type.ordinal()].record(System.nanoTime()
+                                    - due);
+                        } catch (RuntimeException rex) {
+                            if (errors.getAndIncrement(type.ordinal()) == 0) {
+                                System.out.println(type + " failed: "
+                                        + rex.getMessage());
+                            }
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+                current.stop();
+            }
+        }
+        elapsedNanos = System.nanoTime() - current.getStartNanos();
+    }
+
+    /**
+     * Stops the workload once the mutations in progress are done
+     */
+    public void stop() {
+        FixedRateSchedule current = schedule;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * Applies one mutation to a copy of a sampled row
+     */
+    void apply(MutationType type, Object[] sampled, Random rng) {
+        Object[] row = sampled.clone();
+        switch (type) {
+        case OVERWRITE_DEMOGRAPHICS:
+            ZipData address = generator.generateRandomZipData();
+            row[demoCity] = address.getCity();
+            row[demoState] = address.getState();
+            row[demoZip] = address.getZipCode();
+            row[demoLoadDate] = new Date();
+            writeSink.write(type.getSource(), row);
+            break;
+        case OVERWRITE_SCREENING:
+            for (int i = screeningFirstFlag; i < row.length; i++) {
+                row[i] = generator.generateRandomBoolean() ? 1 : 0;
+            }
+            writeSink.write(type.getSource(), row);
+            break;
+        case CORRECT_RESULT:
+            // Corrections move the value by up to 10% either way
+            double value = ((Number) row[resultValue]).doubleValue();
+            row[resultValue] = Math.round(value
+                    * (0.9 + 0.2 * rng.nextDouble()) * 100.0) / 100.0;
+            row[resultSource] = "CORRECTED";
+            row[resultLoadDate] = new Date();
+            writeSink.write(type.getSource(), row);
+            break;
+        default:
+            deleteSink.write(type.getSource(), row);
+            break;
+        }
+    }
+
+    /**
+     * Returns the throughput, errors and latency percentiles of each type of
+     * mutation, suitable for printing at the end of a run
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        LatencyHistogram all = new LatencyHistogram();
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format(
+                "Mutations with profile %s on %d threads for %.1f s", profile,
+                threads, seconds));
+        for (MutationType type : TYPES) {
+            if (weights[type.ordinal()] <= 0) {
+                continue;
+            }
+            LatencyHistogram latencies = new LatencyHistogram();
+            for (LatencyHistogram[] mine : histograms) {
+                latencies.add(mine[type.ordinal()]);
+            }
+            all.add(latencies);
+            sb.append(String.format(
+                    "%n  %s: %d done, %.1f/s, %d errors, %d skipped, %s",
+                    type, latencies.getCount(), seconds == 0 ? 0.0
+                            : latencies.getCount() / seconds,
+                    errors.get(type.ordinal()), skipped.get(type.ordinal()),
+                    latencies.summary()));
+        }
+        sb.append(String.format("%n  All: %d done, %.1f/s, %s",
+                all.getCount(), seconds == 0 ? 0.0 : all.getCount() / seconds,
+                all.summary()));
+        return sb.toString();
+    }
+}
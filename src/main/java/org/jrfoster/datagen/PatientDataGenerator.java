@@ -1,11 +1,23 @@
 package org.jrfoster.datagen;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
-import org.joda.time.DateTime;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
@@ -42,24 +54,245 @@ import com.datastax.driver.core.exceptions.NoHostAvailableException;
 public class PatientDataGenerator {
     private static final String KEYSPACE_NAME = "ads";
     private static final int NUMBER_OF_PATIENTS = 1000;
-    private static final double PERCENT_ABNORMAL_RESULT = .33;
     private static final int MEASUREMENT_PERIOD_YEAR = 2014;
+    private static final Settings SETTINGS = Settings.load();
+    private static final double PERCENT_ABNORMAL_RESULT = SETTINGS.getDouble(
+            "results.percent.abnormal", .33);
+
+    // Each strategy claims abnormal result decisions in blocks of this many,
+    // which keeps generating threads from contending over a shared counter
+    private static final int ABNORMAL_BLOCK_SIZE = SETTINGS.getInt(
+            "results.abnormal.block.size", 256);
+
+    // The schema profile decides whether secondary indexes are maintained
+    // during the load or built once the load has finished
+    private static final boolean CREATE_SCHEMA = SETTINGS.getBoolean(
+            "schema.create", false);
+    private static final SchemaProfile SCHEMA_PROFILE = SETTINGS.getEnum(
+            "schema.profile", SchemaProfile.class, SchemaProfile.INLINE_INDEXES);
+    private static final long INDEX_BUILD_TIMEOUT_MS = SETTINGS.getLong(
+            "schema.index.build.timeout.ms", 3600000L);
+    private static final double RESULT_VALUE_BUCKET_WIDTH = SETTINGS.getDouble(
+            "schema.query.tables.value.bucket.width", 10.0);
+    private static final int TIME_BUCKET_WIDTH_DAYS = SETTINGS.getInt(
+            "schema.time.bucket.width.days", 365);
+
+    // Draw names, codes and zip codes by their real-world weights rather than
+    // uniformly
+    private static final boolean SAMPLING_WEIGHTED = SETTINGS.getBoolean(
+            "sampling.weighted", true);
+
+    // Coding systems diagnoses and procedures are drawn from, out of those in
+    // the code catalog
+    private static final String CODE_SYSTEMS = SETTINGS.getString(
+            "codes.systems", "I9,SNM");
 
     // For a simple page that gives zip code ranges, use the following link
     // http://www.empyrean.net/zipcodes.htm
     private static final boolean USE_ZIP_RANGE = true;
     private ZipRange zipRange = ZipRange.CT;
+
+    // When facility locations are given, patients live within a radius of one
+    // of the facilities instead of in the zip range above
+    private static final String SERVICE_AREA = SETTINGS.getString(
+            "zip.service.area", null);
+    private static final double SERVICE_AREA_RADIUS_MILES = SETTINGS
+            .getDouble("zip.service.area.radius.miles", 25.0);
+    private ServiceArea serviceArea;
+
+    // Patients can be generated on several threads, and the rows handed off
+    // to a separate pool of writer threads through a ring buffer so that
+    // generation and writing overlap
+    private static final int GENERATOR_THREADS = SETTINGS.getInt(
+            "load.generator.threads", 1);
+    private static final boolean PIPELINE_ENABLED = SETTINGS.getBoolean(
+            "pipeline.enabled", false);
+    private static final int PIPELINE_CAPACITY = SETTINGS.getInt(
+            "pipeline.capacity", 8192);
+    private static final int PIPELINE_WRITER_THREADS = SETTINGS.getInt(
+            "pipeline.writer.threads", 4);
+    private static final BackpressurePolicy PIPELINE_BACKPRESSURE = SETTINGS
+            .getEnum("pipeline.backpressure", BackpressurePolicy.class,
+                    BackpressurePolicy.BLOCK);
+
+    // Instead of one buffer for every row, each destination table can be
+    // given a lane of its own, with its own buffer, writers and backpressure,
+    // so slow tables don't hold up fast ones
+    private static final boolean LANES_ENABLED = SETTINGS.getBoolean(
+            "lanes.enabled", false);
+    private static final int LANES_CAPACITY = SETTINGS.getInt(
+            "lanes.capacity", 4096);
+    private static final int LANES_WRITER_THREADS = SETTINGS.getInt(
+            "lanes.writer.threads", 2);
+    private static final String LANES_WRITERS = SETTINGS.getString(
+            "lanes.writers", null);
+    private static final BackpressurePolicy LANES_BACKPRESSURE = SETTINGS
+            .getEnum("lanes.backpressure", BackpressurePolicy.class,
+                    BackpressurePolicy.BLOCK);
+
+    // How patients are spread across threads and how writes are issued. The
+    // virtual thread and async modes bound the writes in flight, and the
+    // virtual thread mode runs each batch of patients as its own thread.
+    private static final ExecutionMode EXECUTION_MODE = SETTINGS.getEnum(
+            "load.execution.mode", ExecutionMode.class,
+            ExecutionMode.THREAD_POOL);
+    private static final int MAX_IN_FLIGHT = SETTINGS.getInt(
+            "load.max.in.flight", 256);
+    private static final int PATIENT_BATCH_SIZE = SETTINGS.getInt(
+            "load.batch.size", 16);
+    private static final int MAX_TASKS = SETTINGS.getInt("load.max.tasks",
+            256);
+
+    // Tables to load, all of them when not set. Rows for the other tables
+    // are never generated.
+    private static final Set<Table> LOAD_TABLES = parseTables(SETTINGS
+            .getString("load.tables", null));
+
+    // The load can be watched and tuned over JMX while it runs, and held to
+    // a target rate of rows per second from the start
+    private static final boolean JMX_ENABLED = SETTINGS.getBoolean(
+            "jmx.enabled", true);
+    private static final double ROWS_PER_SECOND = SETTINGS.getDouble(
+            "load.rows.per.second", 0.0);
+
+    // Instead of a bulk load, new encounters can be fed for the patients at a
+    // rate following a ramp profile, to test a real-time ingest path
+    private static final boolean INGEST_ENABLED = SETTINGS.getBoolean(
+            "ingest.enabled", false);
+    private static final boolean INGEST_PRELOAD = SETTINGS.getBoolean(
+            "ingest.preload", true);
+    private static final String INGEST_PROFILE = SETTINGS.getString(
+            "ingest.profile", "0:10,60:10");
+    private static final int INGEST_THREADS = SETTINGS.getInt(
+            "ingest.threads", 4);
+    private static final long INGEST_REPORT_INTERVAL_MS = SETTINGS.getLong(
+            "ingest.report.interval.ms", 10000L);
+    private static final long INGEST_SHUTDOWN_TIMEOUT_MS = SETTINGS.getLong(
+            "ingest.shutdown.timeout.ms", 30000L);
+
+    // After the load, the read side can be benchmarked with a mix of queries
+    // for keys sampled from the rows written
+    private static final boolean READ_ENABLED = SETTINGS.getBoolean(
+            "read.enabled", false);
+    private static final String READ_MIX = SETTINGS.getString("read.mix",
+            "RESULTS_BY_PATIENT:40,ENCOUNTERS_BY_DATE_RANGE:25,"
+                    + "PATIENTS_BY_ZIP:10,BENEFICIARY_BY_HICNO:10,"
+                    + "RANKING_BY_HICNO:15");
+    private static final int READ_THREADS = SETTINGS.getInt("read.threads", 8);
+    private static final long READ_DURATION_MS = SETTINGS.getLong(
+            "read.duration.ms", 60000L);
+    private static final int READ_KEYS_SAMPLE_SIZE = SETTINGS.getInt(
+            "read.keys.sample.size", 100000);
+    private static final int READ_ENCOUNTER_RANGE_DAYS = SETTINGS.getInt(
+            "read.encounter.range.days", 90);
+
+    // While the load or ingest runs, rows already written can be overwritten,
+    // corrected and deleted at a rate following a ramp profile
+    private static final boolean MUTATION_ENABLED = SETTINGS.getBoolean(
+            "mutation.enabled", false);
+    private static final String MUTATION_PROFILE = SETTINGS.getString(
+            "mutation.profile", "0:10");
+    private static final String MUTATION_MIX = SETTINGS.getString(
+            "mutation.mix", "OVERWRITE_DEMOGRAPHICS:20,OVERWRITE_SCREENING:20,"
+                    + "CORRECT_RESULT:30,DELETE_ENCOUNTER:15,DELETE_RESULT:15");
+    private static final int MUTATION_THREADS = SETTINGS.getInt(
+            "mutation.threads", 2);
+    private static final int MUTATION_TTL_SECONDS = SETTINGS.getInt(
+            "mutation.ttl.seconds", 0);
+    private static final int MUTATION_KEYS_SAMPLE_SIZE = SETTINGS.getInt(
+            "mutation.keys.sample.size", 100000);
+
+    // Ground truth for the quality measures can be counted as the patients
+    // are generated and written out as rollup files once the load is done
+    private static final String MEASURES_ROLLUP_DIR = SETTINGS.getString(
+            "measures.rollup.dir", null);
+
+    // Rows can be held back and replayed in order of event time across the
+    // whole load, spilling sorted runs to disk to keep memory bounded
+    private static final boolean STREAM_ENABLED = SETTINGS.getBoolean(
+            "stream.enabled", false);
+    private static final String STREAM_SPILL_DIR = SETTINGS.getString(
+            "stream.spill.dir", System.getProperty("java.io.tmpdir"));
+    private static final int STREAM_RUN_ROWS = SETTINGS.getInt(
+            "stream.run.rows", 100000);
+    private static final long STREAM_MAX_BUFFERED_ROWS = SETTINGS.getLong(
+            "stream.max.buffered.rows", 1000000L);
+    private static final int STREAM_MERGE_FAN_IN = SETTINGS.getInt(
+            "stream.merge.fan.in", 64);
+
+    // Rows can also be written to a relational database over JDBC, in
+    // batches on a connection for each writing thread
+    private static final String JDBC_URL = SETTINGS.getString("jdbc.url",
+            null);
+    private static final String JDBC_USER = SETTINGS.getString("jdbc.user",
+            null);
+    private static final String JDBC_PASSWORD = SETTINGS.getString(
+            "jdbc.password", null);
+    private static final int JDBC_BATCH_SIZE = SETTINGS.getInt(
+            "jdbc.batch.size", 1000);
+    private static final int JDBC_ROWS_PER_STATEMENT = SETTINGS.getInt(
+            "jdbc.rows.per.statement", 1);
+    private static final int JDBC_CONNECTIONS = SETTINGS.getInt(
+            "jdbc.connections", 8);
+    private static final boolean JDBC_CREATE_TABLES = SETTINGS.getBoolean(
+            "jdbc.create.tables", true);
+
+    // Every key issued can be kept in memory-mapped files for later runs,
+    // either starting afresh or carrying on from an earlier load
+    private static final String KEYS_CATALOG_DIR = SETTINGS.getString(
+            "keys.catalog.dir", null);
+    private static final boolean KEYS_CATALOG_APPEND = SETTINGS.getBoolean(
+            "keys.catalog.append", false);
+
+    // Instead of loading, a sample of patients can be generated without
+    // writing anything to estimate the rows, bytes and time of a full load
+    private static final boolean ESTIMATE_ENABLED = SETTINGS.getBoolean(
+            "estimate.enabled", false);
+    private static final long ESTIMATE_POPULATION = SETTINGS.getLong(
+            "estimate.population", NUMBER_OF_PATIENTS);
+    private static final int ESTIMATE_SAMPLE_SIZE = SETTINGS.getInt(
+            "estimate.sample.size", 10000);
+    private static final double ESTIMATE_SINK_ROWS_PER_SECOND = SETTINGS
+            .getDouble("estimate.sink.rows.per.second", 0.0);
+
+    // A LoadCoordinator can run the load across several JVMs, each loading a
+    // slice of the patients with its own slice of the patient ids and uid
+    // sequences, and reporting its progress to the coordinator
+    private static final int WORKER_SLICE_INDEX = SETTINGS.getInt(
+            "worker.slice.index", 0);
+    private static final int WORKER_SLICE_COUNT = SETTINGS.getInt(
+            "worker.slice.count", 1);
+    private static final int SLICE_PATIENTS = (int) ((long) NUMBER_OF_PATIENTS
+            * (WORKER_SLICE_INDEX + 1) / WORKER_SLICE_COUNT - (long) NUMBER_OF_PATIENTS
+            * WORKER_SLICE_INDEX / WORKER_SLICE_COUNT);
+    private static final String COORDINATOR_ADDRESS = SETTINGS.getString(
+            "coordinator.address", null);
+    private static final long WORKER_REPORT_INTERVAL_MS = SETTINGS.getLong(
+            "worker.report.interval.ms", 1000L);
     
     private Date loadDate = new Date();
     private Cluster cluster;
     private Session session;
-    private DataGenerator generator = new DataGenerator(NUMBER_OF_PATIENTS, 16);
-    private DateTime minBirthDate = new DateTime(1915, 1, 1, 0, 0, 0, 000);
-    private DateTime maxBirthDate = new DateTime(1999, 12, 31, 23, 59, 59, 999);
-    private EncounterDataStrategy diabetesStrategy = null;
-    private EncounterDataStrategy ischemiaStrategy = null;
-    private EncounterDataStrategy careStrategy = null;
-    private EncounterDataStrategy prevStrategy = null;
+    private SchemaManager schemaManager;
+    private DataSink sink;
+    private DataGenerator generator = new DataGenerator(NUMBER_OF_PATIENTS, 16,
+            SAMPLING_WEIGHTED);
+    private PipelinedSink pipeline;
+    private LanedSink lanes;
+    private EventStreamSink stream;
+    private JdbcDataSink jdbc;
+    private AsyncCqlDataSink asyncSink;
+    private AdjustableLimit inFlight;
+    private LoadControl control;
+    private KeyCatalog keys;
+    private MutationWorkload mutations;
+    private Thread mutationThread;
+    private AbnormalRatioController abnormal = new AbnormalRatioController(
+            PERCENT_ABNORMAL_RESULT, ABNORMAL_BLOCK_SIZE);
+    private ReadmissionRiskAggregator readmission;
+    private MeasureRollup measures;
+    // Loaders that gave up on their patients because of an error
+    private final AtomicInteger failedLoaders = new AtomicInteger();
     
 
     private void connect(String node) {
@@ -75,280 +308,563 @@ public class PatientDataGenerator {
 
         // Create and initialize a new session on the cluster
         session = cluster.connect();
+        schemaManager = new SchemaManager(cluster, session, KEYSPACE_NAME,
+                SCHEMA_PROFILE, INDEX_BUILD_TIMEOUT_MS);
         
-        // Now that we have a session we can create our data generation strategies
-        diabetesStrategy = new DiabetesDataStrategy(
-                KEYSPACE_NAME, session, generator, PERCENT_ABNORMAL_RESULT, loadDate);
-        ischemiaStrategy = new IVDDataStrategy(
-                KEYSPACE_NAME, session, generator, PERCENT_ABNORMAL_RESULT, loadDate);
-        careStrategy = new CareDataStrategy(
-                KEYSPACE_NAME, session, generator, PERCENT_ABNORMAL_RESULT, loadDate);
-        prevStrategy = new PrevDataStrategy(
-                KEYSPACE_NAME, session, generator, PERCENT_ABNORMAL_RESULT, loadDate);
+        // Now that we have a session we can create the sink all rows are
+        // written to, the strategies are created per thread by the loaders
+        sink = createSink();
+        if (JDBC_URL != null) {
+            jdbc = new JdbcDataSink(JDBC_URL, JDBC_USER, JDBC_PASSWORD,
+                    JDBC_BATCH_SIZE, JDBC_ROWS_PER_STATEMENT, JDBC_CONNECTIONS);
+            if (JDBC_CREATE_TABLES) {
+                jdbc.createTables(LOAD_TABLES);
+            }
+            sink = new TeeSink(sink, jdbc);
+            System.out.println("Also writing rows to " + JDBC_URL
+                    + " in batches of " + JDBC_BATCH_SIZE + " on up to "
+                    + JDBC_CONNECTIONS + " connections");
+        }
+        if (STREAM_ENABLED) {
+            if (MUTATION_ENABLED) {
+                // The stream replays rows after the mutations have changed
+                // them, undoing the changes
+                throw new IllegalStateException("stream.enabled and"
+                        + " mutation.enabled can't be used together");
+            }
+            stream = new EventStreamSink(sink, new File(STREAM_SPILL_DIR),
+                    STREAM_RUN_ROWS, STREAM_MAX_BUFFERED_ROWS,
+                    STREAM_MERGE_FAN_IN);
+            sink = stream;
+            System.out.println("Streaming rows in event time order, spilling"
+                    + " runs of " + STREAM_RUN_ROWS + " rows to "
+                    + STREAM_SPILL_DIR);
+        }
+        if (PIPELINE_ENABLED) {
+            pipeline = new PipelinedSink(sink, PIPELINE_CAPACITY,
+                    PIPELINE_WRITER_THREADS, PIPELINE_BACKPRESSURE);
+            sink = pipeline;
+            System.out.println("Using pipeline of " + PIPELINE_CAPACITY
+                    + " rows with " + PIPELINE_WRITER_THREADS
+                    + " writers and " + PIPELINE_BACKPRESSURE
+                    + " backpressure");
+        }
+        if (READ_ENABLED || MUTATION_ENABLED) {
+            List<KeySource> sources = new ArrayList<KeySource>();
+            int sampleSize = 1;
+            if (READ_ENABLED) {
+                sources.addAll(Arrays.asList(ReadQuery.values()));
+                sampleSize = Math.max(sampleSize, READ_KEYS_SAMPLE_SIZE);
+            }
+            if (MUTATION_ENABLED) {
+                sources.addAll(Arrays.asList(MutationType.values()));
+                sampleSize = Math.max(sampleSize, MUTATION_KEYS_SAMPLE_SIZE);
+            }
+            keys = new KeyCatalog(sink, sampleSize,
+                    sources.toArray(new KeySource[sources.size()]));
+            sink = keys;
+        }
+        MeteredSink metered = new MeteredSink(sink);
+        metered.setRowsPerSecond(ROWS_PER_SECOND);
+        sink = metered;
+        control = new LoadControl(metered, abnormal,
+                EXECUTION_MODE == ExecutionMode.VIRTUAL_THREADS ? SLICE_PATIENTS
+                        : Math.max(1, GENERATOR_THREADS), inFlight, pipeline,
+                lanes, asyncSink);
+        if (JMX_ENABLED) {
+            control.register();
+            System.out.println("Load control registered as "
+                    + LoadControl.OBJECT_NAME);
+        }
+        if (LOAD_TABLES.contains(Table.PAT_READMISSION_RISK)
+                || LOAD_TABLES.contains(Table.READMISSION_STRATIFICATION)
+                || LOAD_TABLES.contains(Table.METRICS)) {
+            readmission = new ReadmissionRiskAggregator(
+                    LOAD_TABLES.contains(Table.PAT_READMISSION_RISK));
+        }
+        if (MEASURES_ROLLUP_DIR != null) {
+            measures = new MeasureRollup(CodeCatalog.getInstance(),
+                    MEASUREMENT_PERIOD_YEAR);
+        }
+        configureGenerator();
+        if (WORKER_SLICE_COUNT > 1) {
+            generator.setSlice(WORKER_SLICE_INDEX, WORKER_SLICE_COUNT);
+            System.out.println("Loading slice " + WORKER_SLICE_INDEX + " of "
+                    + WORKER_SLICE_COUNT + ", " + SLICE_PATIENTS + " patients");
+        }
+        if (KEYS_CATALOG_DIR != null) {
+            // The key files are only safe to share between threads, so each
+            // worker of a sliced load keeps its own
+            File keysDir = WORKER_SLICE_COUNT > 1 ? new File(KEYS_CATALOG_DIR,
+                    "worker-" + WORKER_SLICE_INDEX) : new File(
+                    KEYS_CATALOG_DIR);
+            try {
+                generator.setEntityCatalog(new EntityCatalog(keysDir,
+                        KEYS_CATALOG_APPEND));
+            } catch (IOException ioex) {
+                throw new IllegalStateException(
+                        "Unable to open the key catalog in " + keysDir, ioex);
+            }
+            System.out.println("Keeping keys in "
+                    + generator.getEntityCatalog());
+        }
+    }
+
+    /**
+     * Sets up the generator for the fan-out profile, coding systems and
+     * service area of the load
+     */
+    private void configureGenerator() {
+        generator.setFanoutProfile(FanoutProfile.fromSettings(SETTINGS));
+        generator.setCodeSystems(Arrays.asList(CODE_SYSTEMS
+                .split("\\s*,\\s*")));
+        System.out.println("Using coding systems " + CODE_SYSTEMS);
+        System.out.println("Using fan-out profile "
+                + generator.getFanoutProfile());
+        if (SERVICE_AREA != null) {
+            double[][] facilities = ServiceArea.parseLocations(SERVICE_AREA);
+            serviceArea = generator.createServiceArea(facilities[0],
+                    facilities[1], SERVICE_AREA_RADIUS_MILES,
+                    SAMPLING_WEIGHTED);
+            System.out.println("Using service area of " + serviceArea);
+        }
+    }
+
+    private void estimate() {
+        // The sample is generated through the real loader, and through the
+        // rewriting sinks of the schema profile, into a sink that only
+        // measures the rows. The generator is sized for the sample so the
+        // rankings don't run out.
+        generator = new DataGenerator(ESTIMATE_SAMPLE_SIZE, 16,
+                SAMPLING_WEIGHTED);
+        configureGenerator();
+        SizingSink sizing = new SizingSink();
+        sink = wrapForProfile(sizing);
+        if (LOAD_TABLES.contains(Table.PAT_READMISSION_RISK)) {
+            readmission = new ReadmissionRiskAggregator(true);
+        }
+        LoadEstimator estimator = new LoadEstimator(sizing,
+                ESTIMATE_POPULATION);
+        System.out.print("Sampling " + ESTIMATE_SAMPLE_SIZE + " patients....");
+        PatientLoader loader = createLoader();
+        estimator.sample(loader, new PatientPopulation(generator,
+                ESTIMATE_SAMPLE_SIZE, USE_ZIP_RANGE ? zipRange : null,
+                serviceArea));
+        loader.finish();
+        System.out.println("complete!");
+        System.out.println(estimator.report(GENERATOR_THREADS,
+                ESTIMATE_SINK_ROWS_PER_SECOND));
     }
 
-    @SuppressWarnings("unused")
-    private void createSchema() {
-        if (createKeyspace()) {
-            createColumnFamilies();
+    private PatientLoader createLoader() {
+        return new PatientLoader(sink, generator, abnormal, readmission,
+                measures, loadDate, MEASUREMENT_PERIOD_YEAR, LOAD_TABLES);
+    }
+
+    private PatientPopulation createPopulation() {
+        return new PatientPopulation(generator, SLICE_PATIENTS,
+                USE_ZIP_RANGE ? zipRange : null, serviceArea);
+    }
+
+    private static Set<Table> parseTables(String names) {
+        if (names == null) {
+            return EnumSet.allOf(Table.class);
+        }
+        Set<Table> tables = EnumSet.noneOf(Table.class);
+        for (String name : names.split(",")) {
+            tables.add(Table.valueOf(name.trim().toUpperCase()));
         }
+        return tables;
     }
 
-    private boolean createKeyspace() {
-        if (cluster.getMetadata().getKeyspace(KEYSPACE_NAME) != null) {
-            return false;
+    private DataSink createSink() {
+        DataSink cqlSink;
+        switch (EXECUTION_MODE) {
+        case ASYNC:
+            asyncSink = new AsyncCqlDataSink(session, KEYSPACE_NAME,
+                    MAX_IN_FLIGHT);
+            inFlight = asyncSink.getInFlightLimit();
+            cqlSink = asyncSink;
+            break;
+        case VIRTUAL_THREADS:
+            BoundedSink bounded = new BoundedSink(new CqlDataSink(session,
+                    KEYSPACE_NAME), MAX_IN_FLIGHT);
+            inFlight = bounded.getInFlightLimit();
+            cqlSink = bounded;
+            break;
+        default:
+            cqlSink = new CqlDataSink(session, KEYSPACE_NAME);
+            break;
+        }
+        if (LANES_ENABLED) {
+            // The lanes sit under the profile's rewriting so that lookup and
+            // bucketed rows go to the lanes of the tables they are written to
+            lanes = new LanedSink(cqlSink, LANES_CAPACITY,
+                    LanedSink.parseWriters(LANES_WRITER_THREADS, LANES_WRITERS),
+                    LANES_BACKPRESSURE);
+            cqlSink = lanes;
+            System.out.println("Using a lane per table of " + LANES_CAPACITY
+                    + " rows with " + LANES_WRITER_THREADS + " writers"
+                    + (LANES_WRITERS == null ? "" : ", " + LANES_WRITERS));
         }
+        return wrapForProfile(cqlSink);
+    }
 
-        StringBuffer ddl = new StringBuffer();
-        ddl.append("CREATE KEYSPACE ").append(KEYSPACE_NAME)
-                .append(" WITH REPLICATION = ")
-                .append("{'class':'SimpleStrategy', 'replication_factor':3};");
+    /**
+     * Wraps a CQL sink in the sink that rewrites rows for the schema profile,
+     * if the profile needs one
+     */
+    private DataSink wrapForProfile(DataSink cqlSink) {
+        switch (SCHEMA_PROFILE) {
+        case QUERY_TABLES:
+            return new QueryTableSink(cqlSink, RESULT_VALUE_BUCKET_WIDTH);
+        case TIME_BUCKETED:
+            return new TimeBucketSink(cqlSink, TIME_BUCKET_WIDTH_DAYS);
+        default:
+            return cqlSink;
+        }
+    }
 
-        session.execute(ddl.toString());
-        return true;
+    private boolean createSchema() {
+        return schemaManager.createSchema();
     }
 
-    private void createColumnFamilies() {
-        StringBuffer ddl = new StringBuffer();
-
-        // Patient table which holds basic demographics and social information
-        ddl.append("create table ").append(KEYSPACE_NAME).append(".patient (")
-                .append("patient_id int,").append("patient_name varchar,")
-                .append("age int,").append("gender varchar,")
-                .append("payor varchar,").append("zip_code varchar,")
-                .append("aspirin_use boolean,").append("tobacco_use boolean,")
-                .append("primary key (patient_id));");
-        session.execute(ddl.toString());
-
-        // Patient results table which holds results of lab tests
-        ddl.setLength(0);
-        ddl.append("create table ")
-                .append(KEYSPACE_NAME)
-                .append(".pat_results (")
-                .append("patient_id int,")
-                .append("test_name varchar,")
-                .append("test_date timestamp,")
-                .append("test_value double, ")
-                .append("primary key (patient_id, test_name, test_date)) ")
-                .append("with clustering order by (test_name asc, test_date desc);");
-        session.execute(ddl.toString());
-
-        // Encounters table which holds some rudimentary encounter data
-        ddl.setLength(0);
-        ddl.append("create table ").append(KEYSPACE_NAME)
-                .append(".pat_encounters (").append("patient_id int,")
-                .append("admission_date timestamp,")
-                .append("encounter_id int,").append("admission_type text,")
-                .append("discharge_date timestamp, ")
-                .append("length_of_stay int,")
-                .append("primary key (patient_id, admission_date)) ")
-                .append("with clustering order by (admission_date desc);");
-        session.execute(ddl.toString());
-
-        // Patient readmission risk table
-        ddl.setLength(0);
-        ddl.append("create table ").append(KEYSPACE_NAME)
-                .append(".pat_readmission_risk (").append("patient_id int,")
-                .append("score int,").append("primary key (patient_id))");
-        session.execute(ddl.toString());
-
-        // Readmission risk stratification table
-        ddl.setLength(0);
-        ddl.append("create table ").append(KEYSPACE_NAME)
-                .append(".readmission_stratification (").append("score int,")
-                .append("count int,").append("primary key (score))");
-        session.execute(ddl.toString());
-
-        // Metric table for calculating various metrics
-        ddl.setLength(0);
-        ddl.append("create table ").append(KEYSPACE_NAME).append(".metrics (")
-                .append("moniker text,").append("value int,")
-                .append("primary key (moniker))");
-        session.execute(ddl.toString());
-
-        // Create all secondary indexes to support queries
-        session.execute("create index patient_gender on " + KEYSPACE_NAME
-                + ".patient(gender);");
-        session.execute("create index patient_zip on " + KEYSPACE_NAME
-                + ".patient(zip_code);");
-        session.execute("create index patient_aspirin on " + KEYSPACE_NAME
-                + ".patient(aspirin_use);");
-        session.execute("create index patient_tobacco on " + KEYSPACE_NAME
-                + ".patient(tobacco_use);");
-        session.execute("create index pat_result_value on " + KEYSPACE_NAME
-                + ".pat_results(test_value);");
-        session.execute("create index encounter_id on " + KEYSPACE_NAME
-                + ".pat_encounters(encounter_id);");
-        session.execute("create index admission_type on " + KEYSPACE_NAME
-                + ".pat_encounters(admission_type);");
-        session.execute("create index readmission_score on " + KEYSPACE_NAME
-                + ".pat_readmission_risk(score);");
+    private void buildDeferredIndexes() {
+        schemaManager.buildDeferredIndexes();
     }
 
     private void loadData() {       
         // Load patient data
         System.out.print("Loading patients data....");
+        PatientPopulation population = createPopulation();
+        if (EXECUTION_MODE != ExecutionMode.VIRTUAL_THREADS
+                && GENERATOR_THREADS <= 1) {
+            loadPatients(createLoader(), population, control);
+        } else {
+            loadBatches(population.batches(getBatchSize()));
+        }
+        checkLoaders();
+        writeReadmissionRisk();
+        sink.flush();
+        replayEventStream();
+        
+        System.out.println("complete!");
+        System.out.println(abnormal.report());
+        if (readmission != null) {
+            System.out.println(readmission.report());
+        }
+        writeMeasureRollups();
+        if (pipeline != null) {
+            System.out.println(pipeline.report());
+        }
+        if (lanes != null) {
+            System.out.println(lanes.report());
+        }
+        if (jdbc != null) {
+            System.out.println(jdbc.report());
+        }
+     }
+
+    private void writeReadmissionRisk() {
+        // The scores were counted as the patients were loaded, so the
+        // stratification is only a merge of each loader's counts. A worker
+        // only has its slice's, so it leaves them to the coordinator
+        if (readmission != null && COORDINATOR_ADDRESS == null) {
+            readmission.write(sink, LOAD_TABLES);
+        }
+    }
+
+    private void replayEventStream() {
+        // Every row generated so far has reached the stream once the sinks in
+        // front of it are flushed, so it can be merged into time order
+        if (stream != null) {
+            stream.replay();
+            sink.flush();
+            System.out.println(stream.report());
+        }
+    }
+
+    private void writeMeasureRollups() {
+        if (measures == null) {
+            return;
+        }
+        System.out.println(measures.report());
+        if (COORDINATOR_ADDRESS != null) {
+            // Every worker would write the same files, so the coordinator
+            // writes them from the counts of all the slices
+            return;
+        }
         try {
-            for (int i = 1; i <= NUMBER_OF_PATIENTS; i++) {
-                // Determine a random OHA id
-                String ohaId = generator.generateRandomUUID();
-                
-                // Determine a gender for our patient
-                String gender = generator.generateRandomGender();
-    
-                // Get a full name for our patient based on that gender
-                String fullName = generator.generateRandomName(gender
-                        .equalsIgnoreCase("M"));
-    
-                // Get a patient id to use for all our related data
-                int patientId = generator.generateRandomIdentifier();
-                String hicn = generator.generateRandomHICN();
-                Date dob = generator.generateRandomTimestamp(minBirthDate.toDate(),
-                        maxBirthDate.toDate());
-    
-                // Do a base insert into the patient/demographics table as well as a
-                // mapping entry to generate a relationship between the patient and 
-                // an hicn
-                session.execute(generateInsertPatientDDL(patientId));
-                session.execute(generateHicnXrefDML(hicn, ohaId));
-                session.execute(generateMrnXrefDML(String.valueOf(patientId), ohaId));
-                session.execute(generateBeneficiaryAssignmentDDL(hicn, gender,
-                        fullName, dob));
-                session.execute(generateBeneficiaryRankingDDL(hicn, gender,
-                        fullName, dob));
-                
-                // We utilize different strategies for generating data for each
-                // patient based on whether we want the patient to be a part of
-                // a specific measure.  To decide which way the patient will go
-                // we use modular arithmetic
-                switch ((byte)(System.currentTimeMillis() % 4)) {
-                case 0:
-                    diabetesStrategy.generateEncounterData(patientId, MEASUREMENT_PERIOD_YEAR, 
-                            gender.equalsIgnoreCase("M"));
-                case 1:
-                    ischemiaStrategy.generateEncounterData(patientId, MEASUREMENT_PERIOD_YEAR, 
-                            gender.equalsIgnoreCase("M"));
-                case 2:
-                    careStrategy.generateEncounterData(patientId, MEASUREMENT_PERIOD_YEAR, 
-                            gender.equalsIgnoreCase("M"));
-                case 3:
-                    ((PrevDataStrategy)prevStrategy).generateEncounterData(patientId, hicn, MEASUREMENT_PERIOD_YEAR, 
-                            gender.equalsIgnoreCase("M"), fullName, dob);
+            measures.write(new File(MEASURES_ROLLUP_DIR));
+            System.out.println("Wrote measure rollups to "
+                    + MEASURES_ROLLUP_DIR);
+        } catch (IOException ioex) {
+            ioex.printStackTrace();
+        }
+    }
+
+    private void ingest() {
+        // The ingest needs the patients in hand to pick from, so the whole
+        // population is kept in memory
+        List<PatientRecord> patients = new ArrayList<PatientRecord>(
+                SLICE_PATIENTS);
+        PatientPopulation population = createPopulation();
+        while (population.hasNext()) {
+            patients.add(population.next());
+        }
+        if (INGEST_PRELOAD) {
+            System.out.print("Loading patients data....");
+            if (EXECUTION_MODE != ExecutionMode.VIRTUAL_THREADS
+                    && GENERATOR_THREADS <= 1) {
+                loadPatients(createLoader(), patients.iterator(), control);
+            } else {
+                loadBatches(batches(patients, getBatchSize()));
+            }
+            checkLoaders();
+            writeReadmissionRisk();
+            sink.flush();
+            System.out.println("complete!");
+            if (readmission != null) {
+                System.out.println(readmission.report());
+            }
+            writeMeasureRollups();
+        }
+
+        List<PatientLoader> loaders = new ArrayList<PatientLoader>(
+                INGEST_THREADS);
+        for (int i = 0; i < INGEST_THREADS; i++) {
+            loaders.add(createLoader());
+        }
+        RampProfile profile = RampProfile.parse(INGEST_PROFILE);
+        System.out.println("Ingesting encounters with profile " + profile
+                + " on " + INGEST_THREADS + " threads");
+        final ContinuousIngest ingest = new ContinuousIngest(loaders,
+                patients, profile, INGEST_REPORT_INTERVAL_MS);
+
+        // A profile of a single point never ends by itself. It is ended by
+        // the stop operation over JMX or by interrupting the process, which
+        // waits for the rows to be flushed and the report printed.
+        final CountDownLatch finished = new CountDownLatch(1);
+        Thread hook = new Thread("ingest-shutdown") {
+            @Override
+            public void run() {
+                ingest.stop();
+                try {
+                    finished.await(INGEST_SHUTDOWN_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        control.setStopAction(new Runnable() {
+            @Override
+            public void run() {
+                ingest.stop();
+            }
+        });
+        try {
+            ingest.run();
+            for (PatientLoader loader : loaders) {
+                loader.finish();
+            }
+            sink.flush();
+            replayEventStream();
+            System.out.println(ingest.report());
+            System.out.println(abnormal.report());
+        } finally {
+            control.setStopAction(null);
+            finished.countDown();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException isex) {
+            // Already shutting down, and the hook has seen the ingest finish
+        }
+    }
+
+    private void startMutations() {
+        // Changed rows go through the profile's sinks like the load, so the
+        // bucketed and lookup copies of a row are changed along with it
+        DataSink writeSink = wrapForProfile(new CqlDataSink(session,
+                KEYSPACE_NAME, MUTATION_TTL_SECONDS));
+        DataSink deleteSink = wrapForProfile(new CqlDeleteSink(session,
+                KEYSPACE_NAME));
+        mutations = new MutationWorkload(writeSink, deleteSink, keys,
+                generator, Settings.parseWeights(MUTATION_MIX,
+                        MutationType.class), RampProfile.parse(MUTATION_PROFILE),
+                MUTATION_THREADS);
+        System.out.println("Running mutations " + MUTATION_MIX + " at "
+                + MUTATION_PROFILE + " on " + MUTATION_THREADS + " threads"
+                + (MUTATION_TTL_SECONDS > 0 ? " with a ttl of "
+                        + MUTATION_TTL_SECONDS + " s" : ""));
+        mutationThread = new Thread("mutations") {
+            @Override
+            public void run() {
+                mutations.run();
+            }
+        };
+        mutationThread.start();
+    }
+
+    private void stopMutations() {
+        mutations.stop();
+        try {
+            mutationThread.join();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(mutations.report());
+    }
+
+    private void benchmarkReads() {
+        ReadWorkload workload = new ReadWorkload(session, KEYSPACE_NAME,
+                SCHEMA_PROFILE, keys, ReadWorkload.parseMix(READ_MIX),
+                READ_THREADS, TIME_BUCKET_WIDTH_DAYS,
+                READ_ENCOUNTER_RANGE_DAYS);
+        System.out.println("Running reads " + READ_MIX + " on " + READ_THREADS
+                + " threads for " + READ_DURATION_MS + " ms");
+        workload.run(READ_DURATION_MS);
+        System.out.println(workload.report());
+    }
+
+    private int getBatchSize() {
+        // A task per batch of patients, or a part or two of the population
+        // for each thread of the pool
+        return EXECUTION_MODE == ExecutionMode.VIRTUAL_THREADS ? PATIENT_BATCH_SIZE
+                : Math.max(1, SLICE_PATIENTS / (2 * GENERATOR_THREADS));
+    }
+
+    private void loadBatches(Iterator<? extends Iterator<PatientRecord>> batches) {
+        // Every batch of patients is loaded by a loader, and so strategies,
+        // of its own, either on the thread pool or as a task of its own. The
+        // per-task loaders simply block on writes, and the bounded sink keeps
+        // the number of writes in flight in check. Batches and their loaders
+        // are only created as earlier ones finish, so no more loaders, or
+        // threads where there are no virtual threads, exist at once than
+        // there are threads in the pool or than MAX_TASKS.
+        ExecutorService executor;
+        Semaphore window;
+        if (EXECUTION_MODE == ExecutionMode.VIRTUAL_THREADS) {
+            executor = VirtualThreads.newThreadPerTaskExecutor();
+            window = new Semaphore(MAX_TASKS);
+        } else {
+            executor = Executors.newFixedThreadPool(GENERATOR_THREADS);
+            window = new Semaphore(GENERATOR_THREADS);
+        }
+        try {
+            while (batches.hasNext()) {
+                window.acquire();
+                final Iterator<PatientRecord> batch = batches.next();
+                final PatientLoader loader = createLoader();
+                final Semaphore permits = window;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            loadPatients(loader, batch, control);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Iterator<Iterator<PatientRecord>> batches(
+            final List<PatientRecord> patients, final int size) {
+        return new Iterator<Iterator<PatientRecord>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < patients.size();
+            }
+
+            @Override
+            public Iterator<PatientRecord> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int end = Math.min(patients.size(), next + size);
+                Iterator<PatientRecord> batch = patients.subList(next, end)
+                        .iterator();
+                next = end;
+                return batch;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void loadPatients(PatientLoader loader,
+            Iterator<PatientRecord> patients, LoadControl control) {
+        try {
+            while (patients.hasNext()) {
+                // Waits while the load is paused or has too many workers
+                control.beginPatient();
+                try {
+                    loader.load(patients.next());
+                } finally {
+                    control.endPatient();
                 }
             }
         } catch (NoHostAvailableException nhaex) {
             Map<InetSocketAddress,Throwable> errors = nhaex.getErrors();
             System.out.println("Errors from exception\n" + errors.toString());
             nhaex.printStackTrace();
+            failedLoaders.incrementAndGet();
         } catch (Exception ex) {
             ex.printStackTrace();
+            failedLoaders.incrementAndGet();
+        } finally {
+            loader.finish();
         }
-        
-        System.out.println("complete!");
-     }
-
-    private String generateInsertPatientDDL(int patientId) {
-        // One note here is that while we can generate patients who are dead
-        // we don't, so we set death_indicator = 0 for all patients and do
-        // not include a date_of_death for anyone.
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        StringBuffer sb = new StringBuffer(256);
-        String gender = generator.generateRandomGender();
-        ZipData data = USE_ZIP_RANGE ? 
-                generator.generateRandomZipData(zipRange.getLowerBound(), zipRange.getUpperBound()) : 
-                    generator.generateRandomZipData();
-        sb.append("insert into ")
-                .append(KEYSPACE_NAME)
-                .append(".patient_demographics (patient_id,patient_id_src,city,state_or_province,date_of_birth,death_indicator,gender,zip_code,load_date) values (")
-                .append(String.format("'%s','%s','%s','%s','%s','%s','%s','%s','%s'", patientId, "OHCP",
-                        data.getCity(), data.getState(), 
-                        sdf.format(generator.generateRandomTimestamp(
-                                minBirthDate.toDate(), maxBirthDate.toDate())),
-                        "0", gender, data.getZipCode(), sdf.format(loadDate)))
-                .append(");");
-
-        return sb.toString();
-    }
-    
-    private String generateHicnXrefDML(String hicn, String ohaId) {
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-            .append(KEYSPACE_NAME)
-            .append(".ads_patient_xref (uid, src, src_patientid, oha_patientid) values (")
-            .append(String.format("%s, '%s','%s', '%s'", "uuid()", "CMS", hicn, ohaId))
-            .append(");");
-
-        return sb.toString();
-    }
-    
-    private String generateMrnXrefDML(String mrn, String ohaId) {
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-            .append(KEYSPACE_NAME)
-            .append(".ads_patient_xref (uid, src, src_patientid, oha_patientid) values (")
-            .append(String.format("%s, '%s', '%s', '%s'", "uuid()", "OHCP", mrn, ohaId))
-            .append(");");
-
-        return sb.toString();
     }
 
-    
-    private String generateBeneficiaryAssignmentDDL(String hicn, String gender,
-            String fullName, Date dob) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        String[] nameParts = fullName.split(",");
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-                .append(KEYSPACE_NAME)
-                .append(".aco_beneficiary_assignment (uid,hicno,aco_participant_tin,dob,count_of_primary_care_services,load_date,deceased_bene_flag,firstname,lastname,gender,assignment_step_flag) values (")
-                .append(String.format(
-                        "%s,'%s','%s','%s',%s,'%s',%s,'%s','%s','%s',%s",
-                        "uuid()", hicn, generator.generateRandomTIN(),
-                        sdf.format(dob), generator.generateRandomCount(50),
-                        sdf.format(new Date()),
-                        (generator.generateRandomBoolean() ? 1 : 0),
-                        nameParts[1].trim(), nameParts[0].trim(), gender,
-                        (generator.generateRandomBoolean() ? 1 : 0)))
-                .append(");");
-
-        return sb.toString();
-    }
-
-    private String generateBeneficiaryRankingDDL(String hicn, String gender,
-            String fullName, Date dob) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-        String[] nameParts = fullName.split(",");
-
-        // Just a note here on the use of these hoppers. When the data generator
-        // gets created we tell it to create 16 of them so we can use them here.
-        // Basically they are a randomly permuted array of integers up to the
-        // number of patients we want, so they are ideal for randomly generating
-        // a ranking from 1 to n.
-        StringBuffer sb = new StringBuffer(256);
-        sb.append("insert into ")
-                .append(KEYSPACE_NAME)
-                .append(".aco_patient_ranking (hicno,pat_first_name,pat_last_name,gender,dob,provider_npi1,provider_npi2,provider_npi3,clinic_identifier,caremedcon_rank,carefalls_rank,cad_rank,dm_rank,hf_rank,htn_rank,ivd_rank,pcmammogram_rank,pccolorectal_rank,pcflushot_rank,pcpneumoshot_rank,pcbmiscreen_rank,pctobaccouse_rank,pcbloodpressure_rank,pcdepression_rank) values(")
-                .append(String.format("'%s','%s','%s','%s','%s','%s','%s','%s','%s',%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                    hicn, nameParts[1].trim(), nameParts[0].trim(),
-                    gender, sdf.format(dob),
-                    generator.generateRandomTIN(), generator.generateRandomTIN(),
-                    generator.generateRandomTIN(), generator.generateRandomTIN(),
-                    generator.generateRandomRanking(0), generator.generateRandomRanking(1),
-                    generator.generateRandomRanking(2), generator.generateRandomRanking(3),
-                    generator.generateRandomRanking(4), generator.generateRandomRanking(5),
-                    generator.generateRandomRanking(6), generator.generateRandomRanking(7),
-                    generator.generateRandomRanking(8), generator.generateRandomRanking(9),
-                    generator.generateRandomRanking(10), generator.generateRandomRanking(11),
-                    generator.generateRandomRanking(12), generator.generateRandomRanking(13),
-                    generator.generateRandomRanking(14), generator.generateRandomRanking(15)))
-                .append(");");
-
-        return sb.toString();
+    private void checkLoaders() {
+        // The rest of a failed loader's patients were never loaded, so the
+        // load as a whole has failed
+        int failed = failedLoaders.get();
+        if (failed > 0) {
+            throw new IllegalStateException(failed
+                    + " loaders failed, leaving their patients unloaded");
+        }
     }
 
     private void close() {
-        session.close();
-        cluster.close();
+        control.unregister();
+        // The sink throws if rows failed to be written, which fails the load
+        // once everything else is closed
+        try {
+            sink.close();
+        } finally {
+            EntityCatalog catalog = generator.getEntityCatalog();
+            if (catalog != null) {
+                System.out.println("Kept keys in " + catalog);
+                try {
+                    catalog.close();
+                } catch (IOException ioex) {
+                    ioex.printStackTrace();
+                }
+            }
+            session.close();
+            cluster.close();
+        }
     }
 
     public static void main(String[] args) {
@@ -360,16 +876,171 @@ public class PatientDataGenerator {
         if (args != null && args.length == 1 && !args[0].isEmpty()) {
             cassandraHost = args[0];
         }
+        if (ESTIMATE_ENABLED) {
+            new PatientDataGenerator().estimate();
+            return;
+        }
         
         System.out.println("Loading patient data to " + cassandraHost);
 
+        CoordinatorClient coordinator = null;
+        try {
+            if (COORDINATOR_ADDRESS != null) {
+                coordinator = CoordinatorClient.connect(COORDINATOR_ADDRESS,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                System.out.println("Load aborted by the"
+                                        + " coordinator");
+                                System.exit(1);
+                            }
+                        });
+                System.out.println("Reporting to coordinator at "
+                        + COORDINATOR_ADDRESS);
+            }
+            load(cassandraHost, coordinator);
+        } catch (Throwable th) {
+            th.printStackTrace();
+            if (coordinator != null) {
+                coordinator.failed(th.toString());
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds the deferred secondary indexes once every worker of a load split
+     * across workers has finished, as a worker only knows when its own slice
+     * is done. Does nothing unless the schema is created and the profile
+     * defers its indexes.
+     *
+     * @param cassandraHost
+     *            host of the cluster the workers loaded
+     */
+    static void buildIndexesAfterWorkers(String cassandraHost) {
+        if (!CREATE_SCHEMA || !SCHEMA_PROFILE.isDeferIndexes()) {
+            return;
+        }
+        Cluster cluster = Cluster.builder().addContactPoint(cassandraHost)
+                .build();
+        try {
+            new SchemaManager(cluster, cluster.connect(), KEYSPACE_NAME,
+                    SCHEMA_PROFILE, INDEX_BUILD_TIMEOUT_MS)
+                    .buildDeferredIndexes();
+        } finally {
+            cluster.close();
+        }
+    }
+
+    /**
+     * Writes the totals of a load split across workers, which each counted
+     * only their own slice and sent the counts to the coordinator: the
+     * readmission stratification and metrics, and the measure rollups.
+     *
+     * @param cassandraHost
+     *            host of the cluster the workers loaded
+     * @param coordinator
+     *            coordinator of the run, once it has succeeded
+     */
+    static void writeCombinedTotals(String cassandraHost,
+            LoadCoordinator coordinator) {
+        long[] histogram = coordinator.getReadmissionHistogram();
+        if (histogram != null) {
+            ReadmissionRiskAggregator combined = new ReadmissionRiskAggregator(
+                    false);
+            combined.add(histogram, coordinator.getReadmissionEncounters());
+            Cluster cluster = Cluster.builder().addContactPoint(cassandraHost)
+                    .build();
+            try {
+                DataSink totals = new CqlDataSink(cluster.connect(),
+                        KEYSPACE_NAME);
+                if (JDBC_URL != null) {
+                    totals = new TeeSink(totals, new JdbcDataSink(JDBC_URL,
+                            JDBC_USER, JDBC_PASSWORD, JDBC_BATCH_SIZE,
+                            JDBC_ROWS_PER_STATEMENT, 1));
+                }
+                combined.write(totals, LOAD_TABLES);
+                totals.flush();
+                totals.close();
+            } finally {
+                cluster.close();
+            }
+            System.out.println(combined.report());
+        }
+        Map<String, long[]> counts = coordinator.getMeasureCounts();
+        if (MEASURES_ROLLUP_DIR != null && !counts.isEmpty()) {
+            MeasureRollup combined = new MeasureRollup(
+                    CodeCatalog.getInstance(), MEASUREMENT_PERIOD_YEAR);
+            combined.add(counts);
+            System.out.println(combined.report());
+            try {
+                combined.write(new File(MEASURES_ROLLUP_DIR));
+                System.out.println("Wrote measure rollups to "
+                        + MEASURES_ROLLUP_DIR);
+            } catch (IOException ioex) {
+                ioex.printStackTrace();
+            }
+        }
+    }
+
+    private static void load(String cassandraHost,
+            CoordinatorClient coordinator) throws InterruptedException {
         PatientDataGenerator generator = new PatientDataGenerator();
         generator.connect(cassandraHost);
-        // generator.createSchema();
+        // Only the first slice creates the schema, the other workers wait
+        // for it at the coordinator's start
+        boolean schemaCreated = CREATE_SCHEMA && WORKER_SLICE_INDEX == 0
+                && generator.createSchema();
+        System.out.println("Using schema profile " + SCHEMA_PROFILE);
+        System.out.println("Using execution mode "
+                + EXECUTION_MODE
+                + (EXECUTION_MODE == ExecutionMode.VIRTUAL_THREADS
+                        && !VirtualThreads.isSupported() ? " (no virtual threads on this JDK, using platform threads)"
+                        : ""));
+        System.out.println(LoadEvents.getStatus());
+        if (coordinator != null) {
+            coordinator.ready(WORKER_SLICE_INDEX);
+            if (!coordinator.awaitStart()) {
+                return;
+            }
+            coordinator.startReporting(generator.control,
+                    WORKER_REPORT_INTERVAL_MS);
+        }
         long start = System.currentTimeMillis();
-        generator.loadData();
-        System.out.println("Elapsed time for load: "
-                + String.valueOf(System.currentTimeMillis() - start) + " ms");
+        if (MUTATION_ENABLED) {
+            generator.startMutations();
+        }
+        if (INGEST_ENABLED) {
+            generator.ingest();
+        } else {
+            generator.loadData();
+        }
+        if (MUTATION_ENABLED) {
+            generator.stopMutations();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Elapsed time for load: " + String.valueOf(elapsed)
+                + " ms");
+        // The workers of a coordinated load leave the indexes to the
+        // coordinator, which builds them once all of the slices are loaded
+        if (schemaCreated && coordinator == null) {
+            generator.buildDeferredIndexes();
+        }
+        if (READ_ENABLED) {
+            generator.benchmarkReads();
+        }
         generator.close();
+        if (coordinator != null) {
+            if (generator.readmission != null) {
+                coordinator.readmission(generator.readmission.getHistogram(),
+                        generator.readmission.getEncounters());
+            }
+            if (generator.measures != null) {
+                coordinator.measures(generator.measures.getCounts());
+            }
+            LoadControl control = generator.control;
+            coordinator.done(control.getPatientsLoaded(),
+                    control.getRowsWritten(), control.getErrors(), elapsed);
+        }
     }
 }
@@ -0,0 +1,280 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * This class generates all of the rows for one patient at a time: the
+ * demographics, identifier cross references, beneficiary assignment and
+ * ranking, and then the encounter data from one or more of the measure
+ * strategies. Only the rows for the tables being loaded are generated.<br>
+ * <br>
+ * The strategies keep state between patients, so a loader and its strategies
+ * belong to a single thread. Several loaders can share the same DataGenerator
+ * and the same thread-safe sink to generate patients in parallel.<br>
+ * <br>
+ * Given a ReadmissionRiskAggregator, the loader scores each patient's risk of
+ * readmission from the encounters generated for them by load(), and given a
+ * MeasureRollup, it counts the patient towards the quality measures.
+ *
+ * @author Jason Foster
+ *
+ */
+public class PatientLoader {
+    // Names of the strategies each patient gets, by the case of the switch in
+    // load() that picks them, for the patient events
+    private static final String[] STRATEGY_NAMES = { "Diabetes,IVD,Care,Prev",
+            "IVD,Care,Prev", "Care,Prev", "Prev" };
+
+    private final CountingSink sink;
+    private final ReadmissionRiskAggregator.Scorer scorer;
+    private final MeasureRollup.Tally tally;
+    private final DataGenerator generator;
+    private final Date loadDate;
+    private final int measurementPeriodYear;
+    private final Set<Table> tables;
+
+    private final EncounterDataStrategy diabetesStrategy;
+    private final EncounterDataStrategy ischemiaStrategy;
+    private final EncounterDataStrategy careStrategy;
+    private final EncounterDataStrategy prevStrategy;
+
+    /**
+     * Creates a new loader with its own set of strategies
+     *
+     * @param sink
+     *            sink all rows are written to
+     * @param generator
+     *            generator for the random data
+     * @param abnormal
+     *            controller deciding which lab results are abnormal
+     * @param loadDate
+     *            load date stamped on every row
+     * @param measurementPeriodYear
+     *            year the encounter data is generated for
+     * @param tables
+     *            tables to load; rows for any other table are never generated
+     */
+    public PatientLoader(DataSink sink, DataGenerator generator,
+            AbnormalRatioController abnormal, Date loadDate, int measurementPeriodYear,
+            Set<Table> tables) {
+        this(sink, generator, abnormal, null, null, loadDate,
+                measurementPeriodYear, tables);
+    }
+
+    /**
+     * Creates a new loader with its own set of strategies that scores each
+     * patient's risk of readmission and counts the patient towards the quality
+     * measures
+     *
+     * @param sink
+     *            sink all rows are written to
+     * @param generator
+     *            generator for the random data
+     * @param abnormal
+     *            controller deciding which lab results are abnormal
+     * @param readmission
+     *            aggregator of the readmission scores, or null not to score
+     *            patients
+     * @param measures
+     *            rollup of the quality measures, or null not to count them
+     * @param loadDate
+     *            load date stamped on every row
+     * @param measurementPeriodYear
+     *            year the encounter data is generated for
+     * @param tables
+     *            tables to load; rows for any other table are never generated
+     */
+    public PatientLoader(DataSink sink, DataGenerator generator,
+            AbnormalRatioController abnormal,
+            ReadmissionRiskAggregator readmission, MeasureRollup measures,
+            Date loadDate, int measurementPeriodYear, Set<Table> tables) {
+        this.scorer = readmission == null ? null : readmission.newScorer(sink);
+        DataSink observed = scorer == null ? sink : scorer;
+        this.tally = measures == null ? null : measures.newTally(observed);
+        this.sink = new CountingSink(tally == null ? observed : tally);
+        this.generator = generator;
+        this.loadDate = loadDate;
+        this.measurementPeriodYear = measurementPeriodYear;
+        this.tables = tables;
+        this.diabetesStrategy = new DiabetesDataStrategy(this.sink, generator,
+                abnormal, loadDate, tables);
+        this.ischemiaStrategy = new IVDDataStrategy(this.sink, generator,
+                abnormal, loadDate, tables);
+        this.careStrategy = new CareDataStrategy(this.sink, generator,
+                abnormal, loadDate, tables);
+        this.prevStrategy = new PrevDataStrategy(this.sink, generator,
+                abnormal, loadDate, tables);
+    }
+
+    /**
+     * Generates and writes every row for a single patient
+     * 
+     * @param patient
+     *            the patient to load
+     */
+    public void load(PatientRecord patient) {
+        Object event = LoadEvents.beginPatient();
+        int firstRow = sink.rows;
+        if (scorer != null) {
+            scorer.beginPatient();
+        }
+        if (tally != null) {
+            tally.beginPatient();
+        }
+
+        // Do a base insert into the patient/demographics table as well as a
+        // mapping entry to generate a relationship between the patient and
+        // an hicn
+        if (tables.contains(Table.PATIENT_DEMOGRAPHICS)) {
+            writePatientDemographics(patient);
+        }
+        if (tables.contains(Table.PATIENT_XREF)) {
+            writeHicnXref(patient.getHicn(), patient.getOhaId());
+            writeMrnXref(String.valueOf(patient.getPatientId()),
+                    patient.getOhaId());
+        }
+        if (tables.contains(Table.BENEFICIARY_ASSIGNMENT)) {
+            writeBeneficiaryAssignment(patient);
+        }
+        if (tables.contains(Table.PATIENT_RANKING)) {
+            writeBeneficiaryRanking(patient);
+        }
+
+        int strategies = generateEncounters(patient);
+        if (scorer != null) {
+            scorer.endPatient(patient.getPatientId());
+        }
+        if (tally != null) {
+            tally.endPatient(patient);
+        }
+
+        LoadEvents.endPatient(event, STRATEGY_NAMES[strategies],
+                sink.rows - firstRow);
+    }
+
+    /**
+     * Marks the end of the loader's work, adding what it counted to the
+     * load's totals. The loader should not be used afterwards.
+     */
+    public void finish() {
+        diabetesStrategy.finish();
+        ischemiaStrategy.finish();
+        careStrategy.finish();
+        prevStrategy.finish();
+        if (scorer != null) {
+            scorer.finish();
+        }
+        if (tally != null) {
+            tally.finish();
+        }
+    }
+
+    /**
+     * Generates and writes a new set of encounters, and their results, for a
+     * patient already loaded. The patient's readmission score and measures are
+     * not changed.
+     * 
+     * @param patient
+     *            the patient to generate encounters for
+     * @return number of rows written
+     */
+    public int loadEncounters(PatientRecord patient) {
+        int firstRow = sink.rows;
+        generateEncounters(patient);
+        return sink.rows - firstRow;
+    }
+
+    // Each case falls through to the ones below it, so every patient gets the
+    // strategies from the chosen one on
+    @SuppressWarnings("fallthrough")
+    private int generateEncounters(PatientRecord patient) {
+        // We utilize different strategies for generating data for each
+        // patient based on whether we want the patient to be a part of
+        // a specific measure.  To decide which way the patient will go
+        // we use modular arithmetic
+        byte strategies = (byte)(System.currentTimeMillis() % 4);
+        switch (strategies) {
+        case 0:
+            diabetesStrategy.generateEncounterData(patient, measurementPeriodYear);
+        case 1:
+            ischemiaStrategy.generateEncounterData(patient, measurementPeriodYear);
+        case 2:
+            careStrategy.generateEncounterData(patient, measurementPeriodYear);
+        case 3:
+            prevStrategy.generateEncounterData(patient, measurementPeriodYear);
+        }
+        return strategies;
+    }
+
+    private void writePatientDemographics(PatientRecord patient) {
+        // One note here is that while we can generate patients who are dead
+        // we don't, so we set death_indicator = 0 for all patients and do
+        // not include a date_of_death for anyone.
+        ZipData address = patient.getAddress();
+        sink.write(Table.PATIENT_DEMOGRAPHICS, patient.getPatientId(), "OHCP",
+                address.getCity(), address.getState(),
+                patient.getDateOfBirth(), "0", patient.getGender(),
+                address.getZipCode(), loadDate);
+    }
+
+    private void writeHicnXref(String hicn, String ohaId) {
+        sink.write(Table.PATIENT_XREF, generator.generateRandomUid(), "CMS",
+                hicn, ohaId);
+    }
+
+    private void writeMrnXref(String mrn, String ohaId) {
+        sink.write(Table.PATIENT_XREF, generator.generateRandomUid(), "OHCP",
+                mrn, ohaId);
+    }
+
+    private void writeBeneficiaryAssignment(PatientRecord patient) {
+        sink.write(Table.BENEFICIARY_ASSIGNMENT, generator.generateRandomUid(),
+                patient.getHicn(), generator.generateRandomTIN(),
+                patient.getDateOfBirth(), generator.generateRandomCount(50),
+                new Date(), (generator.generateRandomBoolean() ? 1 : 0),
+                patient.getName().getGivenName(),
+                patient.getName().getFamilyName(), patient.getGender(),
+                (generator.generateRandomBoolean() ? 1 : 0));
+    }
+
+    private void writeBeneficiaryRanking(PatientRecord patient) {
+        // Just a note here on the use of these hoppers. When the data generator
+        // gets created we tell it to create 16 of them so we can use them here.
+        // Basically they are a randomly permuted array of integers up to the
+        // number of patients we want, so they are ideal for randomly generating
+        // a ranking from 1 to n.
+        sink.write(Table.PATIENT_RANKING,
+                patient.getHicn(), patient.getName().getGivenName(),
+                patient.getName().getFamilyName(), patient.getGender(),
+                patient.getDateOfBirth(),
+                generator.generateRandomTIN(), generator.generateRandomTIN(),
+                generator.generateRandomTIN(), generator.generateRandomTIN(),
+                generator.generateRandomRanking(0), generator.generateRandomRanking(1),
+                generator.generateRandomRanking(2), generator.generateRandomRanking(3),
+                generator.generateRandomRanking(4), generator.generateRandomRanking(5),
+                generator.generateRandomRanking(6), generator.generateRandomRanking(7),
+                generator.generateRandomRanking(8), generator.generateRandomRanking(9),
+                generator.generateRandomRanking(10), generator.generateRandomRanking(11),
+                generator.generateRandomRanking(12), generator.generateRandomRanking(13),
+                generator.generateRandomRanking(14));
+    }
+
+    /**
+     * Counts the rows written through it, for the patient events. Only used
+     * by the loader's own thread.
+     */
+    private static class CountingSink extends ForwardingDataSink {
+        private int rows;
+
+        CountingSink(DataSink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Table table, Object... values) {
+            rows++;
+            delegate.write(table, values);
+        }
+    }
+}
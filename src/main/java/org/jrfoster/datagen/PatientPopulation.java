@@ -0,0 +1,188 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.joda.time.DateTime;
+
+/**
+ * This class is a pull-based view of a population of generated patients. It
+ * covers a range of patient numbers and creates each PatientRecord only when
+ * next() is called, so however large the population only the record in hand
+ * is in memory.<br>
+ * <br>
+ * trySplit() hands the first half of the remaining range to a new population,
+ * following the contract of Spliterator.trySplit(), so the population can be
+ * divided between threads up front, or wrapped as a Spliterator on newer
+ * JVMs. takeFirst() and batches() instead hand out a batch at a time as it
+ * is needed. Each population is meant for a single thread, but any number of
+ * them can share the thread-safe DataGenerator.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public class PatientPopulation implements Iterator<PatientRecord> {
+    private static final Date MIN_BIRTH_DATE = new DateTime(1915, 1, 1, 0, 0,
+            0, 000).toDate();
+    private static final Date MAX_BIRTH_DATE = new DateTime(1999, 12, 31, 23,
+            59, 59, 999).toDate();
+
+    private final DataGenerator generator;
+    private final ZipRange zipRange;
+    private final ServiceArea serviceArea;
+    private int next;
+    private final int end;
+
+    /**
+     * Creates a population of the given size
+     * 
+     * @param generator
+     *            generator for the random data
+     * @param size
+     *            number of patients in the population
+     * @param zipRange
+     *            range of zip codes patients live in, or null for anywhere
+     * @param serviceArea
+     *            service area patients live in, which takes precedence over
+     *            the zip range, or null
+     */
+    public PatientPopulation(DataGenerator generator, int size,
+            ZipRange zipRange, ServiceArea serviceArea) {
+        this(generator, 0, size, zipRange, serviceArea);
+        if (size < 0) {
+            throw new IllegalArgumentException("size cannot be negative");
+        }
+    }
+
+    private PatientPopulation(DataGenerator generator, int next, int end,
+            ZipRange zipRange, ServiceArea serviceArea) {
+        this.generator = generator;
+        this.next = next;
+        this.end = end;
+        this.zipRange = zipRange;
+        this.serviceArea = serviceArea;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next < end;
+    }
+
+    /**
+     * Generates the next patient of the population
+     */
+    @Override
+    public PatientRecord next() {
+        if (next >= end) {
+            throw new NoSuchElementException();
+        }
+        next++;
+
+        // Determine a random OHA id, gender and a full name for our patient
+        // based on that gender
+        String ohaId = generator.generateRandomUUID();
+        String gender = generator.generateRandomGender();
+        PersonName name = generator.generateRandomPersonName(gender
+                .equalsIgnoreCase("M"));
+
+        // Get a patient id to use for all our related data
+        int patientId = generator.generateRandomIdentifier();
+        String hicn = generator.generateRandomHICN();
+        Date dob = generator.generateRandomTimestamp(MIN_BIRTH_DATE,
+                MAX_BIRTH_DATE);
+        ZipData address = serviceArea != null ? generator
+                .generateRandomZipData(serviceArea) : zipRange != null ? generator
+                .generateRandomZipData(zipRange.getLowerBound(),
+                        zipRange.getUpperBound()) : generator
+                .generateRandomZipData();
+        return new PatientRecord(patientId, ohaId, hicn, gender, name, dob,
+                address);
+    }
+
+    /**
+     * Splits off the first half of the patients left in this population
+     * 
+     * @return a population of the first half of the remaining patients, or
+     *         null if there are too few left to split
+     */
+    public PatientPopulation trySplit() {
+        int mid = next + (end - next) / 2;
+        if (mid == next) {
+            return null;
+        }
+        PatientPopulation prefix = new PatientPopulation(generator, next, mid,
+                zipRange, serviceArea);
+        next = mid;
+        return prefix;
+    }
+
+    /**
+     * Splits off the next patients of this population, so a population can
+     * be handed out in batches as they are needed
+     * 
+     * @param count
+     *            most patients to split off
+     * @return a population of the next count patients, or of all of them if
+     *         fewer are left, or null if there are none left
+     */
+    public PatientPopulation takeFirst(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        if (next >= end) {
+            return null;
+        }
+        int last = (int) Math.min(end, (long) next + count);
+        PatientPopulation prefix = new PatientPopulation(generator, next, last,
+                zipRange, serviceArea);
+        next = last;
+        return prefix;
+    }
+
+    /**
+     * Returns the rest of this population as batches, each split off with
+     * takeFirst() only when it is asked for
+     * 
+     * @param size
+     *            most patients in a batch
+     * @return iterator over the batches
+     */
+    public Iterator<PatientPopulation> batches(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        return new Iterator<PatientPopulation>() {
+            @Override
+            public boolean hasNext() {
+                return PatientPopulation.this.hasNext();
+            }
+
+            @Override
+            public PatientPopulation next() {
+                PatientPopulation batch = takeFirst(size);
+                if (batch == null) {
+                    throw new NoSuchElementException();
+                }
+                return batch;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return number of patients left to generate
+     */
+    public long estimateSize() {
+        return end - next;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
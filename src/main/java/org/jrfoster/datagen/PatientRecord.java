@@ -0,0 +1,87 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+
+/**
+ * This class is the structured form of a single generated patient: the
+ * identifiers, name, gender, date of birth and address that every table
+ * written for the patient draws on. It holds nothing else. The encounters,
+ * results, diagnoses, procedures, screenings and prefills are generated from
+ * the record by the strategies only when the record is loaded, and only for
+ * the tables being loaded, so a record costs a few small objects however much
+ * data the patient ends up with.<br>
+ * <br>
+ * Records are immutable and are created by a PatientPopulation.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public final class PatientRecord {
+    private final int patientId;
+    private final String ohaId;
+    private final String hicn;
+    private final String gender;
+    private final PersonName name;
+    private final Date dateOfBirth;
+    private final ZipData address;
+
+    PatientRecord(int patientId, String ohaId, String hicn, String gender,
+            PersonName name, Date dateOfBirth, ZipData address) {
+        this.patientId = patientId;
+        this.ohaId = ohaId;
+        this.hicn = hicn;
+        this.gender = gender;
+        this.name = name;
+        this.dateOfBirth = dateOfBirth;
+        this.address = address;
+    }
+
+    /**
+     * @return identifier used as the patient's MRN and in the patient tables
+     */
+    public int getPatientId() {
+        return patientId;
+    }
+
+    /**
+     * @return the OHA identifier the patient's MRN and HICN map to
+     */
+    public String getOhaId() {
+        return ohaId;
+    }
+
+    public String getHicn() {
+        return hicn;
+    }
+
+    /**
+     * @return M or F
+     */
+    public String getGender() {
+        return gender;
+    }
+
+    public boolean isMale() {
+        return "M".equalsIgnoreCase(gender);
+    }
+
+    public PersonName getName() {
+        return name;
+    }
+
+    public Date getDateOfBirth() {
+        return dateOfBirth;
+    }
+
+    /**
+     * @return the zip code the patient lives in
+     */
+    public ZipData getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return patientId + " " + name;
+    }
+}
@@ -0,0 +1,38 @@
+package org.jrfoster.datagen;
+
+/**
+ * This class holds a person's name as its separate parts, so that the tables
+ * with first and last name columns don't have to split a "last, first" string
+ * back apart. Names are immutable.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public final class PersonName {
+    private final String familyName;
+    private final String givenName;
+
+    public PersonName(String familyName, String givenName) {
+        if (familyName == null || givenName == null) {
+            throw new IllegalArgumentException("name parts cannot be null");
+        }
+        this.familyName = familyName;
+        this.givenName = givenName;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    /**
+     * @return the name as "last, first"
+     */
+    @Override
+    public String toString() {
+        return familyName + ", " + givenName;
+    }
+}
@@ -0,0 +1,304 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This sink decouples the threads generating rows from the threads writing
+ * them. Rows handed to write() are copied into a RowRingBuffer and a pool of
+ * writer threads drains the buffer into the wrapped sink, so generation keeps
+ * going while writes wait on I/O and vice versa. The wrapped sink is called
+ * from several threads at once and must be thread-safe, which the CQL sink and
+ * its decorators are.<br>
+ * <br>
+ * What happens when the buffer is full is decided by the BackpressurePolicy.
+ * The sink keeps statistics for each stage of the pipeline: how often and for
+ * how long generators stalled on a full buffer, how deep the buffer ran, and
+ * how long writers sat idle waiting for rows. See report().<br>
+ * <br>
+ * flush() waits for every row published so far to be written, and close()
+ * flushes, stops the writers and closes the wrapped sink. A write that fails
+ * on a writer thread is reported and counted. Its row is lost and the loader
+ * that wrote it has moved on, so flush() and close() then throw, failing the
+ * load instead of letting it finish with rows missing.
+ *
+ * @author Jason Foster
+ *
+ */
+public class PipelinedSink extends ForwardingDataSink {
+    private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS
+            .toNanos(100);
+
+    // The queue depth is sampled on one in every 64 publishes
+    private static final int DEPTH_SAMPLE_MASK = 63;
+
+    private final RowRingBuffer buffer;
+    private final BackpressurePolicy policy;
+    private final Writer[] writers;
+    private final Thread[] threads;
+    private volatile boolean running = true;
+
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong depthSamples = new AtomicLong();
+    private final AtomicLong depthTotal = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+
+    /**
+     * Creates a new sink and starts its writer threads
+     *
+     * @param delegate
+     *            thread-safe sink the writer threads write to
+     * @param capacity
+     *            number of rows the buffer can hold, rounded up to a power of
+     *            two
+     * @param writerThreads
+     *            number of threads draining the buffer
+     * @param policy
+     *            what to do when the buffer is full
+     */
+    public PipelinedSink(DataSink delegate, int capacity, int writerThreads,
+            BackpressurePolicy policy) {
+        super(delegate);
+        if (writerThreads < 1) {
+            throw new IllegalArgumentException(
+                    "writerThreads must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        this.buffer = new RowRingBuffer(capacity);
+        this.policy = policy;
+        this.writers = new Writer[writerThreads];
+        this.threads = new Thread[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            writers[i] = new Writer();
+            threads[i] = new Thread(writers[i], "sink-writer-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        if (!running) {
+            throw new IllegalStateException("Sink has been closed");
+        }
+
+        long pos = buffer.offer(table, values);
+        if (pos < 0) {
+            pos = handleFull(table, values);
+            if (pos < 0) {
+                return;
+            }
+        }
+
+        if ((pos & DEPTH_SAMPLE_MASK) == 0) {
+            sampleDepth();
+        }
+    }
+
+    /**
+     * Applies the backpressure policy to a row that didn't fit in the buffer
+     *
+     * @return the position the row was eventually published at, or -1 if it
+     *         was written some other way
+     */
+    private long handleFull(Table table, Object[] values) {
+        switch (policy) {
+        case CALLER_RUNS:
+            callerRuns.incrementAndGet();
+            delegate.write(table, values);
+            return -1;
+        case FAIL:
+            throw new IllegalStateException("Pipeline buffer of "
+                    + buffer.capacity() + " rows is full");
+        default:
+            Object backoff = LoadEvents.beginBackoff();
+            long start = System.nanoTime();
+            long park = 1000;
+            long pos;
+            while ((pos = buffer.offer(table, values)) < 0) {
+                LockSupport.parkNanos(park);
+                park = Math.min(park << 1, MAX_PARK_NANOS);
+            }
+            stalls.incrementAndGet();
+            stallNanos.addAndGet(System.nanoTime() - start);
+            LoadEvents.endBackoff(backoff, "PipelinedSink", "Buffer full");
+            return pos;
+        }
+    }
+
+    private void sampleDepth() {
+        long depth = buffer.size();
+        depthSamples.incrementAndGet();
+        depthTotal.addAndGet(depth);
+        long max;
+        while (depth > (max = maxDepth.get())
+                && !maxDepth.compareAndSet(max, depth)) {
+            // Another thread raised the maximum, check against the new one
+        }
+    }
+
+    /**
+     * Waits for every row published so far to be written, then flushes the
+     * wrapped sink
+     *
+     * @throws IllegalStateException
+     *             if any row failed to be written
+     */
+    @Override
+    public void flush() {
+        Object event = LoadEvents.beginFlush();
+        long target = buffer.getPublished();
+        long pending = target - getRowsWritten() - getWriteErrors();
+        long park = 1000;
+        while (getRowsWritten() + getWriteErrors() < target) {
+            LockSupport.parkNanos(park);
+            park = Math.min(park << 1, MAX_PARK_NANOS);
+        }
+        delegate.flush();
+        LoadEvents.endFlush(event, "PipelinedSink", pending);
+        checkWriteErrors();
+    }
+
+    private void checkWriteErrors() {
+        long errors = getWriteErrors();
+        if (errors > 0) {
+            throw new IllegalStateException(errors
+                    + " rows failed to be written by the pipeline's writers");
+        }
+    }
+
+    /**
+     * Writes the rows still in the buffer, stops the writers and closes the
+     * wrapped sink
+     *
+     * @throws IllegalStateException
+     *             if any row failed to be written
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            running = false;
+            for (Thread thread : threads) {
+                LockSupport.unpark(thread);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            delegate.close();
+        }
+    }
+
+    /**
+     * @return number of rows the writer threads have written
+     */
+    public long getRowsWritten() {
+        long total = 0;
+        for (Writer writer : writers) {
+            total += writer.written;
+        }
+        return total;
+    }
+
+    /**
+     * @return number of rows the writer threads failed to write
+     */
+    public long getWriteErrors() {
+        long total = 0;
+        for (Writer writer : writers) {
+            total += writer.errors;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a summary of each stage of the pipeline, suitable for printing
+     * at the end of a load
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        long idle = 0;
+        for (Writer writer : writers) {
+            idle += writer.idleNanos;
+        }
+        long samples = depthSamples.get();
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Generate: ").append(buffer.getPublished())
+                .append(" rows published, ").append(stalls.get())
+                .append(" stalls on a full buffer totalling ")
+                .append(TimeUnit.NANOSECONDS.toMillis(stallNanos.get()))
+                .append(" ms, ").append(callerRuns.get())
+                .append(" rows written by the generator\n");
+        sb.append("Buffer:   average depth ")
+                .append(samples == 0 ? 0 : depthTotal.get() / samples)
+                .append(", max depth ").append(maxDepth.get())
+                .append(" of ").append(buffer.capacity()).append("\n");
+        sb.append("Write:    ").append(getRowsWritten())
+                .append(" rows written by ").append(writers.length)
+                .append(" writers, ").append(getWriteErrors())
+                .append(" errors, ")
+                .append(TimeUnit.NANOSECONDS.toMillis(idle))
+                .append(" ms idle waiting for rows");
+        return sb.toString();
+    }
+
+    /**
+     * Drains the buffer into the wrapped sink until the sink is closed. Each
+     * writer keeps its own counts so the hot path updates no shared state.
+     */
+    private class Writer implements Runnable {
+        private volatile long written;
+        private volatile long errors;
+        private volatile long idleNanos;
+
+        @Override
+        public void run() {
+            long idleSince = 0;
+            long park = 1000;
+            while (true) {
+                boolean wrote;
+                try {
+                    wrote = buffer.poll(delegate);
+                    if (wrote) {
+                        written++;
+                    }
+                } catch (RuntimeException rex) {
+                    rex.printStackTrace();
+                    errors++;
+                    wrote = true;
+                }
+
+                if (wrote) {
+                    if (idleSince != 0) {
+                        idleNanos += System.nanoTime() - idleSince;
+                        idleSince = 0;
+                        park = 1000;
+                    }
+                } else if (!running) {
+                    break;
+                } else {
+                    if (idleSince == 0) {
+                        idleSince = System.nanoTime();
+                    }
+                    LockSupport.parkNanos(park);
+                    park = Math.min(park << 1, MAX_PARK_NANOS);
+                }
+            }
+        }
+    }
+}
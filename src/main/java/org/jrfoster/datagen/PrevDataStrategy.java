@@ -1,27 +1,27 @@
 package org.jrfoster.datagen;
 
 import java.util.Date;
+import java.util.Set;
 
 import org.joda.time.Interval;
 
-import com.datastax.driver.core.Session;
-
 public class PrevDataStrategy extends AbstractDataStrategy {
 
-    public PrevDataStrategy(String keyspace, Session sess,
-            DataGenerator gen, Double pctAbnormal, Date loadDate) {
-        super(keyspace, sess, gen, pctAbnormal, loadDate);
+    public PrevDataStrategy(DataSink sink, DataGenerator gen,
+            AbnormalRatioController abnormal, Date loadDate, Set<Table> tables) {
+        super(sink, gen, abnormal, loadDate, tables);
     }
 
-    public void generateEncounterData(int patientId, String hicn, int measurementPeriodYear, boolean isMale,
-            String fullName, Date dob) {
+    @Override
+    public void generateEncounterData(PatientRecord patient, int measurementPeriodYear) {
         // For this measure we need to create encounters in three different
         // periods, the current measurement period, the "flu season" period and
         // the year prior to the measurement period.  We generate a random
         // encounter within the 2 year period and hopefully we will get some in
         // all the periods.  Once we have an encounter, we simply generate data
         // in the cms prefilled elements table and the screening (forms) table.
-        int numEncounters = generator.generateRandomCount(7);
+        int patientId = patient.getPatientId();
+        int numEncounters = generator.generateEncounterCount(patientId);
         Interval currMP = generator.generateMeasurementPeriod(measurementPeriodYear);
         Interval prevMP = new Interval(currMP.getStart().minusYears(1), currMP.getEnd());
         
@@ -33,22 +33,22 @@ public class PrevDataStrategy extends AbstractDataStrategy {
             Interval encIntv = new Interval(admitDate.getTime(), dschgDate.getTime());
             
             // Encounters
-            session.execute(this.generateEncounterDML(patientId, encIntv, 
-                    generator.generateNextEncounterSequence()));
+            int encId = generator.generateNextEncounterSequence();
+            if (isLoaded(Table.PATIENT_ENCOUNTERS)) {
+                this.writeEncounter(patientId, encIntv, encId);
+            }
             
             // Prefills
-            this.generatePrefills(patientId, hicn, isMale, encIntv, fullName, dob);
+            if (isLoaded(Table.PREFILLED_ELEMENTS)) {
+                this.generatePrefills(patient, encIntv);
+            }
             
             // Screenings
-            this.generateScreening(patientId);
+            if (isLoaded(Table.PATIENT_SCREENING)) {
+                this.generateScreening(patientId);
+            }
         }
     }
-        
-    @Override
-    public void generateEncounterData(int patientId, int measurementPeriodYear, boolean isMale) {
-        // We don't support this signature in this implementation.
-        throw new UnsupportedOperationException();
-    }
 
     @Override
     protected void generateLabs(int patientId, Interval interval) {
@@ -67,11 +67,11 @@ public class PrevDataStrategy extends AbstractDataStrategy {
 
     @Override
     protected void generateScreening(int patientId) {
-        session.execute(this.generateScreeningDML(patientId));
+        this.writeScreening(patientId);
     }
 
     @Override
-    protected void generatePrefills(int patientId, String hicn, boolean isMale, Interval interval, String fullName, Date dob) {
-        session.execute(this.generatePrefillElementDML(hicn, isMale, interval, fullName, dob));
+    protected void generatePrefills(PatientRecord patient, Interval interval) {
+        this.writePrefillElement(patient, interval);
     }
 }
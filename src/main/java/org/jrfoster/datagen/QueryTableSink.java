@@ -0,0 +1,121 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+
+/**
+ * This sink denormalizes rows into query-specific lookup tables as they are
+ * written, so that reads by gender/zip, result value or admission type can be
+ * served from a single partition instead of through secondary indexes.<br>
+ * <br>
+ * Every row is still written to its base table. In addition:
+ * <ul>
+ * <li>patient demographics are copied into patients_by_zip, partitioned by
+ * zip code and a bucket of the patient id</li>
+ * <li>lab results are copied into results_by_value, partitioned by test name,
+ * value bucket and day</li>
+ * <li>encounters are copied into encounters_by_admit_type, partitioned by
+ * admission type and day</li>
+ * </ul>
+ * The day bucket keeps each partition bounded no matter how long data keeps
+ * being loaded, and the patient bucket spreads a densely populated zip code
+ * across ZIP_BUCKETS partitions.
+ *
+ * @author Jason Foster
+ *
+ */
+public class QueryTableSink extends ForwardingDataSink {
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    /**
+     * Number of partitions each zip code's patients are spread across
+     */
+    public static final int ZIP_BUCKETS = 8;
+
+    private final double valueBucketWidth;
+
+    // Positions of the base table columns we copy into the lookup tables
+    private final int demoPatientId = Table.PATIENT_DEMOGRAPHICS.indexOf("patient_id");
+    private final int demoZip = Table.PATIENT_DEMOGRAPHICS.indexOf("zip_code");
+    private final int demoGender = Table.PATIENT_DEMOGRAPHICS.indexOf("gender");
+    private final int demoDob = Table.PATIENT_DEMOGRAPHICS.indexOf("date_of_birth");
+    private final int demoCity = Table.PATIENT_DEMOGRAPHICS.indexOf("city");
+    private final int demoState = Table.PATIENT_DEMOGRAPHICS.indexOf("state_or_province");
+    private final int resultUid = Table.PATIENT_RESULTS.indexOf("result_uid");
+    private final int resultPatientId = Table.PATIENT_RESULTS.indexOf("patient_id");
+    private final int resultName = Table.PATIENT_RESULTS.indexOf("result_name");
+    private final int resultDate = Table.PATIENT_RESULTS.indexOf("result_date");
+    private final int resultValue = Table.PATIENT_RESULTS.indexOf("result_value");
+    private final int encUid = Table.PATIENT_ENCOUNTERS.indexOf("encounter_uid");
+    private final int encPatientId = Table.PATIENT_ENCOUNTERS.indexOf("patient_id");
+    private final int encType = Table.PATIENT_ENCOUNTERS.indexOf("encounter_type");
+    private final int encAdmit = Table.PATIENT_ENCOUNTERS.indexOf("admit_date");
+    private final int encDischarge = Table.PATIENT_ENCOUNTERS.indexOf("discharge_date");
+
+    /**
+     * Creates a new sink that writes lookup rows alongside the base rows
+     *
+     * @param delegate
+     *            sink that actually writes the rows
+     * @param valueBucketWidth
+     *            width of each result value bucket, e.g. 10.0 puts LDLC values
+     *            of 100 through 109.99 in the same bucket
+     */
+    public QueryTableSink(DataSink delegate, double valueBucketWidth) {
+        super(delegate);
+        if (valueBucketWidth <= 0) {
+            throw new IllegalArgumentException(
+                    "valueBucketWidth must be positive");
+        }
+        this.valueBucketWidth = valueBucketWidth;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        delegate.write(table, values);
+
+        switch (table) {
+        case PATIENT_DEMOGRAPHICS:
+            delegate.write(Table.PATIENTS_BY_ZIP, values[demoZip],
+                    zipBucket(values[demoPatientId]), values[demoPatientId],
+                    values[demoGender], values[demoDob], values[demoCity],
+                    values[demoState]);
+            break;
+        case PATIENT_RESULTS:
+            double value = ((Double) values[resultValue]).doubleValue();
+            delegate.write(Table.RESULTS_BY_VALUE, values[resultName],
+                    valueBucket(value), dayBucket((Date) values[resultDate]),
+                    value, values[resultDate], values[resultUid],
+                    values[resultPatientId]);
+            break;
+        case PATIENT_ENCOUNTERS:
+            delegate.write(Table.ENCOUNTERS_BY_ADMIT_TYPE, values[encType],
+                    dayBucket((Date) values[encAdmit]), values[encAdmit],
+                    values[encUid], values[encPatientId], values[encDischarge]);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @return bucket a result value falls into
+     */
+    public int valueBucket(double value) {
+        return (int) Math.floor(value / valueBucketWidth);
+    }
+
+    /**
+     * @return bucket of a zip code's partitions a patient falls into
+     */
+    public static int zipBucket(Object patientId) {
+        return (String.valueOf(patientId).hashCode() & Integer.MAX_VALUE)
+                % ZIP_BUCKETS;
+    }
+
+    /**
+     * @return number of whole days between the epoch and the given date
+     */
+    public static int dayBucket(Date date) {
+        return (int) (date.getTime() / MILLIS_PER_DAY);
+    }
+}
@@ -0,0 +1,132 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class describes how the rate of a continuous ingest changes over time,
+ * so a test can warm up, ramp to a peak, hold it and back off without anyone
+ * at the keyboard. A profile is a list of points, each a time in seconds from
+ * the start and a rate in events per second, written as
+ * "seconds:rate,seconds:rate,...", e.g. 0:50,60:500,600:500.<br>
+ * <br>
+ * Between two points the rate changes linearly, so equal rates make a plateau
+ * and a later point with the same time as the one before it makes a step. The
+ * run ends at the time of the last point, unless the profile has a single
+ * point, in which case it holds that rate until it is stopped.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class RampProfile {
+    private final long[] times;
+    private final double[] rates;
+
+    /**
+     * Creates a new profile
+     *
+     * @param seconds
+     *            time of each point from the start, in ascending order and
+     *            starting at 0
+     * @param rates
+     *            rate at each point in events per second, all positive
+     */
+    public RampProfile(double[] seconds, double[] rates) {
+        if (seconds.length == 0 || seconds.length != rates.length) {
+            throw new IllegalArgumentException(
+                    "A profile needs a rate for each of one or more points");
+        }
+        if (seconds[0] != 0) {
+            throw new IllegalArgumentException(
+                    "A profile must start at 0 seconds");
+        }
+        this.times = new long[seconds.length];
+        this.rates = rates.clone();
+        for (int i = 0; i < seconds.length; i++) {
+            if (i > 0 && seconds[i] < seconds[i - 1]) {
+                throw new IllegalArgumentException(
+                        "Profile times must be in ascending order");
+            }
+            if (!(rates[i] > 0)) {
+                throw new IllegalArgumentException(
+                        "Profile rates must be positive");
+            }
+            times[i] = (long) (seconds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Parses a profile of the form "seconds:rate,seconds:rate,..."
+     *
+     * @param profile
+     *            text of the profile
+     * @return the profile
+     */
+    public static RampProfile parse(String profile) {
+        String[] points = profile.trim().split("\\s*,\\s*");
+        double[] seconds = new double[points.length];
+        double[] rates = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            String[] parts = points[i].split("\\s*:\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Profile point " + points[i]
+                        + " is not of the form seconds:rate");
+            }
+            seconds[i] = Double.parseDouble(parts[0]);
+            rates[i] = Double.parseDouble(parts[1]);
+        }
+        return new RampProfile(seconds, rates);
+    }
+
+    /**
+     * Returns a profile holding one rate until it is stopped
+     *
+     * @param rate
+     *            rate in events per second
+     * @return the profile
+     */
+    public static RampProfile constant(double rate) {
+        return new RampProfile(new double[] { 0 }, new double[] { rate });
+    }
+
+    /**
+     * Returns the rate at a point in the run
+     *
+     * @param elapsedNanos
+     *            time since the start of the run
+     * @return rate in events per second
+     */
+    public double getRate(long elapsedNanos) {
+        int last = times.length - 1;
+        if (elapsedNanos >= times[last]) {
+            return rates[last];
+        }
+        int i = 0;
+        while (elapsedNanos >= times[i + 1]) {
+            i++;
+        }
+        double fraction = (double) (elapsedNanos - times[i])
+                / (times[i + 1] - times[i]);
+        return rates[i] + (rates[i + 1] - rates[i]) * fraction;
+    }
+
+    /**
+     * @return length of the run in nanoseconds, or Long.MAX_VALUE if it runs
+     *         until stopped
+     */
+    public long getDurationNanos() {
+        return times.length == 1 ? Long.MAX_VALUE : times[times.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(times[i] / (double) TimeUnit.SECONDS.toNanos(1))
+                    .append(':').append(rates[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This enumeration is the catalog of queries the read workload issues against
+ * a loaded keyspace. Each query knows the table whose rows supply its keys,
+ * the columns of those rows it needs, and the CQL it runs under each schema
+ * profile.
+ * <ul>
+ * <li>RESULTS_BY_PATIENT reads one patient's results for one test.</li>
+ * <li>ENCOUNTERS_BY_DATE_RANGE reads one patient's encounters admitted within
+ * a window around an actual admit date. Only the bucketed encounters table
+ * is clustered by admit date, so the query is only served under
+ * TIME_BUCKETED; patient_encounters would need a filter Cassandra refuses
+ * without an index.</li>
+ * <li>PATIENTS_BY_ZIP reads the patients living in a zip code, through the
+ * lookup table under QUERY_TABLES, where it reads every bucket of the zip
+ * code, and through the secondary index on patient_demographics(zip_code)
+ * under the profiles that create indexes.</li>
+ * <li>BENEFICIARY_BY_HICNO reads a beneficiary assignment, through the
+ * secondary index on aco_beneficiary_assignment(hicno) under the profiles
+ * that create indexes.</li>
+ * <li>RANKING_BY_HICNO reads a patient's ranking by its primary key.</li>
+ * </ul>
+ * isServedBy tells which profiles can serve each query, and the read workload
+ * leaves the others out of its mix rather than have them fail on every call.
+ *
+ * @author Jason Foster
+ *
+ */
+public enum ReadQuery implements KeySource {
+    RESULTS_BY_PATIENT(Table.PATIENT_RESULTS, "patient_id", "result_name",
+            "result_date"),
+    ENCOUNTERS_BY_DATE_RANGE(Table.PATIENT_ENCOUNTERS, "patient_id",
+            "admit_date"),
+    PATIENTS_BY_ZIP(Table.PATIENT_DEMOGRAPHICS, "zip_code"),
+    BENEFICIARY_BY_HICNO(Table.BENEFICIARY_ASSIGNMENT, "hicno"),
+    RANKING_BY_HICNO(Table.PATIENT_RANKING, "hicno");
+
+    private final Table source;
+    private final List<String> keyColumns;
+
+    ReadQuery(Table source, String... keyColumns) {
+        this.source = source;
+        this.keyColumns = Collections.unmodifiableList(Arrays
+                .asList(keyColumns));
+    }
+
+    @Override
+    public Table getSource() {
+        return source;
+    }
+
+    @Override
+    public List<String> getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * Tells whether the schema of a profile can serve this query
+     *
+     * @param profile
+     *            schema profile the data was loaded with
+     * @return true if the query's table, and any index it needs, exist under
+     *         the profile
+     */
+    public boolean isServedBy(SchemaProfile profile) {
+        switch (this) {
+        case ENCOUNTERS_BY_DATE_RANGE:
+            return profile == SchemaProfile.TIME_BUCKETED;
+        case PATIENTS_BY_ZIP:
+            return profile == SchemaProfile.QUERY_TABLES
+                    || profile.isCreateIndexes();
+        case BENEFICIARY_BY_HICNO:
+            return profile.isCreateIndexes();
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Returns the CQL for this query, with bind markers for its keys
+     *
+     * @param keyspaceName
+     *            keyspace holding the tables
+     * @param profile
+     *            schema profile the data was loaded with
+     * @return CQL select statement
+     */
+    public String toCql(String keyspaceName, SchemaProfile profile) {
+        boolean bucketed = profile == SchemaProfile.TIME_BUCKETED;
+        switch (this) {
+        case RESULTS_BY_PATIENT:
+            return bucketed ? "select * from " + keyspaceName
+                    + ".patient_results_bucketed where patient_id = ? "
+                    + "and time_bucket = ? and result_name = ?;"
+                    : "select * from " + keyspaceName
+                            + ".patient_results where patient_id = ? "
+                            + "and result_name = ?;";
+        case ENCOUNTERS_BY_DATE_RANGE:
+            return bucketed ? "select * from " + keyspaceName
+                    + ".patient_encounters_bucketed where patient_id = ? "
+                    + "and time_bucket in (?, ?) and admit_date >= ? "
+                    + "and admit_date < ?;"
+                    : "select * from " + keyspaceName
+                            + ".patient_encounters where patient_id = ? "
+                            + "and admit_date >= ? and admit_date < ? "
+                            + "allow filtering;";
+        case PATIENTS_BY_ZIP:
+            if (profile == SchemaProfile.QUERY_TABLES) {
+                StringBuilder buckets = new StringBuilder(32);
+                for (int i = 0; i < QueryTableSink.ZIP_BUCKETS; i++) {
+                    buckets.append(i == 0 ? "" : ", ").append(i);
+                }
+                return "select * from " + keyspaceName
+                        + ".patients_by_zip where zip_code = ? and bucket in ("
+                        + buckets + ");";
+            }
+            return "select * from " + keyspaceName
+                    + ".patient_demographics where zip_code = ?;";
+        case BENEFICIARY_BY_HICNO:
+            return "select * from " + keyspaceName
+                    + ".aco_beneficiary_assignment where hicno = ?;";
+        default:
+            return "select * from " + keyspaceName
+                    + ".aco_patient_ranking where hicno = ?;";
+        }
+    }
+}
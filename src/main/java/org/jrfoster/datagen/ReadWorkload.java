@@ -0,0 +1,246 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+/**
+ * This class benchmarks the read side of a loaded keyspace. A number of
+ * threads each issue queries back to back for a set time, picking each query
+ * from a weighted mix of the ReadQuery catalog and its keys from a KeyCatalog
+ * filled during the load, so every lookup is for data that was actually
+ * written.<br>
+ * <br>
+ * The statements are prepared once and run synchronously, and each thread
+ * records the latency of every query into a LatencyHistogram of its own for
+ * that query type. The threads don't wait between queries, so the latencies
+ * are those of a closed system at the given concurrency, and the throughput
+ * reported is the most that concurrency achieves. Queries that fail are
+ * counted, and the first failure of each type printed.
+ *
+ * @author Jason Foster
+ *
+ */
+public class ReadWorkload {
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+    private static final ReadQuery[] QUERIES = ReadQuery.values();
+
+    private final Session session;
+    private final String keyspaceName;
+    private final SchemaProfile profile;
+    private final KeyCatalog keys;
+    private AliasTable mix;
+    private final double[] weights;
+    private final int threads;
+    private final long bucketWidthMillis;
+    private final long rangeMillis;
+
+    private final Map<ReadQuery, PreparedStatement> statements = new EnumMap<ReadQuery, PreparedStatement>(
+            ReadQuery.class);
+    private final LatencyHistogram[][] histograms;
+    private final AtomicLongArray errors = new AtomicLongArray(QUERIES.length);
+    private long elapsedNanos;
+
+    /**
+     * Creates a new workload
+     *
+     * @param session
+     *            Cassandra session to query on
+     * @param keyspaceName
+     *            keyspace holding the tables
+     * @param profile
+     *            schema profile the data was loaded with
+     * @param keys
+     *            keys sampled during the load
+     * @param weights
+     *            weight of each query in the mix, by ReadQuery ordinal
+     * @param threads
+     *            number of threads issuing queries
+     * @param timeBucketWidthDays
+     *            width of the time buckets of the TIME_BUCKETED profile
+     * @param encounterRangeDays
+     *            width of the admit date ranges encounters are read by, at
+     *            most the width of a time bucket
+     */
+    public ReadWorkload(Session session, String keyspaceName,
+            SchemaProfile profile, KeyCatalog keys, double[] weights,
+            int threads, int timeBucketWidthDays, int encounterRangeDays) {
+        if (weights.length != QUERIES.length) {
+            throw new IllegalArgumentException("A weight is needed for each of "
+                    + QUERIES.length + " queries");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (encounterRangeDays < 1 || encounterRangeDays > timeBucketWidthDays) {
+            throw new IllegalArgumentException(
+                    "encounterRangeDays must be between 1 and the time bucket width");
+        }
+        this.session = session;
+        this.keyspaceName = keyspaceName;
+        this.profile = profile;
+        this.keys = keys;
+        this.weights = weights.clone();
+        this.threads = threads;
+        this.bucketWidthMillis = timeBucketWidthDays * MILLIS_PER_DAY;
+        this.rangeMillis = encounterRangeDays * MILLIS_PER_DAY;
+        this.histograms = new LatencyHistogram[threads][QUERIES.length];
+        for (int t = 0; t < threads; t++) {
+            for (int q = 0; q < QUERIES.length; q++) {
+                histograms[t][q] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Parses a query mix of the form "QUERY:weight,QUERY:weight,...". Queries
+     * that aren't named get no weight.
+     *
+     * @param mix
+     *            text of the mix
+     * @return weight of each query, by ReadQuery ordinal
+     */
+    public static double[] parseMix(String mix) {
+        return Settings.parseWeights(mix, ReadQuery.class);
+    }
+
+    /**
+     * Runs the workload for the given time. Queries the schema profile can't
+     * serve, and queries without any keys to look up, are left out of the
+     * mix. A workload runs once.
+     *
+     * @param durationMillis
+     *            how long to issue queries for
+     */
+    public void run(long durationMillis) {
+        boolean any = false;
+        for (ReadQuery query : QUERIES) {
+            if (weights[query.ordinal()] > 0 && !query.isServedBy(profile)) {
+                System.out.println(profile + " can't serve " + query
+                        + ", leaving it out of the mix");
+                weights[query.ordinal()] = 0;
+            }
+            if (weights[query.ordinal()] > 0 && keys.size(query) == 0) {
+                System.out.println("No keys were written for " + query
+                        + ", leaving it out of the mix");
+                weights[query.ordinal()] = 0;
+            }
+            if (weights[query.ordinal()] > 0) {
+                statements.put(query, session.prepare(query.toCql(
+                        keyspaceName, profile)));
+                any = true;
+            }
+        }
+        if (!any) {
+            System.out.println("No queries to run");
+            return;
+        }
+        mix = new AliasTable(weights);
+
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final LatencyHistogram[] mine = histograms[t];
+            workers[t] = new Thread("read-worker-" + (t + 1)) {
+                @Override
+                public void run() {
+                    Random rng = new Random();
+                    while (System.nanoTime() < end) {
+                        ReadQuery query = QUERIES[mix.sample(rng)];
+                        execute(query, keys.sample(query, rng),
+                                mine[query.ordinal()]);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void execute(ReadQuery query, Object[] key,
+            LatencyHistogram histogram) {
+        long start = System.nanoTime();
+        try {
+            session.execute(statements.get(query).bind(bindValues(query, key))).all();
+            histogram.record(System.nanoTime() - start);
+        } catch (RuntimeException rex) {
+            if (errors.getAndIncrement(query.ordinal()) == 0) {
+                System.out.println(query + " failed: " + rex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Turns a sampled key into the values bound to a query's statement
+     */
+    Object[] bindValues(ReadQuery query, Object[] key) {
+        boolean bucketed = profile == SchemaProfile.TIME_BUCKETED;
+        switch (query) {
+        case RESULTS_BY_PATIENT:
+            return bucketed ? new Object[] { key[0],
+                    timeBucket(((Date) key[2]).getTime()), key[1] }
+                    : new Object[] { key[0], key[1] };
+        case ENCOUNTERS_BY_DATE_RANGE:
+            // A window centred on an actual admit date, no wider than a
+            // bucket, so it spans at most two buckets
+            long from = ((Date) key[1]).getTime() - rangeMillis / 2;
+            long to = from + rangeMillis;
+            return bucketed ? new Object[] { key[0], timeBucket(from),
+                    timeBucket(to), new Date(from), new Date(to) }
+                    : new Object[] { key[0], new Date(from), new Date(to) };
+        default:
+            return new Object[] { key[0] };
+        }
+    }
+
+    private int timeBucket(long millis) {
+        return (int) (millis / bucketWidthMillis);
+    }
+
+    /**
+     * Returns the throughput, errors and latency percentiles of each query
+     * and of the workload as a whole, suitable for printing at the end of a
+     * run
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        LatencyHistogram all = new LatencyHistogram();
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format("Read workload on %d threads for %.1f s",
+                threads, seconds));
+        for (ReadQuery query : QUERIES) {
+            if (weights[query.ordinal()] <= 0) {
+                continue;
+            }
+            LatencyHistogram latencies = new LatencyHistogram();
+            for (LatencyHistogram[] mine : histograms) {
+                latencies.add(mine[query.ordinal()]);
+            }
+            all.add(latencies);
+            sb.append(String.format("%n  %s: %d queries, %.1f/s, %d errors, %s",
+                    query, latencies.getCount(),
+                    seconds == 0 ? 0.0 : latencies.getCount() / seconds,
+                    errors.get(query.ordinal()), latencies.summary()));
+        }
+        sb.append(String.format("%n  All: %d queries, %.1f/s, %s",
+                all.getCount(), seconds == 0 ? 0.0 : all.getCount() / seconds,
+                all.summary()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,278 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class scores each patient's risk of readmission from the encounters
+ * generated for them, as they are generated, so that pat_readmission_risk,
+ * readmission_stratification and metrics are filled in by the load itself
+ * instead of by scanning the encounters once it is done.<br>
+ * <br>
+ * The score follows the LACE index, less the comorbidity part:
+ * <ul>
+ * <li>L, the length of the patient's longest stay: 0 points for less than a
+ * day, 1 to 3 points for 1 to 3 days, 4 for 4 to 6 days, 5 for 7 to 13 days
+ * and 7 for 14 days or more</li>
+ * <li>A, the acuity of admission: 3 points if any encounter was an
+ * Emergency, Accident or Urgent admission</li>
+ * <li>E, the patient's other encounters: 1 point for each, up to 4</li>
+ * </ul>
+ * giving scores from 0 to 14, of which HIGH_RISK_SCORE and above count as
+ * high risk.<br>
+ * <br>
+ * A PatientLoader gets a Scorer of its own, which watches the encounter rows
+ * on their way to the sink and writes the patient's score once the patient is
+ * loaded. Each scorer counts scores in a histogram of its own and adds it to
+ * the aggregator's when its loader finishes, so no lock is taken per patient
+ * and nothing is kept for a loader once it is done. Once the load is done,
+ * write() writes the stratification and the metrics in a handful of rows.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class ReadmissionRiskAggregator {
+    public static final int MAX_SCORE = 14;
+    public static final int HIGH_RISK_SCORE = 10;
+
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final int encAdmit = Table.PATIENT_ENCOUNTERS.indexOf("admit_date");
+    private final int encType = Table.PATIENT_ENCOUNTERS.indexOf("encounter_type");
+    private final int encDischarge = Table.PATIENT_ENCOUNTERS.indexOf("discharge_date");
+
+    private final boolean writeScores;
+    // Scores and encounters of the scorers that have finished, guarded by
+    // the histogram
+    private final long[] histogram = new long[MAX_SCORE + 1];
+    private long encounters;
+
+    /**
+     * Creates a new aggregator
+     *
+     * @param writeScores
+     *            whether each patient's score is written to
+     *            pat_readmission_risk, or only counted
+     */
+    public ReadmissionRiskAggregator(boolean writeScores) {
+        this.writeScores = writeScores;
+    }
+
+    /**
+     * Creates a scorer watching the rows written to the given sink
+     *
+     * @param delegate
+     *            sink the rows, and the scores, are written to
+     * @return scorer for use by a single thread, which should be finished
+     *         when the thread is done with it
+     */
+    public Scorer newScorer(DataSink delegate) {
+        return new Scorer(delegate);
+    }
+
+    /**
+     * Adds the scores of patients loaded elsewhere, such as by another
+     * worker of a load split across several
+     *
+     * @param scores
+     *            number of patients with each score
+     * @param scoredEncounters
+     *            number of encounters the scores were computed from
+     */
+    public void add(long[] scores, long scoredEncounters) {
+        synchronized (histogram) {
+            for (int i = 0; i <= MAX_SCORE; i++) {
+                histogram[i] += scores[i];
+            }
+            encounters += scoredEncounters;
+        }
+    }
+
+    /**
+     * Returns the LACE points for a length of stay
+     *
+     * @param days
+     *            length of stay in whole days
+     * @return points from 0 to 7
+     */
+    static int lengthOfStayPoints(long days) {
+        if (days < 4) {
+            return (int) Math.max(days, 0);
+        }
+        return days < 7 ? 4 : days < 14 ? 5 : 7;
+    }
+
+    /**
+     * @return true if an admission type counts as acute
+     */
+    static boolean isAcute(Object admitType) {
+        return "Emergency".equals(admitType) || "Accident".equals(admitType)
+                || "Urgent".equals(admitType);
+    }
+
+    /**
+     * Returns the number of patients with each score, from every scorer that
+     * has finished. It should be called once the loaders have finished their
+     * scorers.
+     *
+     * @return counts indexed by score
+     */
+    public long[] getHistogram() {
+        synchronized (histogram) {
+            return histogram.clone();
+        }
+    }
+
+    /**
+     * @return number of encounters the finished scorers' scores were computed
+     *         from
+     */
+    public long getEncounters() {
+        synchronized (histogram) {
+            return encounters;
+        }
+    }
+
+    /**
+     * Writes the number of patients with each score to
+     * readmission_stratification and the totals to metrics. It should be
+     * called once, when the threads using the scorers have finished.
+     *
+     * @param sink
+     *            sink to write the rows to
+     * @param tables
+     *            tables being loaded; rows for any other table are skipped
+     */
+    public void write(DataSink sink, Set<Table> tables) {
+        long[] histogram = getHistogram();
+        long patients = 0;
+        long highRisk = 0;
+        long total = 0;
+        for (int score = 0; score <= MAX_SCORE; score++) {
+            patients += histogram[score];
+            total += score * histogram[score];
+            if (score >= HIGH_RISK_SCORE) {
+                highRisk += histogram[score];
+            }
+            if (histogram[score] > 0
+                    && tables.contains(Table.READMISSION_STRATIFICATION)) {
+                sink.write(Table.READMISSION_STRATIFICATION, score,
+                        toInt(histogram[score]));
+            }
+        }
+        if (tables.contains(Table.METRICS)) {
+            sink.write(Table.METRICS, "readmission_patients", toInt(patients));
+            sink.write(Table.METRICS, "readmission_high_risk", toInt(highRisk));
+            sink.write(Table.METRICS, "readmission_encounters",
+                    toInt(getEncounters()));
+            // The columns are ints, so the mean is kept in hundredths
+            sink.write(Table.METRICS, "readmission_mean_score_x100",
+                    patients == 0 ? 0 : toInt(Math.round(100.0 * total
+                            / patients)));
+        }
+    }
+
+    private static int toInt(long count) {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of patients with each score and the share at high
+     * risk, suitable for printing at the end of a load
+     *
+     * @return multi-line report
+     */
+    public String report() {
+        long[] histogram = getHistogram();
+        long patients = 0;
+        long highRisk = 0;
+        for (int score = 0; score <= MAX_SCORE; score++) {
+            patients += histogram[score];
+            if (score >= HIGH_RISK_SCORE) {
+                highRisk += histogram[score];
+            }
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Readmission risk of ").append(patients)
+                .append(" patients from ").append(getEncounters())
+                .append(" encounters, ").append(highRisk)
+                .append(String.format(" (%.2f%%)", patients == 0 ? 0.0
+                        : 100.0 * highRisk / patients))
+                .append(" at high risk\n  Score:");
+        for (int score = 0; score <= MAX_SCORE; score++) {
+            sb.append(" ").append(score).append("=").append(histogram[score]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Scores one patient at a time from the encounter rows written through it.
+     * Not thread-safe; each loader has a scorer of its own.
+     */
+    public final class Scorer extends ForwardingDataSink {
+        // Scores counted since the scorer last added them to the aggregator
+        private final long[] scores = new long[MAX_SCORE + 1];
+        private long scoredEncounters;
+
+        private int patientEncounters;
+        private long longestStayDays;
+        private boolean acute;
+
+        private Scorer(DataSink delegate) {
+            super(delegate);
+        }
+
+        /**
+         * Starts scoring a new patient
+         */
+        public void beginPatient() {
+            patientEncounters = 0;
+            longestStayDays = 0;
+            acute = false;
+        }
+
+        @Override
+        public void write(Table table, Object... values) {
+            delegate.write(table, values);
+            if (table == Table.PATIENT_ENCOUNTERS) {
+                patientEncounters++;
+                long stay = (((Date) values[encDischarge]).getTime()
+                        - ((Date) values[encAdmit]).getTime()) / MILLIS_PER_DAY;
+                longestStayDays = Math.max(longestStayDays, stay);
+                acute |= isAcute(values[encType]);
+            }
+        }
+
+        /**
+         * Scores the patient from the encounters written since
+         * beginPatient(), counts the score and writes it if scores are being
+         * written
+         *
+         * @param patientId
+         *            id of the patient
+         * @return the patient's score
+         */
+        public int endPatient(int patientId) {
+            int score = lengthOfStayPoints(longestStayDays) + (acute ? 3 : 0)
+                    + Math.min(Math.max(patientEncounters - 1, 0), 4);
+            scores[score]++;
+            scoredEncounters += patientEncounters;
+            if (writeScores) {
+                delegate.write(Table.PAT_READMISSION_RISK, patientId, score);
+            }
+            return score;
+        }
+
+        /**
+         * Adds the scorer's histogram to the aggregator's and starts it
+         * afresh, once its loader is done with it
+         */
+        public void finish() {
+            add(scores, scoredEncounters);
+            Arrays.fill(scores, 0);
+            scoredEncounters = 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.jrfoster.datagen;
+
+/**
+ * This class holds a block of results for one lab test in columns of
+ * primitives: the values, whether each is abnormal, and when each was taken
+ * as epoch milliseconds. A block is meant to be reused, so a strategy keeps
+ * one per test and refills it for each encounter, and generating results into
+ * it allocates nothing once the arrays are big enough.<br>
+ * <br>
+ * The arrays are handed out directly so the bulk methods of DataGenerator and
+ * AbnormalRatioController can fill them. Only the first size() entries of
+ * each belong to the block. Not thread-safe.
+ * 
+ * @author Jason Foster
+ * 
+ */
+public final class ResultBlock {
+    private LabTest test;
+    private int size;
+    private double[] values;
+    private boolean[] abnormal;
+    private long[] timestamps;
+
+    /**
+     * Creates an empty block
+     * 
+     * @param capacity
+     *            number of results the block holds before it has to grow
+     */
+    public ResultBlock(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.values = new double[capacity];
+        this.abnormal = new boolean[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * Empties the block and sets it up for the given number of results,
+     * growing the arrays if they are too small. The contents of the arrays
+     * are left as they were until they are filled again.
+     * 
+     * @param test
+     *            test the results are for
+     * @param size
+     *            number of results the block will hold
+     */
+    public void reset(LabTest test, int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size cannot be negative");
+        }
+        if (size > values.length) {
+            int capacity = Math.max(size, values.length * 2);
+            values = new double[capacity];
+            abnormal = new boolean[capacity];
+            timestamps = new long[capacity];
+        }
+        this.test = test;
+        this.size = size;
+    }
+
+    public LabTest getTest() {
+        return test;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public boolean[] getAbnormal() {
+        return abnormal;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+}
@@ -0,0 +1,163 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a bounded, lock-free ring buffer of rows that any number of
+ * threads can publish to and any number of threads can drain. Every slot is
+ * allocated up front with a values array wide enough for the widest table, and
+ * the slots are reused for the life of the buffer, so moving a row through it
+ * allocates nothing.<br>
+ * <br>
+ * Each slot carries a sequence number that says whose turn it is to use the
+ * slot (Vyukov's bounded MPMC queue). A producer claims the next position with
+ * a compare-and-set, copies the row into the slot and then advances the slot's
+ * sequence to hand it to consumers. A consumer claims a position the same way,
+ * hands the slot's values straight to a sink and then advances the sequence to
+ * hand the slot back to producers. Slots are cleared before being handed back
+ * so the buffer never keeps rows reachable after they have been written.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class RowRingBuffer {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Table[] tables;
+    private final Object[][] rows;
+
+    // Next position to publish to and next position to drain from
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a buffer with room for at least the given number of rows
+     *
+     * @param capacity
+     *            minimum number of rows the buffer can hold, rounded up to a
+     *            power of two
+     */
+    public RowRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException(
+                    "capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        int width = 0;
+        for (Table table : Table.values()) {
+            width = Math.max(width, table.getColumnCount());
+        }
+
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.tables = new Table[size];
+        this.rows = new Object[size][width];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Copies a row into the buffer if there is room for it
+     *
+     * @param table
+     *            table the row belongs to
+     * @param values
+     *            column values in catalog order, which may be longer than
+     *            the table, as poll() hands them on, in which case only the
+     *            table's columns are copied
+     * @return the position the row was published at, or -1 if the buffer is
+     *         full
+     */
+    public long offer(Table table, Object[] values) {
+        long pos;
+        int index;
+        while (true) {
+            pos = tail.get();
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return -1;
+            }
+            // Otherwise another producer got there first, so try again
+        }
+
+        tables[index] = table;
+        // Only the table's columns are cleared when the row is drained, so
+        // no more than those are copied
+        System.arraycopy(values, 0, rows[index], 0,
+                Math.min(values.length, table.getColumnCount()));
+        sequences.lazySet(index, pos + 1);
+        return pos;
+    }
+
+    /**
+     * Takes the oldest row out of the buffer, if there is one, and writes it
+     * to a sink. The sink is given the slot's own values array, which may be
+     * wider than the table, and must not hold on to it.
+     *
+     * @param target
+     *            sink to write the row to
+     * @return true if a row was written, false if the buffer was empty
+     */
+    public boolean poll(DataSink target) {
+        long pos;
+        int index;
+        while (true) {
+            pos = head.get();
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+
+        Table table = tables[index];
+        Object[] values = rows[index];
+        try {
+            target.write(table, values);
+        } finally {
+            tables[index] = null;
+            Arrays.fill(values, 0, table.getColumnCount(), null);
+            sequences.lazySet(index, pos + mask + 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return number of rows published so far, including any still in the
+     *         buffer
+     */
+    public long getPublished() {
+        return tail.get();
+    }
+
+    /**
+     * @return approximate number of rows waiting in the buffer
+     */
+    public int size() {
+        long depth = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(depth, mask + 1));
+    }
+
+    /**
+     * @return number of rows the buffer can hold
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
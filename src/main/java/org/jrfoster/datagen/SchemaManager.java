@@ -0,0 +1,223 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+
+/**
+ * This class creates the keyspace, column families and secondary indexes used
+ * by the loader. How and when the secondary indexes get created is driven by
+ * the SchemaProfile it is given.<br>
+ * <br>
+ * When indexes are deferred, each index is created after the load and then
+ * polled until Cassandra reports it as built, so the time printed for each
+ * index is the real cost of building it over the loaded data. Comparing that
+ * against the load time of an INLINE_INDEXES run gives the cost of index
+ * maintenance during the load.
+ *
+ * @author Jason Foster
+ *
+ */
+public class SchemaManager {
+    private static final long INDEX_POLL_INTERVAL_MS = 500;
+
+    // Secondary indexes over the tables the loader writes: the lookups the
+    // QUERY_TABLES profile serves from tables of its own, the ones the read
+    // workload goes through and a few more that queries have used. Only those
+    // whose table exists in the keyspace are created.
+    private static final List<IndexDefinition> INDEXES = Arrays.asList(
+            new IndexDefinition("demographics_zip", "patient_demographics", "zip_code"),
+            new IndexDefinition("demographics_gender", "patient_demographics", "gender"),
+            new IndexDefinition("results_value", "patient_results", "result_value"),
+            new IndexDefinition("encounters_type", "patient_encounters", "encounter_type"),
+            new IndexDefinition("diagnoses_code", "patient_diagnoses", "code"),
+            new IndexDefinition("beneficiary_hicno", "aco_beneficiary_assignment", "hicno"),
+            new IndexDefinition("readmission_score", "pat_readmission_risk", "score"));
+
+    private final Cluster cluster;
+    private final Session session;
+    private final String keyspaceName;
+    private final SchemaProfile profile;
+    private final long indexBuildTimeoutMs;
+
+    /**
+     * Creates a new instance for the given keyspace
+     *
+     * @param cluster
+     *            Cassandra cluster, used to inspect metadata
+     * @param session
+     *            Cassandra session to use when executing DDL
+     * @param keyspaceName
+     *            name of the keyspace to create
+     * @param profile
+     *            profile deciding when secondary indexes are built
+     * @param indexBuildTimeoutMs
+     *            how long to wait for a single deferred index to finish
+     *            building before giving up on it
+     */
+    public SchemaManager(Cluster cluster, Session session, String keyspaceName,
+            SchemaProfile profile, long indexBuildTimeoutMs) {
+        this.cluster = cluster;
+        this.session = session;
+        this.keyspaceName = keyspaceName;
+        this.profile = profile;
+        this.indexBuildTimeoutMs = indexBuildTimeoutMs;
+    }
+
+    /**
+     * Creates the keyspace and, if the keyspace did not already exist, the
+     * tables the loader writes. Secondary indexes are also created if the
+     * profile uses them and does not defer them, even if the keyspace already
+     * existed. Any lookup tables the profile needs are created if they do not
+     * exist.
+     *
+     * @return true if the schema was created by this call, false if the
+     *         keyspace already existed and nothing was done
+     */
+    public boolean createSchema() {
+        boolean created = createKeyspace();
+        if (created) {
+            createColumnFamilies();
+        }
+        if (profile.isCreateIndexes() && !profile.isDeferIndexes()) {
+            createIndexes();
+        }
+
+        // Tables specific to the profile are created whether or not the
+        // keyspace already existed, since they are new to most keyspaces
+        for (Table table : profile.getProfileTables()) {
+            session.execute(table.toCreateDDL(keyspaceName));
+        }
+        return created;
+    }
+
+    /**
+     * Builds the secondary indexes after a load. Each index is created and then
+     * waited on until it has been built, with the elapsed time for each being
+     * reported to the console. Does nothing unless the profile defers indexes.
+     *
+     * @return total number of milliseconds spent building indexes
+     */
+    public long buildDeferredIndexes() {
+        if (!profile.isCreateIndexes() || !profile.isDeferIndexes()) {
+            return 0;
+        }
+
+        List<IndexDefinition> indexes = existingIndexes();
+        System.out.println("Building " + indexes.size()
+                + " deferred secondary indexes");
+        long total = 0;
+        for (int i = 0; i < indexes.size(); i++) {
+            IndexDefinition index = indexes.get(i);
+            System.out.printf("  [%d/%d] %s on %s(%s)....", i + 1,
+                    indexes.size(), index.name, index.table, index.column);
+            long start = System.currentTimeMillis();
+            session.execute(index.toDDL(keyspaceName));
+            boolean built = awaitIndexBuilt(index);
+            long elapsed = System.currentTimeMillis() - start;
+            total += elapsed;
+            System.out.println((built ? "built in " : "still building after ")
+                    + elapsed + " ms");
+        }
+        System.out.println("Elapsed time for deferred index build: " + total
+                + " ms");
+        return total;
+    }
+
+    private List<IndexDefinition> existingIndexes() {
+        KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace(
+                keyspaceName);
+        List<IndexDefinition> indexes = new ArrayList<IndexDefinition>();
+        for (IndexDefinition index : INDEXES) {
+            if (keyspace != null && keyspace.getTable(index.table) != null) {
+                indexes.add(index);
+            } else {
+                System.out.println("Table " + index.table
+                        + " doesn't exist, not creating index " + index.name);
+            }
+        }
+        return indexes;
+    }
+
+    private boolean createKeyspace() {
+        if (cluster.getMetadata().getKeyspace(keyspaceName) != null) {
+            return false;
+        }
+
+        StringBuffer ddl = new StringBuffer();
+        ddl.append("CREATE KEYSPACE ").append(keyspaceName)
+                .append(" WITH REPLICATION = ")
+                .append("{'class':'SimpleStrategy', 'replication_factor':3};");
+
+        session.execute(ddl.toString());
+        return true;
+    }
+
+    private void createColumnFamilies() {
+        // The tables every profile writes, from the catalog, so the indexes
+        // are over the same tables and columns the loader fills. Tables of a
+        // single profile are left for createSchema to add.
+        for (Table table : Table.values()) {
+            boolean profileTable = false;
+            for (SchemaProfile candidate : SchemaProfile.values()) {
+                profileTable |= candidate.getProfileTables().contains(table);
+            }
+            if (!profileTable) {
+                session.execute(table.toCreateDDL(keyspaceName));
+            }
+        }
+    }
+
+    private void createIndexes() {
+        // Create all secondary indexes to support queries
+        for (IndexDefinition index : existingIndexes()) {
+            session.execute(index.toDDL(keyspaceName));
+        }
+    }
+
+    private boolean awaitIndexBuilt(IndexDefinition index) {
+        // Cassandra builds an index in the background after the DDL returns
+        // and records it in the system IndexInfo table once it is complete
+        long deadline = System.currentTimeMillis() + indexBuildTimeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            for (Row row : session.execute(
+                    "select index_name from system.\"IndexInfo\" where table_name = '"
+                            + keyspaceName + "';")) {
+                String name = row.getString("index_name");
+                if (name.equals(index.name) || name.endsWith("." + index.name)) {
+                    return true;
+                }
+            }
+
+            try {
+                Thread.sleep(INDEX_POLL_INTERVAL_MS);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static class IndexDefinition {
+        private final String name;
+        private final String table;
+        private final String column;
+
+        IndexDefinition(String name, String table, String column) {
+            this.name = name;
+            this.table = table;
+            this.column = column;
+        }
+
+        String toDDL(String keyspaceName) {
+            return "create index if not exists " + name + " on " + keyspaceName + "."
+                    + table + "(" + column + ");";
+        }
+    }
+}
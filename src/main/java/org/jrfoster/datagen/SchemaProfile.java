@@ -0,0 +1,70 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This enumeration describes the ways the schema can be laid down relative to
+ * the data load.
+ * <ul>
+ * <li>INLINE_INDEXES creates the tables and all secondary indexes before any
+ * data is written, so every insert pays for index maintenance. This is the
+ * original behavior.</li>
+ * <li>DEFERRED_INDEXES creates only the base tables before the load and builds
+ * the secondary indexes once the load is complete, reporting the time taken to
+ * build each one.</li>
+ * <li>QUERY_TABLES creates no secondary indexes at all. Instead the loader
+ * writes every row that would have been indexed into a query-specific lookup
+ * table as well, see QueryTableSink.</li>
+ * <li>TIME_BUCKETED writes results and encounters into tables partitioned by
+ * patient and a bucket of time, so a long patient history does not produce a
+ * single wide partition, see TimeBucketSink.</li>
+ * </ul>
+ *
+ * @author Jason Foster
+ *
+ */
+public enum SchemaProfile {
+    INLINE_INDEXES(true, false),
+    DEFERRED_INDEXES(true, true),
+    QUERY_TABLES(false, false, Table.PATIENTS_BY_ZIP, Table.RESULTS_BY_VALUE,
+            Table.ENCOUNTERS_BY_ADMIT_TYPE),
+    TIME_BUCKETED(false, false, Table.PATIENT_RESULTS_BUCKETED,
+            Table.PATIENT_ENCOUNTERS_BUCKETED);
+
+    private final boolean createIndexes;
+    private final boolean deferIndexes;
+    private final List<Table> profileTables;
+
+    SchemaProfile(boolean createIndexes, boolean deferIndexes,
+            Table... profileTables) {
+        this.createIndexes = createIndexes;
+        this.deferIndexes = deferIndexes;
+        this.profileTables = Collections.unmodifiableList(Arrays
+                .asList(profileTables));
+    }
+
+    /**
+     * @return true if this profile uses secondary indexes at all
+     */
+    public boolean isCreateIndexes() {
+        return createIndexes;
+    }
+
+    /**
+     * @return true if secondary indexes are built after the load instead of
+     *         before it
+     */
+    public boolean isDeferIndexes() {
+        return deferIndexes;
+    }
+
+    /**
+     * @return tables only this profile writes to, which are created in
+     *         addition to the base tables
+     */
+    public List<Table> getProfileTables() {
+        return profileTables;
+    }
+}
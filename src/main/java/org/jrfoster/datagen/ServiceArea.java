@@ -0,0 +1,86 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+/**
+ * This class is the set of zip codes within a given distance of one or more
+ * facilities, along with the weights used to draw patients' zip codes from
+ * it. The spatial search happens once when the service area is created, after
+ * which drawing a zip code is a single AliasTable draw, so a service area can
+ * be used for every patient in a load. Instances are immutable and can be
+ * shared between threads.<br>
+ * <br>
+ * A service area is described by a spec string of facility locations
+ * separated by semicolons, each a latitude and longitude separated by a comma,
+ * e.g. "41.76,-72.68;41.31,-72.92".
+ *
+ * @author Jason Foster
+ *
+ */
+public final class ServiceArea {
+    private final ZipData[] zips;
+    private final AliasTable table;
+    private final double radiusMiles;
+
+    ServiceArea(ZipData[] zips, AliasTable table, double radiusMiles) {
+        this.zips = zips;
+        this.table = table;
+        this.radiusMiles = radiusMiles;
+    }
+
+    /**
+     * Parses a list of facility locations
+     *
+     * @param spec
+     *            locations in the form "lat,lon;lat,lon"
+     * @return two arrays, the latitudes followed by the longitudes
+     * @throws IllegalArgumentException
+     *             if the spec is not valid
+     */
+    public static double[][] parseLocations(String spec) {
+        String[] points = spec.trim().split(";");
+        double[][] locations = new double[2][points.length];
+        for (int i = 0; i < points.length; i++) {
+            String[] parts = points[i].split(",");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid location: "
+                        + points[i]);
+            }
+            try {
+                locations[0][i] = Double.parseDouble(parts[0].trim());
+                locations[1][i] = Double.parseDouble(parts[1].trim());
+            } catch (NumberFormatException nfex) {
+                throw new IllegalArgumentException("Invalid location: "
+                        + points[i], nfex);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Draws a zip code from the service area
+     *
+     * @param rng
+     *            random number generator to draw with
+     * @return zip code within the service area
+     */
+    public ZipData sample(Random rng) {
+        return zips[table.sample(rng)];
+    }
+
+    /**
+     * @return number of zip codes in the service area
+     */
+    public int size() {
+        return zips.length;
+    }
+
+    public double getRadiusMiles() {
+        return radiusMiles;
+    }
+
+    @Override
+    public String toString() {
+        return zips.length + " zip codes within " + radiusMiles + " miles";
+    }
+}
@@ -0,0 +1,146 @@
+package org.jrfoster.datagen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * This class holds the settings used to drive a load. Values are read from the
+ * data-generator.properties file on the classpath and any of them can be
+ * overridden on the command line with a system property of the same name, for
+ * example -Dschema.profile=DEFERRED_INDEXES.<br>
+ * <br>
+ * Keys that are present in the file but have no value are treated as though
+ * they were not set at all, so the caller's default is used.
+ *
+ * @author Jason Foster
+ *
+ */
+public class Settings {
+    private static final String SETTINGS_FILE = "/data-generator.properties";
+
+    private final Properties properties = new Properties();
+
+    private Settings() {
+    }
+
+    /**
+     * Loads the settings file from the classpath. A missing file is not an
+     * error, it simply means every setting will come from system properties or
+     * the defaults given by the caller.
+     *
+     * @return Settings instance backed by the properties file
+     */
+    public static Settings load() {
+        Settings settings = new Settings();
+        InputStream in = Settings.class.getResourceAsStream(SETTINGS_FILE);
+        if (in != null) {
+            try {
+                settings.properties.load(in);
+            } catch (IOException ioex) {
+                ioex.printStackTrace();
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ioex) {
+                    System.out.println("Unable to close " + SETTINGS_FILE
+                            + ": " + ioex);
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Returns the raw value for a key, preferring a system property over the
+     * value in the settings file
+     *
+     * @param key
+     *            name of the setting
+     * @param defaultValue
+     *            value to return if the setting is not present or is empty
+     * @return trimmed setting value or the default
+     */
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Returns the value of a setting as a constant of the given enumeration.
+     * The comparison ignores case, so "deferred_indexes" and
+     * "DEFERRED_INDEXES" are equivalent.
+     *
+     * @param key
+     *            name of the setting
+     * @param type
+     *            enumeration class the value belongs to
+     * @param defaultValue
+     *            value to return if the setting is not present
+     * @return the matching enumeration constant
+     * @throws IllegalArgumentException
+     *             if the value does not name a constant of the enumeration
+     */
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type,
+            E defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Enum.valueOf(type,
+                value.toUpperCase());
+    }
+
+    /**
+     * Parses a weighting of the constants of an enumeration written as
+     * "CONSTANT:weight,CONSTANT:weight,...", such as the mix of queries a
+     * workload runs. Constants that aren't named get no weight, and the case
+     * of the names is ignored.
+     *
+     * @param text
+     *            text of the weighting
+     * @param type
+     *            enumeration class the constants belong to
+     * @return weight of each constant, by ordinal
+     * @throws IllegalArgumentException
+     *             if an entry is malformed or names no constant
+     */
+    public static <E extends Enum<E>> double[] parseWeights(String text,
+            Class<E> type) {
+        double[] weights = new double[type.getEnumConstants().length];
+        for (String entry : text.trim().split("\\s*,\\s*")) {
+            String[] parts = entry.split("\\s*:\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Entry " + entry
+                        + " is not of the form " + type.getSimpleName()
+                        + ":weight");
+            }
+            weights[Enum.valueOf(type, parts[0].toUpperCase()).ordinal()] = Double
+                    .parseDouble(parts[1]);
+        }
+        return weights;
+    }
+}
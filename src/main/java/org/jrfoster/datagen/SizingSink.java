@@ -0,0 +1,307 @@
+package org.jrfoster.datagen;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * This sink writes nothing, it measures the rows it is given: the number of
+ * rows and bytes each table gets, per patient, and the rows and bytes of each
+ * partition. A LoadEstimator feeds it a sample of patients and extrapolates
+ * the figures to a full load.<br>
+ * <br>
+ * The size of a row is the size of its values as the native protocol carries
+ * them, a four byte length followed by the value, UTF-8 for text. That is
+ * the size of what the loader sends, not of what the cluster keeps on disk,
+ * which depends on compression and compaction.<br>
+ * <br>
+ * The caller marks where each patient's rows start and end, so the rows and
+ * bytes of each table are known per patient and the spread between patients
+ * can be measured. The time spent measuring is kept as well, so that it can
+ * be told apart from the time spent generating the rows. The sink is not
+ * thread-safe.
+ *
+ * @author Jason Foster
+ *
+ */
+public class SizingSink implements DataSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Table[] TABLES = Table.values();
+
+    private final int[][] partitionColumns = new int[TABLES.length][];
+    private final Map<Table, TableSize> sizes = new EnumMap<Table, TableSize>(
+            Table.class);
+    private final long[] patientRows = new long[TABLES.length];
+    private final long[] patientBytes = new long[TABLES.length];
+    private int patients;
+    private double totalRowsSquared;
+    private double totalBytesSquared;
+    private long sizingNanos;
+
+    public SizingSink() {
+        for (Table table : TABLES) {
+            List<String> keys = table.getKeyColumns();
+            int[] columns = new int[table.getPartitionKeyCount()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = table.indexOf(keys.get(i));
+            }
+            partitionColumns[table.ordinal()] = columns;
+        }
+    }
+
+    /**
+     * Returns the size of one value of a column as the native protocol
+     * carries it, including its four byte length
+     *
+     * @param type
+     *            type of the column
+     * @param value
+     *            the value, which may be null
+     * @return size in bytes
+     */
+    public static int valueBytes(ColumnType type, Object value) {
+        if (value == null) {
+            return 4;
+        }
+        switch (type) {
+        case INT:
+            return 8;
+        case BIGINT:
+        case DOUBLE:
+        case TIMESTAMP:
+            return 12;
+        case UUID:
+            return 20;
+        case BOOLEAN:
+            return 5;
+        default:
+            String text = value instanceof UUID ? value.toString() : String
+                    .valueOf(value);
+            return 4 + text.getBytes(UTF_8).length;
+        }
+    }
+
+    /**
+     * Returns the size of a row as the native protocol carries its values
+     *
+     * @param table
+     *            table of the row
+     * @param values
+     *            values of the row
+     * @return size in bytes
+     */
+    public static int rowBytes(Table table, Object... values) {
+        List<Column> columns = table.getColumns();
+        int bytes = 0;
+        for (int i = 0; i < values.length; i++) {
+            bytes += valueBytes(columns.get(i).getType(), values[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Marks the start of a patient's rows
+     */
+    public void beginPatient() {
+        Arrays.fill(patientRows, 0);
+        Arrays.fill(patientBytes, 0);
+    }
+
+    /**
+     * Marks the end of a patient's rows, counting them towards the figures
+     * per patient
+     */
+    public void endPatient() {
+        long start = System.nanoTime();
+        patients++;
+        long rows = 0;
+        long bytes = 0;
+        for (Table table : TABLES) {
+            int ordinal = table.ordinal();
+            if (patientRows[ordinal] > 0) {
+                sizeOf(table).addPatient(patientRows[ordinal],
+                        patientBytes[ordinal]);
+                rows += patientRows[ordinal];
+                bytes += patientBytes[ordinal];
+            }
+        }
+        totalRowsSquared += (double) rows * rows;
+        totalBytesSquared += (double) bytes * bytes;
+        sizingNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        long start = System.nanoTime();
+        int bytes = rowBytes(table, values);
+        int ordinal = table.ordinal();
+        patientRows[ordinal]++;
+        patientBytes[ordinal] += bytes;
+
+        int[] columns = partitionColumns[ordinal];
+        String key;
+        if (columns.length == 1) {
+            key = String.valueOf(values[columns[0]]);
+        } else {
+            StringBuilder sb = new StringBuilder(32);
+            for (int column : columns) {
+                sb.append(values[column]).append('|');
+            }
+            key = sb.toString();
+        }
+        sizeOf(table).addRow(key, bytes, patients);
+        sizingNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private TableSize sizeOf(Table table) {
+        TableSize size = sizes.get(table);
+        if (size == null) {
+            size = new TableSize();
+            sizes.put(table, size);
+        }
+        return size;
+    }
+
+    /**
+     * @return number of patients measured
+     */
+    public int getPatients() {
+        return patients;
+    }
+
+    /**
+     * @return nanoseconds spent measuring rows, which a real load doesn't
+     *         spend
+     */
+    public long getSizingNanos() {
+        return sizingNanos;
+    }
+
+    /**
+     * Returns the figures for a table
+     *
+     * @param table
+     *            the table
+     * @return the table's figures, or null if it got no rows
+     */
+    public TableSize getSize(Table table) {
+        return sizes.get(table);
+    }
+
+    /**
+     * Returns the rows and bytes all tables got from each patient, as sums
+     * and sums of squares over the patients
+     *
+     * @return rows, rows squared, bytes and bytes squared
+     */
+    public double[] getPatientTotals() {
+        double[] totals = new double[4];
+        for (TableSize size : sizes.values()) {
+            totals[0] += size.rows;
+            totals[2] += size.bytes;
+        }
+        totals[1] = totalRowsSquared;
+        totals[3] = totalBytesSquared;
+        return totals;
+    }
+
+    /**
+     * Rows and bytes of one table, per patient and per partition
+     */
+    public static final class TableSize {
+        private long rows;
+        private long bytes;
+        private double rowsSquared;
+        private double bytesSquared;
+        private final Map<String, long[]> partitions = new HashMap<String, long[]>();
+        private boolean shared;
+
+        void addRow(String key, int rowBytes, int patient) {
+            rows++;
+            bytes += rowBytes;
+            long[] partition = partitions.get(key);
+            if (partition == null) {
+                partitions.put(key, new long[] { 1, rowBytes, patient });
+            } else {
+                partition[0]++;
+                partition[1] += rowBytes;
+                if (partition[2] != patient) {
+                    shared = true;
+                }
+            }
+        }
+
+        void addPatient(long patientRows, long patientBytes) {
+            rowsSquared += (double) patientRows * patientRows;
+            bytesSquared += (double) patientBytes * patientBytes;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getRowsSquared() {
+            return rowsSquared;
+        }
+
+        public double getBytesSquared() {
+            return bytesSquared;
+        }
+
+        /**
+         * @return true if any partition got rows from more than one patient
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        /**
+         * @return number of distinct partitions
+         */
+        public int getPartitionCount() {
+            return partitions.size();
+        }
+
+        /**
+         * @return the bytes of every partition, sorted
+         */
+        public long[] getPartitionBytes() {
+            long[] sizes = new long[partitions.size()];
+            int i = 0;
+            for (long[] partition : partitions.values()) {
+                sizes[i++] = partition[1];
+            }
+            Arrays.sort(sizes);
+            return sizes;
+        }
+
+        /**
+         * @return the rows of every partition, sorted
+         */
+        public long[] getPartitionRows() {
+            long[] counts = new long[partitions.size()];
+            int i = 0;
+            for (long[] partition : partitions.values()) {
+                counts[i++] = partition[0];
+            }
+            Arrays.sort(counts);
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.jrfoster.datagen;
+
+import static org.jrfoster.datagen.Column.decimal;
+import static org.jrfoster.datagen.Column.integer;
+import static org.jrfoster.datagen.Column.text;
+import static org.jrfoster.datagen.Column.timestamp;
+import static org.jrfoster.datagen.Column.uuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This enumeration is the catalog of tables the loader writes to. Each table
+ * knows its name, its columns in the order values are supplied to a DataSink,
+ * and its primary key written in CQL form, e.g. "((a, b), c)".<br>
+ * <br>
+ * The first group of tables are the ones the original loader has always
+ * written to and, with the readmission tables, which are derived from the
+ * encounters, are created by the SchemaManager along with the keyspace when
+ * it doesn't exist yet, otherwise they are expected to exist. The lookup
+ * tables and bucketed tables are only used by the QUERY_TABLES and
+ * TIME_BUCKETED schema profiles respectively, and are created by the
+ * SchemaManager when that profile is in use.
+ *
+ * @author Jason Foster
+ *
+ */
+public enum Table {
+    PATIENT_DEMOGRAPHICS("patient_demographics", "(patient_id)",
+            text("patient_id"), text("patient_id_src"), text("city"),
+            text("state_or_province"), timestamp("date_of_birth"),
+            text("death_indicator"), text("gender"), text("zip_code"),
+            timestamp("load_date")),
+    PATIENT_XREF("ads_patient_xref", "(uid)",
+            uuid("uid"), text("src"), text("src_patientid"),
+            text("oha_patientid")),
+    BENEFICIARY_ASSIGNMENT("aco_beneficiary_assignment", "(uid)",
+            uuid("uid"), text("hicno"), text("aco_participant_tin"),
+            timestamp("dob"), integer("count_of_primary_care_services"),
+            timestamp("load_date"), integer("deceased_bene_flag"),
+            text("firstname"), text("lastname"), text("gender"),
+            integer("assignment_step_flag")),
+    PATIENT_RANKING("aco_patient_ranking", "(hicno)",
+            text("hicno"), text("pat_first_name"), text("pat_last_name"),
+            text("gender"), timestamp("dob"), text("provider_npi1"),
+            text("provider_npi2"), text("provider_npi3"),
+            text("clinic_identifier"), integer("caremedcon_rank"),
+            integer("carefalls_rank"), integer("cad_rank"),
+            integer("dm_rank"), integer("hf_rank"), integer("htn_rank"),
+            integer("ivd_rank"), integer("pcmammogram_rank"),
+            integer("pccolorectal_rank"), integer("pcflushot_rank"),
+            integer("pcpneumoshot_rank"), integer("pcbmiscreen_rank"),
+            integer("pctobaccouse_rank"), integer("pcbloodpressure_rank"),
+            integer("pcdepression_rank")),
+    PATIENT_ENCOUNTERS("patient_encounters", "(patient_id, encounter_uid)",
+            integer("encounter_uid"), text("patient_id"),
+            text("patient_id_src"), timestamp("admit_date"),
+            text("encounter_type"), timestamp("discharge_date"),
+            text("discharge_method"), timestamp("load_date")),
+    PATIENT_DIAGNOSES("patient_diagnoses", "(patient_id, diagnosis_uid)",
+            integer("diagnosis_uid"), integer("encounter_uid"),
+            text("patient_id"), text("patient_id_src"), text("code"),
+            text("codingsystem"), timestamp("diagnosis_date"),
+            timestamp("load_date")),
+    PATIENT_PROCEDURES("patient_procedures", "(patient_id, procedure_uid)",
+            integer("procedure_uid"), text("patient_id"),
+            text("patient_id_src"), text("code"), text("codingsystem"),
+            timestamp("procedure_date"), timestamp("load_date")),
+    PREFILLED_ELEMENTS("cms_prefilled_elements", "(hicno)",
+            text("hicno"), text("pat_first_name"), text("pat_last_name"),
+            text("gender"), timestamp("dob"), timestamp("dm_hba1c_date"),
+            timestamp("dm_ldlc_date"), integer("pcflushot"),
+            integer("pcpneumoshot")),
+    PATIENT_SCREENING("patient_screening", "(patient_id)",
+            text("patient_id"), text("patient_id_src"),
+            integer("bmi_screening"), integer("bmi_followup_plan"),
+            integer("tobacco_screening"), integer("tobacco_cessation"),
+            integer("bp_screening"), integer("bp_followup_plan"),
+            integer("clinical_depression"),
+            integer("clinical_depression_followup_plan"),
+            integer("breast_cancer_screening")),
+    PATIENT_RESULTS("patient_results",
+            "(patient_id, result_name, result_date, result_uid)",
+            uuid("result_uid"), text("patient_id"), text("patient_id_src"),
+            text("result_name"), timestamp("result_date"),
+            decimal("result_value"), text("result_source"),
+            timestamp("load_date")),
+
+    // Tables derived from the encounters by the ReadmissionRiskAggregator as
+    // the load goes, rather than by scanning the encounters afterwards
+    PAT_READMISSION_RISK("pat_readmission_risk", "(patient_id)",
+            integer("patient_id"), integer("score")),
+    READMISSION_STRATIFICATION("readmission_stratification", "(score)",
+            integer("score"), integer("count")),
+    METRICS("metrics", "(moniker)", text("moniker"), integer("value")),
+
+    // Query-specific lookup tables that replace the secondary indexes. Each is
+    // partitioned by the attribute being looked up plus a bucket so that no
+    // single partition grows without bound as data is loaded over time.
+    PATIENTS_BY_ZIP("patients_by_zip", "((zip_code, bucket), patient_id)",
+            text("zip_code"), integer("bucket"), text("patient_id"),
+            text("gender"),
+            timestamp("date_of_birth"), text("city"),
+            text("state_or_province")),
+    RESULTS_BY_VALUE("results_by_value",
+            "((result_name, value_bucket, day_bucket), result_value, result_date, result_uid)",
+            text("result_name"), integer("value_bucket"),
+            integer("day_bucket"), decimal("result_value"),
+            timestamp("result_date"), uuid("result_uid"), text("patient_id")),
+    ENCOUNTERS_BY_ADMIT_TYPE("encounters_by_admit_type",
+            "((encounter_type, day_bucket), admit_date, encounter_uid)",
+            text("encounter_type"), integer("day_bucket"),
+            timestamp("admit_date"), integer("encounter_uid"),
+            text("patient_id"), timestamp("discharge_date")),
+
+    // Time-bucketed versions of the results and encounters tables used by the
+    // TIME_BUCKETED schema profile. A patient's history is spread across one
+    // partition per bucket of time instead of piling into a single partition.
+    PATIENT_RESULTS_BUCKETED("patient_results_bucketed",
+            "((patient_id, time_bucket), result_name, result_date, result_uid)",
+            text("patient_id"), integer("time_bucket"), uuid("result_uid"),
+            text("patient_id_src"), text("result_name"),
+            timestamp("result_date"), decimal("result_value"),
+            text("result_source"), timestamp("load_date")),
+    PATIENT_ENCOUNTERS_BUCKETED("patient_encounters_bucketed",
+            "((patient_id, time_bucket), admit_date, encounter_uid)",
+            text("patient_id"), integer("time_bucket"),
+            integer("encounter_uid"), text("patient_id_src"),
+            timestamp("admit_date"), text("encounter_type"),
+            timestamp("discharge_date"), text("discharge_method"),
+            timestamp("load_date"));
+
+    private final String tableName;
+    private final String primaryKey;
+    private final List<Column> columns;
+    private final List<String> keyColumns;
+    private final int partitionKeyCount;
+
+    Table(String tableName, String primaryKey, Column... columns) {
+        this.tableName = tableName;
+        this.primaryKey = primaryKey;
+        this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+
+        // The primary key is given in CQL form, so the partition key is either
+        // the first column or the parenthesized group at the front of it
+        String key = primaryKey.substring(1, primaryKey.length() - 1).trim();
+        List<String> keys = new ArrayList<String>();
+        int partitionCount = 1;
+        if (key.startsWith("(")) {
+            int close = key.indexOf(')');
+            String[] partition = key.substring(1, close).split(",");
+            partitionCount = partition.length;
+            for (String name : partition) {
+                keys.add(name.trim());
+            }
+            key = key.substring(close + 1);
+        }
+        for (String name : key.split(",")) {
+            if (!name.trim().isEmpty()) {
+                keys.add(name.trim());
+            }
+        }
+        this.keyColumns = Collections.unmodifiableList(keys);
+        this.partitionKeyCount = partitionCount;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * @return names of the primary key columns, partition key first
+     */
+    public List<String> getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * @return number of leading key columns that make up the partition key
+     */
+    public int getPartitionKeyCount() {
+        return partitionKeyCount;
+    }
+
+    /**
+     * Returns the position of a column within the values supplied for a row
+     * of this table.
+     *
+     * @param columnName
+     *            name of the column
+     * @return zero-based position of the column
+     * @throws IllegalArgumentException
+     *             if the table has no such column
+     */
+    public int indexOf(String columnName) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(tableName + " has no column "
+                + columnName);
+    }
+
+    /**
+     * Returns the CQL to create this table in the given keyspace if it does
+     * not already exist.
+     *
+     * @param keyspaceName
+     *            keyspace to create the table in
+     * @return CQL create table statement
+     */
+    public String toCreateDDL(String keyspaceName) {
+        StringBuffer ddl = new StringBuffer(256);
+        ddl.append("create table if not exists ").append(keyspaceName)
+                .append(".").append(tableName).append(" (");
+        for (Column column : columns) {
+            ddl.append(column.getName()).append(" ")
+                    .append(column.getType().getCqlType()).append(",");
+        }
+        ddl.append("primary key ").append(primaryKey).append(");");
+        return ddl.toString();
+    }
+}
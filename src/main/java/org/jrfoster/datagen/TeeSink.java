@@ -0,0 +1,50 @@
+package org.jrfoster.datagen;
+
+/**
+ * This sink writes every row to two sinks, so one load can feed two stores
+ * with the same data. Rows go to the wrapped sink first, then to the second
+ * one, and flush() and close() are passed on to both.
+ *
+ * @author Jason Foster
+ *
+ */
+public class TeeSink extends ForwardingDataSink {
+    private final DataSink second;
+
+    /**
+     * Creates a new sink
+     *
+     * @param delegate
+     *            first sink every row is written to
+     * @param second
+     *            second sink every row is written to
+     */
+    public TeeSink(DataSink delegate, DataSink second) {
+        super(delegate);
+        if (second == null) {
+            throw new IllegalArgumentException("second cannot be null");
+        }
+        this.second = second;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        delegate.write(table, values);
+        second.write(table, values);
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+        second.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            delegate.close();
+        } finally {
+            second.close();
+        }
+    }
+}
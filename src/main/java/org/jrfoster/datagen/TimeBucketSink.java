@@ -0,0 +1,88 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+
+/**
+ * This sink redirects results and encounters into tables partitioned by
+ * (patient_id, time_bucket) rather than by patient_id alone. Every other row
+ * is passed through unchanged.<br>
+ * <br>
+ * The bucket is computed from the result date or admit date of the row, and is
+ * the number of whole buckets of the configured width since the epoch. So,
+ * with a width of 365 days, all of a patient's results from roughly the same
+ * year land in the same partition, and readers compute the buckets covering
+ * the date range they want the same way.
+ *
+ * @author Jason Foster
+ *
+ */
+public class TimeBucketSink extends ForwardingDataSink {
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    private final long bucketWidthMillis;
+
+    private final int resultUid = Table.PATIENT_RESULTS.indexOf("result_uid");
+    private final int resultPatientId = Table.PATIENT_RESULTS.indexOf("patient_id");
+    private final int resultPatientSrc = Table.PATIENT_RESULTS.indexOf("patient_id_src");
+    private final int resultName = Table.PATIENT_RESULTS.indexOf("result_name");
+    private final int resultDate = Table.PATIENT_RESULTS.indexOf("result_date");
+    private final int resultValue = Table.PATIENT_RESULTS.indexOf("result_value");
+    private final int resultSource = Table.PATIENT_RESULTS.indexOf("result_source");
+    private final int resultLoadDate = Table.PATIENT_RESULTS.indexOf("load_date");
+    private final int encUid = Table.PATIENT_ENCOUNTERS.indexOf("encounter_uid");
+    private final int encPatientId = Table.PATIENT_ENCOUNTERS.indexOf("patient_id");
+    private final int encPatientSrc = Table.PATIENT_ENCOUNTERS.indexOf("patient_id_src");
+    private final int encAdmit = Table.PATIENT_ENCOUNTERS.indexOf("admit_date");
+    private final int encType = Table.PATIENT_ENCOUNTERS.indexOf("encounter_type");
+    private final int encDischarge = Table.PATIENT_ENCOUNTERS.indexOf("discharge_date");
+    private final int encMethod = Table.PATIENT_ENCOUNTERS.indexOf("discharge_method");
+    private final int encLoadDate = Table.PATIENT_ENCOUNTERS.indexOf("load_date");
+
+    /**
+     * Creates a new sink that writes results and encounters to bucketed tables
+     *
+     * @param delegate
+     *            sink that actually writes the rows
+     * @param bucketWidthDays
+     *            number of days covered by each time bucket
+     */
+    public TimeBucketSink(DataSink delegate, int bucketWidthDays) {
+        super(delegate);
+        if (bucketWidthDays <= 0) {
+            throw new IllegalArgumentException(
+                    "bucketWidthDays must be positive");
+        }
+        this.bucketWidthMillis = bucketWidthDays * MILLIS_PER_DAY;
+    }
+
+    @Override
+    public void write(Table table, Object... values) {
+        switch (table) {
+        case PATIENT_RESULTS:
+            delegate.write(Table.PATIENT_RESULTS_BUCKETED,
+                    values[resultPatientId],
+                    timeBucket((Date) values[resultDate]), values[resultUid],
+                    values[resultPatientSrc], values[resultName],
+                    values[resultDate], values[resultValue],
+                    values[resultSource], values[resultLoadDate]);
+            break;
+        case PATIENT_ENCOUNTERS:
+            delegate.write(Table.PATIENT_ENCOUNTERS_BUCKETED,
+                    values[encPatientId], timeBucket((Date) values[encAdmit]),
+                    values[encUid], values[encPatientSrc], values[encAdmit],
+                    values[encType], values[encDischarge], values[encMethod],
+                    values[encLoadDate]);
+            break;
+        default:
+            delegate.write(table, values);
+            break;
+        }
+    }
+
+    /**
+     * @return the time bucket the given date falls into
+     */
+    public int timeBucket(Date date) {
+        return (int) (date.getTime() / bucketWidthMillis);
+    }
+}
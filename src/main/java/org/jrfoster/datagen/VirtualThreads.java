@@ -0,0 +1,56 @@
+package org.jrfoster.datagen;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class gives access to virtual threads without requiring a JDK that has
+ * them to build the project. The executor is looked up reflectively, and on a
+ * JDK without virtual threads a cached pool of platform threads is used
+ * instead, which behaves the same way but costs a full thread per task.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class VirtualThreads {
+    private static final Method NEW_EXECUTOR = findExecutorFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException nsmex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task, or
+     * a new platform thread for each task if virtual threads aren't supported
+     *
+     * @return executor running each task on its own thread
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException iaex) {
+                iaex.printStackTrace();
+            } catch (InvocationTargetException itex) {
+                itex.printStackTrace();
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -46,11 +46,26 @@ public class ZipData {
         location = tokens[7];
         decommisioned = tokens[8] != null && !tokens[8].isEmpty() ? Boolean
                 .valueOf(tokens[8]) : null;
-        // taxReturnsFiled = tokens[9] != null ? Integer.valueOf(tokens[9]) :
-        // null;
-        // estimatedPopulation = tokens[10] != null ?
-        // Integer.valueOf(tokens[10]) : null;
-        // totalWages = tokens[11] != null ? Double.valueOf(tokens[11]) : null;
+        // The IRS figures are missing for PO box and unique zip codes, in which
+        // case split() drops the trailing empty tokens altogether. A handful of
+        // military locations contain quoted commas that shift the tokens, so
+        // anything that doesn't parse is treated as missing too.
+        taxReturnsFiled = parseNumber(tokens, 9) != null ? Integer
+                .valueOf(parseNumber(tokens, 9).intValue()) : null;
+        estimatedPopulation = parseNumber(tokens, 10) != null ? Integer
+                .valueOf(parseNumber(tokens, 10).intValue()) : null;
+        totalWages = parseNumber(tokens, 11);
+    }
+
+    private static Double parseNumber(String[] tokens, int index) {
+        if (tokens.length <= index || tokens[index].isEmpty()) {
+            return null;
+        }
+        try {
+            return Double.valueOf(tokens[index]);
+        } catch (NumberFormatException nfex) {
+            return null;
+        }
     }
 
     public String getZipCode() {
@@ -0,0 +1,244 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+
+/**
+ * This class is a spatial index over the latitude and longitude of a set of
+ * zip codes, used to find every zip code within a given distance of a point.
+ * It is a uniform grid of cells a fixed number of degrees on a side, flattened
+ * into primitive arrays: the points are sorted by cell, and each cell is just
+ * a start and end offset into the sorted coordinates. A query visits only the
+ * cells overlapping the bounding box of the search circle.<br>
+ * <br>
+ * The index is built once and is immutable afterwards, so it can be shared by
+ * any number of threads. Zip codes without coordinates are left out. The grid
+ * does not wrap around at 180 degrees of longitude, which is fine for U.S. zip
+ * codes.
+ *
+ * @author Jason Foster
+ *
+ */
+public final class ZipGridIndex {
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+    private static final double MILES_PER_DEGREE = Math.toRadians(1)
+            * EARTH_RADIUS_MILES;
+
+    private final ZipData[] zips;
+    private final double cellDegrees;
+    private final double minLat;
+    private final double minLon;
+    private final int rows;
+    private final int cols;
+
+    // cellStart[c] to cellStart[c + 1] are the positions of the points in cell
+    // c within the three arrays below, which are sorted by cell
+    private final int[] cellStart;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] zipIndexes;
+
+    /**
+     * Builds an index over the given zip codes
+     *
+     * @param zips
+     *            zip codes to index; query results are positions in this
+     *            array
+     * @param cellDegrees
+     *            size of a side of a grid cell in degrees. Something close to
+     *            the typical search radius works best.
+     */
+    public ZipGridIndex(ZipData[] zips, double cellDegrees) {
+        if (!(cellDegrees > 0)) {
+            throw new IllegalArgumentException("cellDegrees must be positive");
+        }
+        this.zips = zips.clone();
+        this.cellDegrees = cellDegrees;
+
+        double lowLat = Double.MAX_VALUE;
+        double highLat = -Double.MAX_VALUE;
+        double lowLon = Double.MAX_VALUE;
+        double highLon = -Double.MAX_VALUE;
+        int count = 0;
+        for (ZipData zip : zips) {
+            if (zip.getLatitude() != null && zip.getLongitude() != null) {
+                lowLat = Math.min(lowLat, zip.getLatitude());
+                highLat = Math.max(highLat, zip.getLatitude());
+                lowLon = Math.min(lowLon, zip.getLongitude());
+                highLon = Math.max(highLon, zip.getLongitude());
+                count++;
+            }
+        }
+        if (count == 0) {
+            lowLat = highLat = lowLon = highLon = 0;
+        }
+        this.minLat = lowLat;
+        this.minLon = lowLon;
+        this.rows = (int) ((highLat - lowLat) / cellDegrees) + 1;
+        this.cols = (int) ((highLon - lowLon) / cellDegrees) + 1;
+
+        // Counting sort of the points by cell
+        int[] cells = new int[zips.length];
+        this.cellStart = new int[rows * cols + 1];
+        for (int i = 0; i < zips.length; i++) {
+            if (zips[i].getLatitude() != null
+                    && zips[i].getLongitude() != null) {
+                cells[i] = cellOf(row(zips[i].getLatitude()),
+                        col(zips[i].getLongitude()));
+                cellStart[cells[i] + 1]++;
+            } else {
+                cells[i] = -1;
+            }
+        }
+        for (int c = 0; c < rows * cols; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+
+        this.latitudes = new double[count];
+        this.longitudes = new double[count];
+        this.zipIndexes = new int[count];
+        int[] next = Arrays.copyOf(cellStart, rows * cols);
+        for (int i = 0; i < zips.length; i++) {
+            if (cells[i] >= 0) {
+                int pos = next[cells[i]]++;
+                latitudes[pos] = zips[i].getLatitude();
+                longitudes[pos] = zips[i].getLongitude();
+                zipIndexes[pos] = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the positions of all zip codes within a radius of a point
+     *
+     * @param latitude
+     *            latitude of the center in degrees
+     * @param longitude
+     *            longitude of the center in degrees
+     * @param radiusMiles
+     *            search radius in miles
+     * @return positions in the indexed array of the matching zip codes, in
+     *         ascending order
+     */
+    public int[] within(double latitude, double longitude, double radiusMiles) {
+        return withinAny(new double[] { latitude },
+                new double[] { longitude }, radiusMiles);
+    }
+
+    /**
+     * Returns the positions of all zip codes within a radius of any of a list
+     * of points, such as the facilities making up a service area. A zip code
+     * close to several points is only returned once.
+     *
+     * @param latitudes
+     *            latitudes of the centers in degrees
+     * @param longitudes
+     *            longitudes of the centers in degrees, one per latitude
+     * @param radiusMiles
+     *            search radius in miles
+     * @return positions in the indexed array of the matching zip codes, in
+     *         ascending order
+     */
+    public int[] withinAny(double[] latitudes, double[] longitudes,
+            double radiusMiles) {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException(
+                    "latitudes and longitudes must be the same length");
+        }
+        if (radiusMiles < 0) {
+            throw new IllegalArgumentException("radius cannot be negative");
+        }
+
+        boolean[] found = new boolean[zips.length];
+        int count = 0;
+        for (int p = 0; p < latitudes.length; p++) {
+            count += search(latitudes[p], longitudes[p], radiusMiles, found);
+        }
+
+        int[] result = new int[count];
+        for (int i = 0, j = 0; j < count; i++) {
+            if (found[i]) {
+                result[j++] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the zip code at the given position of the indexed array
+     */
+    public ZipData get(int index) {
+        return zips[index];
+    }
+
+    /**
+     * @return number of zip codes in the indexed array
+     */
+    public int size() {
+        return zips.length;
+    }
+
+    /**
+     * Great-circle distance between two points using the haversine formula
+     *
+     * @return distance in miles
+     */
+    public static double distanceMiles(double lat1, double lon1, double lat2,
+            double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2)
+                * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_MILES
+                * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Marks every point within the radius of the center that isn't already
+     * marked and returns how many were newly marked
+     */
+    private int search(double latitude, double longitude, double radiusMiles,
+            boolean[] found) {
+        // Bounding box of the circle in degrees. Longitude degrees shrink
+        // towards the poles, so the box is widened by the cosine of the
+        // latitude, clamped so it stays finite near the poles.
+        double latSpan = radiusMiles / MILES_PER_DEGREE;
+        double lonSpan = latSpan
+                / Math.max(0.01, Math.cos(Math.toRadians(Math.min(90,
+                        Math.abs(latitude) + latSpan))));
+        int rowLow = Math.max(0, row(latitude - latSpan));
+        int rowHigh = Math.min(rows - 1, row(latitude + latSpan));
+        int colLow = Math.max(0, col(longitude - lonSpan));
+        int colHigh = Math.min(cols - 1, col(longitude + lonSpan));
+
+        int count = 0;
+        for (int r = rowLow; r <= rowHigh; r++) {
+            for (int c = colLow; c <= colHigh; c++) {
+                int cell = cellOf(r, c);
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int zip = zipIndexes[i];
+                    if (!found[zip]
+                            && distanceMiles(latitude, longitude,
+                                    latitudes[i], longitudes[i]) <= radiusMiles) {
+                        found[zip] = true;
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((latitude - minLat) / cellDegrees);
+    }
+
+    private int col(double longitude) {
+        return (int) Math.floor((longitude - minLon) / cellDegrees);
+    }
+
+    private int cellOf(int row, int col) {
+        return row * cols + col;
+    }
+}
@@ -12,7 +12,7 @@ package org.jrfoster.datagen;
 public enum ZipRange {
     AL(35000, 36999),
     AK(99500, 99999),
-    AZ(58000, 86599),
+    AZ(85000, 86599),
     AR(71600, 72999),
     CA(90000, 96199),
     CO(80000, 81699),
@@ -26,7 +26,7 @@ public enum ZipRange {
     IL(60000, 62999),
     IN(46000, 47999),
     IA(50000, 52899),
-    KS(66000, 64799),
+    KS(66000, 67999),
     KY(40000, 42799),
     LA(70000, 71499),
     ME(3000, 4999),
@@ -53,7 +53,7 @@ public enum ZipRange {
     RI(2800, 2999),
     SC(29000, 29999),
     SD(57000, 57799),
-    TN(37000, 35899),
+    TN(37000, 38599),
     TX(75000, 79999),
     UT(84000, 84799),
     VT(5001, 5907),
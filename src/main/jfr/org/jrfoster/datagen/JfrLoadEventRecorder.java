@@ -0,0 +1,182 @@
+package org.jrfoster.datagen;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reports the load events to Java Flight Recorder. Each event is only created
+ * and timed when a recording has its type turned on, and only has its fields
+ * filled in when it is over the recording's threshold, so a disabled event
+ * costs a flag check and an enabled one little more than a couple of clock
+ * reads. Stack traces are off for all of them.<br>
+ * <br>
+ * This class is compiled only on JDK 11 and later, and is found by LoadEvents
+ * at run time.
+ *
+ * @author Jason Foster
+ *
+ */
+final class JfrLoadEventRecorder implements LoadEventRecorder {
+    // Checked before an event is created, so a disabled event allocates
+    // nothing
+    private static final EventType PATIENT_GENERATED = EventType
+            .getEventType(PatientGeneratedEvent.class);
+    private static final EventType ROW_WRITTEN = EventType
+            .getEventType(RowWrittenEvent.class);
+    private static final EventType SINK_FLUSHED = EventType
+            .getEventType(SinkFlushedEvent.class);
+    private static final EventType BACKOFF = EventType
+            .getEventType(BackoffEvent.class);
+
+    @Name("org.jrfoster.datagen.PatientGenerated")
+    @Label("Patient Generated")
+    @Description("Generation of every row for a single patient")
+    @Category({ "Data Generator", "Generation" })
+    @StackTrace(false)
+    static final class PatientGeneratedEvent extends Event {
+        @Label("Strategies")
+        String strategies;
+
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("org.jrfoster.datagen.RowWritten")
+    @Label("Row Written")
+    @Description("Write of a single row, until the database has it or, "
+            + "for asynchronous writes, until the insert completes")
+    @Category({ "Data Generator", "Write" })
+    @StackTrace(false)
+    static final class RowWrittenEvent extends Event {
+        @Label("Table")
+        String table;
+
+        @Label("Statement Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("org.jrfoster.datagen.SinkFlushed")
+    @Label("Sink Flushed")
+    @Description("Wait for every row handed to a sink to be written")
+    @Category({ "Data Generator", "Write" })
+    @StackTrace(false)
+    static final class SinkFlushedEvent extends Event {
+        @Label("Sink")
+        String sink;
+
+        @Label("Pending Rows")
+        long pending;
+    }
+
+    @Name("org.jrfoster.datagen.Backoff")
+    @Label("Backoff")
+    @Description("Wait for room in a full buffer or under an in-flight limit")
+    @Category({ "Data Generator", "Write" })
+    @StackTrace(false)
+    static final class BackoffEvent extends Event {
+        @Label("Sink")
+        String sink;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    @Override
+    public Object beginPatient() {
+        if (!PATIENT_GENERATED.isEnabled()) {
+            return null;
+        }
+        PatientGeneratedEvent event = new PatientGeneratedEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endPatient(Object event, String strategies, int rows) {
+        if (event != null) {
+            PatientGeneratedEvent patient = (PatientGeneratedEvent) event;
+            patient.end();
+            if (patient.shouldCommit()) {
+                patient.strategies = strategies;
+                patient.rows = rows;
+                patient.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginWrite() {
+        if (!ROW_WRITTEN.isEnabled()) {
+            return null;
+        }
+        RowWrittenEvent event = new RowWrittenEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endWrite(Object event, Table table, int bytes) {
+        if (event != null) {
+            RowWrittenEvent write = (RowWrittenEvent) event;
+            write.end();
+            if (write.shouldCommit()) {
+                write.table = table.getTableName();
+                write.bytes = bytes;
+                write.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginFlush() {
+        if (!SINK_FLUSHED.isEnabled()) {
+            return null;
+        }
+        SinkFlushedEvent event = new SinkFlushedEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endFlush(Object event, String sink, long pending) {
+        if (event != null) {
+            SinkFlushedEvent flush = (SinkFlushedEvent) event;
+            flush.end();
+            if (flush.shouldCommit()) {
+                flush.sink = sink;
+                flush.pending = pending;
+                flush.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginBackoff() {
+        if (!BACKOFF.isEnabled()) {
+            return null;
+        }
+        BackoffEvent event = new BackoffEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endBackoff(Object event, String sink, String reason) {
+        if (event != null) {
+            BackoffEvent backoff = (BackoffEvent) event;
+            backoff.end();
+            if (backoff.shouldCommit()) {
+                backoff.sink = sink;
+                backoff.reason = reason;
+                backoff.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AbnormalRatioControllerTester {
+
+	@Test
+	public void testExactRate() {
+		// A single selector hits the rate exactly for every prefix of its
+		// stream, rounded down
+		AbnormalRatioController controller = new AbnormalRatioController(0.33,
+				64);
+		AbnormalRatioController.Selector selector = controller.newSelector(
+				"Test", "HBA1C");
+		int abnormal = 0;
+		for (int n = 1; n <= 100000; n++) {
+			if (selector.next()) {
+				abnormal++;
+			}
+			Assert.assertEquals("After " + n + " results",
+					(long) Math.floor(n * 0.33), abnormal);
+		}
+	}
+
+	@Test
+	public void testSpread() {
+		// Abnormal results never come in runs longer than the rate allows
+		AbnormalRatioController controller = new AbnormalRatioController(0.25,
+				1000);
+		AbnormalRatioController.Selector selector = controller.newSelector(
+				"Test", "BPS");
+		int run = 0;
+		for (int i = 0; i < 10000; i++) {
+			run = selector.next() ? run + 1 : 0;
+			Assert.assertTrue(run <= 1);
+		}
+	}
+
+	@Test
+	public void testThreads() throws InterruptedException {
+		// Several threads sharing a stream are off by at most one result per
+		// selector
+		final AbnormalRatioController controller = new AbnormalRatioController(
+				0.33, 256);
+		final int threads = 8;
+		final int perThread = 100001;
+		final AtomicLong abnormal = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					AbnormalRatioController.Selector selector = controller
+							.newSelector("Test", "LIPID");
+					long count = 0;
+					for (int i = 0; i < perThread; i++) {
+						if (selector.next()) {
+							count++;
+						}
+					}
+					selector.close();
+					abnormal.addAndGet(count);
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+
+		double expected = threads * perThread * 0.33;
+		Assert.assertEquals(expected, abnormal.get(), threads);
+		Assert.assertTrue(controller.report().contains("Test/LIPID"));
+		Assert.assertEquals(expected / (threads * perThread),
+				controller.getAchievedRate(), 1e-4);
+	}
+
+	@Test
+	public void testShortLivedSelectors() {
+		// Selectors closed after a few results hand the rest of their block
+		// on, so the stream stays exact however many of them there are
+		AbnormalRatioController controller = new AbnormalRatioController(0.33,
+				256);
+		long abnormal = 0;
+		for (int i = 0; i < 1000; i++) {
+			AbnormalRatioController.Selector selector = controller.newSelector(
+					"Test", "HBA1C");
+			for (int r = 0; r < 3; r++) {
+				if (selector.next()) {
+					abnormal++;
+				}
+			}
+			selector.close();
+		}
+		Assert.assertEquals((long) Math.floor(3000 * 0.33), abnormal);
+		Assert.assertTrue(controller.report(), controller.report().contains(
+				"All: 990 of 3000"));
+
+		// An open selector's counts reach the totals a block at a time
+		AbnormalRatioController.Selector open = controller.newSelector("Test",
+				"BPS");
+		for (int r = 0; r < 200; r++) {
+			open.next();
+		}
+		Assert.assertTrue(controller.report(), controller.report().contains(
+				"All: 990 of 3000"));
+		for (int r = 0; r < 100; r++) {
+			open.next();
+		}
+		Assert.assertTrue(controller.report(), controller.report().contains(
+				"of 3256"));
+	}
+}
@@ -0,0 +1,75 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+import org.jrfoster.datagen.AliasTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AliasTableTester {
+	private Random rng = new Random(42);
+
+	@Test
+	public void testWeights() {
+		// Draw a million times from a skewed table and check that each index
+		// comes up in proportion to its weight, to within half a percent
+		double[] weights = { 1, 2, 3, 4, 0, 10 };
+		AliasTable table = new AliasTable(weights);
+		int[] counts = new int[weights.length];
+		int draws = 1000000;
+		for (int i = 0; i < draws; i++) {
+			counts[table.sample(rng)]++;
+		}
+
+		for (int i = 0; i < weights.length; i++) {
+			double expected = weights[i] / 20d;
+			double actual = (double) counts[i] / draws;
+			Assert.assertEquals("Index " + i + " drawn out of proportion",
+					expected, actual, 0.005);
+		}
+		Assert.assertEquals("Zero weight index should never be drawn", 0,
+				counts[4]);
+	}
+
+	@Test
+	public void testUniform() {
+		// A table of all zero weights falls back to every index being equally
+		// likely
+		AliasTable table = new AliasTable(new double[7]);
+		int[] counts = new int[7];
+		for (int i = 0; i < 700000; i++) {
+			counts[table.sample(rng)]++;
+		}
+		for (int count : counts) {
+			Assert.assertEquals(100000, count, 2000);
+		}
+	}
+
+	@Test
+	public void testRanks() {
+		// Lower ranks are always more likely than higher ones
+		AliasTable table = AliasTable.forRanks(50, 1.0);
+		int[] counts = new int[50];
+		for (int i = 0; i < 1000000; i++) {
+			counts[table.sample(rng)]++;
+		}
+		Assert.assertTrue(counts[0] > counts[1]);
+		Assert.assertTrue(counts[1] > counts[9]);
+		Assert.assertTrue(counts[9] > counts[49]);
+	}
+
+	@Test
+	public void testInvalidWeights() {
+		try {
+			new AliasTable(new double[0]);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iaex) {
+		}
+
+		try {
+			new AliasTable(new double[] { 1, -1 });
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iaex) {
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.jrfoster.datagen;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jrfoster.datagen.CodeCatalog;
+import org.jrfoster.datagen.CodeSet;
+import org.jrfoster.datagen.CodedValue;
+import org.jrfoster.datagen.DataGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodeCatalogTester {
+	private final CodeCatalog catalog = CodeCatalog.getInstance();
+
+	@Test
+	public void testOrdinals() {
+		// Ordinals are dense and every code maps back to its own instance
+		Assert.assertTrue(catalog.size() > 0);
+		for (int i = 0; i < catalog.size(); i++) {
+			CodedValue code = catalog.get(i);
+			Assert.assertEquals(i, code.getOrdinal());
+			Assert.assertSame(code, catalog.lookup(code.getCodingSystem(),
+					code.getIdentifier()));
+		}
+		Assert.assertNull(catalog.lookup("I9", "999.999"));
+	}
+
+	@Test
+	public void testSharedInstances() {
+		// A code listed in two sets is the same object in both
+		CodedValue dm = null;
+		CodeSet dmSet = catalog.getSet("DM_DX");
+		for (int i = 0; i < dmSet.size(); i++) {
+			if (dmSet.get(i).getIdentifier().equals("648.01")) {
+				dm = dmSet.get(i);
+			}
+		}
+		CodedValue gestational = null;
+		CodeSet gestationalSet = catalog.getSet("GESTATIONAL_DM_DX");
+		for (int i = 0; i < gestationalSet.size(); i++) {
+			if (gestationalSet.get(i).getIdentifier().equals("648.01")) {
+				gestational = gestationalSet.get(i);
+			}
+		}
+		Assert.assertNotNull(dm);
+		Assert.assertSame(dm, gestational);
+	}
+
+	@Test
+	public void testSelect() {
+		CodeSet proc = catalog.getSet("IVD_PROC");
+		CodeSet cpt = proc.select(Arrays.asList("CPT"), true);
+		Assert.assertTrue(cpt.size() > 0 && cpt.size() < proc.size());
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals("CPT", cpt.sample(random).getCodingSystem());
+		}
+
+		try {
+			proc.select(Arrays.asList("I10"), true);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iaex) {
+		}
+	}
+
+	@Test
+	public void testGenerator() {
+		// The generator hands out the catalog's instances rather than copies
+		DataGenerator dg = new DataGenerator(10, 1);
+		for (int i = 0; i < 1000; i++) {
+			CodedValue dx = dg.generateRandomDMDiagnosis(false);
+			Assert.assertEquals("I9", dx.getCodingSystem());
+			Assert.assertSame(dx, catalog.get(dx.getOrdinal()));
+		}
+
+		dg.setCodeSystems(Arrays.asList("I10", "CPT"));
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals("I10", dg.generateRandomIVDDiagnosis(i % 2 == 0)
+					.getCodingSystem());
+			Assert.assertEquals("CPT", dg.generateRandomIVDProcCode()
+					.getCodingSystem());
+		}
+		// Every set has SNOMED codes, and a system a set has no codes in is
+		// passed over for the next one
+		dg.setCodeSystems(Arrays.asList("SNM"));
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals("SNM", dg.generateRandomDMDiagnosis(i % 2 == 0)
+					.getCodingSystem());
+			Assert.assertEquals("SNM", dg.generateRandomIVDProcCode()
+					.getCodingSystem());
+		}
+		dg.setCodeSystems(Arrays.asList("CPT", "I10"));
+		Assert.assertEquals("CPT", dg.generateRandomIVDProcCode()
+				.getCodingSystem());
+		Assert.assertEquals("I10", dg.generateRandomIVDDiagnosis(false)
+				.getCodingSystem());
+		try {
+			dg.setCodeSystems(Arrays.asList("CPT"));
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iaex) {
+		}
+	}
+}
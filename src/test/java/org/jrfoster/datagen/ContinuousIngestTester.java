@@ -0,0 +1,139 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.ContinuousIngest;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.LatencyHistogram;
+import org.jrfoster.datagen.PatientLoader;
+import org.jrfoster.datagen.PatientPopulation;
+import org.jrfoster.datagen.PatientRecord;
+import org.jrfoster.datagen.RampProfile;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContinuousIngestTester {
+	private final DataGenerator dg = new DataGenerator(100, 15);
+
+	@Test
+	public void testHistogram() {
+		// Every bucket's highest value falls in the bucket itself
+		for (int i = 0; i < 1888; i++) {
+			Assert.assertEquals(i, LatencyHistogram.bucketOf(LatencyHistogram
+					.highestValueOf(i)));
+		}
+		Assert.assertEquals(1887, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long v = 1; v <= 100000; v++) {
+			histogram.record(v);
+		}
+		Assert.assertEquals(100000, histogram.getCount());
+		Assert.assertEquals(100000, histogram.getMax());
+		Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+		for (double p : new double[] { 50, 90, 99, 99.9 }) {
+			long expected = (long) (p * 1000);
+			long value = histogram.getValueAtPercentile(p);
+			Assert.assertTrue("p" + p, value >= expected);
+			Assert.assertTrue("p" + p, value <= expected * 1.035);
+		}
+		Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+
+		LatencyHistogram other = new LatencyHistogram();
+		other.record(TimeUnit.SECONDS.toNanos(1));
+		histogram.add(other);
+		Assert.assertEquals(100001, histogram.getCount());
+		Assert.assertEquals(TimeUnit.SECONDS.toNanos(1), histogram.getMax());
+	}
+
+	@Test
+	public void testProfile() {
+		RampProfile profile = RampProfile.parse("0:100, 10:200, 10:300, 20:300");
+		Assert.assertEquals(100, profile.getRate(0), 0.001);
+		Assert.assertEquals(150, profile.getRate(TimeUnit.SECONDS.toNanos(5)),
+				0.001);
+		Assert.assertEquals(300, profile.getRate(TimeUnit.SECONDS.toNanos(10)),
+				0.001);
+		Assert.assertEquals(300, profile.getRate(TimeUnit.SECONDS.toNanos(30)),
+				0.001);
+		Assert.assertEquals(TimeUnit.SECONDS.toNanos(20),
+				profile.getDurationNanos());
+		Assert.assertEquals(Long.MAX_VALUE, RampProfile.constant(5)
+				.getDurationNanos());
+
+		for (String bad : new String[] { "5:100", "0:100,10", "0:100,10:0",
+				"0:100,10:200,5:200" }) {
+			try {
+				RampProfile.parse(bad);
+				Assert.fail("Should raise IllegalArgumentException for " + bad);
+			} catch (IllegalArgumentException iae) {
+			}
+		}
+	}
+
+	@Test
+	public void testCoordinatedOmission() {
+		// A single 200 ms stall a little way into a 1 second run at 200
+		// events a second. The events due during the stall wait for it, and
+		// timing from when they were due charges them for the wait.
+		final AtomicLong rows = new AtomicLong();
+		final long stallAt = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(300);
+		DataSink sink = new DataSink() {
+			private boolean stalled;
+
+			@Override
+			public synchronized void write(Table table, Object... values) {
+				rows.incrementAndGet();
+				if (!stalled && System.nanoTime() > stallAt) {
+					stalled = true;
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException iex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		List<PatientRecord> patients = new ArrayList<PatientRecord>();
+		PatientPopulation population = new PatientPopulation(dg, 20, null,
+				null);
+		while (population.hasNext()) {
+			patients.add(population.next());
+		}
+		PatientLoader loader = new PatientLoader(sink, dg,
+				new AbnormalRatioController(0.3, 16), new Date(), 2014,
+				EnumSet.allOf(Table.class));
+		ContinuousIngest ingest = new ContinuousIngest(
+				Collections.singletonList(loader), patients,
+				RampProfile.parse("0:200,1:200"), 0);
+		ingest.run();
+
+		LatencyHistogram latencies = ingest.getLatencies();
+		Assert.assertEquals(200, latencies.getCount(), 2);
+		Assert.assertEquals(rows.get(), ingest.getRows());
+		Assert.assertTrue(latencies.getMax() >= TimeUnit.MILLISECONDS
+				.toNanos(190));
+		Assert.assertTrue(latencies.summary(), latencies
+				.getValueAtPercentile(90) >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertTrue(ingest.report().contains("Sustained"));
+	}
+}
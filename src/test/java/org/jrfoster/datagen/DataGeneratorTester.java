@@ -1,11 +1,14 @@
 package org.jrfoster.datagen;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.LabTest;
+import org.jrfoster.datagen.ResultBlock;
 import org.jrfoster.datagen.ZipRange;
 import org.junit.Assert;
 import org.junit.Test;
@@ -163,4 +166,60 @@ public class DataGeneratorTester {
             Assert.assertTrue("Name must be last, first", nameParts.length == 2);
         }	    
 	}
+
+	@Test
+	public void testBulkResults() {
+		// Bulk results stay within the same ranges as the single-value
+		// methods, and blood pressure reaches both of its abnormal ranges
+		int count = 10000;
+		boolean[] abnormal = new boolean[count];
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			abnormal[i] = i % 3 == 0;
+		}
+
+		dg.generateResults(LabTest.HBA1C, abnormal, values, 0, count);
+		for (int i = 0; i < count; i++) {
+			Assert.assertTrue(values[i] >= 0);
+			Assert.assertEquals(abnormal[i], values[i] < 12.0);
+			Assert.assertTrue(values[i] <= 17.5);
+		}
+
+		dg.generateResults(LabTest.BPS, abnormal, values, 0, count);
+		boolean low = false;
+		boolean high = false;
+		for (int i = 0; i < count; i++) {
+			if (abnormal[i]) {
+				Assert.assertTrue(values[i] < 90 || values[i] >= 140);
+				low |= values[i] < 90;
+				high |= values[i] >= 140;
+			} else {
+				Assert.assertTrue(values[i] >= 90 && values[i] < 139);
+			}
+			Assert.assertEquals(Math.floor(values[i]), values[i], 0.0);
+		}
+		Assert.assertTrue(low && high);
+	}
+
+	@Test
+	public void testBulkTimestamps() {
+		Date min = new Date(1000000000000L);
+		Date max = new Date(1000086400000L);
+		ResultBlock block = new ResultBlock(1);
+		block.reset(LabTest.TRIG, 5000);
+		Assert.assertTrue(block.capacity() >= 5000);
+		dg.generateResultBlock(block, min, max);
+		long[] timestamps = block.getTimestamps();
+		for (int i = 0; i < block.size(); i++) {
+			Assert.assertTrue(timestamps[i] >= min.getTime());
+			Assert.assertTrue(timestamps[i] <= max.getTime());
+			Assert.assertTrue(block.getValues()[i] < 200);
+		}
+
+		try {
+			dg.generateRandomTimestamps(max, min, timestamps, 0, 1);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iaex) {
+		}
+	}
 }
@@ -0,0 +1,122 @@
+package org.jrfoster.datagen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.EntityCatalog;
+import org.jrfoster.datagen.EntityType;
+import org.jrfoster.datagen.KeyFile;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EntityCatalogTester {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testKeyFile() throws IOException {
+		// Small segments so the keys span several of them
+		File path = folder.newFile("hicns.keys");
+		KeyFile file = new KeyFile(path, EntityType.HICN, true, 100);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(i, file.append("900-00-" + i + "-AB"));
+		}
+		Assert.assertEquals(1000, file.size());
+		Assert.assertEquals("900-00-0-AB", file.get(0));
+		Assert.assertEquals("900-00-999-AB", file.get(999));
+		try {
+			file.get(1000);
+			Assert.fail("Should raise IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException ioobe) {
+		}
+		file.close();
+
+		// The keys are still there when the file is opened again
+		file = new KeyFile(path, EntityType.HICN, false, 100);
+		Assert.assertEquals(1000, file.size());
+		Assert.assertEquals("900-00-512-AB", file.get(512));
+		file.append("900-00-1000-AB");
+		Assert.assertEquals("900-00-1000-AB", file.get(1000));
+		file.close();
+
+		// Keys of another width are refused
+		try {
+			new KeyFile(path, EntityType.PATIENT_ID, false, 100);
+			Assert.fail("Should raise IOException");
+		} catch (IOException ioe) {
+		}
+	}
+
+	@Test
+	public void testSample() throws IOException {
+		KeyFile file = new KeyFile(folder.newFile("ids.keys"),
+				EntityType.PATIENT_ID, true, 64);
+		for (int i = 0; i < 1000; i++) {
+			file.append(Integer.valueOf(i));
+		}
+		Random rng = new Random(11);
+		int uniformLow = 0;
+		int skewedLow = 0;
+		for (int i = 0; i < 10000; i++) {
+			if ((Integer) file.sample(rng) < 10) {
+				uniformLow++;
+			}
+			if ((Integer) file.sample(rng, 3.0) < 10) {
+				skewedLow++;
+			}
+		}
+		// The first 1% of keys get about 1% of uniform picks and about 21.5%
+		// of picks with a skew of 3
+		Assert.assertEquals(100, uniformLow, 40);
+		Assert.assertEquals(2154, skewedLow, 200);
+		file.close();
+	}
+
+	@Test
+	public void testGenerator() throws IOException {
+		File dir = new File(folder.getRoot(), "catalog");
+		EntityCatalog catalog = new EntityCatalog(dir, false);
+		DataGenerator dg = new DataGenerator(100, 1);
+		dg.setEntityCatalog(catalog);
+		Set<Integer> ids = new HashSet<Integer>();
+		Set<String> hicns = new HashSet<String>();
+		for (int i = 0; i < 500; i++) {
+			ids.add(dg.generateRandomIdentifier());
+			String hicn = dg.generateRandomHICN();
+			Assert.assertTrue(hicn,
+					hicn.matches("9\\d\\d-\\d\\d-\\d{4}-[A-Z][A-Z0-9]"));
+			hicns.add(hicn);
+		}
+		String ohaId = dg.generateRandomUUID();
+		int encounter = dg.generateNextEncounterSequence();
+		// Loader threads can append uids out of order
+		catalog.append(EntityType.ENCOUNTER_UID, Integer.valueOf(encounter - 1));
+		Assert.assertEquals(500, ids.size());
+		Assert.assertEquals(500, hicns.size());
+		Assert.assertEquals(500, catalog.get(EntityType.PATIENT_ID).size());
+		Assert.assertEquals(500, catalog.get(EntityType.HICN).size());
+		Assert.assertEquals(UUID.fromString(ohaId),
+				catalog.get(EntityType.OHA_ID).get(0));
+		catalog.close();
+
+		// A generator appending to the catalog never reissues its ids and
+		// carries on the encounter sequence
+		catalog = new EntityCatalog(dir, true);
+		DataGenerator next = new DataGenerator(100, 1);
+		next.setEntityCatalog(catalog);
+		for (int i = 0; i < 500; i++) {
+			Assert.assertFalse(ids.contains(next.generateRandomIdentifier()));
+			Assert.assertFalse(hicns.contains(next.generateRandomHICN()));
+		}
+		Assert.assertEquals(encounter + 1, next.generateNextEncounterSequence());
+		Assert.assertEquals(1000, catalog.get(EntityType.PATIENT_ID).size());
+		catalog.close();
+	}
+}
@@ -0,0 +1,193 @@
+package org.jrfoster.datagen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.jrfoster.datagen.BackpressurePolicy;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.EventStreamSink;
+import org.jrfoster.datagen.PipelinedSink;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventStreamSinkTester {
+	private static final int THREADS = 4;
+	private static final int ROWS_PER_THREAD = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Sink that keeps the rows replayed to it
+	 */
+	private static class RecordingSink implements DataSink {
+		private final List<Table> tables = new ArrayList<Table>();
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+
+		@Override
+		public void write(Table table, Object... values) {
+			tables.add(table);
+			rows.add(values.clone());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		// Small runs and a small fan-in make the threads spill many runs and
+		// the replay merge them over several passes
+		RecordingSink target = new RecordingSink();
+		final EventStreamSink sink = new EventStreamSink(target,
+				folder.newFolder("runs"), 500, 1500, 3);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					Random rng = new Random(seed);
+					for (int i = 0; i < ROWS_PER_THREAD; i++) {
+						Date date = new Date(rng.nextInt(1000000) * 1000L);
+						if (i % 100 == 0) {
+							sink.write(Table.PATIENT_SCREENING, i, "OHCP", 1,
+									0, 1, 0, 1, 0, 1, 0, 1);
+						} else if (i % 2 == 0) {
+							sink.write(Table.PATIENT_RESULTS,
+									UUID.randomUUID(), i, "OHCP", "HBA1C",
+									date, 6.5, "ADSLOADER", date);
+						} else {
+							sink.write(Table.PATIENT_ENCOUNTERS, i, i, "OHCP",
+									date, "Routine", date, "HOME", null);
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		Assert.assertEquals(0, target.rows.size());
+
+		sink.replay();
+		Assert.assertEquals(THREADS * ROWS_PER_THREAD, target.rows.size());
+		long last = Long.MIN_VALUE;
+		int untimed = 0;
+		for (int i = 0; i < target.rows.size(); i++) {
+			long time = sink.eventTime(target.tables.get(i), target.rows.get(i));
+			Assert.assertTrue("Row " + i, time >= last);
+			last = time;
+			if (time == Long.MIN_VALUE) {
+				untimed++;
+			}
+		}
+		Assert.assertEquals(THREADS * ROWS_PER_THREAD / 100, untimed);
+		Assert.assertTrue(sink.report().contains("intermediate merges"));
+		Assert.assertEquals(0, folder.getRoot().listFiles()[0].list().length);
+
+		// The sink can be used again once it has been replayed
+		sink.write(Table.PATIENT_ENCOUNTERS, 1, 1, "OHCP", new Date(5),
+				"Routine", new Date(5), "HOME", null);
+		sink.close();
+		Assert.assertEquals(THREADS * ROWS_PER_THREAD + 1, target.rows.size());
+	}
+
+	@Test
+	public void testShortLivedThreads() throws Exception {
+		// Threads that write a few rows each and end, as loader tasks do,
+		// leave nothing held once the limit has been reached
+		RecordingSink target = new RecordingSink();
+		final EventStreamSink sink = new EventStreamSink(target,
+				folder.newFolder("runs"), 1000, 100, 8);
+		for (int t = 0; t < 200; t++) {
+			final int seed = t;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10; i++) {
+						Date date = new Date((seed * 7 + i * 13) % 500 * 1000L);
+						sink.write(Table.PATIENT_ENCOUNTERS, i, seed, "OHCP",
+								date, "Routine", date, "HOME", null);
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+			Assert.assertTrue(sink.getBufferedRows() < 100);
+		}
+
+		sink.replay();
+		Assert.assertEquals(2000, target.rows.size());
+		long last = Long.MIN_VALUE;
+		for (int i = 0; i < target.rows.size(); i++) {
+			long time = sink.eventTime(target.tables.get(i), target.rows.get(i));
+			Assert.assertTrue("Row " + i, time >= last);
+			last = time;
+		}
+		Assert.assertEquals(0, sink.getBufferedRows());
+	}
+
+	@Test
+	public void testPipelineUpstream() throws Exception {
+		// The pipeline hands the sink its ring slots, which are cleared and
+		// reused as soon as each write returns
+		RecordingSink target = new RecordingSink();
+		EventStreamSink stream = new EventStreamSink(target,
+				folder.newFolder("runs"), 100000, 1000000, 8);
+		PipelinedSink pipeline = new PipelinedSink(stream, 16, 2,
+				BackpressurePolicy.BLOCK);
+		for (int i = 0; i < 1000; i++) {
+			Date date = new Date((i * 37 % 1000) * 1000L);
+			pipeline.write(Table.PATIENT_ENCOUNTERS, i, i, "OHCP", date,
+					"Routine", date, "HOME", null);
+		}
+		pipeline.flush();
+		stream.replay();
+
+		Assert.assertEquals(1000, target.rows.size());
+		boolean[] seen = new boolean[1000];
+		for (Object[] row : target.rows) {
+			Assert.assertEquals("OHCP", row[2]);
+			Assert.assertEquals(row[0], row[1]);
+			seen[(Integer) row[0]] = true;
+		}
+		for (int i = 0; i < seen.length; i++) {
+			Assert.assertTrue("Row " + i, seen[i]);
+		}
+		pipeline.close();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		UUID uid = UUID.randomUUID();
+		Object[] values = { uid, 7, 8L, 1.5, "text", new Date(42), true, null };
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		EventStreamSink.writeEvent(out, new EventStreamSink.Event(42,
+				Table.PATIENT_RESULTS, values));
+		out.close();
+		EventStreamSink.Event event = EventStreamSink
+				.readEvent(new DataInputStream(new ByteArrayInputStream(bytes
+						.toByteArray())));
+		Assert.assertEquals(42, event.time);
+		Assert.assertEquals(Table.PATIENT_RESULTS, event.table);
+		Assert.assertArrayEquals(values, event.values);
+	}
+}
@@ -0,0 +1,168 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+import org.jrfoster.datagen.FanoutDistribution;
+import org.jrfoster.datagen.FanoutProfile;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FanoutDistributionTester {
+	private static final int DRAWS = 100000;
+
+	/**
+	 * Draws from a distribution, checking every draw is within its bounds,
+	 * and returns the average
+	 */
+	private static double drawAverage(FanoutDistribution distribution,
+			int min, int max) {
+		Random rng = new Random(42);
+		long total = 0;
+		for (int i = 0; i < DRAWS; i++) {
+			int count = distribution.sample(rng);
+			Assert.assertTrue(distribution + " drew " + count, count >= min
+					&& count <= max);
+			total += count;
+		}
+		return (double) total / DRAWS;
+	}
+
+	@Test
+	public void testUniform() {
+		FanoutDistribution uniform = FanoutDistribution.uniform(1, 6);
+		Assert.assertEquals(3.5, uniform.getMean(), 0.001);
+		Assert.assertEquals(6, uniform.getMax());
+		Assert.assertEquals(3.5, drawAverage(uniform, 1, 6), 0.05);
+
+		// Every count in the range is drawn about as often as the others
+		Random rng = new Random(7);
+		int[] counts = new int[7];
+		for (int i = 0; i < DRAWS; i++) {
+			counts[uniform.sample(rng)]++;
+		}
+		Assert.assertEquals(0, counts[0]);
+		for (int k = 1; k <= 6; k++) {
+			Assert.assertEquals(DRAWS / 6.0, counts[k], DRAWS / 60.0);
+		}
+	}
+
+	@Test
+	public void testFixed() {
+		FanoutDistribution fixed = FanoutDistribution.fixed(3);
+		Assert.assertEquals(3.0, fixed.getMean(), 0.0);
+		Assert.assertEquals(3, fixed.getMax());
+		Assert.assertEquals(3.0, drawAverage(fixed, 3, 3), 0.0);
+
+		FanoutDistribution none = FanoutDistribution.fixed(0);
+		Assert.assertEquals(0.0, none.getMean(), 0.0);
+		Assert.assertEquals(0, none.getMax());
+	}
+
+	@Test
+	public void testZipf() {
+		FanoutDistribution zipf = FanoutDistribution.zipf(50, 1.2);
+		double weights = 0;
+		double weighted = 0;
+		for (int k = 1; k <= 50; k++) {
+			weights += 1 / Math.pow(k, 1.2);
+			weighted += k / Math.pow(k, 1.2);
+		}
+		Assert.assertEquals(weighted / weights, zipf.getMean(), 0.01);
+		Assert.assertEquals(50, zipf.getMax());
+		Assert.assertEquals(zipf.getMean(), drawAverage(zipf, 1, 50), 0.1);
+	}
+
+	@Test
+	public void testLogNormal() {
+		// The median of the log-normal is e^mu, and the cap bounds the draws
+		FanoutDistribution logNormal = FanoutDistribution.logNormal(
+				Math.log(10), 0.5, 40);
+		Assert.assertTrue(logNormal.getMax() <= 40);
+		Assert.assertTrue(logNormal.getMean() > 9
+				&& logNormal.getMean() < 13);
+		Random rng = new Random(3);
+		int below = 0;
+		for (int i = 0; i < DRAWS; i++) {
+			if (logNormal.sample(rng) < 10) {
+				below++;
+			}
+		}
+		Assert.assertEquals(0.45, (double) below / DRAWS, 0.05);
+	}
+
+	@Test
+	public void testParse() {
+		Assert.assertEquals("uniform:2:9",
+				FanoutDistribution.parse(" UNIFORM:2:9 ").toString());
+		Assert.assertEquals(5.5, FanoutDistribution.parse("uniform:2:9")
+				.getMean(), 0.001);
+		Assert.assertEquals(4, FanoutDistribution.parse("fixed:4").getMax());
+		Assert.assertEquals("zipf:20:1.5",
+				FanoutDistribution.parse("zipf:20:1.5").toString());
+		FanoutDistribution logNormal = FanoutDistribution
+				.parse("lognormal:1.0:0.8:30");
+		Assert.assertEquals("lognormal:1.0:0.8:30", logNormal.toString());
+		Assert.assertTrue(logNormal.getMax() <= 30);
+	}
+
+	@Test
+	public void testBadSpecsRejected() {
+		String[] specs = { "uniform:5", "uniform:6:1", "uniform:-1:3",
+				"zipf:0:1.2", "zipf:10:0", "zipf:ten:1.2", "lognormal:1:0:10",
+				"lognormal:1:1", "fixed:-2", "fixed", "poisson:3", "" };
+		for (String spec : specs) {
+			try {
+				FanoutDistribution.parse(spec);
+				Assert.fail("Should reject " + spec);
+			} catch (IllegalArgumentException iaex) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testProfile() {
+		FanoutProfile defaults = FanoutProfile.defaults();
+		Assert.assertEquals(3.5, defaults.getMeanEncounters(), 0.001);
+		Random rng = new Random(11);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertFalse(defaults.isHot(i));
+			int encounters = defaults.sampleEncounters(rng, i);
+			Assert.assertTrue(encounters >= 1 && encounters <= 6);
+			int labs = defaults.sampleLabs(rng);
+			Assert.assertTrue(labs >= 1 && labs <= 4);
+			Assert.assertEquals(1, defaults.sampleDiagnoses(rng));
+		}
+
+		// A tenth of the patients are hot and get ten times the encounters
+		FanoutProfile hot = new FanoutProfile(FanoutDistribution.fixed(2),
+				FanoutDistribution.fixed(1), FanoutDistribution.fixed(1), 0.1,
+				10);
+		Assert.assertEquals(2 * (1 + 0.1 * 9), hot.getMeanEncounters(), 0.001);
+		int hotPatients = 0;
+		for (int id = 0; id < DRAWS; id++) {
+			int encounters = hot.sampleEncounters(rng, id);
+			if (hot.isHot(id)) {
+				hotPatients++;
+				Assert.assertEquals(20, encounters);
+			} else {
+				Assert.assertEquals(2, encounters);
+			}
+		}
+		Assert.assertEquals(0.1, (double) hotPatients / DRAWS, 0.01);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHotFractionOutOfRange() {
+		new FanoutProfile(FanoutDistribution.fixed(1),
+				FanoutDistribution.fixed(1), FanoutDistribution.fixed(1), 1.5,
+				2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHotMultiplierBelowOne() {
+		new FanoutProfile(FanoutDistribution.fixed(1),
+				FanoutDistribution.fixed(1), FanoutDistribution.fixed(1), 0.1,
+				0);
+	}
+}
@@ -0,0 +1,396 @@
+package org.jrfoster.datagen;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.jrfoster.datagen.JdbcDataSink;
+import org.jrfoster.datagen.Table;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the sink against a fake driver that records the statements prepared,
+ * the batches executed and the rows they carried, since no embedded database
+ * is among the dependencies
+ */
+public class JdbcDataSinkTester {
+	private static final String URL = "jdbc:fakedb:test";
+
+	private static FakeDriver driver;
+
+	@BeforeClass
+	public static void registerDriver() throws SQLException {
+		driver = new FakeDriver();
+		DriverManager.registerDriver(driver);
+	}
+
+	@AfterClass
+	public static void deregisterDriver() throws SQLException {
+		DriverManager.deregisterDriver(driver);
+	}
+
+	@Before
+	public void reset() {
+		driver.reset();
+	}
+
+	@Test
+	public void testSingleRowBatches() {
+		JdbcDataSink sink = new JdbcDataSink(URL, null, null, 10, 1, 4);
+		for (int i = 0; i < 25; i++) {
+			sink.write(Table.PAT_READMISSION_RISK, i, i % 15);
+		}
+		Assert.assertEquals(2, driver.executedBatches());
+		Assert.assertEquals(20, driver.rows().size());
+		Assert.assertEquals(2, driver.commits());
+
+		sink.flush();
+		Assert.assertEquals(3, driver.executedBatches());
+		Assert.assertEquals(25, driver.rows().size());
+		Assert.assertEquals(3, driver.commits());
+		Assert.assertEquals(25, sink.getRowsWritten());
+		for (Object[] row : driver.rows()) {
+			Assert.assertEquals(((Integer) row[0]) % 15, row[1]);
+		}
+
+		sink.close();
+		Assert.assertEquals(1, driver.connections());
+		Assert.assertEquals(1, driver.closedConnections());
+		Assert.assertEquals(
+				"insert into \"pat_readmission_risk\" (\"patient_id\", \"score\")"
+						+ " values (?,?)",
+				driver.prepared().get(0));
+	}
+
+	@Test
+	public void testMultiRowStatements() {
+		JdbcDataSink sink = new JdbcDataSink(URL, null, null, 8, 4, 4);
+		for (int i = 0; i < 10; i++) {
+			sink.write(Table.PAT_READMISSION_RISK, i, 1);
+		}
+		Assert.assertTrue(driver.prepared().contains(
+				"insert into \"pat_readmission_risk\" (\"patient_id\", \"score\")"
+						+ " values (?,?), (?,?), (?,?), (?,?)"));
+		// Two statements of four rows make a batch of eight
+		Assert.assertEquals(1, driver.executedBatches());
+		Assert.assertEquals(8, driver.rows().size());
+
+		// The two left over go in with the single row statement
+		sink.flush();
+		Assert.assertEquals(2, driver.executedBatches());
+		Set<Object> ids = new HashSet<Object>();
+		for (Object[] row : driver.rows()) {
+			ids.add(row[0]);
+		}
+		Assert.assertEquals(10, ids.size());
+		Assert.assertEquals(10, sink.getRowsWritten());
+		sink.close();
+	}
+
+	@Test
+	public void testReusedArray() {
+		// A pipeline hands the sink the same wide ring slot over and over,
+		// so staged rows must not share the caller's array
+		JdbcDataSink sink = new JdbcDataSink(URL, null, null, 100, 4, 1);
+		Object[] slot = new Object[6];
+		for (int i = 0; i < 10; i++) {
+			slot[0] = i;
+			slot[1] = i % 15;
+			sink.write(Table.PAT_READMISSION_RISK, slot);
+			slot[0] = null;
+			slot[1] = null;
+		}
+		sink.close();
+		Set<Object> ids = new HashSet<Object>();
+		for (Object[] row : driver.rows()) {
+			Assert.assertEquals(((Integer) row[0]) % 15, row[1]);
+			ids.add(row[0]);
+		}
+		Assert.assertEquals(10, ids.size());
+	}
+
+	@Test
+	public void testFailedBatchFailsSharedConnection() throws Exception {
+		final JdbcDataSink sink = new JdbcDataSink(URL, null, null, 5, 1, 1);
+		for (int i = 0; i < 4; i++) {
+			sink.write(Table.PAT_READMISSION_RISK, i, 1);
+		}
+		// Another thread on the same connection fills the batch, which fails
+		driver.failBatches(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sink.write(Table.PAT_READMISSION_RISK, 4, 1);
+				} catch (Throwable th) {
+					failure.set(th);
+				}
+			}
+		};
+		other.start();
+		other.join();
+		Assert.assertTrue(failure.get() instanceof IllegalStateException);
+		driver.failBatches(false);
+
+		// The first thread's rows went with the rollback, and it is told so
+		Assert.assertEquals(5, sink.getRowsDiscarded());
+		try {
+			sink.write(Table.PAT_READMISSION_RISK, 5, 1);
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException isex) {
+			// Expected
+		}
+		try {
+			sink.close();
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException isex) {
+			// Expected
+		}
+		Assert.assertEquals(0, sink.getRowsWritten());
+		Assert.assertEquals(1, driver.closedConnections());
+		Assert.assertTrue(sink.report().contains("5 rows discarded"));
+	}
+
+	@Test
+	public void testValuesBoundByColumnType() {
+		JdbcDataSink sink = new JdbcDataSink(URL, null, null, 1, 1, 4);
+		sink.write(Table.METRICS, 42, null);
+		sink.close();
+		Object[] row = driver.rows().get(0);
+		Assert.assertEquals("42", row[0]);
+		Assert.assertEquals("NULL", row[1]);
+	}
+
+	@Test
+	public void testSharedConnections() throws InterruptedException {
+		// Many more threads than connections, as with a task per batch
+		final int threads = 16;
+		final int rowsPerThread = 250;
+		final JdbcDataSink sink = new JdbcDataSink(URL, null, null, 64, 8, 2);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int t = 0; t < threads; t++) {
+			final int first = t * rowsPerThread;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = first; i < first + rowsPerThread; i++) {
+							sink.write(Table.PAT_READMISSION_RISK, i, 0);
+						}
+					} catch (Throwable th) {
+						failure.set(th);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		Assert.assertNull(failure.get());
+		sink.close();
+
+		Assert.assertTrue(driver.connections() <= 2);
+		Assert.assertEquals(driver.connections(), driver.closedConnections());
+		Set<Object> ids = new HashSet<Object>();
+		for (Object[] row : driver.rows()) {
+			ids.add(row[0]);
+		}
+		Assert.assertEquals(threads * rowsPerThread, ids.size());
+		Assert.assertEquals(threads * rowsPerThread, sink.getRowsWritten());
+	}
+
+	@Test
+	public void testCreateSQL() {
+		Assert.assertEquals(
+				"create table \"metrics\" (\"moniker\" varchar(255), "
+						+ "\"value\" integer, primary key (\"moniker\"))",
+				JdbcDataSink.toCreateSQL(Table.METRICS));
+	}
+
+	/**
+	 * Driver handing out proxies for connections and statements. Every row
+	 * in an executed batch is kept, with NULL for the null values.
+	 */
+	private static class FakeDriver implements Driver {
+		private final List<String> prepared = new ArrayList<String>();
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+		private int connections;
+		private int closedConnections;
+		private int executedBatches;
+		private int commits;
+		private boolean failBatches;
+
+		synchronized void failBatches(boolean fail) {
+			failBatches = fail;
+		}
+
+		synchronized void reset() {
+			failBatches = false;
+			prepared.clear();
+			rows.clear();
+			connections = 0;
+			closedConnections = 0;
+			executedBatches = 0;
+			commits = 0;
+		}
+
+		synchronized List<String> prepared() {
+			return new ArrayList<String>(prepared);
+		}
+
+		synchronized List<Object[]> rows() {
+			return new ArrayList<Object[]>(rows);
+		}
+
+		synchronized int connections() {
+			return connections;
+		}
+
+		synchronized int closedConnections() {
+			return closedConnections;
+		}
+
+		synchronized int executedBatches() {
+			return executedBatches;
+		}
+
+		synchronized int commits() {
+			return commits;
+		}
+
+		@Override
+		public Connection connect(String url, Properties info) {
+			if (!acceptsURL(url)) {
+				return null;
+			}
+			synchronized (this) {
+				connections++;
+			}
+			return (Connection) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Connection.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							String name = method.getName();
+							synchronized (FakeDriver.this) {
+								if (name.equals("prepareStatement")) {
+									prepared.add((String) args[0]);
+									return newStatement((String) args[0]);
+								} else if (name.equals("commit")) {
+									commits++;
+								} else if (name.equals("close")) {
+									closedConnections++;
+								}
+							}
+							return defaultValue(method.getReturnType());
+						}
+					});
+		}
+
+		private PreparedStatement newStatement(final String sql) {
+			final int columns = sql.substring(sql.indexOf('('),
+					sql.indexOf(')')).split(",").length;
+			return (PreparedStatement) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+					new InvocationHandler() {
+						private TreeMap<Integer, Object> parameters = new TreeMap<Integer, Object>();
+						private List<Object[]> batch = new ArrayList<Object[]>();
+
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws SQLException {
+							String name = method.getName();
+							if (name.equals("setNull")) {
+								parameters.put((Integer) args[0], "NULL");
+							} else if (name.startsWith("set")) {
+								parameters.put((Integer) args[0], args[1]);
+							} else if (name.equals("addBatch")) {
+								Object[] values = parameters.values().toArray();
+								for (int i = 0; i < values.length; i += columns) {
+									Object[] row = new Object[columns];
+									System.arraycopy(values, i, row, 0, columns);
+									batch.add(row);
+								}
+								parameters = new TreeMap<Integer, Object>();
+							} else if (name.equals("executeBatch")) {
+								synchronized (FakeDriver.this) {
+									if (failBatches) {
+										throw new SQLException("Deadlock");
+									}
+									executedBatches++;
+									rows.addAll(batch);
+								}
+								int[] counts = new int[batch.size()];
+								batch = new ArrayList<Object[]>();
+								return counts;
+							} else if (name.equals("clearBatch")) {
+								batch = new ArrayList<Object[]>();
+							}
+							return defaultValue(method.getReturnType());
+						}
+					});
+		}
+
+		private static Object defaultValue(Class<?> type) {
+			if (type == boolean.class) {
+				return false;
+			} else if (type == int.class) {
+				return 0;
+			}
+			return null;
+		}
+
+		@Override
+		public boolean acceptsURL(String url) {
+			return url.startsWith("jdbc:fakedb:");
+		}
+
+		@Override
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		@Override
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		@Override
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrfoster.datagen.BackpressurePolicy;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.LanedSink;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LanedSinkTester {
+	private static final int SLOW_ROWS = 200;
+	private static final int FAST_ROWS = 20000;
+
+	/**
+	 * Sink that takes a couple of milliseconds to write a result and no time
+	 * at all for anything else
+	 */
+	private static class SlowResultsSink implements DataSink {
+		private final AtomicLong results = new AtomicLong();
+		private final AtomicLong others = new AtomicLong();
+		private final AtomicInteger flushes = new AtomicInteger();
+		private final AtomicInteger closes = new AtomicInteger();
+
+		@Override
+		public void write(Table table, Object... values) {
+			if (table == Table.PATIENT_RESULTS) {
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+				}
+				results.incrementAndGet();
+			} else {
+				others.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void flush() {
+			flushes.incrementAndGet();
+		}
+
+		@Override
+		public void close() {
+			closes.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void testFastLaneNotHeldUpBySlowLane() throws InterruptedException {
+		SlowResultsSink target = new SlowResultsSink();
+		LanedSink sink = new LanedSink(target, 1024,
+				LanedSink.parseWriters(1, null), BackpressurePolicy.BLOCK);
+
+		// Every hundredth row is an expensive one
+		int slow = 0;
+		for (int i = 0; i < FAST_ROWS; i++) {
+			if (i % (FAST_ROWS / SLOW_ROWS) == 0) {
+				sink.write(Table.PATIENT_RESULTS, null, String.valueOf(slow++));
+			}
+			sink.write(Table.PATIENT_SCREENING, String.valueOf(i), "x");
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (sink.getRowsWritten(Table.PATIENT_SCREENING) < FAST_ROWS
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		// The cheap rows are all written while the results are still going
+		Assert.assertEquals(FAST_ROWS,
+				sink.getRowsWritten(Table.PATIENT_SCREENING));
+		Assert.assertTrue(sink.getRowsWritten(Table.PATIENT_RESULTS) < SLOW_ROWS);
+
+		sink.flush();
+		Assert.assertEquals(SLOW_ROWS, target.results.get());
+		Assert.assertEquals(FAST_ROWS, target.others.get());
+		Assert.assertEquals(1, target.flushes.get());
+
+		String report = sink.report();
+		Assert.assertTrue(report,
+				report.contains("patient_results: 1 writers, 200 rows"));
+		Assert.assertTrue(report,
+				report.contains("patient_screening: 1 writers, 20000 rows"));
+
+		sink.close();
+		sink.close();
+		Assert.assertEquals(1, target.closes.get());
+		try {
+			sink.write(Table.PATIENT_ENCOUNTERS, 1, "x");
+			Assert.fail("Expected the closed sink to refuse a new lane");
+		} catch (IllegalStateException isex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testWritersPerTable() {
+		int[] writers = LanedSink.parseWriters(2,
+				"PATIENT_RESULTS:8, patient_encounters:4");
+		LanedSink sink = new LanedSink(new SlowResultsSink(), 16, writers,
+				BackpressurePolicy.CALLER_RUNS);
+		Assert.assertEquals(8, sink.getWriters(Table.PATIENT_RESULTS));
+		Assert.assertEquals(4, sink.getWriters(Table.PATIENT_ENCOUNTERS));
+		Assert.assertEquals(2, sink.getWriters(Table.PATIENT_SCREENING));
+		Assert.assertEquals(0, sink.getRowsWritten(Table.PATIENT_SCREENING));
+		sink.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWritersMustBePositive() {
+		new LanedSink(new SlowResultsSink(), 16, LanedSink.parseWriters(0,
+				null), BackpressurePolicy.BLOCK);
+	}
+}
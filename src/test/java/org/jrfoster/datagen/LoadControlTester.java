@@ -0,0 +1,198 @@
+package org.jrfoster.datagen;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.AdjustableLimit;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.LoadControl;
+import org.jrfoster.datagen.MeteredSink;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadControlTester {
+
+	private static class NullSink implements DataSink {
+		@Override
+		public void write(Table table, Object... values) {
+			if (values.length == 0) {
+				throw new IllegalStateException("No values");
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void testAdjustableLimit() {
+		AdjustableLimit limit = new AdjustableLimit(4);
+		limit.acquireUninterruptibly(3);
+		Assert.assertEquals(3, limit.getInUse());
+
+		// Lowering the limit below what is in use leaves no permits until
+		// enough are released
+		limit.setLimit(2);
+		Assert.assertEquals(2, limit.getLimit());
+		Assert.assertFalse(limit.tryAcquire());
+		limit.release(2);
+		Assert.assertEquals(1, limit.getInUse());
+		Assert.assertTrue(limit.tryAcquire());
+		Assert.assertFalse(limit.tryAcquire());
+
+		limit.setLimit(5);
+		Assert.assertTrue(limit.tryAcquire(3));
+		Assert.assertEquals(5, limit.getInUse());
+
+		try {
+			limit.setLimit(0);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+	@Test
+	public void testCounters() {
+		MeteredSink sink = new MeteredSink(new NullSink());
+		AbnormalRatioController abnormal = new AbnormalRatioController(0.25,
+				16);
+		LoadControl control = new LoadControl(sink, abnormal, 2, null, null,
+				null, null);
+		for (int i = 0; i < 10; i++) {
+			sink.write(Table.PATIENT_XREF, i);
+		}
+		sink.write(Table.PATIENT_RESULTS, 1);
+		try {
+			sink.write(Table.PATIENT_RESULTS);
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException ise) {
+		}
+		AbnormalRatioController.Selector selector = abnormal.newSelector(
+				"Test", "HBA1C");
+		for (int i = 0; i < 100; i++) {
+			selector.next();
+		}
+		control.beginPatient();
+		control.endPatient();
+
+		Assert.assertEquals(1, control.getPatientsLoaded());
+		Assert.assertEquals(11, control.getRowsWritten());
+		Assert.assertEquals(10, sink.getRows(Table.PATIENT_XREF));
+		Assert.assertEquals(1, control.getErrors());
+		Assert.assertEquals(0.25, control.getAbnormalRate(), 0.0);
+		Assert.assertEquals(-1, control.getMaxInFlight());
+		Assert.assertTrue(control.getAverageRowsPerSecond() > 0);
+		boolean found = false;
+		for (String rows : control.getRowsByTable()) {
+			found |= rows.equals(Table.PATIENT_XREF.getTableName() + "=10");
+		}
+		Assert.assertTrue(found);
+	}
+
+	@Test
+	public void testRowsPerSecond() {
+		MeteredSink sink = new MeteredSink(new NullSink());
+		LoadControl control = new LoadControl(sink,
+				new AbnormalRatioController(0.33, 16), 1, null, null, null, null);
+		control.setTargetRowsPerSecond(200);
+		Assert.assertEquals(200, control.getTargetRowsPerSecond(), 0.001);
+		long start = System.nanoTime();
+		for (int i = 0; i < 41; i++) {
+			sink.write(Table.PATIENT_XREF, i);
+		}
+		// 40 rows after the first at 200 a second take about 200 ms
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(150));
+		control.setTargetRowsPerSecond(0);
+		Assert.assertEquals(0, control.getTargetRowsPerSecond(), 0.0);
+	}
+
+	@Test
+	public void testPauseAndWorkers() throws Exception {
+		final LoadControl control = new LoadControl(new MeteredSink(
+				new NullSink()), new AbnormalRatioController(0.33, 16), 4,
+				null, null, null, null);
+		control.setWorkers(1);
+		final AtomicInteger busy = new AtomicInteger();
+		final AtomicInteger maxBusy = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(4);
+		control.pause();
+		for (int t = 0; t < 4; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50; i++) {
+						control.beginPatient();
+						int now = busy.incrementAndGet();
+						if (now > maxBusy.get()) {
+							maxBusy.set(now);
+						}
+						busy.decrementAndGet();
+						control.endPatient();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		// Nothing runs while paused
+		Assert.assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(0, control.getPatientsLoaded());
+		control.resume();
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(200, control.getPatientsLoaded());
+		Assert.assertEquals(1, maxBusy.get());
+
+		try {
+			control.setWorkers(5);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		LoadControl control = new LoadControl(new MeteredSink(new NullSink()),
+				new AbnormalRatioController(0.33, 16), 2, new AdjustableLimit(
+						8), null, null, null);
+		control.register();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(LoadControl.OBJECT_NAME);
+			Assert.assertEquals(8, server.getAttribute(name, "MaxInFlight"));
+			server.invoke(name, "pause", null, null);
+			Assert.assertEquals(Boolean.TRUE,
+					server.getAttribute(name, "Paused"));
+			server.invoke(name, "resume", null, null);
+			Assert.assertFalse(control.isPaused());
+
+			// stop only does something while a run has a way to stop
+			final AtomicInteger stops = new AtomicInteger();
+			server.invoke(name, "stop", null, null);
+			control.setStopAction(new Runnable() {
+				@Override
+				public void run() {
+					stops.incrementAndGet();
+				}
+			});
+			server.invoke(name, "stop", null, null);
+			control.setStopAction(null);
+			server.invoke(name, "stop", null, null);
+			Assert.assertEquals(1, stops.get());
+		} finally {
+			control.unregister();
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package org.jrfoster.datagen;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jrfoster.datagen.CoordinatorClient;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.LoadCoordinator;
+import org.jrfoster.datagen.Measure;
+import org.jrfoster.datagen.ReadmissionRiskAggregator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadCoordinatorTester {
+	private static final Runnable IGNORE = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * Runs the coordinator on a thread of its own, keeping its result
+	 */
+	private static class CoordinatorThread extends Thread {
+		private final LoadCoordinator coordinator;
+		private final AtomicBoolean succeeded = new AtomicBoolean();
+
+		CoordinatorThread(LoadCoordinator coordinator) {
+			this.coordinator = coordinator;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				succeeded.set(coordinator.run());
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static LoadCoordinator newCoordinator(int workers,
+			ByteArrayOutputStream console) throws Exception {
+		return new LoadCoordinator(workers, 0, 50L, 10000L, new PrintStream(
+				console, true));
+	}
+
+	@Test
+	public void testAggregatesWorkers() throws Exception {
+		final int workers = 3;
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		LoadCoordinator coordinator = newCoordinator(workers, console);
+		CoordinatorThread thread = new CoordinatorThread(coordinator);
+		thread.start();
+
+		final String address = "localhost:" + coordinator.getPort();
+		final CountDownLatch done = new CountDownLatch(workers);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int i = 0; i < workers; i++) {
+			final int slice = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						CoordinatorClient client = CoordinatorClient.connect(
+								address, IGNORE);
+						client.ready(slice);
+						Assert.assertTrue(client.awaitStart());
+						for (int step = 1; step <= 5; step++) {
+							client.progress(step * 10, step * 1000, 0);
+							Thread.sleep(20);
+						}
+						// Each slice counted one patient per score
+						long[] histogram = new long[ReadmissionRiskAggregator.MAX_SCORE + 1];
+						Arrays.fill(histogram, 1);
+						client.readmission(histogram, 20);
+						Map<String, long[]> counts = new TreeMap<String, long[]>();
+						long[] zip = new long[Measure.values().length * 2];
+						Arrays.fill(zip, slice + 1);
+						counts.put("OR|9720" + slice, zip);
+						counts.put("WA|98101", zip.clone());
+						client.measures(counts);
+						client.done(100 + slice, 10000 + slice, slice, 100);
+					} catch (Throwable th) {
+						failure.set(th);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+		Assert.assertNull(failure.get());
+		thread.join(30000);
+		Assert.assertFalse(thread.isAlive());
+
+		Assert.assertTrue(thread.succeeded.get());
+		Assert.assertNull(coordinator.getFailure());
+		Assert.assertEquals(30003, coordinator.getRowsWritten());
+		long[] histogram = coordinator.getReadmissionHistogram();
+		Assert.assertEquals(ReadmissionRiskAggregator.MAX_SCORE + 1,
+				histogram.length);
+		for (long count : histogram) {
+			Assert.assertEquals(3, count);
+		}
+		Assert.assertEquals(60, coordinator.getReadmissionEncounters());
+		Map<String, long[]> counts = coordinator.getMeasureCounts();
+		Assert.assertEquals(4, counts.size());
+		Assert.assertEquals(3, counts.get("OR|97202")[0]);
+		// Zips more than one slice counted are added up
+		Assert.assertEquals(6, counts.get("WA|98101")[1]);
+		String report = coordinator.report();
+		Assert.assertTrue(report, report.contains("Worker 2: 102 patients"));
+		Assert.assertTrue(report,
+				report.contains("All 3 workers: 303 patients, 30003 rows, 3 errors"));
+		Assert.assertTrue(console.toString().contains("Started 3 workers"));
+	}
+
+	@Test
+	public void testFailedWorkerAbortsRun() throws Exception {
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		LoadCoordinator coordinator = newCoordinator(2, console);
+		CoordinatorThread thread = new CoordinatorThread(coordinator);
+		thread.start();
+
+		String address = "localhost:" + coordinator.getPort();
+		final CountDownLatch aborted = new CountDownLatch(1);
+		CoordinatorClient healthy = CoordinatorClient.connect(address,
+				new Runnable() {
+					@Override
+					public void run() {
+						aborted.countDown();
+					}
+				});
+		CoordinatorClient failing = CoordinatorClient.connect(address, IGNORE);
+		healthy.ready(0);
+		failing.ready(1);
+		Assert.assertTrue(healthy.awaitStart());
+		Assert.assertTrue(failing.awaitStart());
+		healthy.progress(1, 10, 0);
+		failing.failed("Cluster unavailable");
+
+		Assert.assertTrue(aborted.await(30, TimeUnit.SECONDS));
+		thread.join(30000);
+		Assert.assertFalse(thread.succeeded.get());
+		Assert.assertEquals("Worker 1 failed: Cluster unavailable",
+				coordinator.getFailure());
+		Assert.assertTrue(console.toString().contains("Load failed"));
+	}
+
+	@Test
+	public void testDisconnectedWorkerFailsRun() throws Exception {
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		LoadCoordinator coordinator = newCoordinator(1, console);
+		CoordinatorThread thread = new CoordinatorThread(coordinator);
+		thread.start();
+
+		// A worker that goes away after starting, without saying why
+		Socket socket = new Socket("localhost", coordinator.getPort());
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				socket.getOutputStream(), "UTF-8"), true);
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "UTF-8"));
+		out.println("READY 0");
+		Assert.assertEquals("START", in.readLine());
+		out.println("PROGRESS 1 10 0");
+		socket.close();
+
+		thread.join(30000);
+		Assert.assertFalse(thread.succeeded.get());
+		Assert.assertEquals("Worker 0 disconnected before it was done",
+				coordinator.getFailure());
+	}
+
+	@Test
+	public void testLoadSettingsPassedOn() {
+		Assert.assertTrue(LoadCoordinator.isLoadSetting("schema.profile"));
+		Assert.assertTrue(LoadCoordinator.isLoadSetting("load.tables"));
+		Assert.assertFalse(LoadCoordinator.isLoadSetting("java.class.path"));
+		Assert.assertFalse(LoadCoordinator.isLoadSetting("worker.slice.index"));
+		Assert.assertFalse(LoadCoordinator.isLoadSetting("coordinator.port"));
+	}
+
+	@Test
+	public void testSlicesAreDisjoint() {
+		DataGenerator first = new DataGenerator(100, 1);
+		DataGenerator second = new DataGenerator(100, 1);
+		first.setSlice(0, 2);
+		second.setSlice(1, 2);
+
+		Set<Integer> ids = new HashSet<Integer>();
+		Set<Integer> encounters = new HashSet<Integer>();
+		Set<String> hicns = new HashSet<String>();
+		for (int i = 0; i < 1000; i++) {
+			int id = first.generateRandomIdentifier();
+			Assert.assertEquals(0, id % 2);
+			Assert.assertTrue(ids.add(id));
+			id = second.generateRandomIdentifier();
+			Assert.assertEquals(1, id % 2);
+			Assert.assertTrue(ids.add(id));
+			Assert.assertTrue(encounters.add(first
+					.generateNextEncounterSequence()));
+			Assert.assertTrue(encounters.add(second
+					.generateNextEncounterSequence()));
+			Assert.assertTrue(hicns.add(first.generateRandomHICN()));
+			Assert.assertTrue(hicns.add(second.generateRandomHICN()));
+		}
+		// Between them the slices issue the sequence without gaps
+		for (int uid = 50001; uid <= 52000; uid++) {
+			Assert.assertTrue(encounters.contains(uid));
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.EnumSet;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.LoadEstimator;
+import org.jrfoster.datagen.PatientLoader;
+import org.jrfoster.datagen.PatientPopulation;
+import org.jrfoster.datagen.SizingSink;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadEstimatorTester {
+
+	@Test
+	public void testRowBytes() {
+		// Each value carries a four byte length
+		Assert.assertEquals(4 + 3 + 8, SizingSink.rowBytes(Table.METRICS,
+				"abc", 5));
+		Assert.assertEquals(4 + 4 + 8, SizingSink.rowBytes(Table.METRICS,
+				1234, 5));
+		Assert.assertEquals(4 + 3 + 4, SizingSink.rowBytes(Table.METRICS,
+				"abc", null));
+	}
+
+	@Test
+	public void testExtrapolation() {
+		SizingSink sizing = new SizingSink();
+		for (int i = 0; i < 100; i++) {
+			sizing.beginPatient();
+			// One or two rows a patient, in a partition of their own
+			for (int row = 0; row <= i % 2; row++) {
+				sizing.write(Table.PAT_READMISSION_RISK, i * 2 + row, 3);
+			}
+			// One row a patient into five partitions shared by all
+			sizing.write(Table.READMISSION_STRATIFICATION, i % 5, 1);
+			sizing.endPatient();
+		}
+		LoadEstimator estimator = new LoadEstimator(sizing, 1000);
+
+		LoadEstimator.Estimate rows = estimator
+				.estimateRows(Table.PAT_READMISSION_RISK);
+		Assert.assertEquals(1500, rows.getValue(), 0.001);
+		// 1.96 * 1000 * sqrt(0.25 * 100 / 99 / 100)
+		Assert.assertEquals(98.5, rows.getMargin(), 0.1);
+		Assert.assertEquals(1500 * 16, estimator.estimateBytes(
+				Table.PAT_READMISSION_RISK).getValue(), 0.001);
+
+		LoadEstimator.Estimate strata = estimator
+				.estimateRows(Table.READMISSION_STRATIFICATION);
+		Assert.assertEquals(1000, strata.getValue(), 0.001);
+		Assert.assertEquals(0, strata.getMargin(), 0.001);
+		Assert.assertEquals(2500, estimator.estimateTotalRows().getValue(),
+				0.001);
+
+		// Partitions of one row each, as many again for every ten patients
+		Assert.assertEquals(1500, estimator
+				.estimatePartitions(Table.PAT_READMISSION_RISK), 0.001);
+		Assert.assertEquals(16, estimator.estimatePartitionBytes(
+				Table.PAT_READMISSION_RISK, 99), 0.001);
+		// Five shared partitions of twenty rows, ten times the size
+		Assert.assertEquals(5, estimator
+				.estimatePartitions(Table.READMISSION_STRATIFICATION), 0.001);
+		Assert.assertEquals(20 * 16 * 10, estimator.estimatePartitionBytes(
+				Table.READMISSION_STRATIFICATION, 100), 0.001);
+		Assert.assertEquals(0, estimator.estimateRows(Table.METRICS)
+				.getValue(), 0.001);
+	}
+
+	@Test
+	public void testPartitionPercentileInterval() {
+		SizingSink sizing = new SizingSink();
+		for (int i = 0; i < 100; i++) {
+			sizing.beginPatient();
+			// A partition of one to a hundred rows a patient
+			for (int row = 0; row <= i; row++) {
+				sizing.write(Table.PAT_READMISSION_RISK, i, 3);
+			}
+			sizing.endPatient();
+		}
+		LoadEstimator estimator = new LoadEstimator(sizing, 1000);
+
+		Assert.assertEquals(50 * 16, estimator.estimatePartitionBytes(
+				Table.PAT_READMISSION_RISK, 50), 0.001);
+		// Ranks 50 -/+ 1.96 * sqrt(100 * 0.5 * 0.5), rounded outwards
+		double[] median = estimator.estimatePartitionBytesInterval(
+				Table.PAT_READMISSION_RISK, 50);
+		Assert.assertEquals(40 * 16, median[0], 0.001);
+		Assert.assertEquals(60 * 16, median[1], 0.001);
+		// Near the top the interval runs up to the largest partition
+		double[] tail = estimator.estimatePartitionBytesInterval(
+				Table.PAT_READMISSION_RISK, 99);
+		Assert.assertTrue(tail[0] < 99 * 16);
+		Assert.assertEquals(100 * 16, tail[1], 0.001);
+		Assert.assertTrue(sizing.getSizingNanos() > 0);
+
+		String report = estimator.report(1, 0);
+		Assert.assertTrue(report, report.contains("p50 800 B [640 B, 960 B]"));
+	}
+
+	@Test
+	public void testSampleThroughLoader() {
+		DataGenerator dg = new DataGenerator(40, 15);
+		SizingSink sizing = new SizingSink();
+		PatientLoader loader = new PatientLoader(sizing, dg,
+				new AbnormalRatioController(0.3, 16), new Date(), 2014,
+				EnumSet.allOf(Table.class));
+		LoadEstimator estimator = new LoadEstimator(sizing, 1000000);
+		estimator.sample(loader, new PatientPopulation(dg, 40, null, null));
+
+		Assert.assertEquals(40, estimator.getSampleSize());
+		LoadEstimator.Estimate demographics = estimator
+				.estimateRows(Table.PATIENT_DEMOGRAPHICS);
+		Assert.assertEquals(1000000, demographics.getValue(), 0.001);
+		Assert.assertEquals(0, demographics.getMargin(), 0.001);
+		Assert.assertEquals(2000000, estimator.estimateRows(
+				Table.PATIENT_XREF).getValue(), 0.001);
+		Assert.assertEquals(1000000, estimator
+				.estimatePartitions(Table.PATIENT_DEMOGRAPHICS), 0.001);
+		Assert.assertTrue(estimator.getPatientsPerSecond() > 0);
+
+		double rows = estimator.estimateTotalRows().getValue();
+		Assert.assertTrue(rows > 4000000);
+		Assert.assertTrue(estimator.estimateSeconds(1, 1000) >= rows / 1000);
+		String report = estimator.report(4, 1000);
+		Assert.assertTrue(report, report.contains("patient_demographics: "));
+		Assert.assertTrue(report, report.contains("bound by writing"));
+	}
+}
@@ -0,0 +1,194 @@
+package org.jrfoster.datagen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.CodeCatalog;
+import org.jrfoster.datagen.CodedValue;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.LabTest;
+import org.jrfoster.datagen.Measure;
+import org.jrfoster.datagen.MeasureRollup;
+import org.jrfoster.datagen.PatientLoader;
+import org.jrfoster.datagen.PatientPopulation;
+import org.jrfoster.datagen.PatientRecord;
+import org.jrfoster.datagen.PersonName;
+import org.jrfoster.datagen.Table;
+import org.jrfoster.datagen.ZipData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MeasureRollupTester {
+	private static final DataSink NULL_SINK = new DataSink() {
+		@Override
+		public void write(Table table, Object... values) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Date date(int year, int month, int day) {
+		return new DateTime(year, month, day, 12, 0, 0, 0).toDate();
+	}
+
+	private static PatientRecord patient(int id, int birthYear) {
+		return new PatientRecord(id, "OHA" + id, "HICN" + id, "F",
+				new PersonName("Doe", "Jane"), date(birthYear, 6, 1),
+				new ZipData("97201,STANDARD,PORTLAND,OR,PRIMARY,45.5,-122.7,"
+						+ "NA-US-OR-PORTLAND,false"));
+	}
+
+	@Test
+	public void testNormal() {
+		Assert.assertTrue(LabTest.LDLC.isNormal(99.0));
+		Assert.assertFalse(LabTest.LDLC.isNormal(100.0));
+		Assert.assertTrue(LabTest.HBA1C.isNormal(12.3));
+		Assert.assertFalse(LabTest.HBA1C.isNormal(11.9));
+	}
+
+	@Test
+	public void testTally() throws IOException {
+		MeasureRollup rollup = new MeasureRollup(CodeCatalog.getInstance(),
+				2014);
+		MeasureRollup.Tally tally = rollup.newTally(NULL_SINK);
+		CodedValue dm = CodeCatalog.getInstance().getSet("DM_DX").get(0);
+
+		// A senior diabetic seen in the period whose latest LDLC is normal
+		// and latest HBA1C is not, and who had the flu shot
+		tally.beginPatient();
+		tally.write(Table.PATIENT_ENCOUNTERS, 1, 1, "OHCP", date(2014, 3, 1),
+				"Routine", date(2014, 3, 2), "HOME", new Date());
+		tally.write(Table.PATIENT_DIAGNOSES, 1, 1, 1, "OHCP",
+				dm.getIdentifier(), dm.getCodingSystem(), date(2013, 5, 1),
+				new Date());
+		tally.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "LDLC",
+				date(2014, 3, 1), 150.0, "ADSLOADER", new Date());
+		tally.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "LDLC",
+				date(2014, 4, 1), 80.0, "ADSLOADER", new Date());
+		tally.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "HBA1C",
+				date(2014, 4, 1), 15.0, "ADSLOADER", new Date());
+		tally.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "HBA1C",
+				date(2014, 5, 1), 9.5, "ADSLOADER", new Date());
+		// Results outside the period don't count, however late
+		tally.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "HBA1C",
+				date(2015, 1, 2), 15.0, "ADSLOADER", new Date());
+		tally.write(Table.PREFILLED_ELEMENTS, "HICN1", "Jane", "Doe", "F",
+				date(1940, 6, 1), new Date(), new Date(), 1, 0);
+		tally.endPatient(patient(1, 1940));
+
+		// A young patient only seen the year before counts for nothing
+		tally.beginPatient();
+		tally.write(Table.PATIENT_ENCOUNTERS, 2, 2, "OHCP", date(2013, 3, 1),
+				"Routine", date(2013, 3, 2), "HOME", new Date());
+		tally.endPatient(patient(2, 1990));
+
+		// Nothing reaches the totals until the tally is finished, and a
+		// second finish adds nothing more
+		Assert.assertTrue(rollup.getCounts().isEmpty());
+		tally.finish();
+		tally.finish();
+		long[] counts = rollup.getCounts().get("OR|97201");
+		Assert.assertEquals(1, counts[Measure.DM_LDLC_CONTROL.ordinal() * 2]);
+		Assert.assertEquals(1,
+				counts[Measure.DM_LDLC_CONTROL.ordinal() * 2 + 1]);
+		Assert.assertEquals(1, counts[Measure.DM_HBA1C_CONTROL.ordinal() * 2]);
+		Assert.assertEquals(0,
+				counts[Measure.DM_HBA1C_CONTROL.ordinal() * 2 + 1]);
+		Assert.assertEquals(0, counts[Measure.IVD_LDLC_CONTROL.ordinal() * 2]);
+		Assert.assertEquals(1,
+				counts[Measure.CARE_FALL_SCREENING.ordinal() * 2]);
+		Assert.assertEquals(1, counts[Measure.PREV_FLU_SHOT.ordinal() * 2 + 1]);
+		Assert.assertEquals(0,
+				counts[Measure.PREV_BMI_SCREENING.ordinal() * 2 + 1]);
+
+		File dir = folder.newFolder("rollups");
+		rollup.write(dir);
+		List<String> lines = Files.readAllLines(new File(dir,
+				"dm_ldlc_control.csv").toPath(), Charset.forName("UTF-8"));
+		Assert.assertEquals(4, lines.size());
+		Assert.assertEquals("ALL,,,1,1,1.0000", lines.get(1));
+		Assert.assertEquals("STATE,OR,,1,1,1.0000", lines.get(2));
+		Assert.assertEquals("ZIP,OR,97201,1,1,1.0000", lines.get(3));
+	}
+
+	@Test
+	public void testReusedScreeningArray() {
+		MeasureRollup rollup = new MeasureRollup(CodeCatalog.getInstance(),
+				2014);
+		MeasureRollup.Tally tally = rollup.newTally(NULL_SINK);
+
+		// The screening row's array is reused for another row before the
+		// patient is decided, as a pipeline's ring slot would be
+		Object[] row = new Object[Table.PATIENT_SCREENING.getColumnCount()];
+		tally.beginPatient();
+		tally.write(Table.PATIENT_ENCOUNTERS, 1, 1, "OHCP", date(2014, 3, 1),
+				"Routine", date(2014, 3, 2), "HOME", new Date());
+		row[Table.PATIENT_SCREENING.indexOf("bmi_screening")] = 1;
+		row[Table.PATIENT_SCREENING.indexOf("bp_screening")] = 1;
+		tally.write(Table.PATIENT_SCREENING, row);
+		Arrays.fill(row, 0);
+		tally.endPatient(patient(1, 1970));
+		tally.finish();
+
+		long[] counts = rollup.getCounts().get("OR|97201");
+		Assert.assertEquals(1,
+				counts[Measure.PREV_BMI_SCREENING.ordinal() * 2 + 1]);
+		Assert.assertEquals(1,
+				counts[Measure.PREV_BP_SCREENING.ordinal() * 2 + 1]);
+		Assert.assertEquals(0,
+				counts[Measure.PREV_TOBACCO_SCREENING.ordinal() * 2 + 1]);
+	}
+
+	@Test
+	public void testLoader() {
+		// Every patient with a visit in the period is in the preventive
+		// denominators, which hold every other population
+		DataGenerator dg = new DataGenerator(200, 16);
+		MeasureRollup rollup = new MeasureRollup(CodeCatalog.getInstance(),
+				2014);
+		PatientLoader loader = new PatientLoader(NULL_SINK, dg,
+				new AbnormalRatioController(0.3, 16), null, rollup,
+				new Date(), 2014, EnumSet.allOf(Table.class));
+		PatientPopulation population = new PatientPopulation(dg, 200, null,
+				null);
+		while (population.hasNext()) {
+			loader.load(population.next());
+		}
+		loader.finish();
+
+		long[] all = new long[Measure.values().length * 2];
+		for (long[] counts : rollup.getCounts().values()) {
+			for (int i = 0; i < all.length; i++) {
+				all[i] += counts[i];
+			}
+		}
+		long visits = all[Measure.PREV_BMI_SCREENING.ordinal() * 2];
+		Assert.assertTrue(visits > 0 && visits <= 200);
+		for (Measure measure : Measure.values()) {
+			Assert.assertTrue(all[measure.ordinal() * 2] <= visits);
+			Assert.assertTrue(all[measure.ordinal() * 2 + 1] <= all[measure
+					.ordinal() * 2]);
+		}
+		Assert.assertTrue(rollup.report().contains("DM_BP_CONTROL"));
+	}
+}
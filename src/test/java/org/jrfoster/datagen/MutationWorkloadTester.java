@@ -0,0 +1,142 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.jrfoster.datagen.CqlDataSink;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.KeyCatalog;
+import org.jrfoster.datagen.MutationType;
+import org.jrfoster.datagen.MutationWorkload;
+import org.jrfoster.datagen.RampProfile;
+import org.jrfoster.datagen.Settings;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MutationWorkloadTester {
+	private static final Date DATE = new Date(0);
+
+	/**
+	 * Sink that keeps every row written to it
+	 */
+	private static class RecordingSink implements DataSink {
+		private final List<Object[]> rows = Collections
+				.synchronizedList(new ArrayList<Object[]>());
+
+		@Override
+		public void write(Table table, Object... values) {
+			rows.add(values);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private final DataGenerator dg = new DataGenerator(10, 1);
+
+	private KeyCatalog loadKeys() {
+		KeyCatalog keys = new KeyCatalog(new RecordingSink(), 100,
+				MutationType.values());
+		for (int i = 0; i < 50; i++) {
+			keys.write(Table.PATIENT_DEMOGRAPHICS, i, "OHCP", "City", "OR",
+					DATE, "0", "F", "97201", DATE);
+			keys.write(Table.PATIENT_SCREENING, i, "OHCP", 0, 0, 0, 0, 0, 0,
+					0, 0, 0);
+			keys.write(Table.PATIENT_RESULTS, null, i, "OHCP", "HBA1C", DATE,
+					6.5, "ADSLOADER", DATE);
+			keys.write(Table.PATIENT_ENCOUNTERS, i, i, "OHCP", DATE, "IN",
+					DATE, "HOME", DATE);
+		}
+		return keys;
+	}
+
+	@Test
+	public void testApply() {
+		KeyCatalog keys = loadKeys();
+		RecordingSink writes = new RecordingSink();
+		RecordingSink deletes = new RecordingSink();
+		MutationWorkload workload = new MutationWorkload(writes, deletes, keys,
+				dg, Settings.parseWeights("CORRECT_RESULT:1", MutationType.class),
+				RampProfile.constant(1), 1);
+		Random rng = new Random(3);
+
+		Object[] sampled = keys.sample(MutationType.CORRECT_RESULT, rng);
+		Object[] copy = sampled.clone();
+		workload.apply(MutationType.CORRECT_RESULT, sampled, rng);
+		Object[] corrected = writes.rows.get(0);
+		Assert.assertArrayEquals("The sampled row is left alone", copy, sampled);
+		Assert.assertEquals(sampled[1], corrected[1]);
+		Assert.assertEquals(sampled[4], corrected[4]);
+		Assert.assertEquals("CORRECTED", corrected[6]);
+		double value = ((Double) corrected[5]).doubleValue();
+		Assert.assertTrue(value >= 5.85 && value <= 7.15);
+
+		workload.apply(MutationType.OVERWRITE_DEMOGRAPHICS,
+				keys.sample(MutationType.OVERWRITE_DEMOGRAPHICS, rng), rng);
+		Object[] moved = writes.rows.get(1);
+		Assert.assertEquals(9, moved.length);
+		Assert.assertTrue(((String) moved[7]).length() == 5);
+		Assert.assertTrue(((Date) moved[8]).after(DATE));
+
+		workload.apply(MutationType.OVERWRITE_SCREENING,
+				keys.sample(MutationType.OVERWRITE_SCREENING, rng), rng);
+		Object[] screened = writes.rows.get(2);
+		for (int i = 2; i < screened.length; i++) {
+			int flag = ((Integer) screened[i]).intValue();
+			Assert.assertTrue(flag == 0 || flag == 1);
+		}
+
+		// Deletes go to the delete sink whole and unchanged
+		Object[] encounter = keys.sample(MutationType.DELETE_ENCOUNTER, rng);
+		workload.apply(MutationType.DELETE_ENCOUNTER, encounter, rng);
+		Assert.assertEquals(3, writes.rows.size());
+		Assert.assertArrayEquals(encounter, deletes.rows.get(0));
+	}
+
+	@Test
+	public void testRun() {
+		// One second at 200 mutations a second, with nothing to delete yet
+		// skipped rather than failed
+		KeyCatalog keys = new KeyCatalog(new RecordingSink(), 100,
+				MutationType.values());
+		keys.write(Table.PATIENT_RESULTS, null, 1, "OHCP", "HBA1C", DATE, 6.5,
+				"ADSLOADER", DATE);
+		RecordingSink writes = new RecordingSink();
+		RecordingSink deletes = new RecordingSink();
+		MutationWorkload workload = new MutationWorkload(writes, deletes, keys,
+				dg, Settings.parseWeights("CORRECT_RESULT:1,DELETE_ENCOUNTER:1",
+						MutationType.class), RampProfile.parse("0:200,1:200"),
+				2);
+		workload.run();
+		Assert.assertEquals(0, deletes.rows.size());
+		Assert.assertTrue(writes.rows.size() > 50);
+		Assert.assertTrue(writes.rows.size() < 150);
+		String report = workload.report();
+		Assert.assertTrue(report.contains("CORRECT_RESULT"));
+		Assert.assertTrue(report.contains("DELETE_ENCOUNTER"));
+		Assert.assertFalse(report.contains("DELETE_RESULT"));
+	}
+
+	@Test
+	public void testDml() {
+		CqlDataSink sink = new CqlDataSink(null, "ads", 60);
+		Object[] row = { 11, "7", "OHCP", DATE, "IN", DATE, "HOME", DATE };
+		Assert.assertTrue(sink.toInsertDML(Table.PATIENT_ENCOUNTERS, row)
+				.endsWith(") using ttl 60;"));
+		Assert.assertEquals("delete from ads.patient_encounters where "
+				+ "patient_id = '7' and encounter_uid = 11;",
+				sink.toDeleteDML(Table.PATIENT_ENCOUNTERS, row));
+		Assert.assertTrue(new CqlDataSink(null, "ads").toInsertDML(
+				Table.PATIENT_ENCOUNTERS, row).endsWith("');"));
+	}
+}
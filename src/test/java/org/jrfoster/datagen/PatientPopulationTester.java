@@ -0,0 +1,110 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.PatientLoader;
+import org.jrfoster.datagen.PatientPopulation;
+import org.jrfoster.datagen.PatientRecord;
+import org.jrfoster.datagen.Table;
+import org.jrfoster.datagen.ZipRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PatientPopulationTester {
+	private final DataGenerator dg = new DataGenerator(100, 15);
+
+	@Test
+	public void testSplit() {
+		// Splitting hands off the first half and the parts together cover the
+		// whole population
+		PatientPopulation population = new PatientPopulation(dg, 11, null,
+				null);
+		PatientPopulation prefix = population.trySplit();
+		Assert.assertEquals(5, prefix.estimateSize());
+		Assert.assertEquals(6, population.estimateSize());
+
+		int count = 0;
+		while (prefix.hasNext()) {
+			prefix.next();
+			count++;
+		}
+		Assert.assertNull(prefix.trySplit());
+		while (population.hasNext()) {
+			population.next();
+			count++;
+		}
+		Assert.assertEquals(11, count);
+	}
+
+	@Test
+	public void testTakeFirst() {
+		// Batches are handed out in order until the population runs out
+		PatientPopulation population = new PatientPopulation(dg, 11, null,
+				null);
+		Assert.assertEquals(4, population.takeFirst(4).estimateSize());
+		Assert.assertEquals(4, population.takeFirst(4).estimateSize());
+		PatientPopulation last = population.takeFirst(4);
+		Assert.assertEquals(3, last.estimateSize());
+		Assert.assertFalse(population.hasNext());
+		Assert.assertNull(population.takeFirst(4));
+		Assert.assertNotNull(last.next());
+		Iterator<PatientPopulation> batches = new PatientPopulation(dg, 11,
+				null, null).batches(5);
+		Assert.assertEquals(5, batches.next().estimateSize());
+		Assert.assertEquals(5, batches.next().estimateSize());
+		Assert.assertEquals(1, batches.next().estimateSize());
+		Assert.assertFalse(batches.hasNext());
+	}
+
+	@Test
+	public void testRecords() {
+		PatientPopulation population = new PatientPopulation(dg, 50,
+				ZipRange.CT, null);
+		while (population.hasNext()) {
+			PatientRecord patient = population.next();
+			Assert.assertFalse(patient.getName().getFamilyName().isEmpty());
+			Assert.assertFalse(patient.getName().getGivenName().isEmpty());
+			Assert.assertEquals("CT", patient.getAddress().getState());
+			Assert.assertEquals(patient.isMale(), "M".equals(patient
+					.getGender()));
+		}
+	}
+
+	@Test
+	public void testTables() {
+		// Only rows for the tables being loaded are generated
+		final Set<Table> written = new HashSet<Table>();
+		DataSink sink = new DataSink() {
+			@Override
+			public void write(Table table, Object... values) {
+				written.add(table);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Set<Table> tables = EnumSet.of(Table.PATIENT_DEMOGRAPHICS,
+				Table.PATIENT_RESULTS);
+		PatientLoader loader = new PatientLoader(sink, dg,
+				new AbnormalRatioController(0.3, 16), new Date(), 2014, tables);
+		PatientPopulation population = new PatientPopulation(dg, 20, null,
+				null);
+		while (population.hasNext()) {
+			loader.load(population.next());
+		}
+		Assert.assertTrue(written.contains(Table.PATIENT_DEMOGRAPHICS));
+		Assert.assertTrue(tables.containsAll(written));
+	}
+}
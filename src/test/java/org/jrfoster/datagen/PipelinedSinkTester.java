@@ -0,0 +1,222 @@
+package org.jrfoster.datagen;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrfoster.datagen.BackpressurePolicy;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.LanedSink;
+import org.jrfoster.datagen.PipelinedSink;
+import org.jrfoster.datagen.RowRingBuffer;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelinedSinkTester {
+	private static final int PRODUCERS = 4;
+	private static final int ROWS_PER_PRODUCER = 50000;
+
+	/**
+	 * Sink that records which rows it has seen, by the number in the first
+	 * column, and can be made to write slowly
+	 */
+	private static class RecordingSink implements DataSink {
+		private final AtomicIntegerArray seen = new AtomicIntegerArray(
+				PRODUCERS * ROWS_PER_PRODUCER);
+		private final AtomicLong writes = new AtomicLong();
+		private final long delayNanos;
+
+		RecordingSink(long delayNanos) {
+			this.delayNanos = delayNanos;
+		}
+
+		@Override
+		public void write(Table table, Object... values) {
+			Assert.assertEquals(Table.PATIENT_XREF, table);
+			seen.incrementAndGet((Integer) values[1]);
+			writes.incrementAndGet();
+			if (delayNanos > 0) {
+				long until = System.nanoTime() + delayNanos;
+				while (System.nanoTime() < until) {
+				}
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private void produce(final DataSink sink) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(PRODUCERS);
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int base = p * ROWS_PER_PRODUCER;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < ROWS_PER_PRODUCER; i++) {
+						sink.write(Table.PATIENT_XREF, null, base + i, "x", "y");
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+	}
+
+	private void assertAllWrittenOnce(RecordingSink target) {
+		Assert.assertEquals(PRODUCERS * ROWS_PER_PRODUCER, target.writes.get());
+		for (int i = 0; i < PRODUCERS * ROWS_PER_PRODUCER; i++) {
+			Assert.assertEquals("Row " + i, 1, target.seen.get(i));
+		}
+	}
+
+	@Test
+	public void testBlock() throws InterruptedException {
+		// A small buffer and slow writers make sure producers stall and slots
+		// get reused many times over
+		RecordingSink target = new RecordingSink(1000);
+		PipelinedSink sink = new PipelinedSink(target, 64, 3,
+				BackpressurePolicy.BLOCK);
+		produce(sink);
+		sink.flush();
+		assertAllWrittenOnce(target);
+		sink.close();
+		Assert.assertEquals(PRODUCERS * ROWS_PER_PRODUCER,
+				sink.getRowsWritten());
+		Assert.assertNotNull(sink.report());
+	}
+
+	@Test
+	public void testCallerRuns() throws InterruptedException {
+		RecordingSink target = new RecordingSink(1000);
+		PipelinedSink sink = new PipelinedSink(target, 16, 1,
+				BackpressurePolicy.CALLER_RUNS);
+		produce(sink);
+		sink.close();
+		assertAllWrittenOnce(target);
+
+		// Some rows must have been written by the producers themselves
+		Assert.assertTrue(sink.getRowsWritten() < PRODUCERS
+				* ROWS_PER_PRODUCER);
+	}
+
+	@Test
+	public void testFail() {
+		RecordingSink target = new RecordingSink(1000000);
+		PipelinedSink sink = new PipelinedSink(target, 2, 1,
+				BackpressurePolicy.FAIL);
+		try {
+			for (int i = 0; i < 100; i++) {
+				sink.write(Table.PATIENT_XREF, null, i, "x", "y");
+			}
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException ise) {
+		}
+		sink.close();
+	}
+
+	@Test
+	public void testRingBuffer() {
+		// Capacity is rounded up to a power of two and a full buffer refuses
+		// rows rather than overwriting them
+		RowRingBuffer buffer = new RowRingBuffer(5);
+		Assert.assertEquals(8, buffer.capacity());
+		for (int i = 0; i < 8; i++) {
+			Assert.assertEquals(i, buffer.offer(Table.PATIENT_XREF,
+					new Object[] { null, i, "x", "y" }));
+		}
+		Assert.assertEquals(-1, buffer.offer(Table.PATIENT_XREF,
+				new Object[] { null, 8, "x", "y" }));
+		Assert.assertEquals(8, buffer.size());
+
+		RecordingSink target = new RecordingSink(0);
+		while (buffer.poll(target)) {
+		}
+		Assert.assertEquals(8, target.writes.get());
+		Assert.assertEquals(0, buffer.size());
+		Assert.assertTrue(buffer.offer(Table.PATIENT_XREF, new Object[] {
+				null, 9, "x", "y" }) >= 0);
+	}
+
+	@Test
+	public void testRingBufferTakesWideRow() {
+		// A row handed on by another buffer comes in the slot's array, as wide
+		// as the widest table, and only the table's columns are copied
+		RowRingBuffer buffer = new RowRingBuffer(4);
+		Object[] wide = new Object[] { null, 1, "x", "y", "z", "w" };
+		Assert.assertEquals(0, buffer.offer(Table.PATIENT_XREF, wide));
+		RecordingSink target = new RecordingSink(0);
+		Assert.assertTrue(buffer.poll(target));
+		Assert.assertEquals(1, target.seen.get(1));
+	}
+
+	@Test
+	public void testPipelineOverLanes() {
+		RecordingSink target = new RecordingSink(0);
+		LanedSink lanes = new LanedSink(target, 16, LanedSink.parseWriters(2,
+				null), BackpressurePolicy.BLOCK);
+		PipelinedSink sink = new PipelinedSink(lanes, 16, 2,
+				BackpressurePolicy.BLOCK);
+		for (int i = 0; i < 1000; i++) {
+			sink.write(Table.PATIENT_XREF, null, i, "x", "y");
+		}
+		sink.flush();
+		Assert.assertEquals(0, sink.getWriteErrors());
+		Assert.assertEquals(1000, lanes.getRowsWritten(Table.PATIENT_XREF));
+		Assert.assertEquals(1000, target.writes.get());
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals("Row " + i, 1, target.seen.get(i));
+		}
+		sink.close();
+	}
+
+	@Test
+	public void testWriteErrorsFailFlushAndClose() {
+		final AtomicLong closes = new AtomicLong();
+		DataSink failing = new DataSink() {
+			@Override
+			public void write(Table table, Object... values) {
+				if ((Integer) values[1] % 10 == 0) {
+					throw new IllegalStateException("Write timed out");
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+				closes.incrementAndGet();
+			}
+		};
+		LanedSink lanes = new LanedSink(failing, 16, LanedSink.parseWriters(1,
+				null), BackpressurePolicy.BLOCK);
+		PipelinedSink sink = new PipelinedSink(lanes, 16, 1,
+				BackpressurePolicy.BLOCK);
+		for (int i = 0; i < 100; i++) {
+			sink.write(Table.PATIENT_XREF, null, i, "x", "y");
+		}
+		try {
+			sink.flush();
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException isex) {
+			// Expected
+		}
+		Assert.assertEquals(10, lanes.getWriteErrors());
+		try {
+			sink.close();
+			Assert.fail("Should raise IllegalStateException");
+		} catch (IllegalStateException isex) {
+			// Expected
+		}
+		// The writers are stopped and the wrapped sink closed regardless
+		Assert.assertEquals(1, closes.get());
+	}
+}
@@ -0,0 +1,145 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.QueryTableSink;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryTableSinkTester {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Sink that keeps a copy of every row written to it
+	 */
+	private static class CapturingSink implements DataSink {
+		private final List<Table> tables = new ArrayList<Table>();
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+
+		@Override
+		public void write(Table table, Object... values) {
+			tables.add(table);
+			rows.add(values.clone());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Builds a row of a table from column names and values
+	 */
+	private static Object[] row(Table table, Object... namesAndValues) {
+		Object[] values = new Object[table.getColumnCount()];
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			values[table.indexOf((String) namesAndValues[i])] = namesAndValues[i + 1];
+		}
+		return values;
+	}
+
+	@Test
+	public void testDemographicsByZip() {
+		CapturingSink target = new CapturingSink();
+		QueryTableSink sink = new QueryTableSink(target, 10.0);
+		Date dob = new Date(1000L * MILLIS_PER_DAY);
+		Object[] demographics = row(Table.PATIENT_DEMOGRAPHICS, "patient_id",
+				"1234", "zip_code", "97202", "gender", "F", "date_of_birth",
+				dob, "city", "Portland", "state_or_province", "OR");
+		sink.write(Table.PATIENT_DEMOGRAPHICS, demographics);
+
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_DEMOGRAPHICS,
+				Table.PATIENTS_BY_ZIP), target.tables);
+		Assert.assertArrayEquals(demographics, target.rows.get(0));
+		Assert.assertArrayEquals(
+				new Object[] { "97202", QueryTableSink.zipBucket("1234"),
+						"1234", "F", dob, "Portland", "OR" },
+				target.rows.get(1));
+	}
+
+	@Test
+	public void testZipBuckets() {
+		// A zip code's patients are spread over every bucket, and a patient
+		// always lands in the same one
+		Set<Integer> buckets = new HashSet<Integer>();
+		for (int id = 0; id < 1000; id++) {
+			int bucket = QueryTableSink.zipBucket(String.valueOf(id));
+			Assert.assertTrue(bucket >= 0
+					&& bucket < QueryTableSink.ZIP_BUCKETS);
+			Assert.assertEquals(bucket,
+					QueryTableSink.zipBucket(String.valueOf(id)));
+			buckets.add(bucket);
+		}
+		Assert.assertEquals(QueryTableSink.ZIP_BUCKETS, buckets.size());
+	}
+
+	@Test
+	public void testResultsByValue() {
+		CapturingSink target = new CapturingSink();
+		QueryTableSink sink = new QueryTableSink(target, 10.0);
+		UUID uid = UUID.randomUUID();
+		Date date = new Date(2 * MILLIS_PER_DAY + 5000);
+		sink.write(Table.PATIENT_RESULTS, row(Table.PATIENT_RESULTS,
+				"result_uid", uid, "patient_id", "77", "result_name", "LDLC",
+				"result_date", date, "result_value", 104.5));
+
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_RESULTS,
+				Table.RESULTS_BY_VALUE), target.tables);
+		Assert.assertArrayEquals(new Object[] { "LDLC", 10, 2, 104.5, date,
+				uid, "77" }, target.rows.get(1));
+
+		// Values bucket by their floor, below zero as well as above
+		Assert.assertEquals(10, sink.valueBucket(100.0));
+		Assert.assertEquals(10, sink.valueBucket(109.99));
+		Assert.assertEquals(11, sink.valueBucket(110.0));
+		Assert.assertEquals(-1, sink.valueBucket(-0.5));
+		Assert.assertEquals(0, QueryTableSink.dayBucket(new Date(
+				MILLIS_PER_DAY - 1)));
+		Assert.assertEquals(1, QueryTableSink.dayBucket(new Date(
+				MILLIS_PER_DAY)));
+	}
+
+	@Test
+	public void testEncountersByAdmitType() {
+		CapturingSink target = new CapturingSink();
+		QueryTableSink sink = new QueryTableSink(target, 10.0);
+		Date admit = new Date(30 * MILLIS_PER_DAY + 1);
+		Date discharge = new Date(33 * MILLIS_PER_DAY);
+		sink.write(Table.PATIENT_ENCOUNTERS, row(Table.PATIENT_ENCOUNTERS,
+				"encounter_uid", 51234, "patient_id", "77", "admit_date",
+				admit, "encounter_type", "Inpatient", "discharge_date",
+				discharge));
+
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_ENCOUNTERS,
+				Table.ENCOUNTERS_BY_ADMIT_TYPE), target.tables);
+		Assert.assertArrayEquals(new Object[] { "Inpatient", 30, admit, 51234,
+				"77", discharge }, target.rows.get(1));
+	}
+
+	@Test
+	public void testOtherTablesPassedThrough() {
+		CapturingSink target = new CapturingSink();
+		QueryTableSink sink = new QueryTableSink(target, 10.0);
+		sink.write(Table.METRICS, "readmission_patients", 12);
+		Assert.assertEquals(Arrays.asList(Table.METRICS), target.tables);
+		Assert.assertArrayEquals(new Object[] { "readmission_patients", 12 },
+				target.rows.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBucketWidthMustBePositive() {
+		new QueryTableSink(new CapturingSink(), 0);
+	}
+}
@@ -0,0 +1,140 @@
+package org.jrfoster.datagen;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.KeyCatalog;
+import org.jrfoster.datagen.ReadQuery;
+import org.jrfoster.datagen.ReadWorkload;
+import org.jrfoster.datagen.SchemaProfile;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadWorkloadTester {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	private static final DataSink NULL_SINK = new DataSink() {
+		@Override
+		public void write(Table table, Object... values) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Test
+	public void testKeyCatalog() {
+		KeyCatalog keys = new KeyCatalog(NULL_SINK, 100, ReadQuery.values());
+		Date date = new Date();
+		int[] counts = new int[10];
+		for (int i = 0; i < 10000; i++) {
+			// patient_id is written as an int to a text column
+			keys.write(Table.PATIENT_RESULTS, null, i, "OHCP", "HBA1C", date,
+					6.5, "LAB", date);
+		}
+		keys.write(Table.PATIENT_RANKING, "123A");
+		Assert.assertEquals(100, keys.size(ReadQuery.RESULTS_BY_PATIENT));
+		Assert.assertEquals(1, keys.size(ReadQuery.RANKING_BY_HICNO));
+		Assert.assertEquals(0, keys.size(ReadQuery.PATIENTS_BY_ZIP));
+		Assert.assertNull(keys.sample(ReadQuery.PATIENTS_BY_ZIP, new Random()));
+
+		// Keys come out in query order with text as strings, and the sample
+		// is spread over the whole load rather than the first rows
+		Random rng = new Random(7);
+		for (int i = 0; i < 1000; i++) {
+			Object[] key = keys.sample(ReadQuery.RESULTS_BY_PATIENT, rng);
+			Assert.assertEquals("HBA1C", key[1]);
+			Assert.assertEquals(date, key[2]);
+			counts[Integer.parseInt((String) key[0]) / 1000]++;
+		}
+		for (int count : counts) {
+			Assert.assertTrue(count > 0);
+		}
+	}
+
+	@Test
+	public void testParseMix() {
+		double[] weights = ReadWorkload
+				.parseMix("results_by_patient:3, RANKING_BY_HICNO:1");
+		Assert.assertEquals(3, weights[ReadQuery.RESULTS_BY_PATIENT.ordinal()],
+				0.0);
+		Assert.assertEquals(1, weights[ReadQuery.RANKING_BY_HICNO.ordinal()],
+				0.0);
+		Assert.assertEquals(0, weights[ReadQuery.PATIENTS_BY_ZIP.ordinal()],
+				0.0);
+		try {
+			ReadWorkload.parseMix("RESULTS_BY_PATIENT");
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+	@Test
+	public void testBindValues() {
+		double[] weights = ReadWorkload.parseMix("RESULTS_BY_PATIENT:1");
+		Date admit = new Date(1000 * MILLIS_PER_DAY);
+
+		ReadWorkload plain = new ReadWorkload(null, "ads",
+				SchemaProfile.INLINE_INDEXES, null, weights, 1, 365, 90);
+		Object[] values = plain.bindValues(
+				ReadQuery.ENCOUNTERS_BY_DATE_RANGE, new Object[] { "42", admit });
+		Assert.assertEquals(3, values.length);
+		Assert.assertEquals(new Date(955 * MILLIS_PER_DAY), values[1]);
+		Assert.assertEquals(new Date(1045 * MILLIS_PER_DAY), values[2]);
+
+		// The bucketed statement binds the buckets either side of the window
+		ReadWorkload bucketed = new ReadWorkload(null, "ads",
+				SchemaProfile.TIME_BUCKETED, null, weights, 1, 100, 90);
+		values = bucketed.bindValues(ReadQuery.ENCOUNTERS_BY_DATE_RANGE,
+				new Object[] { "42", admit });
+		Assert.assertEquals(9, values[1]);
+		Assert.assertEquals(10, values[2]);
+		values = bucketed.bindValues(ReadQuery.RESULTS_BY_PATIENT,
+				new Object[] { "42", "LDLC", admit });
+		Assert.assertArrayEquals(new Object[] { "42", 10, "LDLC" }, values);
+
+		Assert.assertTrue(ReadQuery.RESULTS_BY_PATIENT.toCql("ads",
+				SchemaProfile.TIME_BUCKETED).contains(
+				"ads.patient_results_bucketed"));
+		Assert.assertTrue(ReadQuery.PATIENTS_BY_ZIP.toCql("ads",
+				SchemaProfile.QUERY_TABLES).contains("ads.patients_by_zip"));
+		Assert.assertTrue(ReadQuery.PATIENTS_BY_ZIP.toCql("ads",
+				SchemaProfile.QUERY_TABLES).contains(
+				"bucket in (0, 1, 2, 3, 4, 5, 6, 7)"));
+
+		// Every profile serves the plain lookups, and only the profiles with
+		// the tables or indexes behind them serve the others
+		for (SchemaProfile profile : SchemaProfile.values()) {
+			Assert.assertTrue(ReadQuery.RESULTS_BY_PATIENT.isServedBy(profile));
+			Assert.assertTrue(ReadQuery.RANKING_BY_HICNO.isServedBy(profile));
+		}
+		Assert.assertTrue(ReadQuery.ENCOUNTERS_BY_DATE_RANGE
+				.isServedBy(SchemaProfile.TIME_BUCKETED));
+		Assert.assertFalse(ReadQuery.ENCOUNTERS_BY_DATE_RANGE
+				.isServedBy(SchemaProfile.INLINE_INDEXES));
+		Assert.assertTrue(ReadQuery.PATIENTS_BY_ZIP
+				.isServedBy(SchemaProfile.QUERY_TABLES));
+		Assert.assertTrue(ReadQuery.PATIENTS_BY_ZIP
+				.isServedBy(SchemaProfile.DEFERRED_INDEXES));
+		Assert.assertFalse(ReadQuery.PATIENTS_BY_ZIP
+				.isServedBy(SchemaProfile.TIME_BUCKETED));
+		Assert.assertTrue(ReadQuery.BENEFICIARY_BY_HICNO
+				.isServedBy(SchemaProfile.INLINE_INDEXES));
+		Assert.assertFalse(ReadQuery.BENEFICIARY_BY_HICNO
+				.isServedBy(SchemaProfile.QUERY_TABLES));
+
+		try {
+			new ReadWorkload(null, "ads", SchemaProfile.TIME_BUCKETED, null,
+					weights, 1, 30, 90);
+			Assert.fail("Should raise IllegalArgumentException");
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+}
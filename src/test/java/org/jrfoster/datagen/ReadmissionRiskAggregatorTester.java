@@ -0,0 +1,156 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jrfoster.datagen.AbnormalRatioController;
+import org.jrfoster.datagen.DataGenerator;
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.PatientLoader;
+import org.jrfoster.datagen.PatientPopulation;
+import org.jrfoster.datagen.ReadmissionRiskAggregator;
+import org.jrfoster.datagen.Table;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadmissionRiskAggregatorTester {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Sink that keeps the rows written to the derived tables
+	 */
+	private static class RecordingSink implements DataSink {
+		private final List<Object[]> scores = new ArrayList<Object[]>();
+		private final List<Object[]> stratification = new ArrayList<Object[]>();
+		private final List<Object[]> metrics = new ArrayList<Object[]>();
+
+		@Override
+		public synchronized void write(Table table, Object... values) {
+			if (table == Table.PAT_READMISSION_RISK) {
+				scores.add(values);
+			} else if (table == Table.READMISSION_STRATIFICATION) {
+				stratification.add(values);
+			} else if (table == Table.METRICS) {
+				metrics.add(values);
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static void writeEncounter(DataSink sink, int patientId,
+			String type, int days) {
+		Date admit = new Date(0);
+		sink.write(Table.PATIENT_ENCOUNTERS, 1, patientId, "OHCP", admit, type,
+				new Date(days * MILLIS_PER_DAY + 1000), "HOME", admit);
+	}
+
+	@Test
+	public void testPoints() {
+		Assert.assertEquals(0, ReadmissionRiskAggregator.lengthOfStayPoints(0));
+		Assert.assertEquals(3, ReadmissionRiskAggregator.lengthOfStayPoints(3));
+		Assert.assertEquals(4, ReadmissionRiskAggregator.lengthOfStayPoints(6));
+		Assert.assertEquals(5, ReadmissionRiskAggregator.lengthOfStayPoints(13));
+		Assert.assertEquals(7, ReadmissionRiskAggregator.lengthOfStayPoints(30));
+		Assert.assertTrue(ReadmissionRiskAggregator.isAcute("Urgent"));
+		Assert.assertFalse(ReadmissionRiskAggregator.isAcute("Elective"));
+	}
+
+	@Test
+	public void testScore() {
+		RecordingSink sink = new RecordingSink();
+		ReadmissionRiskAggregator aggregator = new ReadmissionRiskAggregator(
+				true);
+		ReadmissionRiskAggregator.Scorer scorer = aggregator.newScorer(sink);
+
+		// Longest stay 9 days is 5, an emergency 3 and two other encounters 2
+		scorer.beginPatient();
+		writeEncounter(scorer, 1, "Routine", 2);
+		writeEncounter(scorer, 1, "Emergency", 9);
+		writeEncounter(scorer, 1, "Elective", 0);
+		Assert.assertEquals(10, scorer.endPatient(1));
+
+		// A patient with no encounters scores nothing
+		scorer.beginPatient();
+		Assert.assertEquals(0, scorer.endPatient(2));
+
+		Assert.assertEquals(2, sink.scores.size());
+		Assert.assertArrayEquals(new Object[] { 1, 10 }, sink.scores.get(0));
+
+		// The scores reach the aggregator once the scorer is finished
+		Assert.assertEquals(0, aggregator.getHistogram()[10]);
+		scorer.finish();
+		scorer.finish();
+		aggregator.write(sink, EnumSet.allOf(Table.class));
+		Assert.assertEquals(2, sink.stratification.size());
+		Assert.assertArrayEquals(new Object[] { 0, 1 },
+				sink.stratification.get(0));
+		Assert.assertArrayEquals(new Object[] { 10, 1 },
+				sink.stratification.get(1));
+		Assert.assertArrayEquals(new Object[] { "readmission_high_risk", 1 },
+				sink.metrics.get(1));
+		Assert.assertArrayEquals(new Object[] { "readmission_encounters", 3 },
+				sink.metrics.get(2));
+	}
+
+	@Test
+	public void testLoaders() throws InterruptedException {
+		// Loaders on several threads each count into their own histogram and
+		// add it to the aggregator's when they finish, which covers every
+		// patient once
+		final DataGenerator dg = new DataGenerator(100, 16);
+		final RecordingSink sink = new RecordingSink();
+		final ReadmissionRiskAggregator aggregator = new ReadmissionRiskAggregator(
+				false);
+		final AbnormalRatioController abnormal = new AbnormalRatioController(
+				0.3, 16);
+		final int threads = 4;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						PatientLoader loader = new PatientLoader(sink, dg,
+								abnormal, aggregator, null, new Date(), 2014, EnumSet
+										.allOf(Table.class));
+						PatientPopulation population = new PatientPopulation(
+								dg, 25, null, null);
+						while (population.hasNext()) {
+							loader.load(population.next());
+						}
+						loader.finish();
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		long patients = 0;
+		for (long count : aggregator.getHistogram()) {
+			patients += count;
+		}
+		Assert.assertEquals(100, patients);
+		Assert.assertTrue(aggregator.getEncounters() > 0);
+		Assert.assertEquals(0, sink.scores.size());
+		Assert.assertTrue(aggregator.report().contains("100 patients"));
+	}
+}
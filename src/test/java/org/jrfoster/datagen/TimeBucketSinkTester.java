@@ -0,0 +1,117 @@
+package org.jrfoster.datagen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.jrfoster.datagen.DataSink;
+import org.jrfoster.datagen.Table;
+import org.jrfoster.datagen.TimeBucketSink;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeBucketSinkTester {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Sink that keeps a copy of every row written to it
+	 */
+	private static class CapturingSink implements DataSink {
+		private final List<Table> tables = new ArrayList<Table>();
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+
+		@Override
+		public void write(Table table, Object... values) {
+			tables.add(table);
+			rows.add(values.clone());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Builds a row of a table from column names and values
+	 */
+	private static Object[] row(Table table, Object... namesAndValues) {
+		Object[] values = new Object[table.getColumnCount()];
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			values[table.indexOf((String) namesAndValues[i])] = namesAndValues[i + 1];
+		}
+		return values;
+	}
+
+	@Test
+	public void testTimeBuckets() {
+		TimeBucketSink sink = new TimeBucketSink(new CapturingSink(), 365);
+		Assert.assertEquals(0, sink.timeBucket(new Date(0)));
+		Assert.assertEquals(0, sink.timeBucket(new Date(365 * MILLIS_PER_DAY
+				- 1)));
+		Assert.assertEquals(1, sink.timeBucket(new Date(365 * MILLIS_PER_DAY)));
+		Assert.assertEquals(45, new TimeBucketSink(new CapturingSink(), 7)
+				.timeBucket(new Date(316 * MILLIS_PER_DAY)));
+	}
+
+	@Test
+	public void testResultsRedirected() {
+		CapturingSink target = new CapturingSink();
+		TimeBucketSink sink = new TimeBucketSink(target, 365);
+		UUID uid = UUID.randomUUID();
+		Date date = new Date(800 * MILLIS_PER_DAY);
+		Date loaded = new Date();
+		sink.write(Table.PATIENT_RESULTS, row(Table.PATIENT_RESULTS,
+				"result_uid", uid, "patient_id", "77", "patient_id_src",
+				"OHCP", "result_name", "HBA1C", "result_date", date,
+				"result_value", 6.5, "result_source", "ADSLOADER",
+				"load_date", loaded));
+
+		// Only the bucketed row is written, in place of the base row
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_RESULTS_BUCKETED),
+				target.tables);
+		Assert.assertArrayEquals(new Object[] { "77", 2, uid, "OHCP", "HBA1C",
+				date, 6.5, "ADSLOADER", loaded }, target.rows.get(0));
+	}
+
+	@Test
+	public void testEncountersRedirected() {
+		CapturingSink target = new CapturingSink();
+		TimeBucketSink sink = new TimeBucketSink(target, 30);
+		Date admit = new Date(95 * MILLIS_PER_DAY);
+		Date discharge = new Date(97 * MILLIS_PER_DAY);
+		Date loaded = new Date();
+		sink.write(Table.PATIENT_ENCOUNTERS, row(Table.PATIENT_ENCOUNTERS,
+				"encounter_uid", 51234, "patient_id", "77", "patient_id_src",
+				"OHCP", "admit_date", admit, "encounter_type", "Inpatient",
+				"discharge_date", discharge, "discharge_method", "HOME",
+				"load_date", loaded));
+
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_ENCOUNTERS_BUCKETED),
+				target.tables);
+		Assert.assertArrayEquals(new Object[] { "77", 3, 51234, "OHCP", admit,
+				"Inpatient", discharge, "HOME", loaded }, target.rows.get(0));
+	}
+
+	@Test
+	public void testOtherTablesPassedThrough() {
+		CapturingSink target = new CapturingSink();
+		TimeBucketSink sink = new TimeBucketSink(target, 365);
+		Object[] demographics = row(Table.PATIENT_DEMOGRAPHICS, "patient_id",
+				"77", "zip_code", "97202");
+		sink.write(Table.PATIENT_DEMOGRAPHICS, demographics);
+		Assert.assertEquals(Arrays.asList(Table.PATIENT_DEMOGRAPHICS),
+				target.tables);
+		Assert.assertArrayEquals(demographics, target.rows.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBucketWidthMustBePositive() {
+		new TimeBucketSink(new CapturingSink(), 0);
+	}
+}
@@ -0,0 +1,75 @@
+package org.jrfoster.datagen;
+
+import java.util.Random;
+
+import org.jrfoster.datagen.ZipData;
+import org.jrfoster.datagen.ZipGridIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZipGridIndexTester {
+	private Random rng = new Random(42);
+
+	private ZipData zip(int code, double lat, double lon) {
+		return new ZipData(code + ",STANDARD,TOWN,CT,PRIMARY," + lat + ","
+				+ lon + ",NA-US-CT-TOWN,FALSE,100,1000,500000");
+	}
+
+	@Test
+	public void testMatchesBruteForce() {
+		// Scatter points over roughly the continental U.S. and check that the
+		// grid returns exactly what a scan of every point returns
+		ZipData[] zips = new ZipData[5000];
+		for (int i = 0; i < zips.length; i++) {
+			zips[i] = zip(i, 25 + rng.nextDouble() * 24,
+					-124 + rng.nextDouble() * 57);
+		}
+		ZipGridIndex index = new ZipGridIndex(zips, 0.5);
+
+		for (int q = 0; q < 200; q++) {
+			double lat = 25 + rng.nextDouble() * 24;
+			double lon = -124 + rng.nextDouble() * 57;
+			double radius = rng.nextDouble() * 150;
+			int[] found = index.within(lat, lon, radius);
+
+			int expected = 0;
+			for (int i = 0; i < zips.length; i++) {
+				if (ZipGridIndex.distanceMiles(lat, lon, zips[i].getLatitude(),
+						zips[i].getLongitude()) <= radius) {
+					expected++;
+				}
+			}
+			Assert.assertEquals("Grid and scan disagree", expected,
+					found.length);
+			for (int i : found) {
+				Assert.assertTrue(ZipGridIndex.distanceMiles(lat, lon,
+						zips[i].getLatitude(), zips[i].getLongitude()) <= radius);
+			}
+		}
+	}
+
+	@Test
+	public void testMultipleFacilities() {
+		// A zip near both facilities is only returned once
+		ZipData[] zips = { zip(1, 41.76, -72.68), zip(2, 41.77, -72.69),
+				zip(3, 41.31, -72.92), zip(4, 40.71, -74.00) };
+		ZipGridIndex index = new ZipGridIndex(zips, 0.5);
+		int[] found = index.withinAny(new double[] { 41.76, 41.77 },
+				new double[] { -72.68, -72.69 }, 5);
+		Assert.assertArrayEquals(new int[] { 0, 1 }, found);
+
+		found = index.withinAny(new double[] { 41.76, 41.31 }, new double[] {
+				-72.68, -72.92 }, 5);
+		Assert.assertArrayEquals(new int[] { 0, 1, 2 }, found);
+
+		// Nothing near a point well outside the grid
+		Assert.assertEquals(0, index.within(0, 0, 100).length);
+	}
+
+	@Test
+	public void testDistance() {
+		// Hartford to New York is about 100 miles as the crow flies
+		double miles = ZipGridIndex.distanceMiles(41.76, -72.68, 40.71, -74.00);
+		Assert.assertEquals(100, miles, 2);
+	}
+}